@@ -0,0 +1,64 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rhq.metrics.client.common;
+
+import java.util.Collection;
+
+/**
+ * Buffer for metrics that are waiting to be forwarded. Entries are drained in batches and only freed once
+ * the batch has been acknowledged.
+ *
+ * {@link #offer(SingleMetric)} may be called from any thread; drain and ack are meant for a single consumer.
+ */
+public interface MetricBuffer {
+
+    /**
+     * Add a metric. If the buffer is full the oldest entry is dropped to make room.
+     * @param metric Metric to add
+     */
+    void offer(SingleMetric metric);
+
+    /**
+     * Add all passed metrics.
+     * @param metrics Metrics to add
+     */
+    void offerAll(Collection<SingleMetric> metrics);
+
+    /**
+     * Move up to max metrics that have not been drained yet into out.
+     * @param out Collection to add the metrics to
+     * @param max Maximum number of metrics to drain
+     * @return The position following the last drained entry, to be passed to {@link #ack(long)}
+     */
+    long drainTo(Collection<? super SingleMetric> out, int max);
+
+    /**
+     * Acknowledge all entries before the passed position, so that their space can be reused.
+     * @param position Position returned by {@link #drainTo(Collection, int)}
+     */
+    void ack(long position);
+
+    /**
+     * @return Number of entries that are neither acknowledged nor dropped.
+     */
+    int size();
+
+    /**
+     * @return Total number of entries that were dropped because the buffer was full.
+     */
+    long getDropped();
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rhq.metrics.client.common;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free ring buffer for metrics with many producers and a single consumer.
+ *
+ * Every offered metric gets a sequence number. If the buffer is full, the oldest entries are
+ * overwritten instead of blocking the producer. A slot only ever moves to a higher sequence, a
+ * producer whose slot has already been taken by a later sequence gives up its entry. The consumer
+ * counts every entry it never got to see as dropped when it drains past it, so once the producers
+ * are done, each offered entry has either been drained exactly once or been counted as dropped.
+ *
+ * The consumer does not remove objects one by one. It {@link #drainTo(Collection, int) drains} a
+ * batch, which advances a read cursor and returns the sequence following the batch. Once the batch
+ * has been processed the consumer {@link #ack(long) acknowledges} everything up to that sequence,
+ * which frees the slots. The buffer does not keep drained entries for another attempt, retrying a
+ * batch that failed is up to the consumer. Producers that run out of room overwrite drained
+ * entries first.
+ *
+ * {@link #offer(SingleMetric)} may be called from any thread; drain and ack must not be called
+ * concurrently with each other.
+ */
+public class MetricRingBuffer implements MetricBuffer {
+
+    /** Marks a slot a producer is currently writing to, below every sequence. */
+    private static final long WRITING = Long.MIN_VALUE;
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<SingleMetric> slots;
+    private final AtomicLongArray sequences;
+
+    /** Next sequence to hand out to a producer. */
+    private final AtomicLong tail = new AtomicLong();
+    /** Oldest sequence that is neither acknowledged nor dropped. */
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong acked = new AtomicLong();
+
+    /** Next sequence to drain, only touched by the consumer. */
+    private long readCursor;
+
+    /**
+     * Create a new ring buffer. The capacity is rounded up to the next power of two.
+     * @param capacity Minimum number of metrics the buffer can hold.
+     */
+    public MetricRingBuffer(int capacity) {
+        if (capacity < 1 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("Capacity must be between 1 and 2^30, but was " + capacity);
+        }
+        this.capacity = Integer.highestOneBit(capacity) == capacity ? capacity
+            : Integer.highestOneBit(capacity) << 1;
+        mask = this.capacity - 1;
+        slots = new AtomicReferenceArray<>(this.capacity);
+        sequences = new AtomicLongArray(this.capacity);
+        for (int i = 0; i < this.capacity; i++) {
+            // No slot holds sequence i - capacity, so nothing reads as published before it is written
+            sequences.set(i, i - this.capacity);
+        }
+    }
+
+    /**
+     * Add a metric. If the buffer is full the oldest entry is dropped to make room.
+     * @param metric Metric to add
+     */
+    @Override
+    public void offer(SingleMetric metric) {
+        long seq = tail.getAndIncrement();
+        int slot = (int) seq & mask;
+
+        long oldest = seq - capacity + 1;
+        long h;
+        while ((h = head.get()) < oldest) {
+            if (head.compareAndSet(h, oldest)) {
+                break;
+            }
+        }
+
+        while (true) {
+            long current = sequences.get(slot);
+            if (current > seq) {
+                // A producer that wrapped around took the slot first, the consumer counts this entry as dropped
+                return;
+            }
+            if (current != WRITING && sequences.compareAndSet(slot, current, WRITING)) {
+                break;
+            }
+            // Another producer is writing the slot
+            Thread.yield();
+        }
+        slots.lazySet(slot, metric);
+        sequences.set(slot, seq);
+    }
+
+    /**
+     * Add all passed metrics.
+     * @param metrics Metrics to add
+     */
+    @Override
+    public void offerAll(Collection<SingleMetric> metrics) {
+        for (SingleMetric metric : metrics) {
+            offer(metric);
+        }
+    }
+
+    /**
+     * Move up to max metrics that have not been drained yet into out. Entries that were overwritten
+     * in the meantime are skipped. Draining stops early at an entry whose producer has not finished
+     * writing it.
+     * @param out Collection to add the metrics to
+     * @param max Maximum number of metrics to drain
+     * @return The sequence following the last drained entry, to be passed to {@link #ack(long)}
+     */
+    @Override
+    public long drainTo(Collection<? super SingleMetric> out, int max) {
+        long seq = Math.max(readCursor, head.get());
+        long end = tail.get();
+        long skipped = seq - readCursor;
+        int count = 0;
+        while (seq < end && count < max) {
+            int slot = (int) seq & mask;
+            long published = sequences.get(slot);
+            if (published < seq) {
+                // Claimed, but not yet written
+                break;
+            }
+            SingleMetric metric = slots.get(slot);
+            if (published == seq && sequences.get(slot) == seq) {
+                out.add(metric);
+                count++;
+            } else {
+                // The entry was overwritten before it could be read
+                skipped++;
+            }
+            seq++;
+        }
+        if (skipped > 0) {
+            dropped.addAndGet(skipped);
+        }
+        readCursor = seq;
+        return seq;
+    }
+
+    /**
+     * Acknowledge all entries before the passed sequence, so that their slots can be reused.
+     * @param sequence Sequence returned by {@link #drainTo(Collection, int)}
+     */
+    @Override
+    public void ack(long sequence) {
+        long h;
+        while ((h = head.get()) < sequence) {
+            if (head.compareAndSet(h, sequence)) {
+                acked.addAndGet(sequence - h);
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return Number of entries that are neither acknowledged nor dropped.
+     */
+    @Override
+    public int size() {
+        long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(size, capacity));
+    }
+
+    /**
+     * @return Number of entries that have been drained, but not yet acknowledged.
+     */
+    public int inFlight() {
+        return (int) Math.max(0, Math.min(readCursor - head.get(), capacity));
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return Total number of entries that were overwritten before they were drained.
+     */
+    @Override
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return Total number of entries freed by an acknowledgement. Drained entries that producers
+     * overwrote before they were acknowledged are not included.
+     */
+    public long getAcked() {
+        return acked.get();
+    }
+}
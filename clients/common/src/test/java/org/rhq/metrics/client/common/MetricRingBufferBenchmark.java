@@ -0,0 +1,122 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rhq.metrics.client.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Contention benchmark comparing {@link MetricRingBuffer} to {@link BoundMetricFifo} with several
+ * producer threads and one consumer that drains and acknowledges batches, like the forwarding handler
+ * of ptrans does. It is not run as part of the tests, start it with
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *   -Dexec.mainClass=org.rhq.metrics.client.common.MetricRingBufferBenchmark -Dexec.args="4 2000000"
+ * </pre>
+ * where the arguments are the number of producers and the number of metrics per producer.
+ */
+public class MetricRingBufferBenchmark {
+
+    private static final int CAPACITY = 10000;
+    private static final int BATCH_SIZE = 1000;
+
+    private interface Buffer {
+        void offer(SingleMetric metric);
+
+        int drainAndAck();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int producers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int perProducer = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+
+        for (int round = 0; round < 3; round++) {
+            final BoundMetricFifo fifo = new BoundMetricFifo(10, CAPACITY);
+            run("BoundMetricFifo", producers, perProducer, new Buffer() {
+                @Override
+                public void offer(SingleMetric metric) {
+                    fifo.offer(metric);
+                }
+
+                @Override
+                public int drainAndAck() {
+                    List<SingleMetric> batch = fifo.getList();
+                    if (batch.size() > BATCH_SIZE) {
+                        batch = batch.subList(0, BATCH_SIZE);
+                    }
+                    fifo.cleanout(batch);
+                    return batch.size();
+                }
+            });
+
+            final MetricRingBuffer ring = new MetricRingBuffer(CAPACITY);
+            final List<SingleMetric> batch = new ArrayList<>(BATCH_SIZE);
+            run("MetricRingBuffer", producers, perProducer, new Buffer() {
+                @Override
+                public void offer(SingleMetric metric) {
+                    ring.offer(metric);
+                }
+
+                @Override
+                public int drainAndAck() {
+                    batch.clear();
+                    ring.ack(ring.drainTo(batch, BATCH_SIZE));
+                    return batch.size();
+                }
+            });
+        }
+    }
+
+    private static void run(String name, int producers, final int perProducer, final Buffer buffer)
+        throws Exception {
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(producers);
+        final AtomicBoolean finished = new AtomicBoolean();
+        final SingleMetric metric = new SingleMetric("benchmark", 1L, 1.0d);
+
+        for (int p = 0; p < producers; p++) {
+            new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < perProducer; i++) {
+                    buffer.offer(metric);
+                }
+                done.countDown();
+            }).start();
+        }
+
+        long drained = 0;
+        long begin = System.nanoTime();
+        start.countDown();
+        while (!finished.get()) {
+            drained += buffer.drainAndAck();
+            if (done.getCount() == 0) {
+                finished.set(true);
+            }
+        }
+        long elapsed = System.nanoTime() - begin;
+
+        long offered = (long) producers * perProducer;
+        System.out.printf("%-18s %d producers: %8.1f ns/offer, %5.1f%% drained%n", name, producers,
+            (double) elapsed / offered * producers, 100.0 * drained / offered);
+    }
+}
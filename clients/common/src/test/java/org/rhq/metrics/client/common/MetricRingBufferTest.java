@@ -0,0 +1,221 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rhq.metrics.client.common;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+public class MetricRingBufferTest {
+
+    private static SingleMetric metric(int i) {
+        return new SingleMetric("" + i, (long) i, (double) i);
+    }
+
+    @Test
+    public void testCapacityIsRoundedUp() throws Exception {
+        assert new MetricRingBuffer(1000).getCapacity() == 1024;
+        assert new MetricRingBuffer(16).getCapacity() == 16;
+        assert new MetricRingBuffer(1).getCapacity() == 1;
+    }
+
+    @Test
+    public void testEmptyBuffer() throws Exception {
+        MetricRingBuffer buffer = new MetricRingBuffer(8);
+        List<SingleMetric> out = new ArrayList<>();
+
+        assert buffer.isEmpty();
+        assert buffer.drainTo(out, 10) == 0;
+        assert out.isEmpty();
+    }
+
+    @Test
+    public void testDrainAndAck() throws Exception {
+        MetricRingBuffer buffer = new MetricRingBuffer(8);
+        for (int i = 0; i < 5; i++) {
+            buffer.offer(metric(i));
+        }
+
+        List<SingleMetric> out = new ArrayList<>();
+        long end = buffer.drainTo(out, 3);
+        assert end == 3 : "End should be 3 but was " + end;
+        assert out.size() == 3;
+        assert out.get(0).getTimestamp() == 0;
+        assert buffer.size() == 5 : "Drained entries stay until acked";
+        assert buffer.inFlight() == 3;
+
+        // A second drain continues after the batch in flight
+        out.clear();
+        end = buffer.drainTo(out, 10);
+        assert end == 5;
+        assert out.size() == 2;
+        assert out.get(0).getTimestamp() == 3;
+
+        buffer.ack(3);
+        assert buffer.size() == 2 : "Size should be 2 but was " + buffer.size();
+        buffer.ack(5);
+        assert buffer.isEmpty();
+        assert buffer.getAcked() == 5;
+        assert buffer.getDropped() == 0;
+    }
+
+    @Test
+    public void testOverrunDropsOldest() throws Exception {
+        MetricRingBuffer buffer = new MetricRingBuffer(4);
+        for (int i = 0; i < 7; i++) {
+            buffer.offer(metric(i));
+        }
+
+        assert buffer.size() == 4 : "Size should be 4 but was " + buffer.size();
+
+        List<SingleMetric> out = new ArrayList<>();
+        buffer.drainTo(out, 10);
+        assert buffer.getDropped() == 3 : "Dropped should be 3 but was " + buffer.getDropped();
+        assert out.size() == 4;
+        assert out.get(0).getTimestamp() == 3;
+        assert out.get(3).getTimestamp() == 6;
+    }
+
+    @Test
+    public void testOverrunOfDrainedBatch() throws Exception {
+        MetricRingBuffer buffer = new MetricRingBuffer(4);
+        for (int i = 0; i < 4; i++) {
+            buffer.offer(metric(i));
+        }
+        List<SingleMetric> out = new ArrayList<>();
+        long end = buffer.drainTo(out, 4);
+
+        // The unacked batch gets overwritten, its late ack must not touch the new entries
+        for (int i = 4; i < 10; i++) {
+            buffer.offer(metric(i));
+        }
+        buffer.ack(end);
+
+        assert buffer.size() == 4 : "Size should be 4 but was " + buffer.size();
+        out.clear();
+        buffer.drainTo(out, 10);
+        // Only the entries that were never drained count as dropped
+        assert buffer.getDropped() == 2 : "Dropped should be 2 but was " + buffer.getDropped();
+        assert out.size() == 4;
+        assert out.get(0).getTimestamp() == 6;
+    }
+
+    @Test
+    public void testConcurrentProducers() throws Exception {
+        final int producers = 4;
+        final int perProducer = 10000;
+        final MetricRingBuffer buffer = new MetricRingBuffer(1024);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            final int base = p * perProducer;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < perProducer; i++) {
+                    buffer.offer(metric(base + i));
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        Set<String> seen = new HashSet<>();
+        List<SingleMetric> out = new ArrayList<>();
+        start.countDown();
+        boolean running = true;
+        while (running) {
+            running = false;
+            for (Thread thread : threads) {
+                running |= thread.isAlive();
+            }
+            out.clear();
+            buffer.ack(buffer.drainTo(out, 256));
+            for (SingleMetric metric : out) {
+                assert seen.add(metric.getSource()) : "Drained twice: " + metric;
+            }
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        out.clear();
+        buffer.ack(buffer.drainTo(out, Integer.MAX_VALUE));
+        for (SingleMetric metric : out) {
+            assert seen.add(metric.getSource()) : "Drained twice: " + metric;
+        }
+
+        assert buffer.isEmpty();
+        assert seen.size() + buffer.getDropped() == producers * perProducer :
+            "Every metric must be drained or dropped, drained " + seen.size() + ", dropped " + buffer.getDropped();
+    }
+
+    @Test
+    public void testProducersWrappingOntoTheSameSlot() throws Exception {
+        final int producers = 8;
+        final int perProducer = 50000;
+        // Far more producers than slots, so that several of them write the same slot at once
+        final MetricRingBuffer buffer = new MetricRingBuffer(4);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            final int base = p * perProducer;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < perProducer; i++) {
+                    buffer.offer(metric(base + i));
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        Set<String> seen = new HashSet<>();
+        List<SingleMetric> out = new ArrayList<>();
+        start.countDown();
+        for (Thread thread : threads) {
+            while (thread.isAlive()) {
+                out.clear();
+                buffer.ack(buffer.drainTo(out, 3));
+                for (SingleMetric metric : out) {
+                    assert seen.add(metric.getSource()) : "Drained twice: " + metric;
+                }
+            }
+        }
+        out.clear();
+        long end = buffer.drainTo(out, Integer.MAX_VALUE);
+        buffer.ack(end);
+        for (SingleMetric metric : out) {
+            assert seen.add(metric.getSource()) : "Drained twice: " + metric;
+        }
+
+        // A slot published out of order would stop the consumer before the end
+        assert end == producers * perProducer : "Drain stalled at " + end;
+        assert buffer.isEmpty();
+        assert seen.size() + buffer.getDropped() == producers * perProducer :
+            "Offered " + producers * perProducer + ", drained " + seen.size() + ", dropped " + buffer.getDropped();
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rhq.metrics.clients.ptrans;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.CharsetUtil;
+
+/**
+ * Parses ASCII numbers and helps splitting plaintext protocols directly in a {@link ByteBuf}, without
+ * creating intermediate strings.
+ */
+public final class AsciiParser {
+
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    /** Integers up to this value are exact doubles */
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+    private static final long MAX_MANTISSA = (Long.MAX_VALUE - 9) / 10;
+    private static final int MAX_EXPONENT = 1000;
+
+    private static final ThreadLocal<char[]> CHARS = new ThreadLocal<char[]>() {
+        @Override
+        protected char[] initialValue() {
+            return new char[128];
+        }
+    };
+
+    private AsciiParser() {
+    }
+
+    /**
+     * Parse a decimal number like 42, -1.5 or 2.5e-3 from the bytes between start (inclusive) and
+     * end (exclusive). Numbers with up to 15 significant digits and a small exponent are computed
+     * directly, all others are left to {@link Double#parseDouble(String)}.
+     * @return The number, or {@link Double#NaN} if the bytes are not a number
+     */
+    public static double parseDouble(ByteBuf buf, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end) {
+            byte sign = buf.getByte(i);
+            if (sign == '-' || sign == '+') {
+                negative = sign == '-';
+                i++;
+            }
+        }
+
+        long mantissa = 0;
+        int exponent = 0;
+        boolean digits = false;
+        boolean truncated = false;
+        byte b;
+        while (i < end && (b = buf.getByte(i)) >= '0' && b <= '9') {
+            digits = true;
+            if (mantissa <= MAX_MANTISSA) {
+                mantissa = mantissa * 10 + (b - '0');
+            } else {
+                truncated = true;
+                exponent++;
+            }
+            i++;
+        }
+        if (i < end && buf.getByte(i) == '.') {
+            i++;
+            while (i < end && (b = buf.getByte(i)) >= '0' && b <= '9') {
+                digits = true;
+                if (mantissa <= MAX_MANTISSA) {
+                    mantissa = mantissa * 10 + (b - '0');
+                    exponent--;
+                } else {
+                    truncated = true;
+                }
+                i++;
+            }
+        }
+        if (!digits) {
+            return Double.NaN;
+        }
+        if (i < end && ((b = buf.getByte(i)) == 'e' || b == 'E')) {
+            i++;
+            boolean negativeExponent = false;
+            if (i < end && ((b = buf.getByte(i)) == '-' || b == '+')) {
+                negativeExponent = b == '-';
+                i++;
+            }
+            int explicitExponent = 0;
+            boolean exponentDigits = false;
+            while (i < end && (b = buf.getByte(i)) >= '0' && b <= '9') {
+                exponentDigits = true;
+                if (explicitExponent < MAX_EXPONENT) {
+                    explicitExponent = explicitExponent * 10 + (b - '0');
+                }
+                i++;
+            }
+            if (!exponentDigits) {
+                return Double.NaN;
+            }
+            exponent += negativeExponent ? -explicitExponent : explicitExponent;
+        }
+        if (i != end) {
+            return Double.NaN;
+        }
+
+        double value;
+        if (!truncated && mantissa <= MAX_EXACT_MANTISSA && exponent >= -22 && exponent <= 22) {
+            // Both operands are exact, so the result is correctly rounded
+            value = exponent >= 0 ? mantissa * POWERS_OF_TEN[exponent] : mantissa / POWERS_OF_TEN[-exponent];
+        } else {
+            value = Math.abs(Double.parseDouble(buf.toString(start, end - start, CharsetUtil.US_ASCII)));
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * @return True for the bytes that surround fields of plaintext protocols: space, tab and carriage return.
+     */
+    public static boolean isBlank(byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+
+    /**
+     * @return The index of the first byte from start on that is not blank, or end
+     */
+    public static int skipBlanks(ByteBuf buf, int start, int end) {
+        while (start < end && isBlank(buf.getByte(start))) {
+            start++;
+        }
+        return start;
+    }
+
+    /**
+     * @return The index of the first blank byte from start on, or end
+     */
+    public static int nextBlank(ByteBuf buf, int start, int end) {
+        while (start < end && !isBlank(buf.getByte(start))) {
+            start++;
+        }
+        return start;
+    }
+
+    /**
+     * @return The index after the last byte before end that is not blank, or start
+     */
+    public static int trimEnd(ByteBuf buf, int start, int end) {
+        while (end > start && isBlank(buf.getByte(end - 1))) {
+            end--;
+        }
+        return end;
+    }
+
+    /**
+     * Decode the bytes between start and end as a string. Pure ASCII is copied directly, anything else
+     * goes through the UTF-8 decoder of {@link ByteBuf#toString(int, int, java.nio.charset.Charset)}.
+     */
+    public static String toString(ByteBuf buf, int start, int end) {
+        int length = end - start;
+        char[] chars = CHARS.get();
+        if (chars.length < length) {
+            chars = new char[Math.max(length, chars.length * 2)];
+            CHARS.set(chars);
+        }
+        for (int i = 0; i < length; i++) {
+            byte b = buf.getByte(start + i);
+            if (b < 0) {
+                return buf.toString(start, length, CharsetUtil.UTF_8);
+            }
+            chars[i] = (char) b;
+        }
+        return new String(chars, 0, length);
+    }
+}
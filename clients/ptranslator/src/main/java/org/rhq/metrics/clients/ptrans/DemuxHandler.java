@@ -28,63 +28,154 @@ import io.netty.util.CharsetUtil;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.rhq.metrics.clients.ptrans.backend.RestForwardingHandler;
 import org.rhq.metrics.clients.ptrans.graphite.GraphiteEventDecoder;
+import org.rhq.metrics.clients.ptrans.syslog.OctetCountingFrameDecoder;
 import org.rhq.metrics.clients.ptrans.syslog.SyslogEventDecoder;
+import org.rhq.metrics.clients.ptrans.tenant.TenantRouter;
 
 /**
- * Demultiplex incoming connection data into their own pipelines
+ * Demultiplex incoming connection data into their own pipelines.
+ *
+ * The protocol is recognized from the first line of the connection, then this handler replaces itself
+ * by a frame decoder and the matching protocol decoder, so that the rest of the stream is parsed frame
+ * by frame no matter how it is split into TCP segments:
+ * <ul>
+ *     <li>syslog with octet counting framing, the line starts with a length and "&lt;"</li>
+ *     <li>syslog with line framing, the line starts with "&lt;" or contains "type=metric"</li>
+ *     <li>Graphite plaintext, the line has three fields and no "="</li>
+ * </ul>
  * @author Heiko W. Rupp
  */
 public class DemuxHandler extends ByteToMessageDecoder {
 
+    /** Longest line or syslog frame accepted on a connection */
+    static final int MAX_FRAME_LENGTH = 65536;
+
+    private static final byte[] SYSLOG_METRIC = "type=metric".getBytes(CharsetUtil.US_ASCII);
+
     private static final Logger logger = LoggerFactory.getLogger(DemuxHandler.class);
     private Properties configuration;
     private ChannelInboundHandlerAdapter forwardingHandler;
+    private final int batchSize;
+    private final int batchMaxBytes;
+    private final long batchLinger;
+    private final TenantRouter router;
 
-    public DemuxHandler(Properties configuration, ChannelInboundHandlerAdapter forwardingHandler) {
+    public DemuxHandler(Properties configuration, ChannelInboundHandlerAdapter forwardingHandler, int batchSize,
+        int batchMaxBytes, long batchLinger, TenantRouter router) {
         this.configuration = configuration;
         this.forwardingHandler = forwardingHandler;
+        this.batchSize = batchSize;
+        this.batchMaxBytes = batchMaxBytes;
+        this.batchLinger = batchLinger;
+        this.router = router;
     }
 
     @Override
     protected void decode(ChannelHandlerContext ctx, ByteBuf msg, @SuppressWarnings("rawtypes") List out)
             throws Exception {
 
-        if (msg.readableBytes()<5) {
+        int start = msg.readerIndex();
+        int lineEnd = msg.indexOf(start, msg.writerIndex(), (byte) '\n');
+        if (lineEnd < 0) {
+            // Octet counted frames need not end with a line break, their length prefix is enough to tell
+            if (msg.readableBytes() < MAX_FRAME_LENGTH && !isOctetCounted(msg, start, msg.writerIndex())) {
+                // Wait for the rest of the first line
+                return;
+            }
+            lineEnd = msg.writerIndex();
+        }
+        demux(ctx, msg, start, lineEnd);
+    }
+
+    @Override
+    protected void decodeLast(ChannelHandlerContext ctx, ByteBuf msg, @SuppressWarnings("rawtypes") List out)
+            throws Exception {
+
+        // The connection is closed before the first line was complete, try with what is there
+        if (msg.isReadable()) {
+            demux(ctx, msg, msg.readerIndex(), msg.writerIndex());
+        }
+    }
+
+    /**
+     * Set up the pipeline for the protocol of the line between start and end. The buffer is not read,
+     * its content is passed on to the new handlers once this handler is removed.
+     */
+    private void demux(ChannelHandlerContext ctx, ByteBuf msg, int start, int end) {
+        if (logger.isDebugEnabled()) {
+            logger.debug("Incoming: [" + msg.toString(start, end - start, CharsetUtil.UTF_8) + "]");
+        }
+
+        // The new handlers take the place of this one, ahead of anything that follows it in the pipeline
+        ChannelPipeline pipeline = ctx.pipeline();
+        String name = ctx.name();
+        if (isOctetCounted(msg, start, end)) {
+            ctx.channel().attr(TenantRouter.INPUT).set("syslog");
+            pipeline.addAfter(name, "framer", new OctetCountingFrameDecoder(MAX_FRAME_LENGTH));
+            pipeline.addAfter("framer", "decoder", new SyslogEventDecoder());
+            pipeline.addAfter("decoder", "forwarder", forwardingHandler);
+        } else if (msg.getByte(start) == '<' || indexOf(msg, start, end, SYSLOG_METRIC) >= 0) {
+            ctx.channel().attr(TenantRouter.INPUT).set("syslog");
+            pipeline.addAfter(name, "framer", new LineFrameDecoder(MAX_FRAME_LENGTH));
+            pipeline.addAfter("framer", "decoder", new SyslogEventDecoder());
+            pipeline.addAfter("decoder", "forwarder", forwardingHandler);
+        } else if (isGraphite(msg, start, end)) {
+            pipeline.addAfter(name, "framer", new LineFrameDecoder(MAX_FRAME_LENGTH));
+            pipeline.addAfter("framer", "decoder", new GraphiteEventDecoder());
+            ctx.channel().attr(TenantRouter.INPUT).set("graphite");
+            pipeline.addAfter("decoder", "batcher", new MetricBatcher("graphite", batchSize, batchMaxBytes,
+                batchLinger, router));
+            pipeline.addAfter("batcher", "forwarder", forwardingHandler);
+        } else {
+            logger.warn("Unknown input [" + msg.toString(start, Math.min(end - start, 256), CharsetUtil.UTF_8)
+                + "], ignoring");
             msg.clear();
             ctx.close();
             return;
         }
-        ChannelPipeline pipeline = ctx.pipeline();
+        pipeline.remove(this);
+    }
 
+    /**
+     * @return True if the line starts with digits, a space and a syslog priority
+     */
+    private static boolean isOctetCounted(ByteBuf msg, int start, int end) {
+        int i = start;
+        while (i < end && msg.getByte(i) >= '0' && msg.getByte(i) <= '9') {
+            i++;
+        }
+        return i > start && i + 1 < end && msg.getByte(i) == ' ' && msg.getByte(i + 1) == '<';
+    }
 
-        String data = msg.toString(CharsetUtil.UTF_8);
-        if (logger.isDebugEnabled()) {
-            logger.debug("Incoming: [" + data + "]");
+    /**
+     * @return True if the line has exactly three blank separated fields and no "="
+     */
+    private static boolean isGraphite(ByteBuf msg, int start, int end) {
+        if (msg.indexOf(start, end, (byte) '=') >= 0) {
+            return false;
+        }
+        int fields = 0;
+        int i = AsciiParser.skipBlanks(msg, start, end);
+        while (i < end) {
+            fields++;
+            i = AsciiParser.skipBlanks(msg, AsciiParser.nextBlank(msg, i, end), end);
         }
+        return fields == 3;
+    }
 
-        boolean done = false;
-
-
-        if (data.contains("type=metric")) {
-            pipeline.addLast(new SyslogEventDecoder());
-            pipeline.addLast("forwarder", new RestForwardingHandler(configuration));
-            pipeline.remove(this);
-            done = true;
-        } else if (!data.contains("=")){
-            String[] items = data.split(" |\\n");
-            if (items.length % 3 == 0) {
-                pipeline.addLast("encoder", new GraphiteEventDecoder());
-                pipeline.addLast("forwarder", forwardingHandler);
-                pipeline.remove(this);
-                done = true;
+    private static int indexOf(ByteBuf msg, int start, int end, byte[] needle) {
+        int last = end - needle.length;
+        for (int i = msg.indexOf(start, end, needle[0]); i >= 0 && i <= last;
+             i = msg.indexOf(i + 1, end, needle[0])) {
+            int j = 1;
+            while (j < needle.length && msg.getByte(i + j) == needle[j]) {
+                j++;
+            }
+            if (j == needle.length) {
+                return i;
             }
         }
-        if (!done) {
-            logger.warn("Unknown input [" + data + "], ignoring");
-            msg.clear();
-            ctx.close();
-        }
+        return -1;
     }
 }
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2014-2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rhq.metrics.clients.ptrans;
+
+import java.util.List;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.LineBasedFrameDecoder;
+
+/**
+ * Split a stream into lines like {@link LineBasedFrameDecoder} does, but also hand over an unterminated
+ * last line when the connection is closed, so that e.g. <code>echo -n "a.b 1 1425000000" | nc</code> works.
+ * Frames are slices of the received buffers, they are not copied.
+ */
+public class LineFrameDecoder extends LineBasedFrameDecoder {
+
+    public LineFrameDecoder(int maxLength) {
+        super(maxLength, true, true);
+    }
+
+    @Override
+    protected void decodeLast(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+        super.decodeLast(ctx, in, out);
+        if (in.isReadable()) {
+            out.add(in.readSlice(in.readableBytes()).retain());
+        }
+    }
+}
@@ -26,7 +26,10 @@ import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 
 import io.netty.bootstrap.Bootstrap;
 import io.netty.bootstrap.ServerBootstrap;
@@ -37,6 +40,10 @@ import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.DatagramChannel;
 import io.netty.channel.socket.SocketChannel;
@@ -53,13 +60,16 @@ import org.apache.commons.cli.PosixParser;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import org.rhq.metrics.clients.ptrans.backend.RestForwardingHandler;
-import org.rhq.metrics.clients.ptrans.collectd.CollectdEventHandler;
+import org.rhq.metrics.client.common.SingleMetric;
+import org.rhq.metrics.clients.ptrans.backend.ForwardingHandler;
+import org.rhq.metrics.clients.ptrans.collectd.CollectdDecoder;
 import org.rhq.metrics.clients.ptrans.ganglia.UdpGangliaDecoder;
+import org.rhq.metrics.clients.ptrans.stats.StatsReporter;
+import org.rhq.metrics.clients.ptrans.stats.UdpReceiverStats;
+import org.rhq.metrics.clients.ptrans.statsd.StatsdAggregator;
 import org.rhq.metrics.clients.ptrans.statsd.StatsdDecoder;
 import org.rhq.metrics.clients.ptrans.syslog.UdpSyslogEventDecoder;
-import org.rhq.metrics.netty.collectd.event.CollectdEventsDecoder;
-import org.rhq.metrics.netty.collectd.packet.CollectdPacketDecoder;
+import org.rhq.metrics.clients.ptrans.tenant.TenantRouter;
 
 /**
  * Simple client (proxy) that receives messages from various protocols
@@ -79,6 +89,8 @@ public class Main {
     private static final String GANGLIA_DEFAULT_GROUP = "239.2.11.71";
     private static final int STATSD_DEFAULT_PORT = 8125;
     private static final int COLLETCD_DEFAULT_PORT = 25826;
+    /** Seconds between checks of the kernel drop counters of the UDP ports */
+    private static final int DROP_CHECK_INTERVAL = 60;
 
     private String gangliaGroup = GANGLIA_DEFAULT_GROUP;
     private int gangliaPort = GANGLIA_DEFAULT_PORT;
@@ -87,11 +99,26 @@ public class Main {
     private int udpPort = DEFAULT_PORT;
     private int statsDport = STATSD_DEFAULT_PORT;
     private int collectdPort = COLLETCD_DEFAULT_PORT;
-    private final int minimumBatchSize;
+    private final int batchSize;
+    private final int batchMaxBytes;
+    private final long batchLinger;
+    private boolean udpEpoll;
+    private int udpReceivers;
+    private int udpReceiveBuffer;
+    private int nameCacheSize;
+    private final List<UdpReceiverStats> udpStats = new ArrayList<>();
+    private StatsdAggregator statsdAggregator;
+    private long statsdFlushInterval;
+    private boolean statsForward;
+    private long statsInterval;
+    private String statsPrefix;
 
     private final Properties configuration;
+    private final TenantRouter router;
     private final EventLoopGroup group;
     private final EventLoopGroup workerGroup;
+    private final EventLoopGroup udpGroup;
+    private volatile ForwardingHandler forwardingHandler;
 
     public static void main(String[] args) throws Exception {
         Options options = getCommandOptions(true);
@@ -159,17 +186,25 @@ public class Main {
         workerGroup = new NioEventLoopGroup();
         configuration = loadConfigurationFromProperties(configFile);
         loadPortsFromProperties(configuration);
+        router = new TenantRouter(configuration);
+        if (router.isEnabled()) {
+            logger.info("Routing metrics to the tenants " + router.getTenants());
+        }
         Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
             @Override
             public void run() {
                 stop();
             }
         }));
-        minimumBatchSize = Integer.parseInt(configuration.getProperty("batch.size","5"));
+        batchSize = Integer.parseInt(configuration.getProperty("batch.size","5"));
+        batchMaxBytes = Integer.parseInt(configuration.getProperty("batch.max-bytes", "65536"));
+        batchLinger = Long.parseLong(configuration.getProperty("batch.linger", "1000"));
+        udpGroup = udpEpoll ? new EpollEventLoopGroup(udpReceivers) : group;
     }
 
     private void run() throws Exception {
-        final RestForwardingHandler forwardingHandler = new RestForwardingHandler(configuration);
+        forwardingHandler = ForwardingHandler.create(configuration, router);
+        forwardingHandler.start(group);
 
         // The generic TCP socket server
         ServerBootstrap serverBootstrap = new ServerBootstrap();
@@ -178,7 +213,8 @@ public class Main {
                 @Override
                 public void initChannel(SocketChannel socketChannel) throws Exception {
                     ChannelPipeline pipeline = socketChannel.pipeline();
-                    pipeline.addLast(new DemuxHandler(configuration, forwardingHandler));
+                    pipeline.addLast(new DemuxHandler(configuration, forwardingHandler, batchSize, batchMaxBytes,
+                        batchLinger, router));
                 }
             });
         ChannelFuture graphiteFuture = serverBootstrap.bind().sync();
@@ -186,19 +222,16 @@ public class Main {
         graphiteFuture.channel().closeFuture();
 
         // The syslog UPD socket server
-        Bootstrap udpBootstrap = new Bootstrap();
-        udpBootstrap.group(group).channel(NioDatagramChannel.class).localAddress(udpPort)
-            .handler(new ChannelInitializer<Channel>() {
-                @Override
-                public void initChannel(Channel socketChannel) throws Exception {
-                    ChannelPipeline pipeline = socketChannel.pipeline();
-                    pipeline.addLast(new UdpSyslogEventDecoder());
+        ChannelFuture udpFuture = bindUdp("syslog", udpPort, new ChannelInitializer<Channel>() {
+            @Override
+            public void initChannel(Channel socketChannel) throws Exception {
+                ChannelPipeline pipeline = socketChannel.pipeline();
+                addSenderTracker(pipeline);
+                pipeline.addLast(new UdpSyslogEventDecoder());
 
-                    pipeline.addLast(forwardingHandler);
-                }
-            });
-        ChannelFuture udpFuture = udpBootstrap.bind().sync();
-        logger.info("Syslogd listening on udp " + udpFuture.channel().localAddress());
+                pipeline.addLast(forwardingHandler);
+            }
+        });
 
         // Try to set up an upd listener for Ganglia Messages
         setupGangliaUdp(group, forwardingHandler);
@@ -209,6 +242,19 @@ public class Main {
         // Setup collectd listener
         setupCollectdUdp(group, forwardingHandler);
 
+        group.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                for (UdpReceiverStats stats : udpStats) {
+                    stats.checkDrops();
+                }
+            }
+        }, DROP_CHECK_INTERVAL, DROP_CHECK_INTERVAL, TimeUnit.SECONDS);
+
+        if (statsForward) {
+            setupStatsForwarding();
+        }
+
         udpFuture.channel().closeFuture().sync();
     }
 
@@ -216,6 +262,9 @@ public class Main {
         logger.info("Stopping ptrans...");
         Future<?> groupShutdownFuture = group.shutdownGracefully();
         Future<?> workerGroupShutdownFuture = workerGroup.shutdownGracefully();
+        if (udpGroup != group) {
+            udpGroup.shutdownGracefully().syncUninterruptibly();
+        }
         try {
             groupShutdownFuture.sync();
         } catch (InterruptedException ignored) {
@@ -225,50 +274,70 @@ public class Main {
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
+        if (forwardingHandler != null) {
+            forwardingHandler.close();
+        }
         logger.info("Stopped");
     }
 
+    /**
+     * Forward the statistics of ptrans itself every stats.interval milliseconds, like the metrics it receives.
+     */
+    private void setupStatsForwarding() {
+        final StatsReporter reporter = new StatsReporter(statsPrefix, forwardingHandler.getStats(), udpStats);
+        group.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                forwardingHandler.offerAll(reporter.report(System.currentTimeMillis()));
+            }
+        }, statsInterval, statsInterval, TimeUnit.MILLISECONDS);
+        logger.info("Forwarding the statistics of ptrans as " + statsPrefix + ".* every " + statsInterval + " ms");
+    }
+
     private void setupCollectdUdp(EventLoopGroup group, final ChannelInboundHandlerAdapter forwardingHandler) {
-        Bootstrap collectdBootstrap = new Bootstrap();
-        collectdBootstrap.group(group).channel(NioDatagramChannel.class).localAddress(collectdPort)
-            .handler(new ChannelInitializer<Channel>() {
+        try {
+            bindUdp("collectd", collectdPort, new ChannelInitializer<Channel>() {
                 @Override
                 public void initChannel(Channel socketChannel) throws Exception {
                     ChannelPipeline pipeline = socketChannel.pipeline();
-                    pipeline.addLast(new CollectdPacketDecoder());
-                    pipeline.addLast(new CollectdEventsDecoder());
-                    pipeline.addLast(new CollectdEventHandler());
-                    pipeline.addLast(new MetricBatcher("collectd", minimumBatchSize));
+                    addSenderTracker(pipeline);
+                    pipeline.addLast(new CollectdDecoder(nameCacheSize));
+                    pipeline.addLast(new MetricBatcher("collectd", batchSize, batchMaxBytes, batchLinger, router));
                     pipeline.addLast(forwardingHandler);
                 }
             });
-        try {
-            ChannelFuture collectdFuture = collectdBootstrap.bind().sync();
-            logger.info("Collectd listening on udp " + collectdFuture.channel().localAddress());
         } catch (InterruptedException e) {
             e.printStackTrace(); // TODO: Customise this generated block
         }
     }
 
-    private void setupStatsdUdp(EventLoopGroup group, final ChannelInboundHandlerAdapter forwardingHandler) {
-        Bootstrap statsdBootstrap = new Bootstrap();
-        statsdBootstrap.group(group).channel(NioDatagramChannel.class).localAddress(statsDport)
-            .handler(new ChannelInitializer<Channel>() {
+    private void setupStatsdUdp(EventLoopGroup group, final ForwardingHandler forwardingHandler) {
+        try {
+            bindUdp("statsd", statsDport, new ChannelInitializer<Channel>() {
                 @Override
                 public void initChannel(Channel socketChannel) throws Exception {
                     ChannelPipeline pipeline = socketChannel.pipeline();
-                    pipeline.addLast(new StatsdDecoder());
-                    pipeline.addLast(new MetricBatcher("statsd", minimumBatchSize));
+                    addSenderTracker(pipeline);
+                    pipeline.addLast(new StatsdDecoder(statsdAggregator));
+                    pipeline.addLast(new MetricBatcher("statsd", batchSize, batchMaxBytes, batchLinger, router));
                     pipeline.addLast(forwardingHandler);
                 }
             });
-        try {
-            ChannelFuture statsdFuture = statsdBootstrap.bind().sync();
-            logger.info("Statsd listening on udp " + statsdFuture.channel().localAddress());
         } catch (InterruptedException e) {
             e.printStackTrace(); // TODO: Customise this generated block
         }
 
+        if (statsdAggregator != null) {
+            group.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    List<SingleMetric> aggregates = statsdAggregator.flush(System.currentTimeMillis());
+                    if (!aggregates.isEmpty()) {
+                        forwardingHandler.offerAll("statsd", aggregates);
+                    }
+                }
+            }, statsdFlushInterval, statsdFlushInterval, TimeUnit.MILLISECONDS);
+        }
     }
 
     private void setupGangliaUdp(EventLoopGroup group, final ChannelInboundHandlerAdapter fowardingHandler) {
@@ -294,16 +363,22 @@ public class Main {
                 .option(ChannelOption.SO_REUSEADDR, true)
                 .option(ChannelOption.IP_MULTICAST_IF,mcIf)
                 .localAddress(gangliaSocket)
+                .attr(TenantRouter.INPUT, "ganglia")
                 .handler(new ChannelInitializer<Channel>() {
                     @Override
                     public void initChannel(Channel socketChannel) throws Exception {
                         ChannelPipeline pipeline = socketChannel.pipeline();
-                        pipeline.addLast(new UdpGangliaDecoder());
-                        pipeline.addLast(new MetricBatcher("ganglia", minimumBatchSize));
+                        addSenderTracker(pipeline);
+                        pipeline.addLast(new UdpGangliaDecoder(nameCacheSize));
+                        pipeline.addLast(new MetricBatcher("ganglia", batchSize, batchMaxBytes, batchLinger,
+                            router));
                         pipeline.addLast(fowardingHandler);
                     }
                 })
             ;
+            if (udpReceiveBuffer > 0) {
+                gangliaBootstrap.option(ChannelOption.SO_RCVBUF, udpReceiveBuffer);
+            }
 
             logger.info("Bootstrap is " + gangliaBootstrap);
             ChannelFuture gangliaFuture = gangliaBootstrap.bind().sync();
@@ -311,6 +386,9 @@ public class Main {
             DatagramChannel channel = (DatagramChannel) gangliaFuture.channel();
             channel.joinGroup(gangliaSocket,mcIf).sync();
             logger.info("Joined the group");
+            UdpReceiverStats stats = new UdpReceiverStats("ganglia", gangliaPort);
+            stats.setChannels(1);
+            udpStats.add(stats);
             channel.closeFuture();
         } catch (InterruptedException|SocketException | UnknownHostException e) {
             logger.warn("Setup of udp multicast for Ganglia failed");
@@ -318,6 +396,52 @@ public class Main {
         }
     }
 
+    /**
+     * Source rules of the tenants need the sender of every UDP packet, which the decoders do not pass on.
+     */
+    private void addSenderTracker(ChannelPipeline pipeline) {
+        if (router.hasSourceRules()) {
+            pipeline.addLast(TenantRouter.senderTracker());
+        }
+    }
+
+    /**
+     * Bind the UDP listener of an input. With the epoll transport, udpReceivers channels are bound to the
+     * same port with SO_REUSEPORT, and the kernel spreads the packets over them and thus over the threads
+     * of the UDP event loop group. Every channel gets its own pipeline.
+     * @return The bind future of the first channel
+     */
+    private ChannelFuture bindUdp(String name, int port, ChannelInitializer<Channel> initializer)
+        throws InterruptedException {
+
+        Bootstrap bootstrap = new Bootstrap();
+        bootstrap.group(udpGroup).localAddress(port).attr(TenantRouter.INPUT, name).handler(initializer);
+        if (udpReceiveBuffer > 0) {
+            bootstrap.option(ChannelOption.SO_RCVBUF, udpReceiveBuffer);
+        }
+        int channels = 1;
+        if (udpEpoll) {
+            bootstrap.channel(EpollDatagramChannel.class).option(EpollChannelOption.SO_REUSEPORT, true);
+            channels = udpReceivers;
+        } else {
+            bootstrap.channel(NioDatagramChannel.class);
+        }
+
+        ChannelFuture first = null;
+        for (int i = 0; i < channels; i++) {
+            ChannelFuture future = bootstrap.bind().sync();
+            if (first == null) {
+                first = future;
+            }
+        }
+        UdpReceiverStats stats = new UdpReceiverStats(name, port);
+        stats.setChannels(channels);
+        udpStats.add(stats);
+        logger.info(name + " listening on udp " + first.channel().localAddress() + " with " + channels
+            + (udpEpoll ? " epoll" : " nio") + " channel(s)");
+        return first;
+    }
+
     private Properties loadConfigurationFromProperties(File configFile) {
         Properties properties = new Properties();
         try (InputStream inputStream = new FileInputStream(configFile)) {
@@ -335,7 +459,54 @@ public class Main {
         gangliaPort = Integer.parseInt(configuration.getProperty("ganglia.port", String.valueOf(GANGLIA_DEFAULT_PORT)));
         multicastIfOverride = configuration.getProperty("multicast.interface");
         statsDport = Integer.parseInt(configuration.getProperty("statsd.port", String.valueOf(STATSD_DEFAULT_PORT)));
+        if (Boolean.parseBoolean(configuration.getProperty("statsd.aggregate", "false"))) {
+            String[] percentiles = configuration.getProperty("statsd.percentiles", "90").split(",");
+            double[] parsedPercentiles = new double[percentiles.length];
+            for (int i = 0; i < percentiles.length; i++) {
+                parsedPercentiles[i] = Double.parseDouble(percentiles[i].trim());
+            }
+            statsdAggregator = new StatsdAggregator(parsedPercentiles);
+            statsdFlushInterval = Long.parseLong(configuration.getProperty("statsd.flush-interval", "10000"));
+        }
         collectdPort = Integer.parseInt(configuration.getProperty("collectd.port",
             String.valueOf(COLLETCD_DEFAULT_PORT)));
+        udpReceiveBuffer = Integer.parseInt(configuration.getProperty("udp.receive-buffer", "0"));
+        nameCacheSize = Integer.parseInt(configuration.getProperty("name-cache.size", "4096"));
+        udpReceivers = Math.max(1, Integer.parseInt(configuration.getProperty("udp.receivers", "1")));
+        statsForward = Boolean.parseBoolean(configuration.getProperty("stats.forward", "false"));
+        statsInterval = Long.parseLong(configuration.getProperty("stats.interval", "60000"));
+        statsPrefix = configuration.getProperty("stats.prefix");
+        if (statsPrefix == null) {
+            try {
+                statsPrefix = InetAddress.getLocalHost().getCanonicalHostName() + ".ptrans";
+            } catch (UnknownHostException e) {
+                logger.warn("Can not determine the host name, forwarding the statistics as ptrans.*");
+                statsPrefix = "ptrans";
+            }
+        }
+        udpEpoll = useEpoll(configuration.getProperty("udp.transport", "nio"), Epoll.isAvailable());
+        if (!udpEpoll && udpReceivers > 1) {
+            logger.warn("udp.receivers needs the epoll transport, binding a single channel per port");
+            udpReceivers = 1;
+        }
+    }
+
+    /**
+     * @param transport Configured udp.transport
+     * @param epollAvailable Whether the native epoll transport can be loaded
+     * @return True for the epoll transport, false to fall back to nio
+     */
+    static boolean useEpoll(String transport, boolean epollAvailable) {
+        if (transport.equals("epoll")) {
+            if (!epollAvailable) {
+                logger.warn("The epoll transport is not available, using nio for udp: "
+                    + Epoll.unavailabilityCause());
+            }
+            return epollAvailable;
+        }
+        if (!transport.equals("nio")) {
+            logger.warn("Unknown udp.transport '" + transport + "', using nio");
+        }
+        return false;
     }
 }
@@ -16,68 +16,183 @@
 
 package org.rhq.metrics.clients.ptrans;
 
+import java.net.InetAddress;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.MessageToMessageDecoder;
-import io.netty.util.AttributeKey;
 
 import org.rhq.metrics.client.common.SingleMetric;
+import org.rhq.metrics.clients.ptrans.stats.BatcherStats;
+import org.rhq.metrics.clients.ptrans.tenant.TenantBatch;
+import org.rhq.metrics.clients.ptrans.tenant.TenantRouter;
 
 /**
- * Batch several individual {@link org.rhq.metrics.client.common.SingleMetric} objects in a batch of
- * {@link MetricBatcher#minimumBatchSize} items to reduce backend communication overhead.
+ * Batch several individual {@link org.rhq.metrics.client.common.SingleMetric} objects to reduce backend
+ * communication overhead. A batch is forwarded once it holds {@link MetricBatcher#batchSize} items, once its
+ * estimated size in the rest request reaches {@link MetricBatcher#maxBytes} or once its first item waited
+ * for {@link MetricBatcher#lingerMillis}, whatever comes first.
+ *
+ * With tenant routing, every metric is routed to its tenant here, while the sender of its packet is still
+ * known. Each tenant has its own batch, which is forwarded as a {@link TenantBatch}.
+ *
+ * The batches live in the batcher, so every pipeline needs its own instance. All methods run on the event
+ * loop of the channel, the linger timers are scheduled there as well.
  *
  * @author Heiko W. Rupp
  */
 public class MetricBatcher extends MessageToMessageDecoder<SingleMetric> {
 
-    private int minimumBatchSize;
+    /** Bytes of a metric in the json of the rest request besides its source */
+    private static final int JSON_OVERHEAD = 48;
+
+    private final String subKey;
+    private final int batchSize;
+    private final int maxBytes;
+    private final long lingerMillis;
+    private final BatcherStats stats;
+    private final TenantRouter router;
+
+    /** Batches by tenant, the one without a tenant has the key null */
+    private final Map<String, Batch> batches = new HashMap<>();
+    /** Sender of the previous metric and the tenant its packets go to, unless their name says otherwise */
+    private InetAddress lastSender;
+    private String senderTenant;
+    private boolean senderRouted;
 
     /**
      * Create a batcher with the passed batch size
      * @param subKey Identification of the metrics of this batcher
-     * @param minimumBatchSize Size of batches. If the number is less than 1, then 1 is used.
+     * @param batchSize Size of batches. If the number is less than 1, then 1 is used.
+     * @param maxBytes Maximum estimated size of a batch in the rest request
+     * @param lingerMillis Maximum time in milliseconds a metric waits for its batch to fill up
      */
-    public MetricBatcher(String subKey, int minimumBatchSize) {
-        this.minimumBatchSize = minimumBatchSize;
-        if (this.minimumBatchSize<1) {
-            this.minimumBatchSize=1;
-        }
-        cacheKey = AttributeKey.valueOf("cachedMetrics."+subKey);
+    public MetricBatcher(String subKey, int batchSize, int maxBytes, long lingerMillis) {
+        this(subKey, batchSize, maxBytes, lingerMillis, null);
     }
 
-    AttributeKey<List<SingleMetric>> cacheKey;
+    /**
+     * Create a batcher that batches the metrics per tenant
+     * @param subKey Identification of the metrics of this batcher, the input for the tenant rules
+     * @param router Router of the metrics to their tenants, null or disabled to batch all metrics together
+     * @see #MetricBatcher(String, int, int, long)
+     */
+    public MetricBatcher(String subKey, int batchSize, int maxBytes, long lingerMillis, TenantRouter router) {
+        this.subKey = subKey;
+        this.batchSize = Math.max(1, batchSize);
+        this.maxBytes = maxBytes;
+        this.lingerMillis = lingerMillis;
+        this.router = router != null && router.isEnabled() ? router : null;
+        stats = BatcherStats.forName(subKey);
+    }
 
     /**
-     * Batch up incoming SingleMetric messages. If the #minimumBatchSize is not yet reached, the messages are stored
-     * locally. Otherwise the list of messages will be forwarded to the next handler.
+     * Batch up incoming SingleMetric messages. If the batch is not full yet, the messages are stored
+     * locally. Otherwise the batch will be forwarded to the next handler.
      * This method will be called for each written message that can be handled
      * by this encoder.
      *
      * @param ctx           the {@link ChannelHandlerContext} which this {@link MessageToMessageDecoder} belongs to
      * @param msg           the SingleMetric to be batched up
-     * @param out           the {@link List} to which decoded messages should be added if the batch size is reached
+     * @param out           the {@link List} to which decoded messages should be added if the batch is full
      * @throws Exception    is thrown if an error occurs
      */
     @Override
-    protected void decode(ChannelHandlerContext ctx, SingleMetric msg, List<Object> out) throws Exception {
+    protected void decode(final ChannelHandlerContext ctx, SingleMetric msg, List<Object> out) throws Exception {
+
+        String tenant = router == null ? null : route(ctx, msg);
+        Batch batch = batches.get(tenant);
+        if (batch == null) {
+            batch = new Batch(tenant);
+            batches.put(tenant, batch);
+        }
+
+        if (batch.metrics == null) {
+            batch.metrics = new ArrayList<>(batchSize);
+            batch.bytes = 0;
+            batch.start = System.nanoTime();
+        }
+
+        batch.metrics.add(msg);
+        batch.bytes += msg.getSource().length() + JSON_OVERHEAD;
+
+        if (batch.metrics.size() >= batchSize) {
+            out.add(takeBatch(batch, BatcherStats.Trigger.SIZE));
+        } else if (batch.bytes >= maxBytes) {
+            out.add(takeBatch(batch, BatcherStats.Trigger.BYTES));
+        } else if (batch.lingerTimer == null) {
+            // Only batches that stay open need the timer
+            final Batch started = batch;
+            batch.lingerTimer = ctx.executor().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    started.lingerTimer = null;
+                    Object lingered = takeBatch(started, BatcherStats.Trigger.LINGER);
+                    if (lingered != null) {
+                        ctx.fireChannelRead(lingered);
+                    }
+                }
+            }, lingerMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private String route(ChannelHandlerContext ctx, SingleMetric msg) {
+        InetAddress sender = TenantRouter.senderOf(ctx.channel());
+        if (!senderRouted || sender != lastSender && (sender == null || !sender.equals(lastSender))) {
+            senderTenant = router.routeSource(subKey, sender);
+            lastSender = sender;
+            senderRouted = true;
+        }
+        return router.route(msg.getSource(), senderTenant);
+    }
 
-        List<SingleMetric> cached = ctx.attr(cacheKey).get();
-        if (cached==null) {
-            cached = new ArrayList<>(minimumBatchSize);
-            ctx.attr(cacheKey).set(cached);
+    /**
+     * Hand over the batch as it is, the next metric of its tenant starts a new one.
+     * @return The list of metrics, or a {@link TenantBatch} with tenant routing, or null if the batch is empty
+     */
+    private Object takeBatch(Batch batch, BatcherStats.Trigger trigger) {
+        List<SingleMetric> taken = batch.metrics;
+        if (taken == null) {
+            return null;
         }
+        batch.metrics = null;
+        if (batch.lingerTimer != null) {
+            batch.lingerTimer.cancel(false);
+            batch.lingerTimer = null;
+        }
+        stats.batchForwarded(taken.size(), System.nanoTime() - batch.start, trigger);
+        return router == null ? taken : new TenantBatch(batch.tenant, taken);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        for (Batch batch : batches.values()) {
+            Object remaining = takeBatch(batch, BatcherStats.Trigger.LINGER);
+            if (remaining != null) {
+                ctx.fireChannelRead(remaining);
+            }
+        }
+        super.channelInactive(ctx);
+    }
+
+    /**
+     * The metrics of one tenant that wait to be forwarded.
+     */
+    private static final class Batch {
+        final String tenant;
+        /** The metrics, null until the first metric of the next batch arrives */
+        List<SingleMetric> metrics;
+        int bytes;
+        long start;
+        ScheduledFuture<?> lingerTimer;
 
-        if (cached.size()  >= minimumBatchSize) {
-            List<SingleMetric> toForward = new ArrayList<>(cached.size()+1);
-            toForward.addAll(cached);
-            toForward.add(msg);
-            cached.clear();
-            out.add(toForward);
-        } else {
-            cached.add(msg);
+        Batch(String tenant) {
+            this.tenant = tenant;
         }
     }
 }
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rhq.metrics.clients.ptrans;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Bounded cache of metric names for the binary protocols, which send the parts of a name, like host and plugin,
+ * with every value. Names are looked up by the bytes of their parts in the received packet, so a name that was
+ * seen before is returned without creating any string.
+ *
+ * A name is built from the prefix, the non-empty parts and the variant, if it is not negative, separated by dots.
+ * The cache is direct mapped: a new name replaces the one in its slot, which keeps the number of names bounded
+ * without any bookkeeping. Every decoder has its own cache, instances are not thread safe.
+ */
+public class MetricNameCache {
+
+    private final String prefix;
+    private final Entry[] entries;
+    private final int mask;
+
+    /**
+     * @param prefix Prepended to every name
+     * @param capacity Maximum number of names, rounded up to a power of two
+     */
+    public MetricNameCache(String prefix, int capacity) {
+        this.prefix = prefix;
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        entries = new Entry[Math.max(1, size)];
+        mask = entries.length - 1;
+    }
+
+    /**
+     * @param buf Buffer holding the parts of the name
+     * @param parts Pairs of index and length of the parts in the buffer
+     * @param count Number of parts
+     * @param variant Appended to the name if not negative, like the index of a value in a list
+     * @return The name
+     */
+    public String get(ByteBuf buf, int[] parts, int count, int variant) {
+        int hash = variant;
+        for (int i = 0; i < count; i++) {
+            int index = parts[2 * i];
+            int end = index + parts[2 * i + 1];
+            hash = 31 * hash + parts[2 * i + 1];
+            for (int j = index; j < end; j++) {
+                hash = 31 * hash + buf.getByte(j);
+            }
+        }
+        // Spread the bits, the low ones select the slot
+        hash ^= (hash >>> 16);
+        hash *= 0x85ebca6b;
+        hash ^= (hash >>> 13);
+
+        int slot = hash & mask;
+        Entry entry = entries[slot];
+        if (entry != null && entry.matches(hash, buf, parts, count, variant)) {
+            return entry.name;
+        }
+        entry = new Entry(hash, buf, parts, count, variant, buildName(buf, parts, count, variant));
+        entries[slot] = entry;
+        return entry.name;
+    }
+
+    private String buildName(ByteBuf buf, int[] parts, int count, int variant) {
+        StringBuilder builder = new StringBuilder(prefix);
+        for (int i = 0; i < count; i++) {
+            int index = parts[2 * i];
+            int length = parts[2 * i + 1];
+            if (length == 0) {
+                continue;
+            }
+            if (builder.length() > prefix.length()) {
+                builder.append('.');
+            }
+            builder.append(AsciiParser.toString(buf, index, index + length));
+        }
+        if (variant >= 0) {
+            builder.append('.').append(variant);
+        }
+        return builder.toString();
+    }
+
+    private static class Entry {
+        final int hash;
+        final int variant;
+        final int[] lengths;
+        final byte[] bytes;
+        final String name;
+
+        Entry(int hash, ByteBuf buf, int[] parts, int count, int variant, String name) {
+            this.hash = hash;
+            this.variant = variant;
+            this.name = name;
+            lengths = new int[count];
+            int total = 0;
+            for (int i = 0; i < count; i++) {
+                lengths[i] = parts[2 * i + 1];
+                total += lengths[i];
+            }
+            bytes = new byte[total];
+            int offset = 0;
+            for (int i = 0; i < count; i++) {
+                buf.getBytes(parts[2 * i], bytes, offset, lengths[i]);
+                offset += lengths[i];
+            }
+        }
+
+        boolean matches(int hash, ByteBuf buf, int[] parts, int count, int variant) {
+            if (this.hash != hash || this.variant != variant || lengths.length != count) {
+                return false;
+            }
+            int offset = 0;
+            for (int i = 0; i < count; i++) {
+                int length = parts[2 * i + 1];
+                if (lengths[i] != length) {
+                    return false;
+                }
+                int index = parts[2 * i];
+                for (int j = 0; j < length; j++) {
+                    if (bytes[offset + j] != buf.getByte(index + j)) {
+                        return false;
+                    }
+                }
+                offset += length;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,358 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rhq.metrics.clients.ptrans.backend;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.datastax.driver.core.exceptions.QueryValidationException;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.EventLoopGroup;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.rhq.metrics.RHQMetrics;
+import org.rhq.metrics.client.common.SingleMetric;
+import org.rhq.metrics.clients.ptrans.backend.TenantQueue.Chunk;
+import org.rhq.metrics.clients.ptrans.tenant.TenantRouter;
+import org.rhq.metrics.core.MetricId;
+import org.rhq.metrics.core.MetricsService;
+import org.rhq.metrics.core.NumericMetric;
+
+/**
+ * Handler that writes the metrics directly to Cassandra through an embedded {@link MetricsService}, instead
+ * of sending them to the rest-server.
+ *
+ * The metrics of a batch are grouped by name into one {@link NumericMetric} each and written with
+ * {@link MetricsService#addNumericData(List)}. At most cassandra.max-in-flight writes are pending at a time;
+ * further metrics wait in the buffer. Like with the rest-server, batches are retired from the buffer in the
+ * order they were drained, and a failed batch is written again after an exponentially growing delay, up to
+ * cassandra.max-attempts times. Batches Cassandra rejects as invalid are dropped at once.
+ *
+ * The writes are started outside the lock of the handler and their callbacks run on the event loop group, so a
+ * write that completes at once does not recurse into the next one.
+ *
+ * Metrics routed to a tenant are stored for that tenant, the ones without a tenant for cassandra.tenant.
+ */
+@Sharable
+public class CassandraForwardingHandler extends ForwardingHandler implements CassandraForwardingHandlerMBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(CassandraForwardingHandler.class);
+
+    private static final String DEFAULT_MAX_IN_FLIGHT = "8";
+    private static final String DEFAULT_RETRY_BACKOFF = "100";
+    private static final String DEFAULT_RETRY_MAX_BACKOFF = "30000";
+    private static final String DEFAULT_MAX_ATTEMPTS = "30";
+
+    private final String[] nodes;
+    private final int cqlPort;
+    private final String keyspace;
+    private final String tenant;
+    private final int maxInFlight;
+    private final long retryBackoff;
+    private final long retryMaxBackoff;
+    private final int maxAttempts;
+
+    /** Failed batches whose delay has passed, they are written before new metrics are drained */
+    private final Deque<Batch> retries = new ArrayDeque<>();
+    private final Object lock = new Object();
+    private volatile EventLoopGroup group;
+    private volatile MetricsService metricsService;
+    /** Guarded by the lock, so that either close or connect shuts down a service built while closing */
+    private volatile boolean closed;
+    private int inFlight;
+
+    private final AtomicLong writtenMetrics = new AtomicLong();
+    private final AtomicLong failedWrites = new AtomicLong();
+    private final AtomicLong writeNanos = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+
+    public CassandraForwardingHandler(Properties configuration, TenantRouter router) {
+        super(configuration, router);
+        nodes = configuration.getProperty("cassandra.nodes", "127.0.0.1").split(",");
+        cqlPort = Integer.parseInt(configuration.getProperty("cassandra.cql-port", "9042"));
+        keyspace = configuration.getProperty("cassandra.keyspace", "rhq_metrics");
+        tenant = configuration.getProperty("cassandra.tenant", MetricsService.DEFAULT_TENANT_ID);
+        maxInFlight = Integer.parseInt(configuration.getProperty("cassandra.max-in-flight", DEFAULT_MAX_IN_FLIGHT));
+        retryBackoff = Long.parseLong(configuration.getProperty("cassandra.retry-backoff", DEFAULT_RETRY_BACKOFF));
+        retryMaxBackoff = Long.parseLong(
+            configuration.getProperty("cassandra.retry-max-backoff", DEFAULT_RETRY_MAX_BACKOFF));
+        maxAttempts = Integer.parseInt(configuration.getProperty("cassandra.max-attempts", DEFAULT_MAX_ATTEMPTS));
+        registerMBean(this, "org.rhq.metrics.ptrans:type=CassandraWriter");
+    }
+
+    /**
+     * Connect to Cassandra in the background, metrics are buffered until that succeeded.
+     */
+    @Override
+    public void start(EventLoopGroup group) {
+        synchronized (lock) {
+            this.group = group;
+        }
+        Thread connector = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                connect();
+            }
+        }, "ptrans-cassandra-connect");
+        connector.setDaemon(true);
+        connector.start();
+    }
+
+    private void connect() {
+        int failures = 0;
+        while (!closed) {
+            try {
+                MetricsService service = createMetricsService();
+                synchronized (lock) {
+                    if (!closed) {
+                        metricsService = service;
+                        service = null;
+                    }
+                }
+                if (service != null) {
+                    // Closed while connecting
+                    service.shutdown();
+                    return;
+                }
+                logger.info("Writing metrics of tenant " + tenant + " to Cassandra keyspace " + keyspace);
+                forward();
+                return;
+            } catch (RuntimeException e) {
+                failures++;
+                long delay = Math.min(retryMaxBackoff, retryBackoff << Math.min(failures - 1, 30));
+                logger.warn("Can not connect to Cassandra, trying again in " + delay + " ms: " + e.getMessage());
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The service that writes to Cassandra, blocks until connected
+     * @throws RuntimeException If Cassandra can not be reached
+     */
+    MetricsService createMetricsService() {
+        return new RHQMetrics.Builder()
+            .withCassandraDataStore()
+            .withNodes(nodes)
+            .withCQLPort(cqlPort)
+            .withKeyspace(keyspace)
+            .build();
+    }
+
+    /**
+     * Write batches as long as less than cassandra.max-in-flight writes are pending.
+     */
+    @Override
+    protected void forward() {
+        MetricsService service = metricsService;
+        if (service == null) {
+            return;
+        }
+        List<Batch> batches = new ArrayList<>();
+        synchronized (lock) {
+            while (inFlight < maxInFlight) {
+                Batch batch = nextBatch();
+                if (batch == null) {
+                    break;
+                }
+                inFlight++;
+                batches.add(batch);
+            }
+        }
+        for (Batch batch : batches) {
+            write(service, batch);
+        }
+    }
+
+    private Batch nextBatch() {
+        if (!retries.isEmpty()) {
+            return retries.poll();
+        }
+        List<SingleMetric> metrics = new ArrayList<>();
+        Chunk chunk = drain(metrics);
+        if (chunk == null) {
+            return null;
+        }
+        chunk.pending = 1;
+        String chunkTenant = chunk.queue.tenant == null ? tenant : chunk.queue.tenant;
+        return new Batch(chunk, metrics.size(), toNumericMetrics(chunkTenant, metrics));
+    }
+
+    private List<NumericMetric> toNumericMetrics(String tenant, List<SingleMetric> metrics) {
+        Map<String, NumericMetric> byName = new LinkedHashMap<>();
+        for (SingleMetric metric : metrics) {
+            if (metric.getValue() == null) {
+                continue;
+            }
+            NumericMetric numericMetric = byName.get(metric.getSource());
+            if (numericMetric == null) {
+                numericMetric = new NumericMetric(tenant, new MetricId(metric.getSource()));
+                byName.put(metric.getSource(), numericMetric);
+            }
+            numericMetric.addData(metric.getTimestamp(), metric.getValue());
+        }
+        return new ArrayList<>(byName.values());
+    }
+
+    /**
+     * Start writing a batch that is already counted as in flight.
+     */
+    private void write(MetricsService service, final Batch batch) {
+        stats.requestSent();
+        final long start = System.nanoTime();
+        ListenableFuture<Void> future = batch.metrics.isEmpty() ? Futures.<Void>immediateFuture(null)
+            : service.addNumericData(batch.metrics);
+        Futures.addCallback(future, new FutureCallback<Void>() {
+            @Override
+            public void onSuccess(Void result) {
+                long nanos = System.nanoTime() - start;
+                writeNanos.addAndGet(nanos);
+                writes.incrementAndGet();
+                stats.requestAcknowledged(batch.size, nanos);
+                written(batch);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                logger.warn("Writing " + batch.size + " metrics to Cassandra failed: " + t);
+                failedWrites.incrementAndGet();
+                stats.requestFailed();
+                failed(batch, t);
+            }
+        }, group);
+    }
+
+    private void written(Batch batch) {
+        synchronized (lock) {
+            inFlight--;
+            writtenMetrics.addAndGet(batch.size);
+            batch.chunk.pending = 0;
+            batch.chunk.queue.retire();
+        }
+        forward();
+    }
+
+    private void failed(final Batch batch, Throwable cause) {
+        synchronized (lock) {
+            inFlight--;
+            batch.attempts++;
+            if (cause instanceof QueryValidationException || maxAttempts > 0 && batch.attempts >= maxAttempts) {
+                // Invalid batches would fail the same way again
+                logger.warn("Dropping " + batch.size + " metrics after " + batch.attempts + " attempts");
+                stats.batchRejected(batch.size);
+                batch.chunk.pending = 0;
+                batch.chunk.queue.retire();
+                return;
+            }
+            long delay = Math.min(retryMaxBackoff, retryBackoff << Math.min(batch.attempts - 1, 30));
+            group.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (lock) {
+                        retries.add(batch);
+                    }
+                    forward();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+        // The retired chunk may have made room for more metrics
+        forward();
+    }
+
+    @Override
+    public void close() {
+        MetricsService service;
+        synchronized (lock) {
+            closed = true;
+            service = metricsService;
+        }
+        if (service != null) {
+            service.shutdown();
+        }
+        super.close();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return metricsService != null;
+    }
+
+    @Override
+    public int getInFlight() {
+        synchronized (lock) {
+            return inFlight;
+        }
+    }
+
+    @Override
+    public long getPendingMetrics() {
+        return stats.getBufferedMetrics();
+    }
+
+    @Override
+    public long getWrittenMetrics() {
+        return writtenMetrics.get();
+    }
+
+    @Override
+    public long getFailedWrites() {
+        return failedWrites.get();
+    }
+
+    @Override
+    public double getAverageWriteMillis() {
+        long count = writes.get();
+        return count == 0 ? 0.0 : writeNanos.get() / 1e6 / count;
+    }
+
+    @Override
+    public long getDroppedMetrics() {
+        return stats.getDroppedMetrics();
+    }
+
+    /**
+     * A batch of metrics that was drained from the buffer, but not yet written.
+     */
+    static class Batch {
+        final Chunk chunk;
+        final int size;
+        final List<NumericMetric> metrics;
+        int attempts;
+
+        Batch(Chunk chunk, int size, List<NumericMetric> metrics) {
+            this.chunk = chunk;
+            this.size = size;
+            this.metrics = metrics;
+        }
+    }
+}
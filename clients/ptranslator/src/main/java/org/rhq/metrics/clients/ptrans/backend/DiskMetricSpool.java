@@ -0,0 +1,413 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rhq.metrics.clients.ptrans.backend;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.rhq.metrics.client.common.MetricBuffer;
+import org.rhq.metrics.client.common.MetricType;
+import org.rhq.metrics.client.common.SingleMetric;
+
+/**
+ * A {@link MetricBuffer} that keeps metrics in memory mapped, append-only segment files, so that
+ * unsent metrics survive outages of the rest server and restarts of ptrans without being kept on the heap.
+ *
+ * Positions are byte offsets into the concatenation of all segments, each segment file is named after the
+ * position of its first byte. A record is the int length of its body followed by the encoded metric; a length
+ * of -1 marks the unused rest of a segment. The acknowledged position is stored in a checkpoint file and
+ * segments are deleted once they are completely acknowledged. If the spool would grow beyond its maximum size,
+ * the oldest segment is dropped.
+ *
+ * Records are written to the page cache, so they survive a crash of ptrans. Segments are forced to disk
+ * when they are full and when the spool is closed.
+ */
+public class DiskMetricSpool implements MetricBuffer, DiskMetricSpoolMBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(DiskMetricSpool.class);
+
+    private static final String SEGMENT_SUFFIX = ".spool";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final int END_OF_SEGMENT = -1;
+    private static final int LENGTH_SIZE = 4;
+    /** Timestamp, value flag, value, type and length of the source */
+    private static final int FIXED_BODY_SIZE = 8 + 1 + 8 + 1 + 2;
+    private static final MetricType[] TYPES = MetricType.values();
+
+    private final File directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final NavigableMap<Long, Segment> segments = new TreeMap<>();
+    private final MappedByteBuffer checkpoint;
+    /** End position and end ordinal of the drained batches that are not acknowledged yet */
+    private final Deque<long[]> drained = new ArrayDeque<>();
+
+    /*
+     * Ordinals count records. They are only kept in memory and restart from zero when the spool is opened,
+     * the difference between the written and the head ordinal is the number of pending records.
+     */
+    private long writePosition;
+    private long writeOrdinal;
+    private long headPosition;
+    private long headOrdinal;
+    private long readPosition;
+    private long readOrdinal;
+
+    private long written;
+    private long replayed;
+    private long acked;
+    private long dropped;
+
+    /**
+     * Open the spool in the passed directory, recovering the records that were not acknowledged before.
+     * @param directory Directory of the segment files, created if it does not exist
+     * @param segmentSize Size of a single segment file in bytes
+     * @param maxSize Maximum size of all segment files in bytes
+     * @throws IOException If the directory or the files in it can not be used
+     */
+    public DiskMetricSpool(File directory, int segmentSize, long maxSize) throws IOException {
+        if (segmentSize < 1024) {
+            throw new IllegalArgumentException("Segment size must be at least 1024 bytes, but was " + segmentSize);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can not create spool directory " + directory.getAbsolutePath());
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        maxSegments = (int) Math.max(2, Math.min(Integer.MAX_VALUE, maxSize / segmentSize));
+
+        checkpoint = map(new File(directory, CHECKPOINT_FILE), 8);
+        headPosition = checkpoint.getLong(0);
+        recover();
+    }
+
+    private void recover() throws IOException {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+        NavigableMap<Long, File> segmentFiles = new TreeMap<>();
+        for (File file : files == null ? new File[0] : files) {
+            String name = file.getName();
+            try {
+                segmentFiles.put(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())), file);
+            } catch (NumberFormatException e) {
+                logger.warn("Ignoring unknown file " + file.getAbsolutePath() + " in the spool directory");
+            }
+        }
+
+        for (Map.Entry<Long, File> entry : segmentFiles.entrySet()) {
+            long base = entry.getKey();
+            File file = entry.getValue();
+            if (base + file.length() <= headPosition && base != segmentFiles.lastKey()) {
+                delete(file);
+                continue;
+            }
+            MappedByteBuffer buffer = map(file, (int) file.length());
+            int start = (int) Math.max(0, headPosition - base);
+            long[] scan = scan(buffer, 0, start);
+            if (segments.isEmpty()) {
+                // Records before the head of the first segment are already acknowledged
+                headOrdinal = scan[1];
+                headPosition = Math.max(headPosition, base);
+            }
+            Segment segment = new Segment(base, writeOrdinal, buffer);
+            segments.put(base, segment);
+            long[] rest = scan(buffer, (int) scan[0], buffer.capacity());
+            writeOrdinal += scan[1] + rest[1];
+            writePosition = base + rest[0];
+        }
+        if (segments.isEmpty()) {
+            writePosition = headPosition;
+        }
+        readPosition = headPosition;
+        readOrdinal = headOrdinal;
+        if (writeOrdinal > headOrdinal) {
+            logger.info("Recovered " + (writeOrdinal - headOrdinal) + " unsent metrics from " +
+                directory.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Walk the records of a segment from offset up to the limit or the first record that is not written.
+     * @return The offset after the last record and the number of records
+     */
+    private long[] scan(MappedByteBuffer buffer, int offset, int limit) {
+        long count = 0;
+        while (offset < limit && offset + LENGTH_SIZE <= buffer.capacity()) {
+            int length = buffer.getInt(offset);
+            if (length == 0 || length == END_OF_SEGMENT) {
+                break;
+            }
+            if (length < FIXED_BODY_SIZE || offset + LENGTH_SIZE + length > buffer.capacity()) {
+                logger.warn("Ignoring corrupt record at offset " + offset + " of a spool segment");
+                break;
+            }
+            offset += LENGTH_SIZE + length;
+            count++;
+        }
+        return new long[] { offset, count };
+    }
+
+    @Override
+    public synchronized void offer(SingleMetric metric) {
+        byte[] source = metric.getSource().getBytes(StandardCharsets.UTF_8);
+        int bodySize = FIXED_BODY_SIZE + source.length;
+        if (source.length > 0xFFFF || LENGTH_SIZE + bodySize + LENGTH_SIZE > segmentSize) {
+            logger.warn("Dropping metric with a too long source: " + metric.getSource());
+            dropped++;
+            return;
+        }
+
+        Segment segment;
+        try {
+            segment = segmentFor(LENGTH_SIZE + bodySize);
+        } catch (IOException e) {
+            logger.error("Can not add a segment to the spool, dropping metric: " + e.getMessage());
+            dropped++;
+            return;
+        }
+
+        MappedByteBuffer buffer = segment.buffer;
+        int offset = (int) (writePosition - segment.base);
+        int body = offset + LENGTH_SIZE;
+        Double value = metric.getValue();
+        MetricType type = metric.getMetricType();
+        buffer.putLong(body, metric.getTimestamp());
+        buffer.put(body + 8, (byte) (value == null ? 0 : 1));
+        buffer.putDouble(body + 9, value == null ? 0 : value);
+        buffer.put(body + 17, (byte) (type == null ? 0 : type.ordinal() + 1));
+        buffer.putShort(body + 18, (short) source.length);
+        ByteBuffer sourceBuffer = buffer.duplicate();
+        sourceBuffer.position(body + FIXED_BODY_SIZE);
+        sourceBuffer.put(source);
+        // The length goes last, a record without it is not there for recovery
+        buffer.putInt(offset, bodySize);
+
+        writePosition += LENGTH_SIZE + bodySize;
+        writeOrdinal++;
+        written++;
+    }
+
+    @Override
+    public synchronized void offerAll(Collection<SingleMetric> metrics) {
+        for (SingleMetric metric : metrics) {
+            offer(metric);
+        }
+    }
+
+    private Segment segmentFor(int recordSize) throws IOException {
+        Map.Entry<Long, Segment> last = segments.lastEntry();
+        if (last != null) {
+            Segment segment = last.getValue();
+            int offset = (int) (writePosition - segment.base);
+            // Keep room for the end of segment marker
+            if (offset + recordSize + LENGTH_SIZE <= segment.buffer.capacity()) {
+                return segment;
+            }
+            segment.buffer.putInt(offset, END_OF_SEGMENT);
+            segment.buffer.force();
+            writePosition = segment.base + segment.buffer.capacity();
+        }
+        while (segments.size() >= maxSegments) {
+            dropOldestSegment();
+        }
+        Segment segment = new Segment(writePosition, writeOrdinal,
+            map(new File(directory, String.format("%019d%s", writePosition, SEGMENT_SUFFIX)), segmentSize));
+        segments.put(writePosition, segment);
+        return segment;
+    }
+
+    private void dropOldestSegment() {
+        Segment oldest = segments.pollFirstEntry().getValue();
+        Map.Entry<Long, Segment> next = segments.firstEntry();
+        long end = next == null ? writePosition : next.getKey();
+        long endOrdinal = next == null ? writeOrdinal : next.getValue().firstOrdinal;
+        if (end > headPosition) {
+            logger.warn("Spool is full, dropping " + (endOrdinal - headOrdinal) + " unsent metrics");
+            dropped += endOrdinal - headOrdinal;
+            headPosition = end;
+            headOrdinal = endOrdinal;
+            checkpoint.putLong(0, headPosition);
+            while (!drained.isEmpty() && drained.peekFirst()[0] <= headPosition) {
+                drained.pollFirst();
+            }
+            if (readPosition < headPosition) {
+                readPosition = headPosition;
+                readOrdinal = headOrdinal;
+            }
+        }
+        delete(oldest.file(directory));
+    }
+
+    @Override
+    public synchronized long drainTo(Collection<? super SingleMetric> out, int max) {
+        int count = 0;
+        while (count < max && readPosition < writePosition) {
+            Segment segment = segments.floorEntry(readPosition).getValue();
+            MappedByteBuffer buffer = segment.buffer;
+            int offset = (int) (readPosition - segment.base);
+            int length = buffer.getInt(offset);
+            if (length == END_OF_SEGMENT) {
+                readPosition = segment.base + buffer.capacity();
+                continue;
+            }
+            out.add(decode(buffer, offset + LENGTH_SIZE));
+            readPosition += LENGTH_SIZE + length;
+            readOrdinal++;
+            count++;
+        }
+        if (count > 0) {
+            drained.addLast(new long[] { readPosition, readOrdinal });
+            replayed += count;
+        }
+        return readPosition;
+    }
+
+    private SingleMetric decode(MappedByteBuffer buffer, int body) {
+        long timestamp = buffer.getLong(body);
+        Double value = buffer.get(body + 8) == 0 ? null : buffer.getDouble(body + 9);
+        int type = buffer.get(body + 17);
+        byte[] source = new byte[buffer.getShort(body + 18) & 0xFFFF];
+        ByteBuffer sourceBuffer = buffer.duplicate();
+        sourceBuffer.position(body + FIXED_BODY_SIZE);
+        sourceBuffer.get(source);
+        return new SingleMetric(new String(source, StandardCharsets.UTF_8), timestamp, value,
+            type == 0 ? null : TYPES[type - 1]);
+    }
+
+    @Override
+    public synchronized void ack(long position) {
+        long ordinal = -1;
+        while (!drained.isEmpty() && drained.peekFirst()[0] <= position) {
+            ordinal = drained.pollFirst()[1];
+        }
+        if (ordinal < 0 || position <= headPosition) {
+            return;
+        }
+        acked += ordinal - headOrdinal;
+        headPosition = position;
+        headOrdinal = ordinal;
+        checkpoint.putLong(0, headPosition);
+
+        // Delete the segments that are completely acknowledged, except the one that is written to
+        while (segments.size() > 1) {
+            Map.Entry<Long, Segment> second = segments.higherEntry(segments.firstKey());
+            if (second.getKey() > headPosition) {
+                break;
+            }
+            delete(segments.pollFirstEntry().getValue().file(directory));
+        }
+    }
+
+    @Override
+    public synchronized int size() {
+        return getPendingMetrics();
+    }
+
+    /**
+     * Force all segments and the checkpoint to disk.
+     */
+    public synchronized void close() {
+        for (Segment segment : segments.values()) {
+            segment.buffer.force();
+        }
+        checkpoint.force();
+    }
+
+    @Override
+    public synchronized int getPendingMetrics() {
+        return (int) Math.min(Integer.MAX_VALUE, writeOrdinal - headOrdinal);
+    }
+
+    @Override
+    public synchronized long getSpoolBytes() {
+        return writePosition - headPosition;
+    }
+
+    @Override
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    @Override
+    public synchronized long getWrittenMetrics() {
+        return written;
+    }
+
+    @Override
+    public synchronized long getReplayedMetrics() {
+        return replayed;
+    }
+
+    @Override
+    public synchronized long getAckedMetrics() {
+        return acked;
+    }
+
+    @Override
+    public synchronized long getDroppedMetrics() {
+        return dropped;
+    }
+
+    @Override
+    public long getDropped() {
+        return getDroppedMetrics();
+    }
+
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            if (raf.length() < size) {
+                raf.setLength(size);
+            }
+            // The mapping stays valid after the file is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private static void delete(File file) {
+        if (!file.delete()) {
+            logger.warn("Can not delete spool segment " + file.getAbsolutePath());
+        }
+    }
+
+    private static class Segment {
+        final long base;
+        final long firstOrdinal;
+        final MappedByteBuffer buffer;
+
+        Segment(long base, long firstOrdinal, MappedByteBuffer buffer) {
+            this.base = base;
+            this.firstOrdinal = firstOrdinal;
+            this.buffer = buffer;
+        }
+
+        File file(File directory) {
+            return new File(directory, String.format("%019d%s", base, SEGMENT_SUFFIX));
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rhq.metrics.clients.ptrans.backend;
+
+/**
+ * Management interface of the {@link DiskMetricSpool}.
+ */
+public interface DiskMetricSpoolMBean {
+
+    /**
+     * @return Number of metrics that are neither acknowledged nor dropped.
+     */
+    int getPendingMetrics();
+
+    /**
+     * @return Number of bytes between the oldest unacknowledged metric and the end of the spool.
+     */
+    long getSpoolBytes();
+
+    int getSegmentCount();
+
+    /**
+     * @return Number of metrics written to the spool since start.
+     */
+    long getWrittenMetrics();
+
+    /**
+     * @return Number of metrics read back from the spool for forwarding, including metrics that were sent again.
+     */
+    long getReplayedMetrics();
+
+    long getAckedMetrics();
+
+    long getDroppedMetrics();
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rhq.metrics.clients.ptrans.backend;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoopGroup;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.rhq.metrics.client.common.MetricBuffer;
+import org.rhq.metrics.client.common.MetricRingBuffer;
+import org.rhq.metrics.client.common.SingleMetric;
+import org.rhq.metrics.clients.ptrans.stats.ForwarderStats;
+import org.rhq.metrics.clients.ptrans.tenant.TenantBatch;
+import org.rhq.metrics.clients.ptrans.tenant.TenantRouter;
+
+/**
+ * Base of the handlers at the end of the pipelines, which take lists of parsed metrics and forward them
+ * to a backend. The metrics are kept in a buffer until the backend acknowledged them: in memory, up to
+ * spool.size metrics, or in a {@link DiskMetricSpool} if spool.dir is set.
+ *
+ * If tenant rules are configured, every tenant has its own buffer, see {@link TenantQueue}. The metrics are
+ * routed by the {@link TenantRouter} when they are offered, or already come in {@link TenantBatch}es of one
+ * tenant from the batchers. The tenants take turns when metrics are drained.
+ *
+ * Which handler is used is configured with the backend property, see {@link #create(Properties, TenantRouter)}.
+ */
+public abstract class ForwardingHandler extends ChannelInboundHandlerAdapter {
+
+    private static final Logger logger = LoggerFactory.getLogger(ForwardingHandler.class);
+    private static final String DEFAULT_SEGMENT_SIZE = String.valueOf(16 * 1024 * 1024);
+    private static final String DEFAULT_SPOOL_MAX_SIZE = String.valueOf(1024L * 1024 * 1024);
+
+    /** The queue of every tenant, the one without a tenant first */
+    final List<TenantQueue> queues = new ArrayList<>();
+    private final Map<String, TenantQueue> queuesByTenant = new HashMap<>();
+    private final TenantRouter router;
+    /** Index of the queue that is drained next, guarded by the lock of the handler */
+    private int nextQueue;
+    /** Requests, batch sizes and latencies, to be recorded by the handlers */
+    protected final ForwarderStats stats;
+    /** Maximum number of metrics drained from the buffer at once */
+    protected final int spoolSize;
+    private final String spoolDir;
+    private final int spoolSegmentSize;
+    private final long spoolMaxSize;
+
+    protected ForwardingHandler(Properties configuration, TenantRouter router) {
+        this.router = router;
+        spoolSize = Integer.parseInt(configuration.getProperty("spool.size", "1000"));
+        spoolDir = configuration.getProperty("spool.dir");
+        spoolSegmentSize = Integer.parseInt(configuration.getProperty("spool.segment-size", DEFAULT_SEGMENT_SIZE));
+        spoolMaxSize = Long.parseLong(configuration.getProperty("spool.max-size", DEFAULT_SPOOL_MAX_SIZE));
+        if (router.getDefaultTenant() == null) {
+            addQueue(null);
+        }
+        for (String tenant : router.getTenants()) {
+            addQueue(tenant);
+        }
+        List<MetricBuffer> buffers = new ArrayList<>();
+        for (TenantQueue queue : queues) {
+            buffers.add(queue.buffer);
+        }
+        stats = new ForwarderStats(buffers);
+    }
+
+    /**
+     * @param router Router of the metrics to the tenants
+     * @return The handler for the backend property, rest (the default) or cassandra
+     */
+    public static ForwardingHandler create(Properties configuration, TenantRouter router) {
+        String backend = configuration.getProperty("backend", "rest");
+        switch (backend) {
+        case "rest":
+            return new RestForwardingHandler(configuration, router);
+        case "cassandra":
+            return new CassandraForwardingHandler(configuration, router);
+        default:
+            throw new IllegalArgumentException("Unknown backend '" + backend + "', use rest or cassandra");
+        }
+    }
+
+    private void addQueue(String tenant) {
+        TenantQueue queue = new TenantQueue(tenant, createBuffer(tenant));
+        queues.add(queue);
+        queuesByTenant.put(tenant, queue);
+        if (router.isEnabled()) {
+            registerMBean(queue, queue.getObjectName());
+        }
+    }
+
+    /**
+     * @param tenant The tenant, null for the metrics without one, which are spooled in spool.dir itself
+     */
+    private MetricBuffer createBuffer(String tenant) {
+        if (spoolDir == null || spoolDir.isEmpty()) {
+            return new MetricRingBuffer(spoolSize);
+        }
+        File directory = tenant == null ? new File(spoolDir) : new File(spoolDir, "tenant-" + tenant);
+        DiskMetricSpool spool;
+        try {
+            spool = new DiskMetricSpool(directory, spoolSegmentSize, spoolMaxSize);
+        } catch (IOException e) {
+            throw new IllegalStateException("Can not open the spool in " + directory, e);
+        }
+        registerMBean(spool, "org.rhq.metrics.ptrans:type=DiskSpool" + (tenant == null ? "" : ",tenant=" + tenant));
+        logger.info("Spooling metrics to " + directory);
+        return spool;
+    }
+
+    public ForwarderStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Start forwarding on the passed event loop group, which sends metrics that were spooled before
+     * a restart without waiting for new ones to arrive.
+     * @param group Event loop group for the connections to the backend and for delayed retries
+     */
+    public abstract void start(EventLoopGroup group);
+
+    /**
+     * Forward metrics that do not come in through a channel, e.g. statsd aggregates. Needs
+     * {@link #start(EventLoopGroup)} to be called before.
+     * @param metrics The metrics, the list is not kept
+     */
+    public void offerAll(List<SingleMetric> metrics) {
+        offerAll(null, metrics);
+    }
+
+    /**
+     * Forward metrics of an input that do not come in through a channel, e.g. statsd aggregates.
+     * @param input Name of the input, for the tenant rules, or null
+     * @param metrics The metrics, the list is not kept
+     */
+    public void offerAll(String input, List<SingleMetric> metrics) {
+        offer(metrics, router.routeSource(input, null));
+        forward();
+    }
+
+    /**
+     * Add the metrics to the queues of their tenants, in runs of metrics of the same tenant.
+     * @param sourceTenant Tenant of the metrics whose name matches no prefix
+     */
+    private void offer(List<SingleMetric> metrics, String sourceTenant) {
+        if (queues.size() == 1) {
+            queues.get(0).buffer.offerAll(metrics);
+            return;
+        }
+        int runStart = 0;
+        TenantQueue runQueue = null;
+        for (int i = 0; i < metrics.size(); i++) {
+            TenantQueue queue = queueOf(router.route(metrics.get(i).getSource(), sourceTenant));
+            if (queue != runQueue) {
+                if (runQueue != null) {
+                    runQueue.buffer.offerAll(metrics.subList(runStart, i));
+                }
+                runStart = i;
+                runQueue = queue;
+            }
+        }
+        if (runQueue != null) {
+            runQueue.buffer.offerAll(metrics.subList(runStart, metrics.size()));
+        }
+    }
+
+    private TenantQueue queueOf(String tenant) {
+        return queuesByTenant.get(tenant);
+    }
+
+    /**
+     * Drain up to spool.size metrics from the next queue that has some, the queues take turns. Must be called
+     * while holding the lock of the handler.
+     * @param out List to add the metrics to
+     * @return The chunk of the drained metrics, or null if all queues are empty
+     */
+    TenantQueue.Chunk drain(List<SingleMetric> out) {
+        for (int i = 0; i < queues.size(); i++) {
+            TenantQueue queue = queues.get(nextQueue);
+            nextQueue = (nextQueue + 1) % queues.size();
+            long endPosition = queue.buffer.drainTo(out, spoolSize);
+            if (!out.isEmpty()) {
+                return queue.drained(endPosition);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Send buffered metrics as far as the backend can take them.
+     */
+    protected abstract void forward();
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (logger.isTraceEnabled()) {
+            logger.trace("Received some metrics :[" + msg + "]");
+        }
+        if (msg instanceof TenantBatch) {
+            TenantBatch batch = (TenantBatch) msg;
+            queueOf(batch.getTenant()).buffer.offerAll(batch.getMetrics());
+            forward();
+            return;
+        }
+        @SuppressWarnings("unchecked")
+        List<SingleMetric> in = (List<SingleMetric>) msg;
+        if (queues.size() == 1) {
+            queues.get(0).buffer.offerAll(in);
+        } else {
+            // Not batched, so the sender and the input of the channel are the ones of all metrics
+            InetAddress sender = TenantRouter.senderOf(ctx.channel());
+            offer(in, router.routeSource(ctx.channel().attr(TenantRouter.INPUT).get(), sender));
+        }
+        forward();
+    }
+
+    /**
+     * Release the resources of the handler, making sure that spooled metrics are on disk.
+     */
+    public void close() {
+        for (TenantQueue queue : queues) {
+            if (queue.buffer instanceof DiskMetricSpool) {
+                ((DiskMetricSpool) queue.buffer).close();
+            }
+        }
+    }
+
+    protected static void registerMBean(Object mbean, String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, new ObjectName(name));
+        } catch (JMException e) {
+            logger.warn("Could not register MBean " + name + ": " + e.getMessage());
+        }
+    }
+
+    protected static void unregisterMBean(String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(name));
+        } catch (JMException e) {
+            logger.debug("Could not unregister MBean " + name + ": " + e.getMessage());
+        }
+    }
+}
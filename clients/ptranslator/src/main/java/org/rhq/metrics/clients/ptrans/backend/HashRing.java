@@ -0,0 +1,93 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rhq.metrics.clients.ptrans.backend;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Consistent hash ring that maps metric names to backends. Every backend owns a number of points on the ring,
+ * and a name belongs to the first backend at or after its own hash. Adding or removing a backend thus only moves
+ * the names of the points it takes or gives up, and the names of an unhealthy backend are spread over the others,
+ * as each of its points is followed by the one of a different backend.
+ *
+ * The hashes only depend on the metric names and on the addresses of the backends, so several ptrans instances
+ * with the same list of backends send a metric to the same one.
+ */
+class HashRing {
+
+    /** Points per backend, more points spread the names more evenly */
+    static final int VIRTUAL_NODES = 128;
+
+    private final int[] points;
+    private final RestBackend[] owners;
+
+    HashRing(List<RestBackend> backends) {
+        // Sort the points with the index of their backend in the lower half
+        long[] entries = new long[backends.size() * VIRTUAL_NODES];
+        for (int b = 0; b < backends.size(); b++) {
+            String address = backends.get(b).getAddress();
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                entries[b * VIRTUAL_NODES + i] = (long) hash(address + "#" + i) << 32 | b;
+            }
+        }
+        Arrays.sort(entries);
+        points = new int[entries.length];
+        owners = new RestBackend[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            points[i] = (int) (entries[i] >>> 32);
+            owners[i] = backends.get((int) entries[i]);
+        }
+    }
+
+    /**
+     * @return The backend of the name, skipping unhealthy backends. If none is healthy, the owner of the name.
+     */
+    RestBackend route(String name) {
+        int hash = hash(name);
+        int low = 0;
+        int high = points.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (points[mid] < hash) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        for (int i = 0; i < owners.length; i++) {
+            RestBackend backend = owners[(low + i) % owners.length];
+            if (backend.isHealthy()) {
+                return backend;
+            }
+        }
+        return owners[low % owners.length];
+    }
+
+    /**
+     * String hash code, spread with the finalizer of MurmurHash3.
+     */
+    private static int hash(String s) {
+        int h = s.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
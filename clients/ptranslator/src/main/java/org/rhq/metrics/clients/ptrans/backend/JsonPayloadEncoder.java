@@ -0,0 +1,238 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rhq.metrics.clients.ptrans.backend;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+
+import org.rhq.metrics.client.common.SingleMetric;
+
+/**
+ * Writes a batch of metrics as the json body of a rest request directly into a buffer of the passed allocator,
+ * without building the document as a string first. The output is the same as the one of
+ * {@link org.rhq.metrics.client.common.Batcher#metricListToJson(java.util.Collection)}, except that quotes,
+ * backslashes and control characters in metric names are escaped.
+ *
+ * If gzip is enabled, the document is deflated into a second buffer, which is returned instead. Instances keep
+ * the deflater between batches and must not be used by several threads at the same time.
+ */
+public class JsonPayloadEncoder {
+
+    /** Bytes of a metric in the json document besides its source */
+    private static final int METRIC_OVERHEAD = 48;
+    private static final byte[] ID = "{\"id\":\"".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TIMESTAMP = "\",\"timestamp\":".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] VALUE = ",\"value\":".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NULL = "null".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    /** Magic, deflate, no flags, no modification time, no extra flags, unknown OS */
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private static final int GZIP_TRAILER_LENGTH = 8;
+    private static final long NEGATIVE_ZERO = Double.doubleToRawLongBits(-0.0);
+
+    private final boolean gzip;
+    private final Deflater deflater;
+    private final CRC32 crc;
+    private final byte[] digits = new byte[20];
+
+    /**
+     * @param gzip Whether the document is compressed
+     * @param level Compression level of the deflater, see {@link Deflater}
+     */
+    public JsonPayloadEncoder(boolean gzip, int level) {
+        this.gzip = gzip;
+        if (gzip) {
+            deflater = new Deflater(level, true);
+            crc = new CRC32();
+        } else {
+            deflater = null;
+            crc = null;
+        }
+    }
+
+    public boolean isGzip() {
+        return gzip;
+    }
+
+    /**
+     * Encode the passed metrics. The caller owns the returned buffer and has to release it.
+     * @param allocator Allocator of the buffers, usually the one of the channel the payload is written to
+     * @param metrics Metrics to encode
+     * @return Buffer with the (compressed) json document as readable bytes
+     */
+    public ByteBuf encode(ByteBufAllocator allocator, List<SingleMetric> metrics) {
+        int estimate = 2;
+        for (int i = 0; i < metrics.size(); i++) {
+            estimate += metrics.get(i).getSource().length() + METRIC_OVERHEAD;
+        }
+        // The jdk deflater only works on arrays
+        ByteBuf json = gzip ? allocator.heapBuffer(estimate) : allocator.buffer(estimate);
+        try {
+            writeJson(json, metrics);
+            if (!gzip) {
+                return json.retain();
+            }
+            return deflate(allocator, json);
+        } finally {
+            json.release();
+        }
+    }
+
+    /**
+     * Free the native memory of the deflater, the encoder cannot be used afterwards.
+     */
+    public void close() {
+        if (deflater != null) {
+            deflater.end();
+        }
+    }
+
+    private void writeJson(ByteBuf out, List<SingleMetric> metrics) {
+        out.writeByte('[');
+        for (int i = 0; i < metrics.size(); i++) {
+            SingleMetric metric = metrics.get(i);
+            if (i > 0) {
+                out.writeByte(',');
+            }
+            out.writeBytes(ID);
+            writeString(out, metric.getSource());
+            out.writeBytes(TIMESTAMP);
+            writeLong(out, metric.getTimestamp());
+            out.writeBytes(VALUE);
+            writeDouble(out, metric.getValue());
+            out.writeByte('}');
+        }
+        out.writeByte(']');
+    }
+
+    /**
+     * Write the UTF-8 bytes of a json string without the enclosing quotes.
+     */
+    private static void writeString(ByteBuf out, String s) {
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                if (c == '"' || c == '\\') {
+                    out.writeByte('\\');
+                    out.writeByte(c);
+                } else if (c < 0x20) {
+                    out.writeByte('\\');
+                    out.writeByte('u');
+                    out.writeByte('0');
+                    out.writeByte('0');
+                    out.writeByte(HEX[c >> 4]);
+                    out.writeByte(HEX[c & 0xf]);
+                } else {
+                    out.writeByte(c);
+                }
+            } else if (c < 0x800) {
+                out.writeByte(0xc0 | (c >> 6));
+                out.writeByte(0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                out.writeByte(0xf0 | (codePoint >> 18));
+                out.writeByte(0x80 | ((codePoint >> 12) & 0x3f));
+                out.writeByte(0x80 | ((codePoint >> 6) & 0x3f));
+                out.writeByte(0x80 | (codePoint & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired surrogate, replaced like String.getBytes does
+                out.writeByte('?');
+            } else {
+                out.writeByte(0xe0 | (c >> 12));
+                out.writeByte(0x80 | ((c >> 6) & 0x3f));
+                out.writeByte(0x80 | (c & 0x3f));
+            }
+        }
+    }
+
+    private void writeLong(ByteBuf out, long value) {
+        if (value == Long.MIN_VALUE) {
+            writeAscii(out, Long.toString(value));
+            return;
+        }
+        if (value < 0) {
+            out.writeByte('-');
+            value = -value;
+        }
+        int pos = digits.length;
+        do {
+            digits[--pos] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        out.writeBytes(digits, pos, digits.length - pos);
+    }
+
+    /**
+     * Write the value like {@link String#valueOf(Object)} does. Integral values, which most metrics have, are
+     * written without creating a string.
+     */
+    private void writeDouble(ByteBuf out, Double value) {
+        if (value == null) {
+            out.writeBytes(NULL);
+            return;
+        }
+        double d = value;
+        // Double.toString switches to the computerized scientific notation at 10^7
+        if (d == (long) d && Math.abs(d) < 1e7 && Double.doubleToRawLongBits(d) != NEGATIVE_ZERO) {
+            writeLong(out, (long) d);
+            out.writeByte('.');
+            out.writeByte('0');
+        } else {
+            writeAscii(out, Double.toString(d));
+        }
+    }
+
+    private static void writeAscii(ByteBuf out, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            out.writeByte(s.charAt(i));
+        }
+    }
+
+    private ByteBuf deflate(ByteBufAllocator allocator, ByteBuf json) {
+        int length = json.readableBytes();
+        int offset = json.arrayOffset() + json.readerIndex();
+        // Metric batches compress well, the buffer grows if the guess is too small
+        ByteBuf out = allocator.heapBuffer(GZIP_HEADER.length + length / 4 + GZIP_TRAILER_LENGTH + 64);
+        try {
+            out.writeBytes(GZIP_HEADER);
+            crc.reset();
+            crc.update(json.array(), offset, length);
+            deflater.reset();
+            deflater.setInput(json.array(), offset, length);
+            deflater.finish();
+            while (!deflater.finished()) {
+                out.ensureWritable(1024);
+                int written = deflater.deflate(out.array(), out.arrayOffset() + out.writerIndex(),
+                    out.writableBytes());
+                out.writerIndex(out.writerIndex() + written);
+            }
+            out.writeInt(ByteBufUtil.swapInt((int) crc.getValue()));
+            out.writeInt(ByteBufUtil.swapInt(length));
+            return out;
+        } catch (RuntimeException e) {
+            out.release();
+            throw e;
+        }
+    }
+}
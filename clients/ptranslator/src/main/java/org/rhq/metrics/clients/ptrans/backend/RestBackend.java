@@ -0,0 +1,221 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rhq.metrics.clients.ptrans.backend;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * One rest server of the pool the {@link RestForwardingHandler} spreads the metrics over. Holds the connections
+ * to the server, the batches waiting for a connection and the health of the server.
+ *
+ * The state is guarded by the lock of the backend itself, the statistics can be read from any thread.
+ */
+public class RestBackend implements RestBackendMBean {
+
+    /** Interval in seconds of {@link #tick()} */
+    static final int TICK_INTERVAL = 5;
+    private static final double RATE_WEIGHT = 1 - Math.exp(-TICK_INTERVAL / 60.0);
+
+    final String host;
+    final int port;
+    final List<RestConnection> connections = new ArrayList<>();
+    /** Batches to be sent, failed ones are added to the front once their delay has passed */
+    final Deque<RestForwardingHandler.Batch> queue = new ArrayDeque<>();
+    int connecting;
+    long nextConnectTime;
+    /** Encodes the batches sent to this backend, not thread-safe */
+    JsonPayloadEncoder encoder;
+
+    private volatile boolean healthy = true;
+    private volatile int consecutiveFailures;
+    private volatile int queuedBatches;
+    private volatile int queuedMetrics;
+    private volatile int inFlightBatches;
+    private volatile int connectionCount;
+    private volatile long sentMetrics;
+    private volatile long failedRequests;
+    private volatile long reroutedMetrics;
+    private volatile double metricsPerSecond;
+    private long lastTickMetrics;
+
+    RestBackend(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * @param address host:port, the port defaults to 8080
+     */
+    static RestBackend parse(String address) {
+        String trimmed = address.trim();
+        int colon = trimmed.lastIndexOf(':');
+        if (colon < 0) {
+            return new RestBackend(trimmed, 8080);
+        }
+        return new RestBackend(trimmed.substring(0, colon), Integer.parseInt(trimmed.substring(colon + 1)));
+    }
+
+    String getObjectName() {
+        return "org.rhq.metrics.ptrans:type=RestBackend,name=" + host + "_" + port;
+    }
+
+    void enqueue(RestForwardingHandler.Batch batch, boolean first) {
+        if (first) {
+            queue.addFirst(batch);
+        } else {
+            queue.add(batch);
+        }
+        queuedBatches = queue.size();
+        queuedMetrics += batch.size;
+    }
+
+    RestForwardingHandler.Batch poll() {
+        RestForwardingHandler.Batch batch = queue.poll();
+        queuedBatches = queue.size();
+        if (batch != null) {
+            queuedMetrics -= batch.size;
+        }
+        return batch;
+    }
+
+    /**
+     * @return The connection with the fewest batches in flight that can take another one, or null
+     */
+    RestConnection availableConnection(int maxInFlight) {
+        RestConnection available = null;
+        for (RestConnection connection : connections) {
+            if (!connection.retiring && connection.channel.isActive() && connection.inFlight.size() < maxInFlight
+                && (available == null || connection.inFlight.size() < available.inFlight.size())) {
+                available = connection;
+            }
+        }
+        return available;
+    }
+
+    void connectionsChanged() {
+        connectionCount = connections.size();
+        inFlightChanged();
+    }
+
+    void inFlightChanged() {
+        int inFlight = 0;
+        for (RestConnection connection : connections) {
+            inFlight += connection.inFlight.size();
+        }
+        inFlightBatches = inFlight;
+    }
+
+    void acknowledged(int metrics) {
+        sentMetrics += metrics;
+        consecutiveFailures = 0;
+    }
+
+    /**
+     * @return Consecutive failures including this one
+     */
+    int failed(boolean request) {
+        if (request) {
+            failedRequests++;
+        }
+        return ++consecutiveFailures;
+    }
+
+    void connected() {
+        consecutiveFailures = 0;
+    }
+
+    void rerouted(int metrics) {
+        reroutedMetrics += metrics;
+    }
+
+    void setHealthy(boolean healthy) {
+        this.healthy = healthy;
+    }
+
+    /**
+     * Update the throughput, called every {@link #TICK_INTERVAL} seconds.
+     */
+    void tick() {
+        long sent = sentMetrics;
+        double rate = (sent - lastTickMetrics) / (double) TICK_INTERVAL;
+        lastTickMetrics = sent;
+        metricsPerSecond += RATE_WEIGHT * (rate - metricsPerSecond);
+    }
+
+    @Override
+    public String getAddress() {
+        return host + ":" + port;
+    }
+
+    @Override
+    public boolean isHealthy() {
+        return healthy;
+    }
+
+    @Override
+    public int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    @Override
+    public int getQueuedBatches() {
+        return queuedBatches;
+    }
+
+    @Override
+    public int getQueuedMetrics() {
+        return queuedMetrics;
+    }
+
+    @Override
+    public int getInFlightBatches() {
+        return inFlightBatches;
+    }
+
+    @Override
+    public int getConnections() {
+        return connectionCount;
+    }
+
+    @Override
+    public long getSentMetrics() {
+        return sentMetrics;
+    }
+
+    @Override
+    public long getFailedRequests() {
+        return failedRequests;
+    }
+
+    @Override
+    public long getReroutedMetrics() {
+        return reroutedMetrics;
+    }
+
+    @Override
+    public double getMetricsPerSecond() {
+        return metricsPerSecond;
+    }
+
+    @Override
+    public String toString() {
+        return getAddress();
+    }
+}
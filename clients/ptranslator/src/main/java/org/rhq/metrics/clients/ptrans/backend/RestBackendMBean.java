@@ -0,0 +1,69 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rhq.metrics.clients.ptrans.backend;
+
+/**
+ * Management interface of a {@link RestBackend}.
+ */
+public interface RestBackendMBean {
+
+    String getAddress();
+
+    /**
+     * @return Whether metrics are routed to the backend. Its share goes to the other backends while it is unhealthy.
+     */
+    boolean isHealthy();
+
+    /**
+     * @return Number of requests or connection attempts that failed since the last successful one
+     */
+    int getConsecutiveFailures();
+
+    /**
+     * @return Batches waiting to be sent, including failed ones waiting to be sent again
+     */
+    int getQueuedBatches();
+
+    /**
+     * @return Metrics in the queued batches
+     */
+    int getQueuedMetrics();
+
+    /**
+     * @return Batches sent and not answered yet, over all connections
+     */
+    int getInFlightBatches();
+
+    int getConnections();
+
+    /**
+     * @return Metrics acknowledged by the backend
+     */
+    long getSentMetrics();
+
+    long getFailedRequests();
+
+    /**
+     * @return Metrics of this backend that were sent to others because it was unhealthy
+     */
+    long getReroutedMetrics();
+
+    /**
+     * @return One minute exponentially weighted moving average of the acknowledged metrics per second
+     */
+    double getMetricsPerSecond();
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rhq.metrics.clients.ptrans.backend;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.channel.Channel;
+
+/**
+ * One pooled connection to a rest server. Several batches can be in flight on a connection at the
+ * same time, the responses arrive in the order the requests were sent.
+ *
+ * The state is guarded by the lock of its {@link RestBackend}, the statistics can be read from any
+ * thread.
+ */
+public class RestConnection implements RestConnectionMBean {
+
+    /** Weight of the newest sample in the average latency */
+    private static final double LATENCY_WEIGHT = 0.1;
+
+    final int id;
+    final RestBackend backend;
+    final Deque<RestForwardingHandler.Batch> inFlight = new ArrayDeque<>();
+    Channel channel;
+    int requests;
+    /** Set once the connection has served its requests, it is closed when its last response arrived */
+    boolean retiring;
+
+    private volatile int inFlightBatches;
+    private volatile long sentBatches;
+    private volatile long failedBatches;
+    private volatile double lastLatencyMillis;
+    private volatile double averageLatencyMillis;
+
+    RestConnection(int id, RestBackend backend) {
+        this.id = id;
+        this.backend = backend;
+    }
+
+    String getObjectName() {
+        return "org.rhq.metrics.ptrans:type=RestConnection,backend=" + backend.host + "_" + backend.port + ",id=" + id;
+    }
+
+    void sent(RestForwardingHandler.Batch batch) {
+        inFlight.add(batch);
+        requests++;
+        inFlightBatches = inFlight.size();
+        sentBatches++;
+    }
+
+    RestForwardingHandler.Batch answered(boolean success) {
+        RestForwardingHandler.Batch batch = inFlight.poll();
+        inFlightBatches = inFlight.size();
+        if (batch == null) {
+            return null;
+        }
+        if (success) {
+            double latency = (System.nanoTime() - batch.sentAt) / (double) TimeUnit.MILLISECONDS.toNanos(1);
+            lastLatencyMillis = latency;
+            averageLatencyMillis = averageLatencyMillis == 0 ? latency
+                : averageLatencyMillis + LATENCY_WEIGHT * (latency - averageLatencyMillis);
+        } else {
+            failedBatches++;
+        }
+        return batch;
+    }
+
+    void lost() {
+        failedBatches += inFlight.size();
+    }
+
+    @Override
+    public int getInFlightBatches() {
+        return inFlightBatches;
+    }
+
+    @Override
+    public long getSentBatches() {
+        return sentBatches;
+    }
+
+    @Override
+    public long getFailedBatches() {
+        return failedBatches;
+    }
+
+    @Override
+    public double getLastLatencyMillis() {
+        return lastLatencyMillis;
+    }
+
+    @Override
+    public double getAverageLatencyMillis() {
+        return averageLatencyMillis;
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rhq.metrics.clients.ptrans.backend;
+
+/**
+ * Management interface of a pooled {@link RestConnection}.
+ */
+public interface RestConnectionMBean {
+
+    /**
+     * @return Number of batches sent on this connection that have not been answered yet.
+     */
+    int getInFlightBatches();
+
+    long getSentBatches();
+
+    /**
+     * @return Number of batches that were answered with an error or lost with the connection.
+     */
+    long getFailedBatches();
+
+    /**
+     * @return Time between sending the last answered batch and receiving its response.
+     */
+    double getLastLatencyMillis();
+
+    /**
+     * @return Exponentially weighted moving average of the response latency.
+     */
+    double getAverageLatencyMillis();
+}
@@ -18,15 +18,17 @@ package org.rhq.metrics.clients.ptrans.backend;
 
 
 import java.net.ConnectException;
-import java.net.InetAddress;
-import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
 
 import io.netty.bootstrap.Bootstrap;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
-import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
@@ -46,157 +48,457 @@ import io.netty.handler.codec.http.HttpRequestEncoder;
 import io.netty.handler.codec.http.HttpResponseDecoder;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpVersion;
-import io.netty.util.AttributeKey;
-import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import org.rhq.metrics.client.common.Batcher;
-import org.rhq.metrics.client.common.BoundMetricFifo;
 import org.rhq.metrics.client.common.SingleMetric;
+import org.rhq.metrics.clients.ptrans.backend.TenantQueue.Chunk;
+import org.rhq.metrics.clients.ptrans.tenant.TenantRouter;
 
 import static io.netty.channel.ChannelHandler.Sharable;
 
 /**
  * Handler that takes incoming syslog metric messages (which are already parsed)
  * and forwards them to rhq-metrics rest servlet.
+ *
+ * The metrics can be spread over several rest servers, listed in rest.backends. Each metric goes to the server
+ * its name maps to on a {@link HashRing}, so the same server always sees the same metrics. Metrics are buffered,
+ * and every chunk drained from the buffer is split into one batch per server. Each server has a pool of up to
+ * rest.connections connections, with up to rest.max-in-flight unanswered batches per connection. Chunks are
+ * retired from the buffer in the order they were drained, once all their batches and all chunks before them are
+ * acknowledged. A failed batch is sent again after an exponentially growing delay, up to rest.max-attempts times.
+ * Batches the server rejects as invalid, with a 4xx status other than 408 and 429, are dropped at once.
+ *
+ * Metrics without a tenant are posted to rest.prefix/metrics, the ones of a tenant to
+ * rest.prefix/&lt;tenant&gt;/metrics. Every chunk holds the metrics of a single tenant.
+ *
+ * After rest.unhealthy-after consecutive failures a server is marked unhealthy: its connections are closed and
+ * its batches are split over the servers that follow it on the ring, until a connection to it succeeds again.
+ *
+ * The json body of a batch is written directly into a pooled buffer, which is kept until the batch is
+ * acknowledged. With rest.gzip the body is compressed and sent with <code>Content-Encoding: gzip</code>.
+ *
+ * Draining the buffers and the chunks are guarded by the lock of the handler, the queue and the connections of
+ * a backend by the {@link RestBackend} itself, so batches to different servers are sent and acknowledged in
+ * parallel. A backend is only locked while holding the lock of the handler or no lock at all, never the other
+ * way around.
  * @author Heiko W. Rupp
  */
 @Sharable
 @SuppressWarnings("ThrowableResultOfMethodCallIgnored")
-public class RestForwardingHandler extends ChannelInboundHandlerAdapter {
+public class RestForwardingHandler extends ForwardingHandler {
 
     private static final String RHQ_METRICS_PREFIX = "/rhq-metrics";
     private static final String METRICS_PREFIX = "/metrics";
     private static final String DEFAULT_REST_PORT = "8080";
-    private String restHost = "localhost";
-    private int restPort = 8080;
     private String restPrefix = RHQ_METRICS_PREFIX + METRICS_PREFIX;
+    private String tenantPrefix = RHQ_METRICS_PREFIX + "/";
 
     private static final int CLOSE_AFTER_REQUESTS = 200;
-    private long numberOfMetrics = 0;
-
-    BoundMetricFifo fifo;
-    AttributeKey<List<SingleMetric>> listKey = AttributeKey.valueOf("listToSend");
-
-    private Channel senderChannel;
-    private int sendCounter = 0;
-
-    private String localHostName;
+    private static final String DEFAULT_CONNECTIONS = "4";
+    private static final String DEFAULT_MAX_IN_FLIGHT = "4";
+    private static final String DEFAULT_RETRY_BACKOFF = "100";
+    private static final String DEFAULT_RETRY_MAX_BACKOFF = "30000";
+    private static final String DEFAULT_UNHEALTHY_AFTER = "3";
+    private static final String DEFAULT_MAX_ATTEMPTS = "30";
+
+    /** The rest servers, in the order of rest.backends */
+    final List<RestBackend> backends = new ArrayList<>();
+    private final HashRing ring;
+    private final Object lock = new Object();
+    /** Reused for every drained chunk, only touched while holding the lock */
+    private final List<SingleMetric> drained = new ArrayList<>();
+    private final boolean gzip;
+    private volatile EventLoopGroup group;
+    private final AtomicInteger connectionIds = new AtomicInteger();
 
     private static final Logger logger = LoggerFactory.getLogger(RestForwardingHandler.class);
     private int closeAfterRequests = CLOSE_AFTER_REQUESTS;
-    private int spoolSize;
-    boolean isConnecting = false;
-
-    final Object connectingMutex;
-
-    public RestForwardingHandler(Properties configuration) {
-        connectingMutex = this;
+    private int maxConnections;
+    private int maxInFlight;
+    private long retryBackoff;
+    private long retryMaxBackoff;
+    private int unhealthyAfter;
+    private int maxAttempts;
+
+    public RestForwardingHandler(Properties configuration, TenantRouter router) {
+        super(configuration, router);
         logger.debug("RestForwardingHandler init");
         loadRestEndpointInfoFromProperties(configuration);
-
-        fifo = new BoundMetricFifo(10, spoolSize);
-        try {
-            localHostName  = InetAddress.getLocalHost().getCanonicalHostName();
-        } catch (UnknownHostException e) {
-            logger.error(e.getLocalizedMessage());
-            localHostName="- unknown host -";
+        ring = new HashRing(backends);
+        gzip = Boolean.parseBoolean(configuration.getProperty("rest.gzip", "false"));
+        for (RestBackend backend : backends) {
+            backend.encoder = new JsonPayloadEncoder(gzip, Deflater.BEST_SPEED);
+            registerMBean(backend, backend.getObjectName());
         }
     }
 
-
+    @Override
+    public void start(EventLoopGroup group) {
+        setGroup(group);
+        forward();
+    }
 
     @Override
     public void channelRead(final ChannelHandlerContext ctx, Object msg) throws Exception {
+        setGroup(ctx.channel().eventLoop().parent());
+        super.channelRead(ctx, msg);
+    }
 
-        @SuppressWarnings("unchecked")
-        final List<SingleMetric> in = (List<SingleMetric>) msg;
-        if (logger.isTraceEnabled()) {
-            logger.trace("Received some metrics :[" + in + "]");
+    private void setGroup(EventLoopGroup group) {
+        synchronized (lock) {
+            if (this.group != null) {
+                return;
+            }
+            this.group = group;
         }
+        group.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                for (RestBackend backend : backends) {
+                    backend.tick();
+                }
+            }
+        }, RestBackend.TICK_INTERVAL, RestBackend.TICK_INTERVAL, TimeUnit.SECONDS);
+    }
 
-        fifo.addAll(in);
-
-        synchronized (connectingMutex) {
-            // make sure to only open one connection at a time
-            if (isConnecting)
-                return;
+    /**
+     * Split new metrics over the backends as long as they keep up, send batches as long as a pooled
+     * connection can take them, and open another connection if all of them are busy.
+     */
+    @Override
+    protected void forward() {
+        synchronized (lock) {
+            while (backendsCanTakeMore() && drainChunk()) {
+                // Split as many chunks as the backends take
+            }
         }
+        for (RestBackend backend : backends) {
+            boolean connect;
+            synchronized (backend) {
+                connect = forward(backend);
+            }
+            if (connect) {
+                connect(backend);
+            }
+        }
+    }
 
-        if (senderChannel!=null ) {
-            sendToChannel(senderChannel);
-            return;
+    /**
+     * Must be called while holding the lock of the backend.
+     * @return Whether a new connection is to be opened, which is already counted as connecting
+     */
+    private boolean forward(RestBackend backend) {
+        RestConnection connection;
+        while (!backend.queue.isEmpty() && (connection = backend.availableConnection(maxInFlight)) != null) {
+            send(connection, backend.poll());
+        }
+        // Unhealthy backends are probed with a new connection, which makes them healthy again
+        boolean wanted = !backend.queue.isEmpty() || !backend.isHealthy();
+        if (wanted && backend.connections.size() + backend.connecting < maxConnections
+            && System.currentTimeMillis() >= backend.nextConnectTime && group != null) {
+            backend.connecting++;
+            return true;
         }
+        return false;
+    }
 
+    /**
+     * New metrics are only drained while every backend they could go to has fewer than rest.max-in-flight
+     * batches waiting, so a slow backend holds back the buffer instead of piling up batches.
+     */
+    private boolean backendsCanTakeMore() {
+        boolean anyHealthy = false;
+        for (RestBackend backend : backends) {
+            anyHealthy |= backend.isHealthy();
+        }
+        for (RestBackend backend : backends) {
+            if ((backend.isHealthy() || !anyHealthy) && backend.getQueuedBatches() >= maxInFlight) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-        ChannelFuture cf = connectRestServer(ctx.channel().eventLoop().parent());
+    /**
+     * @return Whether there were metrics to drain
+     */
+    private boolean drainChunk() {
+        Chunk chunk = drain(drained);
+        if (chunk == null) {
+            return false;
+        }
+        try {
+            split(chunk, drained, false);
+        } finally {
+            drained.clear();
+        }
+        return true;
+    }
 
-        cf.addListener(new ChannelFutureListener() {
-            @Override
-            public void operationComplete(ChannelFuture future) throws Exception {
-                synchronized (connectingMutex) {
-                    isConnecting=false;
-                }
-                if (!future.isSuccess()) {
-                    Throwable cause = future.cause();
-                    if (cause instanceof ConnectException ) {
-                        logger.warn("Sending failed: " + cause.getLocalizedMessage());
-                    }
-                    else {
-                        logger.warn("Something went wrong: " + cause);
-                    }
-                } else {
-                    //   the remote is up.
-                    senderChannel = future.channel();
-                    sendToChannel(senderChannel);
-                }
+    /**
+     * Queue the metrics in one batch per backend they map to.
+     * @param first Whether the batches are sent before the ones already queued
+     * @return Number of batches
+     */
+    private int split(Chunk chunk, List<SingleMetric> metrics, boolean first) {
+        if (backends.size() == 1) {
+            queue(backends.get(0), new Batch(chunk, new ArrayList<>(metrics)), first);
+            return 1;
+        }
+        Map<RestBackend, List<SingleMetric>> parts = new IdentityHashMap<>();
+        for (int i = 0; i < metrics.size(); i++) {
+            SingleMetric metric = metrics.get(i);
+            RestBackend backend = ring.route(metric.getSource());
+            List<SingleMetric> part = parts.get(backend);
+            if (part == null) {
+                part = new ArrayList<>();
+                parts.put(backend, part);
             }
-        });
+            part.add(metric);
+        }
+        for (Map.Entry<RestBackend, List<SingleMetric>> part : parts.entrySet()) {
+            queue(part.getKey(), new Batch(chunk, part.getValue()), first);
+        }
+        return parts.size();
     }
 
-    private void sendToChannel(final Channel ch) {
-        if (logger.isTraceEnabled()) {
-            logger.trace("Sending to channel " +ch );
+    private void queue(RestBackend backend, Batch batch, boolean first) {
+        batch.chunk.pending++;
+        batch.backend = backend;
+        synchronized (backend) {
+            backend.enqueue(batch, first);
+        }
+    }
+
+    /**
+     * Move a batch of an unhealthy backend to the backends that now own its metrics. Must be called while
+     * holding the lock of the handler.
+     */
+    private void reroute(Batch batch) {
+        batch.chunk.pending--;
+        synchronized (batch.backend) {
+            batch.backend.rerouted(batch.size);
         }
-        final List<SingleMetric> metricsToSend = fifo.getList();
+        batch.release();
+        split(batch.chunk, batch.metrics, true);
+    }
 
-        String payload = Batcher.metricListToJson(metricsToSend);
-        ByteBuf content = Unpooled.copiedBuffer(payload, CharsetUtil.UTF_8);
-        FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST,
-            restPrefix, content);
+    /**
+     * Must be called while holding the lock of the backend of the connection.
+     */
+    private void send(final RestConnection connection, Batch batch) {
+        if (logger.isTraceEnabled()) {
+            logger.trace("Sending to channel " + connection.channel);
+        }
+        if (batch.payload == null) {
+            batch.payload = connection.backend.encoder.encode(connection.channel.alloc(), batch.metrics);
+        }
+        // The payload stays with the batch in case it has to be sent again
+        ByteBuf content = batch.payload.duplicate().retain();
+        String tenant = batch.chunk.queue.tenant;
+        String path = tenant == null ? restPrefix : tenantPrefix + tenant + METRICS_PREFIX;
+        FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, path, content);
         HttpHeaders.setContentLength(request, content.readableBytes());
         HttpHeaders.setKeepAlive(request, true);
         HttpHeaders.setHeader(request, HttpHeaders.Names.CONTENT_TYPE, "application/json;charset=utf-8");
-        // We need to send the list of metrics we are sending down the pipeline, so the status watcher
-        // can later clean them out of the fifo
-        ch.attr(listKey).set(metricsToSend);
-        ch.writeAndFlush(request).addListener(new ChannelFutureListener() {
+        if (gzip) {
+            HttpHeaders.setHeader(request, HttpHeaders.Names.CONTENT_ENCODING, HttpHeaders.Values.GZIP);
+        }
+
+        batch.sentAt = System.nanoTime();
+        stats.requestSent();
+        connection.sent(batch);
+        connection.backend.inFlightChanged();
+        if (connection.requests >= closeAfterRequests) {
+            connection.retiring = true;
+        }
+        connection.channel.writeAndFlush(request).addListener(new ChannelFutureListener() {
             @Override
             public void operationComplete(ChannelFuture future) throws Exception {
                 if (!future.isSuccess()) {
-                    // and remove from connection pool if you have one etc...
-                    ch.close();
-                    senderChannel = null;
+                    // The batches in flight are sent again once the connection is closed
                     logger.error("Sending to the rhq-metrics server failed: " + future.cause());
+                    future.channel().close();
+                }
+            }
+        });
+    }
+
+    private void acknowledged(RestConnection connection) {
+        RestBackend backend = connection.backend;
+        Batch batch;
+        boolean close;
+        synchronized (backend) {
+            batch = connection.answered(true);
+            backend.inFlightChanged();
+            if (batch == null) {
+                return;
+            }
+            backend.acknowledged(batch.size);
+            close = isRetired(connection);
+        }
+        stats.requestAcknowledged(batch.size, System.nanoTime() - batch.sentAt);
+        batch.release();
+        synchronized (lock) {
+            batch.chunk.pending--;
+            batch.chunk.queue.retire();
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("sent " + batch.size + " items to " + backend);
+        }
+        if (close) {
+            connection.channel.close();
+        }
+        forward();
+    }
+
+    /**
+     * Must be called while holding the lock of the backend of the connection.
+     * @return Whether the connection is to be closed, which the caller does once it released its locks
+     */
+    private boolean isRetired(RestConnection connection) {
+        if (connection.retiring && connection.inFlight.isEmpty()) {
+            logger.debug("Doing a periodic close after " + closeAfterRequests + " requests, "
+                + stats.getDroppedMetrics() + " items dropped so far");
+            return true;
+        }
+        return false;
+    }
 
-                } else {
-                    sendCounter++;
-                    if (sendCounter >= closeAfterRequests) {
-                        SingleMetric perfMetric = new SingleMetric(localHostName + ".ptrans.counter",
-                                System.currentTimeMillis(), (double) (numberOfMetrics + metricsToSend.size()));
-                        fifo.offer(perfMetric);
-                        logger.info("Doing a periodic close after " + closeAfterRequests + " requests (" +
-                            numberOfMetrics + ") items");
-                        numberOfMetrics = 0;
-                        ch.close();
-                        senderChannel = null;
-                        sendCounter = 0;
+    private void failed(RestConnection connection, HttpResponseStatus status) {
+        logger.warn("Send to rest-server " + connection.backend + " failed:" + status);
+        RestBackend backend = connection.backend;
+        boolean close;
+        synchronized (lock) {
+            synchronized (backend) {
+                Batch batch = connection.answered(false);
+                backend.inFlightChanged();
+                if (batch != null) {
+                    stats.requestFailed();
+                    if (isPermanent(status)) {
+                        reject(batch, status.toString());
+                    } else {
+                        failure(backend, true);
+                        retry(batch);
                     }
                 }
+                close = isRetired(connection);
             }
-        });
+        }
+        if (close) {
+            connection.channel.close();
+        }
+        forward();
+    }
+
+    private void closed(RestConnection connection) {
+        RestBackend backend = connection.backend;
+        synchronized (lock) {
+            synchronized (backend) {
+                backend.connections.remove(connection);
+                unregisterMBean(connection.getObjectName());
+                connection.lost();
+                if (!connection.inFlight.isEmpty()) {
+                    failure(backend, false);
+                }
+                for (Batch batch : connection.inFlight) {
+                    stats.requestFailed();
+                    retry(batch);
+                }
+                connection.inFlight.clear();
+                backend.connectionsChanged();
+            }
+        }
+        forward();
+    }
+
+    /**
+     * Count a failure of the backend and mark it unhealthy after too many of them in a row. Must be called
+     * while holding the lock of the handler and the one of the backend.
+     */
+    private void failure(RestBackend backend, boolean request) {
+        int failures = backend.failed(request);
+        if (failures < unhealthyAfter || !backend.isHealthy() || backends.size() == 1) {
+            return;
+        }
+        logger.warn("Marking rest-server " + backend + " unhealthy after " + failures
+            + " failures, its metrics go to the other servers");
+        backend.setHealthy(false);
+        long delay = backoff(failures);
+        backend.nextConnectTime = System.currentTimeMillis() + delay;
+        // Probe the backend after the delay, even if no new metrics arrive
+        group.schedule(new Runnable() {
+            @Override
+            public void run() {
+                forward();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+        // In flight batches are rerouted once their connection is closed
+        for (RestConnection connection : new ArrayList<>(backend.connections)) {
+            connection.channel.close();
+        }
+        Batch batch;
+        while ((batch = backend.poll()) != null) {
+            reroute(batch);
+        }
+    }
+
+    /**
+     * @return Whether the request would fail the same way again, as the server rejected its content
+     */
+    private static boolean isPermanent(HttpResponseStatus status) {
+        int code = status.code();
+        return code >= 400 && code < 500 && code != HttpResponseStatus.REQUEST_TIMEOUT.code()
+            && code != HttpResponseStatus.TOO_MANY_REQUESTS.code();
+    }
+
+    /**
+     * Drop a batch that is not sent again, its chunk is retired without it. Must be called while holding the lock
+     * of the handler.
+     */
+    private void reject(Batch batch, String reason) {
+        logger.warn("Dropping " + batch.size + " metrics after " + (batch.attempts + 1) + " attempts: " + reason);
+        stats.batchRejected(batch.size);
+        batch.release();
+        batch.chunk.pending--;
+        batch.chunk.queue.retire();
+    }
+
+    /**
+     * Must be called while holding the lock of the handler and the one of the backend of the batch.
+     */
+    private void retry(final Batch batch) {
+        if (!batch.backend.isHealthy()) {
+            reroute(batch);
+            return;
+        }
+        if (maxAttempts > 0 && batch.attempts + 1 >= maxAttempts) {
+            reject(batch, "too many failures");
+            return;
+        }
+        batch.attempts++;
+        group.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (lock) {
+                    synchronized (batch.backend) {
+                        if (batch.backend.isHealthy()) {
+                            batch.backend.enqueue(batch, true);
+                        } else {
+                            reroute(batch);
+                        }
+                    }
+                }
+                forward();
+            }
+        }, backoff(batch.attempts), TimeUnit.MILLISECONDS);
+    }
+
+    private long backoff(int attempts) {
+        return Math.min(retryMaxBackoff, retryBackoff << Math.min(attempts - 1, 30));
     }
 
     @Override
@@ -204,17 +506,17 @@ public class RestForwardingHandler extends ChannelInboundHandlerAdapter {
         ctx.flush();
     }
 
-    ChannelFuture connectRestServer(EventLoopGroup group) throws Exception{
-
-        synchronized (connectingMutex) {
-            isConnecting = true;
-        }
+    /**
+     * Open a connection to the backend, which the caller already counted as connecting.
+     */
+    private void connect(final RestBackend backend) {
+        final RestConnection connection = new RestConnection(connectionIds.incrementAndGet(), backend);
 
         Bootstrap clientBootstrap = new Bootstrap();
         clientBootstrap
             .group(group)
             .channel(NioSocketChannel.class)
-            .remoteAddress(restHost, restPort)
+            .remoteAddress(backend.host, backend.port)
             .handler(new ChannelInitializer<SocketChannel>() {
                 @Override
                 protected void initChannel(SocketChannel ch) throws Exception {
@@ -224,62 +526,153 @@ public class RestForwardingHandler extends ChannelInboundHandlerAdapter {
                     // data is sent here and the http response obtained
                     pipeline.addLast(new HttpResponseDecoder());
                     pipeline.addLast(new HttpObjectAggregator(1024));
-                    pipeline.addLast(new HttpStatusWatcher());
+                    pipeline.addLast(new HttpStatusWatcher(connection));
                 }
             })
         ;
 
-        return clientBootstrap.connect();
+        clientBootstrap.connect().addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                synchronized (lock) {
+                    synchronized (backend) {
+                        backend.connecting--;
+                        if (!future.isSuccess()) {
+                            failure(backend, false);
+                            long delay = backoff(backend.getConsecutiveFailures());
+                            backend.nextConnectTime = System.currentTimeMillis() + delay;
+                            Throwable cause = future.cause();
+                            if (cause instanceof ConnectException) {
+                                logger.warn("Sending to " + backend + " failed: " + cause.getLocalizedMessage());
+                            } else {
+                                logger.warn("Something went wrong: " + cause);
+                            }
+                            // Try again after the delay, even if no new metrics arrive
+                            group.schedule(new Runnable() {
+                                @Override
+                                public void run() {
+                                    forward();
+                                }
+                            }, delay, TimeUnit.MILLISECONDS);
+                            return;
+                        }
+                        //   the remote is up.
+                        backend.connected();
+                        if (!backend.isHealthy()) {
+                            logger.info("Rest-server " + backend + " is reachable again");
+                            backend.setHealthy(true);
+                        }
+                        connection.channel = future.channel();
+                        backend.connections.add(connection);
+                        backend.connectionsChanged();
+                        registerMBean(connection, connection.getObjectName());
+                        connection.channel.closeFuture().addListener(new ChannelFutureListener() {
+                            @Override
+                            public void operationComplete(ChannelFuture future) throws Exception {
+                                // Not run inline, the channel may be closed by a thread holding locks
+                                future.channel().eventLoop().execute(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        closed(connection);
+                                    }
+                                });
+                            }
+                        });
+                    }
+                }
+                forward();
+            }
+        });
     }
 
     private void loadRestEndpointInfoFromProperties(Properties configuration) {
 
-        restHost = configuration.getProperty("rest.host", "localhost");
-        restPort = Integer.parseInt(configuration.getProperty("rest.port", DEFAULT_REST_PORT));
+        String addresses = configuration.getProperty("rest.backends");
+        if (addresses == null || addresses.trim().isEmpty()) {
+            String restHost = configuration.getProperty("rest.host", "localhost");
+            int restPort = Integer.parseInt(configuration.getProperty("rest.port", DEFAULT_REST_PORT));
+            backends.add(new RestBackend(restHost, restPort));
+        } else {
+            for (String address : addresses.split(",")) {
+                backends.add(RestBackend.parse(address));
+            }
+        }
         restPrefix = configuration.getProperty("rest.prefix", RHQ_METRICS_PREFIX);
+        tenantPrefix = restPrefix + "/";
         restPrefix += METRICS_PREFIX;
         closeAfterRequests = Integer.parseInt(
             configuration.getProperty("rest.close-after", String.valueOf(CLOSE_AFTER_REQUESTS)));
+        maxConnections = Integer.parseInt(configuration.getProperty("rest.connections", DEFAULT_CONNECTIONS));
+        maxInFlight = Integer.parseInt(configuration.getProperty("rest.max-in-flight", DEFAULT_MAX_IN_FLIGHT));
+        retryBackoff = Long.parseLong(configuration.getProperty("rest.retry-backoff", DEFAULT_RETRY_BACKOFF));
+        retryMaxBackoff = Long.parseLong(
+            configuration.getProperty("rest.retry-max-backoff", DEFAULT_RETRY_MAX_BACKOFF));
+        unhealthyAfter = Integer.parseInt(
+            configuration.getProperty("rest.unhealthy-after", DEFAULT_UNHEALTHY_AFTER));
+        maxAttempts = Integer.parseInt(configuration.getProperty("rest.max-attempts", DEFAULT_MAX_ATTEMPTS));
+    }
 
-        spoolSize = Integer.parseInt(configuration.getProperty("spool.size", "1000"));
+    /**
+     * The metrics of a chunk that go to one backend, which were not yet acknowledged by it.
+     */
+    static class Batch {
+        final Chunk chunk;
+        final List<SingleMetric> metrics;
+        final int size;
+        RestBackend backend;
+        /** Json body, encoded when the batch is sent the first time */
+        ByteBuf payload;
+        long sentAt;
+        int attempts;
+
+        Batch(Chunk chunk, List<SingleMetric> metrics) {
+            this.chunk = chunk;
+            this.metrics = metrics;
+            this.size = metrics.size();
+        }
+
+        void release() {
+            if (payload != null) {
+                payload.release();
+                payload = null;
+            }
+        }
     }
 
     /**
-     * Adapter that checks the http response and only flushes the fifo if the
-     * return code is 200 or 204 (ok, empty doc). Otherwise we keep the data
-     * for the next try.
+     * Adapter that checks the http response and only acknowledges the sent batch if the
+     * return code is 200 or 204 (ok, empty doc). Otherwise the batch is sent again later.
      * @author Heiko W. Rupp
     */
     class HttpStatusWatcher extends ChannelInboundHandlerAdapter {
 
         private final Logger logger = LoggerFactory.getLogger(HttpStatusWatcher.class);
+        private final RestConnection connection;
+
+        HttpStatusWatcher(RestConnection connection) {
+            this.connection = connection;
+        }
 
         @Override
         public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
-            if (msg instanceof FullHttpResponse) {
-                FullHttpResponse response = (FullHttpResponse) msg;
-                HttpResponseStatus status = response.getStatus();
-
-                if (status.equals(HttpResponseStatus.NO_CONTENT) ||
-                    status.equals(HttpResponseStatus.OK)) {
-
-                    List<SingleMetric> metricsSent = ctx.channel().attr(listKey).getAndRemove();
-
-                    if (metricsSent!=null) {
-                        // only clear the ones we sent - new ones may have arrived between batching and now
-                        fifo.cleanout(metricsSent);
-                        numberOfMetrics += metricsSent.size();
-                        if (logger.isDebugEnabled()) {
-                            logger.debug("sent " + metricsSent.size() + " items");
-                        }
+            try {
+                if (msg instanceof FullHttpResponse) {
+                    FullHttpResponse response = (FullHttpResponse) msg;
+                    HttpResponseStatus status = response.getStatus();
+
+                    if (status.equals(HttpResponseStatus.NO_CONTENT) ||
+                        status.equals(HttpResponseStatus.OK)) {
+                        acknowledged(connection);
+                    }
+                    else {
+                        failed(connection, status);
                     }
                 }
                 else {
-                    logger.warn("Send to rest-server failed:" + status);
+                    logger.warn("Unexpected message from the rest-server: " + msg);
                 }
-            }
-            else {
-                System.err.println("msg" + msg);
+            } finally {
+                ReferenceCountUtil.release(msg);
             }
         }
     }
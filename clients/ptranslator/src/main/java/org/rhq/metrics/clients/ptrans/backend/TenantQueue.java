@@ -0,0 +1,95 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rhq.metrics.clients.ptrans.backend;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import org.rhq.metrics.client.common.MetricBuffer;
+
+/**
+ * The buffer of one tenant and the chunks drained from it that were not acknowledged yet. Every tenant has
+ * its own buffer, so a tenant that sends more than the backend takes only drops its own metrics.
+ *
+ * The chunks are guarded by the lock of the forwarding handler.
+ */
+public class TenantQueue implements TenantQueueMBean {
+
+    /** The tenant, null for metrics that are forwarded without a tenant */
+    final String tenant;
+    final MetricBuffer buffer;
+    /** Chunks in the order they were drained, retired from the front once acknowledged */
+    private final Deque<Chunk> outstanding = new ArrayDeque<>();
+
+    TenantQueue(String tenant, MetricBuffer buffer) {
+        this.tenant = tenant;
+        this.buffer = buffer;
+    }
+
+    String getObjectName() {
+        return "org.rhq.metrics.ptrans:type=TenantQueue,name=" + (tenant == null ? "none" : tenant);
+    }
+
+    /**
+     * Remember metrics that were drained up to the passed position.
+     * @return The chunk of the metrics, it is pending until acknowledged
+     */
+    Chunk drained(long endPosition) {
+        Chunk chunk = new Chunk(this, endPosition);
+        outstanding.add(chunk);
+        return chunk;
+    }
+
+    /**
+     * Acknowledge the chunks in the buffer that are not pending anymore, up to the first pending one.
+     */
+    void retire() {
+        while (!outstanding.isEmpty() && outstanding.peek().pending == 0) {
+            buffer.ack(outstanding.poll().endPosition);
+        }
+    }
+
+    @Override
+    public String getTenant() {
+        return tenant == null ? "" : tenant;
+    }
+
+    @Override
+    public int getBufferedMetrics() {
+        return buffer.size();
+    }
+
+    @Override
+    public long getDroppedMetrics() {
+        return buffer.getDropped();
+    }
+
+    /**
+     * Metrics drained from the buffer at once. They are retired from the buffer once they are not pending
+     * anymore, and all chunks drained before them are retired.
+     */
+    static class Chunk {
+        final TenantQueue queue;
+        final long endPosition;
+        /** Requests or writes of the chunk that did not succeed yet */
+        int pending;
+
+        Chunk(TenantQueue queue, long endPosition) {
+            this.queue = queue;
+            this.endPosition = endPosition;
+        }
+    }
+}
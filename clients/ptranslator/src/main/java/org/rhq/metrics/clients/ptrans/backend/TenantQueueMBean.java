@@ -0,0 +1,37 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rhq.metrics.clients.ptrans.backend;
+
+/**
+ * Management interface of a {@link TenantQueue}.
+ */
+public interface TenantQueueMBean {
+
+    /**
+     * @return The tenant, or an empty string for the metrics without a tenant
+     */
+    String getTenant();
+
+    /**
+     * @return Metrics of the tenant that were not acknowledged by the backend yet, including the ones in flight
+     */
+    int getBufferedMetrics();
+
+    /**
+     * @return Metrics of the tenant that were dropped because its buffer was full
+     */
+    long getDroppedMetrics();
+}
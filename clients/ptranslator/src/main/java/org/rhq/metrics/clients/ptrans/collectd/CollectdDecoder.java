@@ -0,0 +1,180 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rhq.metrics.clients.ptrans.collectd;
+
+import java.util.List;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.handler.codec.MessageToMessageDecoder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.rhq.metrics.client.common.SingleMetric;
+import org.rhq.metrics.clients.ptrans.MetricNameCache;
+import org.rhq.metrics.clients.ptrans.stats.InputStats;
+
+/**
+ * Decoder for the collectd binary network protocol. The parts of a packet are read directly from the buffer, host,
+ * plugin, type and their instances stay in effect for all following value lists of the packet. Every value becomes
+ * a metric named <code>collectd.host.plugin[.plugin_instance].type[.type_instance][.value_index]</code>, where the
+ * index is only added to lists of several values. The names are taken from a {@link MetricNameCache}, so the values
+ * of known metrics are decoded without creating any string.
+ *
+ * Notifications, signatures and encrypted parts are skipped.
+ */
+public class CollectdDecoder extends MessageToMessageDecoder<DatagramPacket> {
+
+    private static final Logger logger = LoggerFactory.getLogger(CollectdDecoder.class);
+
+    private static final int HOST = 0x0000;
+    private static final int TIME = 0x0001;
+    private static final int PLUGIN = 0x0002;
+    private static final int PLUGIN_INSTANCE = 0x0003;
+    private static final int TYPE = 0x0004;
+    private static final int TYPE_INSTANCE = 0x0005;
+    private static final int VALUES = 0x0006;
+    private static final int TIME_HIGH_RES = 0x0008;
+
+    private static final int COUNTER = 0;
+    private static final int GAUGE = 1;
+    private static final int DERIVE = 2;
+    private static final int ABSOLUTE = 3;
+
+    /** Part header: type and length */
+    private static final int HEADER_LENGTH = 4;
+    /** High resolution times are in units of 2^-30 seconds */
+    private static final double HIGH_RES_UNITS_PER_MILLI = (1 << 30) / 1000.0;
+
+    private final InputStats stats = InputStats.forName("collectd");
+    private final MetricNameCache names;
+    /** Index and length of host, plugin, plugin instance, type and type instance in the packet */
+    private final int[] parts = new int[10];
+
+    /**
+     * @param nameCacheSize Maximum number of metric names kept by the decoder
+     */
+    public CollectdDecoder(int nameCacheSize) {
+        names = new MetricNameCache("collectd.", nameCacheSize);
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, DatagramPacket packet, List<Object> out) throws Exception {
+        stats.packetReceived();
+        int decoded = out.size();
+        decodeParts(packet.content(), out);
+        stats.metricsDecoded(out.size() - decoded);
+    }
+
+    private void decodeParts(ByteBuf buf, List<Object> out) {
+        int index = buf.readerIndex();
+        int end = buf.writerIndex();
+        for (int i = 0; i < parts.length; i++) {
+            parts[i] = 0;
+        }
+        long timestamp = System.currentTimeMillis();
+
+        while (index + HEADER_LENGTH <= end) {
+            int type = buf.getUnsignedShort(index);
+            int length = buf.getUnsignedShort(index + 2);
+            if (length < HEADER_LENGTH || index + length > end) {
+                logger.debug("Skipping the rest of a packet with an invalid part length " + length);
+                stats.parseError();
+                return;
+            }
+            int contentStart = index + HEADER_LENGTH;
+            int contentLength = length - HEADER_LENGTH;
+            switch (type) {
+            case HOST:
+            case PLUGIN:
+            case PLUGIN_INSTANCE:
+            case TYPE:
+            case TYPE_INSTANCE:
+                setString(buf, type == HOST ? 0 : type - 1, contentStart, contentLength);
+                break;
+            case TIME:
+                if (contentLength == 8) {
+                    timestamp = buf.getLong(contentStart) * 1000;
+                }
+                break;
+            case TIME_HIGH_RES:
+                if (contentLength == 8) {
+                    timestamp = (long) (buf.getLong(contentStart) / HIGH_RES_UNITS_PER_MILLI);
+                }
+                break;
+            case VALUES:
+                decodeValues(buf, contentStart, contentLength, timestamp, out);
+                break;
+            default:
+                break;
+            }
+            index += length;
+        }
+    }
+
+    /**
+     * Remember where a string part is, without the terminating null byte.
+     */
+    private void setString(ByteBuf buf, int part, int start, int length) {
+        if (length > 0 && buf.getByte(start + length - 1) == 0) {
+            length--;
+        }
+        parts[2 * part] = start;
+        parts[2 * part + 1] = length;
+    }
+
+    private void decodeValues(ByteBuf buf, int start, int length, long timestamp, List<Object> out) {
+        if (length < 2) {
+            return;
+        }
+        int count = buf.getUnsignedShort(start);
+        if (2 + 9 * count > length) {
+            logger.debug("Skipping a truncated value list");
+            stats.parseError();
+            return;
+        }
+        int typesStart = start + 2;
+        int valuesStart = typesStart + count;
+        for (int i = 0; i < count; i++) {
+            long bits = buf.getLong(valuesStart + 8 * i);
+            double value;
+            switch (buf.getByte(typesStart + i)) {
+            case COUNTER:
+            case ABSOLUTE:
+                // Unsigned
+                value = bits >= 0 ? bits : (double) (bits >>> 1) * 2.0 + (bits & 1);
+                break;
+            case GAUGE:
+                // The only little endian field of the protocol
+                value = Double.longBitsToDouble(ByteBufUtil.swapLong(bits));
+                break;
+            case DERIVE:
+                value = bits;
+                break;
+            default:
+                logger.debug("Skipping a value of unknown type");
+                stats.parseError();
+                continue;
+            }
+            String name = names.get(buf, parts, 5, count > 1 ? i : -1);
+            out.add(new SingleMetric(name, timestamp, value));
+        }
+    }
+}
@@ -23,63 +23,120 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.socket.DatagramPacket;
 import io.netty.handler.codec.MessageToMessageDecoder;
 
-import org.acplt.oncrpc.XdrBufferDecodingStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import org.rhq.metrics.client.common.SingleMetric;
+import org.rhq.metrics.clients.ptrans.AsciiParser;
+import org.rhq.metrics.clients.ptrans.MetricNameCache;
+import org.rhq.metrics.clients.ptrans.stats.InputStats;
 
 /**
  * A Decoder for Ganglia metrics packets.
  * Ganglia sends each metric value in its own packet.
- * Data is XDR encoded.
+ * Data is XDR encoded, it is read directly from the packet and the metric names are taken from a
+ * {@link MetricNameCache}, so a packet of a known metric is decoded without creating any string.
+ * Metadata packets and packets that cannot be decoded are skipped.
  * @author Heiko W. Rupp
  */
 public class UdpGangliaDecoder extends MessageToMessageDecoder<DatagramPacket> {
 
+    private static final Logger logger = LoggerFactory.getLogger(UdpGangliaDecoder.class);
+
+    // Packet ids of the Ganglia 3.1 value messages
+    private static final int GMETRIC_USHORT = 129;
+    private static final int GMETRIC_SHORT = 130;
+    private static final int GMETRIC_INT = 131;
+    private static final int GMETRIC_UINT = 132;
+    private static final int GMETRIC_STRING = 133;
+    private static final int GMETRIC_FLOAT = 134;
+    private static final int GMETRIC_DOUBLE = 135;
+
+    private final InputStats stats = InputStats.forName("ganglia");
+    private final MetricNameCache names;
+    /** Index and length of host and metric name in the packet */
+    private final int[] parts = new int[4];
+
+    /**
+     * @param nameCacheSize Maximum number of metric names kept by the decoder
+     */
+    public UdpGangliaDecoder(int nameCacheSize) {
+        names = new MetricNameCache("", nameCacheSize);
+    }
+
     @Override
     protected void decode(ChannelHandlerContext ctx, DatagramPacket in, List<Object> out) throws Exception {
         ByteBuf msg = in.content();
-        if (msg.readableBytes()<5) {
-            msg.clear();
-            ctx.close();
+        int index = msg.readerIndex();
+        int end = msg.writerIndex();
+        stats.packetReceived();
+        if (end - index < 4) {
+            logger.debug("Skipping a packet of " + (end - index) + " bytes");
+            stats.parseError();
             return;
         }
+        int id = msg.getInt(index);
+        if (id < GMETRIC_USHORT || id > GMETRIC_DOUBLE) {
+            return;
+        }
+        index += 4;
 
-        short magic = msg.getUnsignedByte(3);
-        if (msg.getByte(0)==0 && msg.getByte(1)==0 && msg.getByte(2)==0&& magic ==134) {
-
-            // We have an UnsafeSuperDuperBuffer, so we need to "manually" pull the bytes from it.
-            byte[] bytes = new byte[msg.readableBytes()];
-            msg.readBytes(bytes);
-
-            XdrBufferDecodingStream stream = new XdrBufferDecodingStream(bytes);
-            stream.beginDecoding();
-            stream.xdrDecodeInt(); // Packet id , should be 134 as in above magic => type of value
-            String host = stream.xdrDecodeString();
-            String metricName = stream.xdrDecodeString();
-            stream.xdrDecodeInt();
-            String format = stream.xdrDecodeString(); // e.g. .0f for a number
-            String value;
-            if (format.endsWith("f")) {
-                value = String.valueOf(stream.xdrDecodeFloat());
-            } else {
-                value = stream.xdrDecodeString();
-            }
-            stream.endDecoding();
+        // host, metric name, spoof flag and format
+        int hostEnd = skipString(msg, index, end);
+        int nameEnd = skipString(msg, hostEnd, end);
+        int formatStart = nameEnd + 4;
+        int valueStart = skipString(msg, formatStart, end);
+        if (hostEnd < 0 || nameEnd < 0 || formatStart > end || valueStart < 0) {
+            logger.debug("Skipping a truncated packet");
+            stats.parseError();
+            return;
+        }
 
-            try {
-                String path = host + "." + metricName;
-                Double val = Double.parseDouble(value);
+        double value;
+        switch (id) {
+        case GMETRIC_USHORT:
+        case GMETRIC_UINT:
+            value = valueStart + 4 <= end ? msg.getUnsignedInt(valueStart) : Double.NaN;
+            break;
+        case GMETRIC_SHORT:
+        case GMETRIC_INT:
+            value = valueStart + 4 <= end ? msg.getInt(valueStart) : Double.NaN;
+            break;
+        case GMETRIC_FLOAT:
+            value = valueStart + 4 <= end ? msg.getFloat(valueStart) : Double.NaN;
+            break;
+        case GMETRIC_DOUBLE:
+            value = valueStart + 8 <= end ? msg.getDouble(valueStart) : Double.NaN;
+            break;
+        default:
+            value = skipString(msg, valueStart, end) < 0 ? Double.NaN
+                : AsciiParser.parseDouble(msg, valueStart + 4, valueStart + 4 + msg.getInt(valueStart));
+            break;
+        }
+        if (Double.isNaN(value)) {
+            logger.debug("Skipping a packet without a numeric value");
+            stats.parseError();
+            return;
+        }
 
-                SingleMetric metric = new SingleMetric(path,System.currentTimeMillis(),val);
-                out.add(metric);
-            }
-            catch (Exception e) {
-                e.printStackTrace();
-                msg.clear();
-                ctx.close();
+        parts[0] = index + 4;
+        parts[1] = msg.getInt(index);
+        parts[2] = hostEnd + 4;
+        parts[3] = msg.getInt(hostEnd);
+        String path = names.get(msg, parts, 2, -1);
+        out.add(new SingleMetric(path, System.currentTimeMillis(), value));
+        stats.metricsDecoded(1);
+    }
 
-            }
+    /**
+     * @return The index after the XDR string at <code>index</code>, or -1 if it does not fit into the packet
+     */
+    private static int skipString(ByteBuf msg, int index, int end) {
+        if (index < 0 || index + 4 > end) {
+            return -1;
         }
-
+        long length = msg.getUnsignedInt(index);
+        long next = index + 4 + ((length + 3) & ~3L);
+        return next <= end ? (int) next : -1;
     }
 }
@@ -16,7 +16,6 @@
 
 package org.rhq.metrics.clients.ptrans.graphite;
 
-import java.util.ArrayList;
 import java.util.List;
 
 import io.netty.buffer.ByteBuf;
@@ -28,12 +27,17 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.rhq.metrics.client.common.SingleMetric;
+import org.rhq.metrics.clients.ptrans.AsciiParser;
+import org.rhq.metrics.clients.ptrans.stats.InputStats;
 
 /**
  * Decoder for plaintext metric data sent from Graphite
  * @see <a href="http://graphite.readthedocs.org/en/latest/feeding-carbon.html">Graphite - Feeding Carbon</a>
  *
- * Format is source value path[\nsource value path]?
+ * Format is path value timestamp[\npath value timestamp]*
+ *
+ * The buffer is parsed in place, lines that can not be parsed are skipped. Each metric is passed on
+ * individually, to be batched further down the pipeline.
  *
  * @author Heiko W. Rupp
  */
@@ -41,35 +45,58 @@ public class GraphiteEventDecoder extends MessageToMessageDecoder<ByteBuf> {
 
     private static final Logger logger = LoggerFactory.getLogger(GraphiteEventDecoder.class);
 
+    private final InputStats stats = InputStats.forName("graphite");
+
     @Override
     protected void decode(ChannelHandlerContext ctx, ByteBuf msg, List<Object> out) throws Exception {
 
-        if (msg.readableBytes()<1) {
-            return; // Nothing to do
+        int end = msg.writerIndex();
+        int lineStart = msg.readerIndex();
+        int decoded = out.size();
+        while (lineStart < end) {
+            int lineEnd = msg.indexOf(lineStart, end, (byte) '\n');
+            if (lineEnd < 0) {
+                lineEnd = end;
+            }
+            SingleMetric metric = parseLine(msg, lineStart, lineEnd);
+            if (metric != null) {
+                out.add(metric);
+            }
+            lineStart = lineEnd + 1;
         }
+        stats.packetReceived();
+        stats.metricsDecoded(out.size() - decoded);
+    }
 
-        String data = msg.toString(CharsetUtil.UTF_8);
+    private SingleMetric parseLine(ByteBuf buf, int start, int end) {
+        start = AsciiParser.skipBlanks(buf, start, end);
+        end = AsciiParser.trimEnd(buf, start, end);
+        if (start == end) {
+            return null;
+        }
 
-        data = data.trim();
+        int pathEnd = AsciiParser.nextBlank(buf, start, end);
+        int valueStart = AsciiParser.skipBlanks(buf, pathEnd, end);
+        int valueEnd = AsciiParser.nextBlank(buf, valueStart, end);
+        int timestampStart = AsciiParser.skipBlanks(buf, valueEnd, end);
+        int timestampEnd = AsciiParser.nextBlank(buf, timestampStart, end);
 
-        String[] lines = data.split("\\n");
-        if (lines.length==0) {
-            return;
+        double value = Double.NaN;
+        double secondsSinceEpoch = Double.NaN;
+        if (timestampStart < end && timestampEnd == end) {
+            value = AsciiParser.parseDouble(buf, valueStart, valueEnd);
+            secondsSinceEpoch = AsciiParser.parseDouble(buf, timestampStart, timestampEnd);
         }
-        List<SingleMetric> metricList = new ArrayList<>(lines.length);
-
-        for (String line : lines) {
-            String[] items = line.split(" ");
-            if (items.length != 3) {
-                logger.debug("Unknown data format for [" + data + "], skipping");
-                return;
+        if (Double.isNaN(value) || Double.isNaN(secondsSinceEpoch)) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Unknown data format for [" + buf.toString(start, end - start, CharsetUtil.UTF_8)
+                    + "], skipping");
             }
-
-            long secondsSinceEpoch = Long.parseLong(items[2]);
-            long timestamp = secondsSinceEpoch * 1000L;
-            SingleMetric metric = new SingleMetric(items[0], timestamp, Double.parseDouble(items[1]));
-            metricList.add(metric);
+            stats.parseError();
+            return null;
         }
-        out.add(metricList);
+
+        long timestamp = (long) (secondsSinceEpoch * 1000L);
+        return new SingleMetric(AsciiParser.toString(buf, start, pathEnd), timestamp, value);
     }
 }
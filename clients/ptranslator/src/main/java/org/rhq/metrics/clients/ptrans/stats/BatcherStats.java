@@ -0,0 +1,167 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rhq.metrics.clients.ptrans.stats;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Batch size and linger statistics of all metric batchers of one input, registered as
+ * org.rhq.metrics.ptrans:type=MetricBatcher,name=&lt;input&gt; MBean.
+ */
+public class BatcherStats implements BatcherStatsMBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(BatcherStats.class);
+    private static final ConcurrentMap<String, BatcherStats> STATS = new ConcurrentHashMap<>();
+
+    /** Why a batch was forwarded */
+    public enum Trigger {
+        SIZE, BYTES, LINGER
+    }
+
+    private final String name;
+    private final Histogram batchSizes = new Histogram();
+    private final Histogram lingerMicros = new Histogram();
+    private final AtomicLong sizeFlushes = new AtomicLong();
+    private final AtomicLong byteFlushes = new AtomicLong();
+    private final AtomicLong lingerFlushes = new AtomicLong();
+
+    private BatcherStats(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @param name Name of the input, e.g. statsd
+     * @return The statistics of the input, which are registered with the platform MBean server on first use
+     */
+    public static BatcherStats forName(String name) {
+        BatcherStats stats = STATS.get(name);
+        if (stats == null) {
+            BatcherStats newStats = new BatcherStats(name);
+            stats = STATS.putIfAbsent(name, newStats);
+            if (stats == null) {
+                stats = newStats;
+                try {
+                    ManagementFactory.getPlatformMBeanServer().registerMBean(stats,
+                        new ObjectName("org.rhq.metrics.ptrans:type=MetricBatcher,name=" + ObjectName.quote(name)));
+                } catch (JMException e) {
+                    logger.warn("Could not register the batcher MBean for " + name + ": " + e.getMessage());
+                }
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * @return The statistics of all inputs that were used so far
+     */
+    static Collection<BatcherStats> all() {
+        return Collections.unmodifiableCollection(STATS.values());
+    }
+
+    public void batchForwarded(int size, long lingerNanos, Trigger trigger) {
+        batchSizes.record(size);
+        lingerMicros.record(TimeUnit.NANOSECONDS.toMicros(lingerNanos));
+        switch (trigger) {
+        case SIZE:
+            sizeFlushes.incrementAndGet();
+            break;
+        case BYTES:
+            byteFlushes.incrementAndGet();
+            break;
+        default:
+            lingerFlushes.incrementAndGet();
+        }
+    }
+
+    public Histogram getBatchSizes() {
+        return batchSizes;
+    }
+
+    public Histogram getLingerMicros() {
+        return lingerMicros;
+    }
+
+    @Override
+    public long getBatches() {
+        return batchSizes.getCount();
+    }
+
+    @Override
+    public double getMeanBatchSize() {
+        return batchSizes.getMean();
+    }
+
+    @Override
+    public long getBatchSize99thPercentile() {
+        return batchSizes.getQuantile(0.99);
+    }
+
+    @Override
+    public long getMaxBatchSize() {
+        return batchSizes.getMax();
+    }
+
+    @Override
+    public double getMeanLingerMillis() {
+        return lingerMicros.getMean() / 1000;
+    }
+
+    @Override
+    public double getLinger99thPercentileMillis() {
+        return lingerMicros.getQuantile(0.99) / 1000.0;
+    }
+
+    @Override
+    public double getMaxLingerMillis() {
+        return lingerMicros.getMax() / 1000.0;
+    }
+
+    @Override
+    public long getSizeFlushes() {
+        return sizeFlushes.get();
+    }
+
+    @Override
+    public long getByteFlushes() {
+        return byteFlushes.get();
+    }
+
+    @Override
+    public long getLingerFlushes() {
+        return lingerFlushes.get();
+    }
+
+    void report(StatsReporter reporter) {
+        String prefix = "batcher." + name + ".";
+        reporter.counter(prefix + "size-flushes", getSizeFlushes());
+        reporter.counter(prefix + "byte-flushes", getByteFlushes());
+        reporter.counter(prefix + "linger-flushes", getLingerFlushes());
+        reporter.histogram(prefix + "batch-size", batchSizes, 1);
+        reporter.histogram(prefix + "linger-ms", lingerMicros, 1000);
+    }
+}
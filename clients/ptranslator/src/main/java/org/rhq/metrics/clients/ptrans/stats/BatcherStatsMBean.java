@@ -0,0 +1,45 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rhq.metrics.clients.ptrans.stats;
+
+/**
+ * Management interface of the {@link BatcherStats}.
+ */
+public interface BatcherStatsMBean {
+
+    long getBatches();
+
+    double getMeanBatchSize();
+
+    long getBatchSize99thPercentile();
+
+    long getMaxBatchSize();
+
+    /**
+     * @return Mean time between the first metric entering a batch and the batch being forwarded.
+     */
+    double getMeanLingerMillis();
+
+    double getLinger99thPercentileMillis();
+
+    double getMaxLingerMillis();
+
+    long getSizeFlushes();
+
+    long getByteFlushes();
+
+    long getLingerFlushes();
+}
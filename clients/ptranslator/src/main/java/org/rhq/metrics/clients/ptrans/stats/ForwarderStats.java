@@ -0,0 +1,175 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rhq.metrics.clients.ptrans.stats;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.rhq.metrics.client.common.MetricBuffer;
+
+/**
+ * Statistics of the forwarding handler and its buffer, registered as org.rhq.metrics.ptrans:type=Forwarder
+ * MBean. The batch sizes and latencies are recorded per request that succeeded.
+ */
+public class ForwarderStats implements ForwarderStatsMBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(ForwarderStats.class);
+    private static final String OBJECT_NAME = "org.rhq.metrics.ptrans:type=Forwarder";
+
+    private final List<MetricBuffer> buffers;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failedRequests = new AtomicLong();
+    private final AtomicLong forwardedMetrics = new AtomicLong();
+    private final AtomicLong rejectedMetrics = new AtomicLong();
+    private final Histogram batchSizes = new Histogram();
+    private final Histogram latencyMicros = new Histogram();
+
+    /**
+     * Create the statistics and register them with the platform MBean server.
+     * @param buffers Buffers of the forwarding handler, one per tenant
+     */
+    public ForwarderStats(List<MetricBuffer> buffers) {
+        this.buffers = buffers;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            logger.warn("Could not register the forwarder MBean: " + e.getMessage());
+        }
+    }
+
+    public void requestSent() {
+        requests.incrementAndGet();
+        inFlight.incrementAndGet();
+    }
+
+    /**
+     * @param size Metrics in the request
+     * @param latencyNanos Time between sending the request and its response
+     */
+    public void requestAcknowledged(int size, long latencyNanos) {
+        inFlight.decrementAndGet();
+        forwardedMetrics.addAndGet(size);
+        batchSizes.record(size);
+        latencyMicros.record(TimeUnit.NANOSECONDS.toMicros(latencyNanos));
+    }
+
+    public void requestFailed() {
+        inFlight.decrementAndGet();
+        failedRequests.incrementAndGet();
+    }
+
+    /**
+     * @param size Metrics of a batch that is not sent again
+     */
+    public void batchRejected(int size) {
+        rejectedMetrics.addAndGet(size);
+    }
+
+    @Override
+    public int getBufferedMetrics() {
+        int size = 0;
+        for (MetricBuffer buffer : buffers) {
+            size += buffer.size();
+        }
+        return size;
+    }
+
+    @Override
+    public long getDroppedMetrics() {
+        long dropped = 0;
+        for (MetricBuffer buffer : buffers) {
+            dropped += buffer.getDropped();
+        }
+        return dropped;
+    }
+
+    @Override
+    public int getInFlightRequests() {
+        return inFlight.get();
+    }
+
+    @Override
+    public long getRequests() {
+        return requests.get();
+    }
+
+    @Override
+    public long getFailedRequests() {
+        return failedRequests.get();
+    }
+
+    @Override
+    public long getForwardedMetrics() {
+        return forwardedMetrics.get();
+    }
+
+    @Override
+    public long getRejectedMetrics() {
+        return rejectedMetrics.get();
+    }
+
+    @Override
+    public double getMeanBatchSize() {
+        return batchSizes.getMean();
+    }
+
+    @Override
+    public long getBatchSize99thPercentile() {
+        return batchSizes.getQuantile(0.99);
+    }
+
+    @Override
+    public long getMaxBatchSize() {
+        return batchSizes.getMax();
+    }
+
+    @Override
+    public double getMeanLatencyMillis() {
+        return latencyMicros.getMean() / 1000;
+    }
+
+    @Override
+    public double getLatency99thPercentileMillis() {
+        return latencyMicros.getQuantile(0.99) / 1000.0;
+    }
+
+    @Override
+    public double getMaxLatencyMillis() {
+        return latencyMicros.getMax() / 1000.0;
+    }
+
+    void report(StatsReporter reporter) {
+        reporter.gauge("forward.buffered-metrics", getBufferedMetrics());
+        reporter.counter("forward.dropped-metrics", getDroppedMetrics());
+        reporter.gauge("forward.in-flight-requests", getInFlightRequests());
+        reporter.counter("forward.requests", getRequests());
+        reporter.counter("forward.failed-requests", getFailedRequests());
+        reporter.counter("forward.metrics", getForwardedMetrics());
+        reporter.counter("forward.rejected-metrics", getRejectedMetrics());
+        reporter.histogram("forward.batch-size", batchSizes, 1);
+        reporter.histogram("forward.latency-ms", latencyMicros, 1000);
+    }
+}
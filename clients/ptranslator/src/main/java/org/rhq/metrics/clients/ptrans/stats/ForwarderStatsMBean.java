@@ -0,0 +1,69 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rhq.metrics.clients.ptrans.stats;
+
+/**
+ * Management interface of the {@link ForwarderStats}.
+ */
+public interface ForwarderStatsMBean {
+
+    /**
+     * @return Metrics in the buffer that were not acknowledged by the backend yet, including the ones in flight
+     */
+    int getBufferedMetrics();
+
+    /**
+     * @return Metrics dropped because the buffer was full
+     */
+    long getDroppedMetrics();
+
+    /**
+     * @return Requests or writes sent to the backend that were not answered yet
+     */
+    int getInFlightRequests();
+
+    long getRequests();
+
+    /**
+     * @return Requests that were answered with an error or lost with their connection, they are sent again
+     */
+    long getFailedRequests();
+
+    /**
+     * @return Metrics the backend acknowledged
+     */
+    long getForwardedMetrics();
+
+    /**
+     * @return Metrics given up on, because the backend rejected them as invalid or too many attempts failed
+     */
+    long getRejectedMetrics();
+
+    double getMeanBatchSize();
+
+    long getBatchSize99thPercentile();
+
+    long getMaxBatchSize();
+
+    /**
+     * @return Mean time between sending a request and its successful response
+     */
+    double getMeanLatencyMillis();
+
+    double getLatency99thPercentileMillis();
+
+    double getMaxLatencyMillis();
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rhq.metrics.clients.ptrans.stats;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Packet, metric and parse error counts of all decoders of one input, registered as
+ * org.rhq.metrics.ptrans:type=Input,name=&lt;input&gt; MBean. The decoders of an input run on several
+ * event loops, so the counters are striped.
+ */
+public class InputStats implements InputStatsMBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(InputStats.class);
+    private static final ConcurrentMap<String, InputStats> STATS = new ConcurrentHashMap<>();
+
+    private final String name;
+    private final LongAdder packets = new LongAdder();
+    private final LongAdder metrics = new LongAdder();
+    private final LongAdder parseErrors = new LongAdder();
+
+    private InputStats(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @param name Name of the input, e.g. statsd
+     * @return The statistics of the input, which are registered with the platform MBean server on first use
+     */
+    public static InputStats forName(String name) {
+        InputStats stats = STATS.get(name);
+        if (stats == null) {
+            InputStats newStats = new InputStats(name);
+            stats = STATS.putIfAbsent(name, newStats);
+            if (stats == null) {
+                stats = newStats;
+                try {
+                    ManagementFactory.getPlatformMBeanServer().registerMBean(stats,
+                        new ObjectName("org.rhq.metrics.ptrans:type=Input,name=" + ObjectName.quote(name)));
+                } catch (JMException e) {
+                    logger.warn("Could not register the input MBean for " + name + ": " + e.getMessage());
+                }
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * @return The statistics of all inputs that were used so far
+     */
+    static Collection<InputStats> all() {
+        return Collections.unmodifiableCollection(STATS.values());
+    }
+
+    public void packetReceived() {
+        packets.increment();
+    }
+
+    public void metricsDecoded(int count) {
+        if (count > 0) {
+            metrics.add(count);
+        }
+    }
+
+    public void parseError() {
+        parseErrors.increment();
+    }
+
+    @Override
+    public long getPackets() {
+        return packets.sum();
+    }
+
+    @Override
+    public long getMetrics() {
+        return metrics.sum();
+    }
+
+    @Override
+    public long getParseErrors() {
+        return parseErrors.sum();
+    }
+
+    void report(StatsReporter reporter) {
+        String prefix = "input." + name + ".";
+        reporter.counter(prefix + "packets", getPackets());
+        reporter.counter(prefix + "metrics", getMetrics());
+        reporter.counter(prefix + "parse-errors", getParseErrors());
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rhq.metrics.clients.ptrans.stats;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.rhq.metrics.client.common.SingleMetric;
+
+/**
+ * Turns the statistics of ptrans into metrics, so that ptrans can forward them along with the ones it receives.
+ * The names start with the configured prefix, e.g. <code>myhost.ptrans.input.statsd.packets</code>.
+ *
+ * Counters are reported with their total since the start. Histograms are reported with the count, mean and
+ * 99th percentile of the values recorded since the previous report, as
+ * <code>&lt;name&gt;.count</code>, <code>&lt;name&gt;.mean</code> and <code>&lt;name&gt;.p99</code>.
+ *
+ * Reports are meant to be created one at a time, e.g. by a scheduled task.
+ */
+public class StatsReporter {
+
+    private final String prefix;
+    private final ForwarderStats forwarderStats;
+    private final List<UdpReceiverStats> udpStats;
+    private final Map<String, Histogram.Snapshot> previous = new HashMap<>();
+    private List<SingleMetric> report;
+    private long timestamp;
+
+    /**
+     * @param prefix Prefix of the metric names, without a trailing dot
+     * @param forwarderStats Statistics of the forwarding handler
+     * @param udpStats Statistics of the UDP ports, the list is read on every report
+     */
+    public StatsReporter(String prefix, ForwarderStats forwarderStats, List<UdpReceiverStats> udpStats) {
+        this.prefix = prefix + ".";
+        this.forwarderStats = forwarderStats;
+        this.udpStats = udpStats;
+    }
+
+    /**
+     * @param timestamp Timestamp of the metrics
+     * @return The current statistics of the inputs, batchers, UDP ports and of the forwarder
+     */
+    public synchronized List<SingleMetric> report(long timestamp) {
+        this.timestamp = timestamp;
+        report = new ArrayList<>();
+        for (InputStats stats : InputStats.all()) {
+            stats.report(this);
+        }
+        for (BatcherStats stats : BatcherStats.all()) {
+            stats.report(this);
+        }
+        for (UdpReceiverStats stats : udpStats) {
+            stats.report(this);
+        }
+        forwarderStats.report(this);
+        List<SingleMetric> metrics = report;
+        report = null;
+        return metrics;
+    }
+
+    void counter(String name, long total) {
+        gauge(name, total);
+    }
+
+    void gauge(String name, double value) {
+        report.add(new SingleMetric(prefix + name, timestamp, value));
+    }
+
+    /**
+     * @param divisor Unit of the reported mean and percentile in units of the recorded values
+     */
+    void histogram(String name, Histogram histogram, int divisor) {
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        Histogram.Snapshot interval = snapshot.since(previous.put(name, snapshot));
+        gauge(name + ".count", interval.getCount());
+        gauge(name + ".mean", interval.getMean() / divisor);
+        gauge(name + ".p99", (double) interval.getQuantile(0.99) / divisor);
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rhq.metrics.clients.ptrans.stats;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Kernel side statistics of the UDP sockets bound to the port of one input, registered as
+ * org.rhq.metrics.ptrans:type=UdpReceiver,name=&lt;input&gt; MBean. The numbers are read from
+ * /proc/net/udp and /proc/net/udp6, so they are only available on Linux; elsewhere they are -1.
+ */
+public class UdpReceiverStats implements UdpReceiverStatsMBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(UdpReceiverStats.class);
+    private static final Path[] SOCKET_TABLES = { Paths.get("/proc/net/udp"), Paths.get("/proc/net/udp6") };
+    private static final Path SNMP = Paths.get("/proc/net/snmp");
+
+    private final String name;
+    private final int port;
+    private volatile int channels;
+    private long reportedDrops;
+
+    /**
+     * Create the statistics and register them with the platform MBean server.
+     * @param name Name of the input, e.g. statsd
+     * @param port Local UDP port of the input
+     */
+    public UdpReceiverStats(String name, int port) {
+        this.name = name;
+        this.port = port;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                new ObjectName("org.rhq.metrics.ptrans:type=UdpReceiver,name=" + ObjectName.quote(name)));
+        } catch (JMException e) {
+            logger.warn("Could not register the udp receiver MBean for " + name + ": " + e.getMessage());
+        }
+    }
+
+    public void setChannels(int channels) {
+        this.channels = channels;
+    }
+
+    @Override
+    public int getPort() {
+        return port;
+    }
+
+    @Override
+    public int getChannels() {
+        return channels;
+    }
+
+    @Override
+    public long getKernelDrops() {
+        return sumSocketColumn(true);
+    }
+
+    @Override
+    public long getReceiveQueueBytes() {
+        return sumSocketColumn(false);
+    }
+
+    @Override
+    public long getReceiveBufferErrors() {
+        // Two lines start with "Udp:", the first one holds the names of the second one's values
+        try {
+            List<String> lines = Files.readAllLines(SNMP, StandardCharsets.US_ASCII);
+            String[] names = null;
+            for (String line : lines) {
+                if (!line.startsWith("Udp:")) {
+                    continue;
+                }
+                String[] fields = line.trim().split("\\s+");
+                if (names == null) {
+                    names = fields;
+                } else {
+                    for (int i = 1; i < names.length && i < fields.length; i++) {
+                        if (names[i].equals("RcvbufErrors")) {
+                            return Long.parseLong(fields[i]);
+                        }
+                    }
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            logger.trace("Can not read " + SNMP, e);
+        }
+        return -1;
+    }
+
+    void report(StatsReporter reporter) {
+        String prefix = "udp." + name + ".";
+        long drops = getKernelDrops();
+        if (drops >= 0) {
+            reporter.counter(prefix + "kernel-drops", drops);
+            reporter.gauge(prefix + "receive-queue-bytes", getReceiveQueueBytes());
+        }
+    }
+
+    /**
+     * Log a warning if the kernel dropped packets for this input since the last check.
+     */
+    public synchronized void checkDrops() {
+        long drops = getKernelDrops();
+        if (drops > reportedDrops) {
+            logger.warn("The kernel dropped " + (drops - reportedDrops) + " " + name + " packets on port " + port
+                + ", consider raising udp.receive-buffer or udp.receivers");
+        }
+        if (drops >= 0) {
+            reportedDrops = drops;
+        }
+    }
+
+    private long sumSocketColumn(boolean drops) {
+        long sum = 0;
+        boolean found = false;
+        for (Path table : SOCKET_TABLES) {
+            if (!Files.isReadable(table)) {
+                continue;
+            }
+            try (BufferedReader reader = Files.newBufferedReader(table, StandardCharsets.US_ASCII)) {
+                long tableSum = sumSocketColumn(reader, port, drops);
+                if (tableSum >= 0) {
+                    sum += tableSum;
+                    found = true;
+                }
+            } catch (IOException | RuntimeException e) {
+                logger.trace("Can not read " + table, e);
+                return -1;
+            }
+        }
+        return found ? sum : -1;
+    }
+
+    /**
+     * Sum up the drops or the receive queue (rx_queue) of the sockets on a port. The lines look like
+     * <pre>
+     *  sl  local_address rem_address   st tx_queue rx_queue tr tm-&gt;when retr  uid timeout inode ref pointer drops
+     *  42: 00000000:1FBD 00000000:0000 07 00000000:00000000 00:00000000 00000000 1000       0 5823 2 ffff 0
+     * </pre>
+     * @param reader Contents of /proc/net/udp or /proc/net/udp6, starting with the header
+     * @return The sum, or -1 if no socket is bound to the port
+     */
+    static long sumSocketColumn(BufferedReader reader, int port, boolean drops) throws IOException {
+        long sum = 0;
+        boolean found = false;
+        reader.readLine(); // header
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String[] fields = line.trim().split("\\s+");
+            if (fields.length < 13) {
+                continue;
+            }
+            String local = fields[1];
+            int localPort = Integer.parseInt(local.substring(local.indexOf(':') + 1), 16);
+            if (localPort != port) {
+                continue;
+            }
+            found = true;
+            if (drops) {
+                sum += Long.parseLong(fields[fields.length - 1]);
+            } else {
+                String queues = fields[4];
+                sum += Long.parseLong(queues.substring(queues.indexOf(':') + 1), 16);
+            }
+        }
+        return found ? sum : -1;
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rhq.metrics.clients.ptrans.stats;
+
+/**
+ * Management interface of the {@link UdpReceiverStats}.
+ */
+public interface UdpReceiverStatsMBean {
+
+    int getPort();
+
+    /**
+     * @return Number of channels bound to the port, more than one with SO_REUSEPORT
+     */
+    int getChannels();
+
+    /**
+     * @return Packets the kernel dropped for the sockets on the port, usually because the receive buffer was full
+     */
+    long getKernelDrops();
+
+    /**
+     * @return Bytes waiting in the receive buffers of the sockets on the port
+     */
+    long getReceiveQueueBytes();
+
+    /**
+     * @return Receive buffer errors of all UDP sockets of the host
+     */
+    long getReceiveBufferErrors();
+}
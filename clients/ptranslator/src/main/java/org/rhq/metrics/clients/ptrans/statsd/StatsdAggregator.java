@@ -0,0 +1,298 @@
+/*
+ * Copyright 2014-2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rhq.metrics.clients.ptrans.statsd;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.DoubleAccumulator;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.rhq.metrics.client.common.MetricType;
+import org.rhq.metrics.client.common.SingleMetric;
+
+/**
+ * Aggregates statsd samples per flush interval like the statsd daemon does, so that only one value per series
+ * and interval is forwarded instead of every sample:
+ * <ul>
+ *     <li>counters: the sum of the values, each divided by its sample rate</li>
+ *     <li>gauges: the last value; a value with an explicit sign changes the previous value</li>
+ *     <li>timers: count, sum, mean, lower, upper and upper_&lt;p&gt; for the configured percentiles</li>
+ *     <li>sets: the number of distinct values</li>
+ * </ul>
+ * All methods may be called concurrently, e.g. from several receiving channels. Samples go to striped adders and
+ * atomic histograms without taking a lock. {@link #flush(long)} replaces the current interval by a new one and
+ * waits for the writers that still hold the old interval before reading it.
+ */
+public class StatsdAggregator {
+
+    private final double[] percentiles;
+    private final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<>();
+    private volatile Interval current = new Interval();
+
+    /**
+     * @param percentiles Percentiles to compute for timers, e.g. 90
+     */
+    public StatsdAggregator(double[] percentiles) {
+        this.percentiles = percentiles.clone();
+    }
+
+    public void count(String name, double value, double sampleRate) {
+        Interval interval = enter();
+        try {
+            DoubleAdder counter = interval.counters.get(name);
+            if (counter == null) {
+                counter = interval.counters.computeIfAbsent(name, k -> new DoubleAdder());
+            }
+            counter.add(value / sampleRate);
+        } finally {
+            interval.writers.decrementAndGet();
+        }
+    }
+
+    /**
+     * @param delta True if the value had an explicit sign and changes the previous value of the gauge
+     */
+    public void gauge(String name, double value, boolean delta) {
+        Gauge gauge = gauges.get(name);
+        if (gauge == null) {
+            gauge = gauges.computeIfAbsent(name, k -> new Gauge());
+        }
+        gauge.set(value, delta);
+    }
+
+    public void timing(String name, double value, double sampleRate) {
+        Interval interval = enter();
+        try {
+            Timer timer = interval.timers.get(name);
+            if (timer == null) {
+                timer = interval.timers.computeIfAbsent(name, k -> new Timer());
+            }
+            timer.record(value, sampleRate);
+        } finally {
+            interval.writers.decrementAndGet();
+        }
+    }
+
+    public void set(String name, String member) {
+        Interval interval = enter();
+        try {
+            Set<String> set = interval.sets.get(name);
+            if (set == null) {
+                set = interval.sets.computeIfAbsent(name, k -> ConcurrentHashMap.newKeySet());
+            }
+            set.add(member);
+        } finally {
+            interval.writers.decrementAndGet();
+        }
+    }
+
+    /**
+     * Close the current interval and compute its aggregates.
+     * @param timestamp Timestamp of the aggregated metrics
+     * @return The aggregated metrics, empty if nothing was recorded since the last flush
+     */
+    public List<SingleMetric> flush(long timestamp) {
+        Interval interval = current;
+        current = new Interval();
+        while (interval.writers.get() != 0) {
+            Thread.yield();
+        }
+
+        List<SingleMetric> metrics = new ArrayList<>();
+        for (Map.Entry<String, DoubleAdder> entry : interval.counters.entrySet()) {
+            metrics.add(new SingleMetric(entry.getKey(), timestamp, entry.getValue().sum(), MetricType.COUNTER));
+        }
+        for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+            Gauge gauge = entry.getValue();
+            if (gauge.updated.getAndSet(false)) {
+                metrics.add(new SingleMetric(entry.getKey(), timestamp, gauge.get(), MetricType.GAUGE));
+            }
+        }
+        for (Map.Entry<String, Timer> entry : interval.timers.entrySet()) {
+            entry.getValue().addMetrics(entry.getKey(), timestamp, percentiles, metrics);
+        }
+        for (Map.Entry<String, Set<String>> entry : interval.sets.entrySet()) {
+            metrics.add(new SingleMetric(entry.getKey(), timestamp, (double) entry.getValue().size(),
+                MetricType.GAUGE));
+        }
+        return metrics;
+    }
+
+    /**
+     * Register as writer of the current interval. The interval can not be read by a flush until the writer
+     * decremented its writers again.
+     */
+    private Interval enter() {
+        for (;;) {
+            Interval interval = current;
+            interval.writers.incrementAndGet();
+            if (interval == current) {
+                return interval;
+            }
+            // A flush replaced the interval in between, it may be reading it already
+            interval.writers.decrementAndGet();
+        }
+    }
+
+    private static class Interval {
+        final AtomicInteger writers = new AtomicInteger();
+        final ConcurrentMap<String, DoubleAdder> counters = new ConcurrentHashMap<>();
+        final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<>();
+        final ConcurrentMap<String, Set<String>> sets = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Gauges keep their value across intervals, so that relative updates apply to the last value, but are only
+     * forwarded in the intervals they were updated in.
+     */
+    private static class Gauge {
+        final AtomicLong bits = new AtomicLong(Double.doubleToRawLongBits(0.0));
+        final AtomicBoolean updated = new AtomicBoolean();
+
+        void set(double value, boolean delta) {
+            if (delta) {
+                long old;
+                do {
+                    old = bits.get();
+                } while (!bits.compareAndSet(old, Double.doubleToRawLongBits(Double.longBitsToDouble(old) + value)));
+            } else {
+                bits.set(Double.doubleToRawLongBits(value));
+            }
+            updated.set(true);
+        }
+
+        double get() {
+            return Double.longBitsToDouble(bits.get());
+        }
+    }
+
+    /**
+     * Timer samples of one interval. Percentiles come from a log-linear histogram: every power of two is split
+     * into {@link #SUB_BUCKETS} buckets, so a percentile is off by less than 1/32 of its value, and memory does
+     * not grow with the number of samples. The buckets of a power of two are allocated on its first sample.
+     */
+    static class Timer {
+        private static final int SUB_BUCKET_BITS = 5;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        /** Samples below 2^MIN_EXPONENT (about 0.004) share the lowest bucket */
+        private static final int MIN_EXPONENT = -8;
+        /** Samples from 2^MAX_EXPONENT on (about 12 days in milliseconds) share the highest bucket */
+        private static final int MAX_EXPONENT = 40;
+
+        private final LongAdder samples = new LongAdder();
+        private final DoubleAdder count = new DoubleAdder();
+        private final DoubleAdder sum = new DoubleAdder();
+        private final DoubleAccumulator lower = new DoubleAccumulator(Math::min, Double.POSITIVE_INFINITY);
+        private final DoubleAccumulator upper = new DoubleAccumulator(Math::max, Double.NEGATIVE_INFINITY);
+        private final AtomicReferenceArray<AtomicLongArray> rows =
+            new AtomicReferenceArray<>(MAX_EXPONENT - MIN_EXPONENT + 2);
+
+        void record(double value, double sampleRate) {
+            samples.increment();
+            count.add(1 / sampleRate);
+            sum.add(value);
+            lower.accumulate(value);
+            upper.accumulate(value);
+
+            int row = row(value);
+            AtomicLongArray buckets = rows.get(row);
+            if (buckets == null) {
+                rows.compareAndSet(row, null, new AtomicLongArray(SUB_BUCKETS));
+                buckets = rows.get(row);
+            }
+            buckets.incrementAndGet(subBucket(value, row));
+        }
+
+        /**
+         * @return Row 0 for samples below 2^MIN_EXPONENT, else 1 + the binary exponent of the sample
+         */
+        private static int row(double value) {
+            if (!(value >= Math.scalb(1.0, MIN_EXPONENT))) {
+                return 0;
+            }
+            return 1 + Math.min(Math.getExponent(value), MAX_EXPONENT) - MIN_EXPONENT;
+        }
+
+        private static int subBucket(double value, int row) {
+            if (row == 0 || row == MAX_EXPONENT - MIN_EXPONENT + 1) {
+                return 0;
+            }
+            // The highest bits of the mantissa divide the power of two linearly
+            return (int) (Double.doubleToRawLongBits(value) >>> (52 - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        }
+
+        private static double upperBound(int row, int subBucket) {
+            if (row == 0) {
+                return Math.scalb(1.0, MIN_EXPONENT);
+            }
+            return Math.scalb(1.0 + (subBucket + 1) / (double) SUB_BUCKETS, row - 1 + MIN_EXPONENT);
+        }
+
+        /**
+         * @param percentile Percentile between 0 and 100
+         * @return The upper bound of the bucket of the sample at the percentile, limited to the sample range
+         */
+        double getPercentile(double percentile) {
+            long total = samples.sum();
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+            long seen = 0;
+            for (int row = 0; row < rows.length(); row++) {
+                AtomicLongArray buckets = rows.get(row);
+                if (buckets == null) {
+                    continue;
+                }
+                for (int i = 0; i < SUB_BUCKETS; i++) {
+                    seen += buckets.get(i);
+                    if (seen >= rank) {
+                        return Math.max(lower.get(), Math.min(upperBound(row, i), upper.get()));
+                    }
+                }
+            }
+            return upper.get();
+        }
+
+        void addMetrics(String name, long timestamp, double[] percentiles, List<SingleMetric> out) {
+            long total = samples.sum();
+            out.add(new SingleMetric(name + ".count", timestamp, count.sum(), MetricType.COUNTER));
+            out.add(new SingleMetric(name + ".sum", timestamp, sum.sum(), MetricType.GAUGE));
+            out.add(new SingleMetric(name + ".mean", timestamp, sum.sum() / total, MetricType.GAUGE));
+            out.add(new SingleMetric(name + ".lower", timestamp, lower.get(), MetricType.GAUGE));
+            out.add(new SingleMetric(name + ".upper", timestamp, upper.get(), MetricType.GAUGE));
+            for (double percentile : percentiles) {
+                out.add(new SingleMetric(name + ".upper_" + format(percentile), timestamp,
+                    getPercentile(percentile), MetricType.GAUGE));
+            }
+        }
+
+        private static String format(double percentile) {
+            if (percentile == Math.rint(percentile)) {
+                return String.valueOf((long) percentile);
+            }
+            // statsd writes 99.9 as 99_9
+            return String.valueOf(percentile).replace('.', '_');
+        }
+    }
+}
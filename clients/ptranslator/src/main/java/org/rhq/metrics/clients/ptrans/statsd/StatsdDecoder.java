@@ -24,12 +24,17 @@ import io.netty.channel.socket.DatagramPacket;
 import io.netty.handler.codec.MessageToMessageDecoder;
 import io.netty.util.CharsetUtil;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import org.rhq.metrics.client.common.MetricType;
 import org.rhq.metrics.client.common.SingleMetric;
+import org.rhq.metrics.clients.ptrans.AsciiParser;
+import org.rhq.metrics.clients.ptrans.stats.InputStats;
 
 /**
  * Decoder for Stats packets that comes in the form of
- * name:value[|type]
+ * name:value[|type[|@sample_rate]]
  * Type is a letter:
  * <ul>
  *     <li>g: Gauge</li>
@@ -37,43 +42,142 @@ import org.rhq.metrics.client.common.SingleMetric;
  *     <li>ms: Timing</li>
  *     <li>s: Set</li>
  * </ul>
+ * A packet can hold several metrics separated by newlines. The packet is parsed in place, lines that
+ * can not be parsed are skipped.
+ * Without a {@link StatsdAggregator}, every sample is passed on as a {@link SingleMetric} and the sample
+ * rate is ignored. With one, samples are only recorded and the aggregator emits the series per flush interval.
  * @author Heiko W. Rupp
  */
 public class StatsdDecoder extends MessageToMessageDecoder<DatagramPacket> {
 
+    private static final Logger logger = LoggerFactory.getLogger(StatsdDecoder.class);
+
+    private final InputStats stats = InputStats.forName("statsd");
+    private final StatsdAggregator aggregator;
+
+    /**
+     * Create a decoder that passes every sample on as it is.
+     */
+    public StatsdDecoder() {
+        this(null);
+    }
+
+    /**
+     * Create a decoder that feeds counters, gauges, timers and sets to the aggregator instead of passing them on.
+     * @param aggregator The aggregator, possibly shared with other decoders, or null
+     */
+    public StatsdDecoder(StatsdAggregator aggregator) {
+        this.aggregator = aggregator;
+    }
+
     @Override
     protected void decode(ChannelHandlerContext ctx, DatagramPacket msg, List<Object> out) throws Exception {
         ByteBuf buf = msg.content();
+        long now = System.currentTimeMillis();
+
+        int end = buf.writerIndex();
+        int lineStart = buf.readerIndex();
+        int decoded = 0;
+        while (lineStart < end) {
+            int lineEnd = buf.indexOf(lineStart, end, (byte) '\n');
+            if (lineEnd < 0) {
+                lineEnd = end;
+            }
+            if (parseLine(buf, lineStart, lineEnd, now, out)) {
+                decoded++;
+            }
+            lineStart = lineEnd + 1;
+        }
+        stats.packetReceived();
+        stats.metricsDecoded(decoded);
+    }
 
-        if (buf.readableBytes()<3) {
-            // Not enough data - nothing to do.
-            buf.clear();
-            ctx.close();
-            return;
+    /**
+     * @return Whether the line held a sample, which was passed on or recorded by the aggregator
+     */
+    private boolean parseLine(ByteBuf buf, int start, int end, long timestamp, List<Object> out) {
+        start = AsciiParser.skipBlanks(buf, start, end);
+        end = AsciiParser.trimEnd(buf, start, end);
+        if (start == end) {
+            return false;
         }
 
-        String packet = buf.toString(CharsetUtil.UTF_8).trim();
-        if (!packet.contains(":")) {
-            buf.clear();
-            ctx.close();
-            return;
+        int colon = buf.indexOf(start, end, (byte) ':');
+        int pipe = colon < 0 ? -1 : buf.indexOf(colon + 1, end, (byte) '|');
+        int valueEnd = pipe < 0 ? end : pipe;
+        int typeEnd = pipe < 0 ? end : buf.indexOf(pipe + 1, end, (byte) '|');
+        if (typeEnd < 0) {
+            typeEnd = end;
         }
+        boolean set = pipe >= 0 && typeEnd == pipe + 2 && buf.getByte(pipe + 1) == 's';
 
+        if (colon > start && set && aggregator != null) {
+            aggregator.set(AsciiParser.toString(buf, start, colon), AsciiParser.toString(buf, colon + 1, valueEnd));
+            return true;
+        }
+        double value = colon <= start ? Double.NaN : AsciiParser.parseDouble(buf, colon + 1, valueEnd);
+        double sampleRate = typeEnd == end ? 1.0 : parseSampleRate(buf, typeEnd + 1, end);
+        if (Double.isNaN(value) || Double.isNaN(sampleRate)) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Skipping invalid statsd line [" + buf.toString(start, end - start, CharsetUtil.UTF_8)
+                    + "]");
+            }
+            stats.parseError();
+            return false;
+        }
 
-        String name = packet.substring(0,packet.indexOf(":"));
-        String remainder = packet.substring(packet.indexOf(":")+1);
-        String valString;
-        String type;
-        if (remainder.contains("|")) {
-            valString = remainder.substring(0,remainder.indexOf("|"));
-            type = remainder.substring(remainder.indexOf("|")+1);
+        MetricType type = pipe < 0 ? MetricType.SIMPLE : parseType(buf, pipe + 1, typeEnd);
+        String name = AsciiParser.toString(buf, start, colon);
+        if (aggregator == null) {
+            out.add(new SingleMetric(name, timestamp, value, type));
+            return true;
         }
-        else {
-            valString = remainder;
-            type = "";
+        switch (type) {
+        case COUNTER:
+            aggregator.count(name, value, sampleRate);
+            break;
+        case TIMING:
+            aggregator.timing(name, value, sampleRate);
+            break;
+        case GAUGE:
+            byte sign = buf.getByte(colon + 1);
+            aggregator.gauge(name, value, sign == '+' || sign == '-');
+            break;
+        default:
+            // Unknown types are passed on as they are
+            out.add(new SingleMetric(name, timestamp, value, type));
+        }
+        return true;
+    }
+
+    /**
+     * @return The sample rate of a "@0.1" field, 1 for other fields, or NaN if the rate is not between
+     * 0 (exclusive) and 1
+     */
+    private static double parseSampleRate(ByteBuf buf, int start, int end) {
+        if (start >= end || buf.getByte(start) != '@') {
+            return 1.0;
+        }
+        int fieldEnd = buf.indexOf(start, end, (byte) '|');
+        double sampleRate = AsciiParser.parseDouble(buf, start + 1, fieldEnd < 0 ? end : fieldEnd);
+        return sampleRate > 0 && sampleRate <= 1 ? sampleRate : Double.NaN;
+    }
+
+    /**
+     * Same mapping as {@link MetricType#from(String)}, without creating the string.
+     */
+    private static MetricType parseType(ByteBuf buf, int start, int end) {
+        int length = end - start;
+        if (length == 1) {
+            byte b = buf.getByte(start);
+            if (b == 'c') {
+                return MetricType.COUNTER;
+            } else if (b == 'g') {
+                return MetricType.GAUGE;
+            }
+        } else if (length == 2 && buf.getByte(start) == 'm' && buf.getByte(start + 1) == 's') {
+            return MetricType.TIMING;
         }
-        Double value = Double.valueOf(valString);
-        SingleMetric singleMetric = new SingleMetric(name, System.currentTimeMillis(),value, MetricType.from(type));
-        out.add(singleMetric);
+        return MetricType.SIMPLE;
     }
 }
@@ -28,6 +28,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.rhq.metrics.client.common.SingleMetric;
+import org.rhq.metrics.clients.ptrans.stats.InputStats;
 
 /**
  * Do the actual decoding of the syslog line.
@@ -45,7 +46,7 @@ public class DecoderUtil {
     private static final Logger logger = LoggerFactory.getLogger(DecoderUtil.class);
     private static Pattern statsDPattern = Pattern.compile("([A-Za-z\\.]+):([0-9\\.]+)\\|[a-z]");
 
-    public static void decodeTheBuffer(ByteBuf data, List<Object> out) {
+    public static void decodeTheBuffer(ByteBuf data, List<Object> out, InputStats stats) {
 
         if (data.readableBytes()<1){
             return ; // Nothing to do
@@ -105,8 +106,10 @@ public class DecoderUtil {
                     if (logger.isTraceEnabled()) {
                         logger.debug("Unknown number format for " + entry + ", skipping");
                     }
+                    stats.parseError();
                 }
             }
+            stats.metricsDecoded(metrics.size());
             out.add(metrics);
         }
     }
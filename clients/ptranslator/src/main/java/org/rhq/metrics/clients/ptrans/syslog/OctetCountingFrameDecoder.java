@@ -0,0 +1,98 @@
+/*
+ * Copyright 2014-2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rhq.metrics.clients.ptrans.syslog;
+
+import java.util.List;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Split a syslog TCP stream that uses octet counting framing as described in RFC 6587, where every
+ * message is prefixed by its length in ASCII digits and a space:
+ * <pre>
+ * 73 &lt;14&gt;Mar  1 12:00:00 host app: type=metric thread.count=7 thread.active=5
+ * </pre>
+ * Line breaks between the frames are tolerated. Frames are slices of the received buffers, they are not
+ * copied. As there is no way to find the next frame in a corrupted stream, the connection is closed then.
+ */
+public class OctetCountingFrameDecoder extends ByteToMessageDecoder {
+
+    private static final Logger logger = LoggerFactory.getLogger(OctetCountingFrameDecoder.class);
+
+    private final int maxFrameLength;
+
+    public OctetCountingFrameDecoder(int maxFrameLength) {
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+        int end = in.writerIndex();
+        int start = in.readerIndex();
+        while (start < end && isSeparator(in.getByte(start))) {
+            start++;
+        }
+        in.readerIndex(start);
+
+        int length = 0;
+        int i = start;
+        for (; i < end; i++) {
+            byte b = in.getByte(i);
+            if (b == ' ') {
+                break;
+            }
+            if (b < '0' || b > '9') {
+                fail(ctx, in, "Invalid syslog frame length");
+                return;
+            }
+            length = length * 10 + b - '0';
+            if (length > maxFrameLength) {
+                fail(ctx, in, "Syslog frame exceeds " + maxFrameLength + " bytes");
+                return;
+            }
+        }
+        if (i == end) {
+            // The length is not complete yet
+            return;
+        }
+        if (i == start) {
+            fail(ctx, in, "Missing syslog frame length");
+            return;
+        }
+
+        int frameStart = i + 1;
+        if (end - frameStart < length) {
+            return;
+        }
+        in.readerIndex(frameStart);
+        out.add(in.readSlice(length).retain());
+    }
+
+    private void fail(ChannelHandlerContext ctx, ByteBuf in, String reason) {
+        logger.warn(reason + " from " + ctx.channel().remoteAddress() + ", closing the connection");
+        in.skipBytes(in.readableBytes());
+        ctx.close();
+    }
+
+    private static boolean isSeparator(byte b) {
+        return b == '\n' || b == '\r';
+    }
+}
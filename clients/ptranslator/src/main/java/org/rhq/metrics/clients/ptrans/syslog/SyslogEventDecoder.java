@@ -22,17 +22,21 @@ import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.MessageToMessageDecoder;
 
+import org.rhq.metrics.clients.ptrans.stats.InputStats;
+
 /**
  * Decoder that splits up syslog
  * @author Heiko W. Rupp
  */
 public class SyslogEventDecoder extends MessageToMessageDecoder<ByteBuf> {
 
+    private final InputStats stats = InputStats.forName("syslog");
 
     @Override
     protected void decode(ChannelHandlerContext ctx, ByteBuf data, List<Object> out) throws Exception {
 
-        DecoderUtil.decodeTheBuffer(data, out);
+        stats.packetReceived();
+        DecoderUtil.decodeTheBuffer(data, out, stats);
     }
 
 }
@@ -23,6 +23,8 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.socket.DatagramPacket;
 import io.netty.handler.codec.MessageToMessageDecoder;
 
+import org.rhq.metrics.clients.ptrans.stats.InputStats;
+
 /**
  * Decode Udp syslog packets by extracting the
  * content of the datagram and passing it to the decoder.
@@ -30,11 +32,14 @@ import io.netty.handler.codec.MessageToMessageDecoder;
  */
 public class UdpSyslogEventDecoder extends MessageToMessageDecoder<DatagramPacket>{
 
+    private final InputStats stats = InputStats.forName("syslog");
+
     @Override
     protected void decode(ChannelHandlerContext ctx, DatagramPacket msg, List<Object> out) throws Exception {
 
         ByteBuf buf = msg.content();
 
-        DecoderUtil.decodeTheBuffer(buf, out);
+        stats.packetReceived();
+        DecoderUtil.decodeTheBuffer(buf, out, stats);
     }
 }
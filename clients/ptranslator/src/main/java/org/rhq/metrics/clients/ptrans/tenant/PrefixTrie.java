@@ -0,0 +1,119 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rhq.metrics.clients.ptrans.tenant;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Maps names to the value of their longest matching prefix. The trie is built once and not changed afterwards;
+ * every node keeps the characters of its children in a sorted array, so a lookup costs one binary search per
+ * character of the match and does not allocate.
+ */
+final class PrefixTrie {
+
+    private final Node root;
+
+    /**
+     * @param prefixes Values by prefix, an empty prefix matches every name
+     */
+    PrefixTrie(Map<String, String> prefixes) {
+        List<Map.Entry<String, String>> sorted = new ArrayList<>(new TreeMap<>(prefixes).entrySet());
+        root = build(sorted, 0, sorted.size(), 0);
+    }
+
+    boolean isEmpty() {
+        return root.value == null && root.labels.length == 0;
+    }
+
+    /**
+     * @return The value of the longest prefix of the name, or null if no prefix matches
+     */
+    String longestMatch(String name) {
+        Node node = root;
+        String match = node.value;
+        for (int i = 0; i < name.length(); i++) {
+            node = node.child(name.charAt(i));
+            if (node == null) {
+                break;
+            }
+            if (node.value != null) {
+                match = node.value;
+            }
+        }
+        return match;
+    }
+
+    /**
+     * Build the node for the sorted entries from start to end, which share their first depth characters.
+     */
+    private static Node build(List<Map.Entry<String, String>> entries, int start, int end, int depth) {
+        String value = null;
+        if (start < end && entries.get(start).getKey().length() == depth) {
+            // The sorted entries start with the one that ends here, if there is one
+            value = entries.get(start).getValue();
+            start++;
+        }
+        List<Character> labels = new ArrayList<>();
+        List<Node> children = new ArrayList<>();
+        int groupStart = start;
+        while (groupStart < end) {
+            char c = entries.get(groupStart).getKey().charAt(depth);
+            int groupEnd = groupStart + 1;
+            while (groupEnd < end && entries.get(groupEnd).getKey().charAt(depth) == c) {
+                groupEnd++;
+            }
+            labels.add(c);
+            children.add(build(entries, groupStart, groupEnd, depth + 1));
+            groupStart = groupEnd;
+        }
+        char[] labelArray = new char[labels.size()];
+        for (int i = 0; i < labelArray.length; i++) {
+            labelArray[i] = labels.get(i);
+        }
+        return new Node(labelArray, children.toArray(new Node[children.size()]), value);
+    }
+
+    private static final class Node {
+        final char[] labels;
+        final Node[] children;
+        final String value;
+
+        Node(char[] labels, Node[] children, String value) {
+            this.labels = labels;
+            this.children = children;
+            this.value = value;
+        }
+
+        Node child(char c) {
+            int low = 0;
+            int high = labels.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (labels[mid] < c) {
+                    low = mid + 1;
+                } else if (labels[mid] > c) {
+                    high = mid - 1;
+                } else {
+                    return children[mid];
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rhq.metrics.clients.ptrans.tenant;
+
+import java.util.List;
+
+import org.rhq.metrics.client.common.SingleMetric;
+
+/**
+ * A batch of metrics that were all routed to the same tenant, passed from the batchers to the forwarding
+ * handler when tenant routing is enabled.
+ */
+public class TenantBatch {
+
+    private final String tenant;
+    private final List<SingleMetric> metrics;
+
+    /**
+     * @param tenant The tenant, null for metrics that go to the rest-server without a tenant
+     * @param metrics The metrics
+     */
+    public TenantBatch(String tenant, List<SingleMetric> metrics) {
+        this.tenant = tenant;
+        this.metrics = metrics;
+    }
+
+    public String getTenant() {
+        return tenant;
+    }
+
+    public List<SingleMetric> getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public String toString() {
+        return "TenantBatch{tenant=" + tenant + ", metrics=" + metrics + "}";
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rhq.metrics.clients.ptrans.tenant;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.util.AttributeKey;
+
+/**
+ * Decides which tenant a metric belongs to. The rules are read from the configuration:
+ * <pre>
+ * tenant.&lt;id&gt;.prefixes=app1.,app2.     metric names starting with one of the prefixes
+ * tenant.&lt;id&gt;.sources=10.1.0.0/16,10.2.0.7 metrics sent from one of the addresses or networks
+ * tenant.&lt;id&gt;.inputs=statsd,graphite  metrics received by one of the inputs
+ * tenant.default=&lt;id&gt;                    all other metrics
+ * </pre>
+ * A name prefix wins over a source, which wins over an input; among prefixes and networks the longest match
+ * wins. Without a default, the remaining metrics are forwarded without a tenant, as without any rules.
+ *
+ * The router is immutable and shared by all pipelines. Prefixes are compiled into a {@link PrefixTrie}, and
+ * since the source and input are the same for all metrics of a packet, {@link #routeSource(String, InetAddress)}
+ * can be evaluated once per packet and passed to {@link #route(String, String)} for each metric.
+ */
+public class TenantRouter {
+
+    /** Name of the input a channel belongs to, e.g. statsd */
+    public static final AttributeKey<String> INPUT = AttributeKey.valueOf("ptrans.input");
+    /** Sender of the datagram that is currently decoded on a UDP channel */
+    public static final AttributeKey<InetAddress> SENDER = AttributeKey.valueOf("ptrans.sender");
+
+    private static final String PREFIX = "tenant.";
+    private static final String DEFAULT = PREFIX + "default";
+    private static final Pattern TENANT_ID = Pattern.compile("[A-Za-z0-9_.-]+");
+
+    private final Set<String> tenants = new LinkedHashSet<>();
+    private final PrefixTrie prefixes;
+    /** Sorted by prefix length, longest first */
+    private final List<SourceRule> sources = new ArrayList<>();
+    private final Map<String, String> inputs = new HashMap<>();
+    private final String defaultTenant;
+
+    /**
+     * Create a router with the tenant rules of the configuration.
+     * @throws IllegalArgumentException If a tenant id or an address is not valid
+     */
+    public TenantRouter(Properties configuration) {
+        Map<String, String> prefixMap = new HashMap<>();
+        for (String key : configuration.stringPropertyNames()) {
+            if (!key.startsWith(PREFIX) || key.equals(DEFAULT)) {
+                continue;
+            }
+            int dot = key.lastIndexOf('.');
+            String tenant = checkTenant(key.substring(PREFIX.length(), Math.max(PREFIX.length(), dot)));
+            String kind = key.substring(dot + 1);
+            for (String value : configuration.getProperty(key).split(",")) {
+                value = value.trim();
+                if (value.isEmpty()) {
+                    continue;
+                }
+                switch (kind) {
+                case "prefixes":
+                    prefixMap.put(value, tenant);
+                    break;
+                case "sources":
+                    sources.add(SourceRule.parse(value, tenant));
+                    break;
+                case "inputs":
+                    inputs.put(value, tenant);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown tenant rule " + key
+                        + ", use prefixes, sources or inputs");
+                }
+            }
+            tenants.add(tenant);
+        }
+        prefixes = new PrefixTrie(prefixMap);
+        Collections.sort(sources, (a, b) -> b.prefixLength - a.prefixLength);
+        String configuredDefault = configuration.getProperty(DEFAULT, "").trim();
+        defaultTenant = configuredDefault.isEmpty() ? null : checkTenant(configuredDefault);
+        if (defaultTenant != null) {
+            tenants.add(defaultTenant);
+        }
+    }
+
+    private static String checkTenant(String tenant) {
+        if (!TENANT_ID.matcher(tenant).matches()) {
+            throw new IllegalArgumentException("Invalid tenant id '" + tenant
+                + "', use letters, digits, '_', '-' and '.'");
+        }
+        return tenant;
+    }
+
+    /**
+     * @return Whether any rule or a default tenant is configured
+     */
+    public boolean isEnabled() {
+        return !tenants.isEmpty();
+    }
+
+    /**
+     * @return Whether there are rules for sources, which need the sender of UDP packets, see {@link #SENDER}
+     */
+    public boolean hasSourceRules() {
+        return !sources.isEmpty();
+    }
+
+    /**
+     * @return The tenants of all rules and the default tenant
+     */
+    public Set<String> getTenants() {
+        return Collections.unmodifiableSet(tenants);
+    }
+
+    /**
+     * @return The tenant of metrics that no rule matches, or null
+     */
+    public String getDefaultTenant() {
+        return defaultTenant;
+    }
+
+    /**
+     * @param input Name of the input, or null if the metrics do not come from an input
+     * @param source Sender of the metrics, or null if not known
+     * @return The tenant of metrics whose name matches no prefix
+     */
+    public String routeSource(String input, InetAddress source) {
+        if (source != null) {
+            for (int i = 0; i < sources.size(); i++) {
+                SourceRule rule = sources.get(i);
+                if (rule.matches(source)) {
+                    return rule.tenant;
+                }
+            }
+        }
+        if (input != null) {
+            String tenant = inputs.get(input);
+            if (tenant != null) {
+                return tenant;
+            }
+        }
+        return defaultTenant;
+    }
+
+    /**
+     * @param name Name of the metric
+     * @param sourceTenant Result of {@link #routeSource(String, InetAddress)} for the sender of the metric
+     * @return The tenant of the metric
+     */
+    public String route(String name, String sourceTenant) {
+        if (prefixes.isEmpty()) {
+            return sourceTenant;
+        }
+        String tenant = prefixes.longestMatch(name);
+        return tenant != null ? tenant : sourceTenant;
+    }
+
+    /**
+     * @return The sender of the datagram the channel currently decodes, or the remote address of a connection
+     */
+    public static InetAddress senderOf(Channel channel) {
+        InetAddress sender = channel.attr(SENDER).get();
+        if (sender != null) {
+            return sender;
+        }
+        SocketAddress remote = channel.remoteAddress();
+        return remote instanceof InetSocketAddress ? ((InetSocketAddress) remote).getAddress() : null;
+    }
+
+    /**
+     * @return A handler for the front of UDP pipelines, which remembers the sender of each datagram in the
+     * {@link #SENDER} attribute of the channel
+     */
+    public static ChannelInboundHandlerAdapter senderTracker() {
+        return SenderTracker.INSTANCE;
+    }
+
+    @Sharable
+    private static final class SenderTracker extends ChannelInboundHandlerAdapter {
+
+        static final SenderTracker INSTANCE = new SenderTracker();
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            if (msg instanceof DatagramPacket) {
+                ctx.channel().attr(SENDER).set(((DatagramPacket) msg).sender().getAddress());
+            }
+            ctx.fireChannelRead(msg);
+        }
+    }
+
+    /**
+     * A network in CIDR notation, or a single address.
+     */
+    private static final class SourceRule {
+        final byte[] address;
+        final int prefixLength;
+        final String tenant;
+
+        SourceRule(byte[] address, int prefixLength, String tenant) {
+            this.address = address;
+            this.prefixLength = prefixLength;
+            this.tenant = tenant;
+        }
+
+        static SourceRule parse(String value, String tenant) {
+            int slash = value.indexOf('/');
+            byte[] address;
+            try {
+                address = InetAddress.getByName(slash < 0 ? value : value.substring(0, slash)).getAddress();
+            } catch (UnknownHostException e) {
+                throw new IllegalArgumentException("Unknown source address " + value + " of tenant " + tenant, e);
+            }
+            int prefixLength = address.length * 8;
+            if (slash >= 0) {
+                prefixLength = Integer.parseInt(value.substring(slash + 1));
+                if (prefixLength < 0 || prefixLength > address.length * 8) {
+                    throw new IllegalArgumentException("Invalid prefix length in " + value + " of tenant " + tenant);
+                }
+            }
+            return new SourceRule(address, prefixLength, tenant);
+        }
+
+        boolean matches(InetAddress source) {
+            byte[] other = source.getAddress();
+            if (other.length != address.length) {
+                return false;
+            }
+            int fullBytes = prefixLength / 8;
+            for (int i = 0; i < fullBytes; i++) {
+                if (other[i] != address[i]) {
+                    return false;
+                }
+            }
+            int remainingBits = prefixLength % 8;
+            if (remainingBits == 0) {
+                return true;
+            }
+            int mask = 0xff << (8 - remainingBits);
+            return (other[fullBytes] & mask) == (address[fullBytes] & mask);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rhq.metrics.clients.ptrans;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+
+import org.junit.Test;
+
+public class AsciiParserTest {
+
+    /**
+     * Parse the text in the middle of a larger buffer, so that the bounds are honored.
+     */
+    private static double parse(String text) {
+        ByteBuf buf = Unpooled.copiedBuffer("9 " + text + " 9", CharsetUtil.US_ASCII);
+        return AsciiParser.parseDouble(buf, 2, 2 + text.length());
+    }
+
+    private static void assertParsedLikeJdk(String text) {
+        double expected = Double.parseDouble(text);
+        double actual = parse(text);
+        assert Double.doubleToLongBits(actual) == Double.doubleToLongBits(expected) :
+            "Parsed [" + text + "] as " + actual + ", but Double.parseDouble returns " + expected;
+    }
+
+    @Test
+    public void testSimpleNumbers() throws Exception {
+        for (String text : new String[] { "0", "42", "-1", "+7", "-0", "1.5", "-1.5", "0.1", ".5", "5.", "3.25",
+            "123456789", "9007199254740992", "0.000123" }) {
+            assertParsedLikeJdk(text);
+        }
+    }
+
+    @Test
+    public void testExponents() throws Exception {
+        for (String text : new String[] { "2.5e-3", "1E10", "1e+2", "-4.2e1", "1e22", "1e23", "1e-22", "1e-23",
+            "7e0", "0e5" }) {
+            assertParsedLikeJdk(text);
+        }
+    }
+
+    @Test
+    public void testValuesBeyondTheFastPathFallBack() throws Exception {
+        for (String text : new String[] {
+            // More digits than a long holds
+            "123456789012345678901234567890", "-123456789012345678901234567890.5",
+            // More digits than a double holds exactly
+            "3.141592653589793238", "9007199254740993", "0.30000000000000004",
+            // Overflow and underflow
+            "1e400", "-1e400", "1e-400", "-1e-400", "4.9e-324", "1.7976931348623157E308",
+            "1e99999999999", "0.000000000000000000000000001" }) {
+            assertParsedLikeJdk(text);
+        }
+    }
+
+    @Test
+    public void testInvalidInputIsNaN() throws Exception {
+        // Double.parseDouble accepts some of these, but none of them is a plain decimal number
+        for (String text : new String[] { "", "-", "+", ".", "e5", "1e", "1e-", "1.2.3", "1,5", "abc", "1a", " 1",
+            "1 ", "NaN", "-NaN", "Infinity", "-Infinity", "0x10", "1d", "1f", "--1" }) {
+            assert Double.isNaN(parse(text)) : "[" + text + "] should not be a number, but was " + parse(text);
+        }
+    }
+
+    @Test
+    public void testBlanks() throws Exception {
+        ByteBuf buf = Unpooled.copiedBuffer(" \tname\r value \r", CharsetUtil.US_ASCII);
+        int start = AsciiParser.skipBlanks(buf, 0, buf.writerIndex());
+        int end = AsciiParser.nextBlank(buf, start, buf.writerIndex());
+
+        assert AsciiParser.toString(buf, start, end).equals("name");
+        assert AsciiParser.trimEnd(buf, end, buf.writerIndex()) == buf.writerIndex() - 2;
+        assert AsciiParser.skipBlanks(buf, 0, 2) == 2;
+    }
+
+    @Test
+    public void testNonAsciiNamesAreDecodedAsUtf8() throws Exception {
+        String name = "température.温度";
+        ByteBuf buf = Unpooled.copiedBuffer(name, CharsetUtil.UTF_8);
+
+        assert AsciiParser.toString(buf, 0, buf.writerIndex()).equals(name);
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rhq.metrics.clients.ptrans;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.util.CharsetUtil;
+
+import org.rhq.metrics.clients.ptrans.collectd.CollectdDecoder;
+import org.rhq.metrics.clients.ptrans.ganglia.UdpGangliaDecoder;
+import org.rhq.metrics.clients.ptrans.graphite.GraphiteEventDecoder;
+import org.rhq.metrics.clients.ptrans.statsd.StatsdDecoder;
+
+/**
+ * Measures time and heap allocation per decoded metric of the statsd and Graphite plaintext decoders and of the
+ * Ganglia and collectd binary decoders.
+ * It is not run as part of the tests, start it with
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *   -Dexec.mainClass=org.rhq.metrics.clients.ptrans.DecoderBenchmark -Dexec.args="20 1000000"
+ * </pre>
+ * where the arguments are the number of metrics per packet and the number of packets per round. Ganglia sends a
+ * single metric per packet, its packets cycle through as many metrics instead.
+ * The allocation includes the decoded metrics themselves, the name string being the biggest part for the plaintext
+ * protocols. The binary ones take known names from a cache.
+ */
+public class DecoderBenchmark {
+
+    private interface Decoder {
+        void decode(ByteBuf buf, List<Object> out) throws Exception;
+    }
+
+    private static class Statsd extends StatsdDecoder implements Decoder {
+        private final InetSocketAddress address = new InetSocketAddress("127.0.0.1", 8125);
+
+        @Override
+        public void decode(ByteBuf buf, List<Object> out) throws Exception {
+            decode(null, new DatagramPacket(buf, address, address), out);
+        }
+    }
+
+    private static class Graphite extends GraphiteEventDecoder implements Decoder {
+        @Override
+        public void decode(ByteBuf buf, List<Object> out) throws Exception {
+            decode(null, buf, out);
+        }
+    }
+
+    private static class Ganglia extends UdpGangliaDecoder implements Decoder {
+        private final InetSocketAddress address = new InetSocketAddress("127.0.0.1", 8649);
+
+        Ganglia() {
+            super(4096);
+        }
+
+        @Override
+        public void decode(ByteBuf buf, List<Object> out) throws Exception {
+            decode(null, new DatagramPacket(buf, address, address), out);
+        }
+    }
+
+    private static class Collectd extends CollectdDecoder implements Decoder {
+        private final InetSocketAddress address = new InetSocketAddress("127.0.0.1", 25826);
+
+        Collectd() {
+            super(4096);
+        }
+
+        @Override
+        public void decode(ByteBuf buf, List<Object> out) throws Exception {
+            decode(null, new DatagramPacket(buf, address, address), out);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int perPacket = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int packets = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+
+        StringBuilder statsd = new StringBuilder();
+        StringBuilder graphite = new StringBuilder();
+        for (int i = 0; i < perPacket; i++) {
+            statsd.append("app.server").append(i).append(".requests:").append(i * 7 + 0.25).append("|c\n");
+            graphite.append("app.server").append(i).append(".load ").append(i * 7 + 0.25).append(" 1425000000\n");
+        }
+
+        ByteBuf[] statsdPackets = {ascii(statsd.toString())};
+        ByteBuf[] graphitePackets = {ascii(graphite.toString())};
+        ByteBuf[] gangliaPackets = new ByteBuf[perPacket];
+        for (int i = 0; i < perPacket; i++) {
+            gangliaPackets[i] = gangliaPacket("server" + i, "load_one", i * 7 + 0.25f);
+        }
+        ByteBuf[] collectdPackets = {collectdPacket("server", perPacket)};
+
+        for (int round = 0; round < 3; round++) {
+            run("statsd", new Statsd(), statsdPackets, perPacket, packets);
+            run("graphite", new Graphite(), graphitePackets, perPacket, packets);
+            run("ganglia", new Ganglia(), gangliaPackets, 1, packets);
+            run("collectd", new Collectd(), collectdPackets, perPacket, packets);
+        }
+    }
+
+    private static ByteBuf ascii(String packet) {
+        return Unpooled.directBuffer().writeBytes(packet.getBytes(CharsetUtil.US_ASCII));
+    }
+
+    private static ByteBuf gangliaPacket(String host, String name, float value) {
+        ByteBuf buf = Unpooled.directBuffer();
+        // gmetric float message: id, host, name, spoof flag, format, value
+        buf.writeInt(134);
+        writeXdrString(buf, host);
+        writeXdrString(buf, name);
+        buf.writeInt(0);
+        writeXdrString(buf, "%.2f");
+        buf.writeFloat(value);
+        return buf;
+    }
+
+    private static void writeXdrString(ByteBuf buf, String s) {
+        byte[] bytes = s.getBytes(CharsetUtil.US_ASCII);
+        buf.writeInt(bytes.length);
+        buf.writeBytes(bytes);
+        buf.writeZero(-bytes.length & 3);
+    }
+
+    private static ByteBuf collectdPacket(String host, int values) {
+        ByteBuf buf = Unpooled.directBuffer();
+        writeCollectdString(buf, 0x0000, host);
+        buf.writeShort(0x0008).writeShort(12).writeLong(1425000000L << 30);
+        writeCollectdString(buf, 0x0002, "interface");
+        writeCollectdString(buf, 0x0004, "if_octets");
+        for (int i = 0; i < values; i++) {
+            writeCollectdString(buf, 0x0003, "eth" + i);
+            // One derive value
+            buf.writeShort(0x0006).writeShort(15).writeShort(1).writeByte(2).writeLong(i * 7L);
+        }
+        return buf;
+    }
+
+    private static void writeCollectdString(ByteBuf buf, int type, String s) {
+        byte[] bytes = s.getBytes(CharsetUtil.US_ASCII);
+        buf.writeShort(type).writeShort(bytes.length + 5).writeBytes(bytes).writeByte(0);
+    }
+
+    private static void run(String name, Decoder decoder, ByteBuf[] bufs, int perPacket, int packets)
+        throws Exception {
+
+        List<Object> out = new ArrayList<>();
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+            .getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+
+        long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+        long begin = System.nanoTime();
+        long decoded = 0;
+        for (int i = 0; i < packets; i++) {
+            decoder.decode(bufs[i % bufs.length].duplicate(), out);
+            decoded += out.size();
+            out.clear();
+        }
+        long elapsed = System.nanoTime() - begin;
+        long allocated = threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+
+        long metrics = (long) perPacket * packets;
+        System.out.printf("%-9s %6.1f ns/metric, %6.1f bytes/metric (%d outputs)%n", name,
+            (double) elapsed / metrics, (double) allocated / metrics, decoded);
+    }
+}
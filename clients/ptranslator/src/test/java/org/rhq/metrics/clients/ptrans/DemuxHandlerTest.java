@@ -0,0 +1,115 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rhq.metrics.clients.ptrans;
+
+import static org.rhq.metrics.clients.ptrans.LineFrameDecoderTest.write;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import org.junit.Test;
+
+import org.rhq.metrics.client.common.SingleMetric;
+import org.rhq.metrics.clients.ptrans.graphite.GraphiteEventDecoder;
+import org.rhq.metrics.clients.ptrans.syslog.OctetCountingFrameDecoder;
+import org.rhq.metrics.clients.ptrans.tenant.TenantRouter;
+
+public class DemuxHandlerTest {
+
+    private static EmbeddedChannel channel() {
+        Properties configuration = new Properties();
+        // Batches of one metric, so that every metric reaches the end of the pipeline right away
+        return new EmbeddedChannel(new DemuxHandler(configuration, new ChannelInboundHandlerAdapter(), 1,
+            Integer.MAX_VALUE, 60000, new TenantRouter(configuration)));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<SingleMetric> readMetrics(EmbeddedChannel channel) {
+        List<SingleMetric> metrics = new ArrayList<>();
+        Object msg;
+        while ((msg = channel.readInbound()) != null) {
+            metrics.addAll((List<SingleMetric>) msg);
+        }
+        return metrics;
+    }
+
+    @Test
+    public void testGraphiteFirstLineSplitAcrossSegments() throws Exception {
+        EmbeddedChannel channel = channel();
+
+        write(channel, "servers.a.load 1.5 14200");
+        assert channel.pipeline().get(DemuxHandler.class) != null : "The protocol is not known before the line ends";
+        assert readMetrics(channel).isEmpty();
+
+        write(channel, "70400\nservers.b.");
+        assert channel.pipeline().get(DemuxHandler.class) == null;
+        assert channel.pipeline().get(GraphiteEventDecoder.class) != null;
+        List<SingleMetric> metrics = readMetrics(channel);
+        assert metrics.size() == 1 : "Expected 1 metric but got " + metrics;
+        assert metrics.get(0).equals(new SingleMetric("servers.a.load", 1420070400000L, 1.5));
+
+        write(channel, "load 2 1420070401\n");
+        metrics = readMetrics(channel);
+        assert metrics.size() == 1 : "Expected 1 metric but got " + metrics;
+        assert metrics.get(0).equals(new SingleMetric("servers.b.load", 1420070401000L, 2.0));
+    }
+
+    @Test
+    public void testOctetCountedSyslogWithoutLineBreak() throws Exception {
+        EmbeddedChannel channel = channel();
+        String frame = "<14>Mar  1 12:00:00 host app: type=metric thread.count=7 thread.active=5";
+        String data = frame.length() + " " + frame;
+
+        write(channel, data.substring(0, 1));
+        assert channel.pipeline().get(DemuxHandler.class) != null;
+        write(channel, data.substring(1, 10));
+        // The length prefix is enough, octet counted frames do not have to end with a line break
+        assert channel.pipeline().get(OctetCountingFrameDecoder.class) != null;
+        assert readMetrics(channel).isEmpty();
+
+        write(channel, data.substring(10));
+        List<SingleMetric> metrics = readMetrics(channel);
+        assert metrics.size() == 2 : "Expected 2 metrics but got " + metrics;
+        assert metrics.get(0).getSource().equals("thread.count");
+        assert metrics.get(0).getValue() == 7.0;
+        assert metrics.get(1).getSource().equals("thread.active");
+    }
+
+    @Test
+    public void testUnknownProtocolClosesTheConnection() throws Exception {
+        EmbeddedChannel channel = channel();
+
+        write(channel, "hello\r\n");
+        assert !channel.isOpen();
+        assert readMetrics(channel).isEmpty();
+    }
+
+    @Test
+    public void testOversizedFirstLineIsNotBuffered() throws Exception {
+        EmbeddedChannel channel = channel();
+        StringBuilder line = new StringBuilder();
+        while (line.length() < DemuxHandler.MAX_FRAME_LENGTH) {
+            line.append("aaaaaaaaaaaaaaaa");
+        }
+
+        write(channel, line.toString());
+        assert !channel.isOpen() : "A first line without end must not be buffered forever";
+    }
+}
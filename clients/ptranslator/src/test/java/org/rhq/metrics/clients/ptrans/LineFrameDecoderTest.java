@@ -0,0 +1,86 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rhq.metrics.clients.ptrans;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.TooLongFrameException;
+import io.netty.util.CharsetUtil;
+
+import org.junit.Test;
+
+public class LineFrameDecoderTest {
+
+    static void write(EmbeddedChannel channel, String data) {
+        channel.writeInbound(Unpooled.copiedBuffer(data, CharsetUtil.UTF_8));
+    }
+
+    /**
+     * @return The next frame as a string, or null if there is none
+     */
+    static String readFrame(EmbeddedChannel channel) {
+        ByteBuf frame = (ByteBuf) channel.readInbound();
+        if (frame == null) {
+            return null;
+        }
+        try {
+            return frame.toString(CharsetUtil.UTF_8);
+        } finally {
+            frame.release();
+        }
+    }
+
+    @Test
+    public void testLinesSplitAcrossSegments() throws Exception {
+        EmbeddedChannel channel = new EmbeddedChannel(new LineFrameDecoder(64));
+
+        write(channel, "a.b 1 14");
+        assert readFrame(channel) == null : "A partial line must not be passed on";
+        write(channel, "20070400\r\nc.d 2 1420070401\ne.f");
+        assert readFrame(channel).equals("a.b 1 1420070400");
+        assert readFrame(channel).equals("c.d 2 1420070401");
+        assert readFrame(channel) == null;
+        write(channel, " 3 1420070402\n");
+        assert readFrame(channel).equals("e.f 3 1420070402");
+    }
+
+    @Test
+    public void testUnterminatedLastLineIsPassedOnClose() throws Exception {
+        EmbeddedChannel channel = new EmbeddedChannel(new LineFrameDecoder(64));
+
+        write(channel, "a.b 1 1420070400\nc.d 2");
+        assert readFrame(channel).equals("a.b 1 1420070400");
+        assert readFrame(channel) == null;
+        channel.finish();
+        assert readFrame(channel).equals("c.d 2");
+    }
+
+    @Test
+    public void testOversizedLineIsDiscarded() throws Exception {
+        EmbeddedChannel channel = new EmbeddedChannel(new LineFrameDecoder(16));
+
+        try {
+            write(channel, "this.line.is.far.too.long");
+            assert false : "The oversized line was not detected";
+        } catch (TooLongFrameException e) {
+            // Expected, the rest of the line is skipped
+        }
+        write(channel, " 1 1420070400\nok 1 2\n");
+        assert readFrame(channel).equals("ok 1 2");
+        assert readFrame(channel) == null;
+    }
+}
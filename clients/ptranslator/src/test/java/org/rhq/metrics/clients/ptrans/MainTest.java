@@ -0,0 +1,37 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rhq.metrics.clients.ptrans;
+
+import org.junit.Test;
+
+public class MainTest {
+
+    @Test
+    public void testEpollIsUsedWhenConfiguredAndAvailable() {
+        assert Main.useEpoll("epoll", true);
+    }
+
+    @Test
+    public void testNioIsUsedWhenEpollIsNotAvailable() {
+        assert !Main.useEpoll("epoll", false);
+    }
+
+    @Test
+    public void testNioIsUsedByDefaultAndForUnknownTransports() {
+        assert !Main.useEpoll("nio", true);
+        assert !Main.useEpoll("kqueue", true);
+    }
+}
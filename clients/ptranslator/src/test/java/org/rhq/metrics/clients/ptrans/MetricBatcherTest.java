@@ -0,0 +1,256 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rhq.metrics.clients.ptrans;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.concurrent.AbstractEventExecutor;
+import io.netty.util.concurrent.DefaultPromise;
+import io.netty.util.concurrent.EventExecutorGroup;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import org.junit.Test;
+
+import org.rhq.metrics.client.common.SingleMetric;
+import org.rhq.metrics.clients.ptrans.tenant.TenantBatch;
+import org.rhq.metrics.clients.ptrans.tenant.TenantRouter;
+
+public class MetricBatcherTest {
+
+    /** Bytes of a metric named m0 in the estimate of the batcher */
+    private static final int METRIC_BYTES = 2 + 48;
+
+    private final ManualExecutor executor = new ManualExecutor();
+
+    private EmbeddedChannel channel(MetricBatcher batcher) {
+        EmbeddedChannel channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+        // The embedded event loop can not schedule the linger timers. Added in front, as the channel keeps its
+        // handler for the inbound messages last.
+        channel.pipeline().addFirst(executor, "batcher", batcher);
+        return channel;
+    }
+
+    private static SingleMetric metric(String name) {
+        return new SingleMetric(name, 1000L, 1.0);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<SingleMetric> readBatch(EmbeddedChannel channel) {
+        return (List<SingleMetric>) channel.readInbound();
+    }
+
+    private static void assertBatch(List<SingleMetric> batch, String... names) {
+        assert batch != null : "Expected a batch of " + names.length;
+        assert batch.size() == names.length : "Expected " + names.length + " metrics but got " + batch;
+        for (int i = 0; i < names.length; i++) {
+            assert batch.get(i).getSource().equals(names[i]) : "Expected " + names[i] + " but got " + batch;
+        }
+    }
+
+    @Test
+    public void testFlushOnBatchSize() throws Exception {
+        EmbeddedChannel channel = channel(new MetricBatcher("size", 3, Integer.MAX_VALUE, 1000));
+
+        channel.writeInbound(metric("m0"), metric("m1"));
+        assert channel.readInbound() == null;
+        channel.writeInbound(metric("m2"), metric("m3"));
+
+        assertBatch(readBatch(channel), "m0", "m1", "m2");
+        assert channel.readInbound() == null;
+        // The timer of the flushed batch was cancelled, the one of the next batch still runs
+        assert executor.runScheduled() == 1;
+        assertBatch(readBatch(channel), "m3");
+    }
+
+    @Test
+    public void testFlushOnBytes() throws Exception {
+        EmbeddedChannel channel = channel(new MetricBatcher("bytes", 100, 3 * METRIC_BYTES, 1000));
+
+        channel.writeInbound(metric("m0"), metric("m1"));
+        assert channel.readInbound() == null;
+        channel.writeInbound(metric("m2"));
+
+        assertBatch(readBatch(channel), "m0", "m1", "m2");
+        // A single long name fills a batch on its own
+        String longName = new String(new char[3 * METRIC_BYTES]).replace('\0', 'x');
+        channel.writeInbound(metric(longName));
+        assertBatch(readBatch(channel), longName);
+    }
+
+    @Test
+    public void testFlushAfterLinger() throws Exception {
+        EmbeddedChannel channel = channel(new MetricBatcher("linger", 100, Integer.MAX_VALUE, 250));
+
+        channel.writeInbound(metric("m0"), metric("m1"));
+        assert channel.readInbound() == null;
+        assert executor.scheduled.size() == 1 : "Expected one timer per open batch";
+        assert executor.scheduled.get(0).getDelay(TimeUnit.MILLISECONDS) == 250;
+
+        assert executor.runScheduled() == 1;
+        assertBatch(readBatch(channel), "m0", "m1");
+        // The next metric starts a new batch with a new timer
+        channel.writeInbound(metric("m2"));
+        assert executor.runScheduled() == 1;
+        assertBatch(readBatch(channel), "m2");
+    }
+
+    @Test
+    public void testBatchPerTenant() throws Exception {
+        Properties configuration = new Properties();
+        configuration.setProperty("tenant.a.prefixes", "a.");
+        configuration.setProperty("tenant.b.prefixes", "b.");
+        TenantRouter router = new TenantRouter(configuration);
+        EmbeddedChannel channel = channel(new MetricBatcher("tenants", 2, Integer.MAX_VALUE, 1000, router));
+
+        channel.writeInbound(metric("a.1"), metric("b.1"), metric("c.1"), metric("a.2"));
+
+        TenantBatch batch = (TenantBatch) channel.readInbound();
+        assert "a".equals(batch.getTenant()) : batch;
+        assertBatch(batch.getMetrics(), "a.1", "a.2");
+        assert channel.readInbound() == null;
+        assert executor.scheduled.size() == 3 : "Expected a timer per tenant";
+
+        executor.runScheduled();
+        List<String> tenants = new ArrayList<>();
+        while ((batch = (TenantBatch) channel.readInbound()) != null) {
+            tenants.add(batch.getTenant());
+            assertBatch(batch.getMetrics(), batch.getTenant() == null ? "c.1" : "b.1");
+        }
+        assert tenants.size() == 2 && tenants.contains("b") && tenants.contains(null) : tenants;
+    }
+
+    @Test
+    public void testFlushWhenChannelBecomesInactive() throws Exception {
+        EmbeddedChannel channel = channel(new MetricBatcher("inactive", 100, Integer.MAX_VALUE, 1000));
+
+        channel.writeInbound(metric("m0"), metric("m1"));
+        assert channel.readInbound() == null;
+        assert channel.finish() : "Expected the open batch to be flushed";
+
+        assertBatch(readBatch(channel), "m0", "m1");
+        assert executor.runScheduled() == 0 : "The timer of the flushed batch should be cancelled";
+    }
+
+    /**
+     * Runs tasks at once and keeps scheduled tasks until the test runs them.
+     */
+    private static final class ManualExecutor extends AbstractEventExecutor {
+
+        final List<ManualScheduledFuture> scheduled = new ArrayList<>();
+
+        /**
+         * @return The number of scheduled tasks that ran, cancelled ones are dropped
+         */
+        int runScheduled() {
+            List<ManualScheduledFuture> tasks = new ArrayList<>(scheduled);
+            scheduled.clear();
+            int ran = 0;
+            for (ManualScheduledFuture task : tasks) {
+                if (!task.isCancelled()) {
+                    task.task.run();
+                    ran++;
+                }
+            }
+            return ran;
+        }
+
+        @Override
+        public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+            ManualScheduledFuture future = new ManualScheduledFuture(this, command, unit.toMillis(delay));
+            scheduled.add(future);
+            return future;
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+
+        @Override
+        public boolean inEventLoop(Thread thread) {
+            return true;
+        }
+
+        @Override
+        public EventExecutorGroup parent() {
+            return this;
+        }
+
+        @Override
+        public boolean isShuttingDown() {
+            return false;
+        }
+
+        @Override
+        public Future<?> shutdownGracefully(long quietPeriod, long timeout, TimeUnit unit) {
+            return terminationFuture();
+        }
+
+        @Override
+        public Future<?> terminationFuture() {
+            return newSucceededFuture(null);
+        }
+
+        @Override
+        @Deprecated
+        public void shutdown() {
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return false;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return false;
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return false;
+        }
+    }
+
+    private static final class ManualScheduledFuture extends DefaultPromise<Object> implements ScheduledFuture<Object> {
+
+        final Runnable task;
+        final long delayMillis;
+
+        ManualScheduledFuture(ManualExecutor executor, Runnable task, long delayMillis) {
+            super(executor);
+            this.task = task;
+            this.delayMillis = delayMillis;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(delayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(delayMillis, other.getDelay(TimeUnit.MILLISECONDS));
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rhq.metrics.clients.ptrans;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+
+import org.junit.Test;
+
+public class MetricNameCacheTest {
+
+    private static String get(MetricNameCache cache, int variant, String... parts) {
+        ByteBuf buf = Unpooled.buffer();
+        int[] indexes = new int[2 * parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            // Some noise between the parts, like in a packet
+            buf.writeByte('#');
+            indexes[2 * i] = buf.writerIndex();
+            indexes[2 * i + 1] = buf.writeBytes(parts[i].getBytes(CharsetUtil.US_ASCII)).writerIndex()
+                - indexes[2 * i];
+        }
+        return cache.get(buf, indexes, parts.length, variant);
+    }
+
+    @Test
+    public void testNameIsBuiltFromNonEmptyParts() {
+        MetricNameCache cache = new MetricNameCache("collectd.", 16);
+
+        assert "collectd.web01.cpu.0.cpu.idle".equals(get(cache, -1, "web01", "cpu", "0", "cpu", "idle"));
+        assert "collectd.web01.load.load".equals(get(cache, -1, "web01", "load", "", "load", ""));
+        assert "load_one".equals(get(new MetricNameCache("", 16), -1, "", "load_one"));
+    }
+
+    @Test
+    public void testVariantIsAppended() {
+        MetricNameCache cache = new MetricNameCache("", 16);
+
+        assert "web01.load.0".equals(get(cache, 0, "web01", "load"));
+        assert "web01.load.2".equals(get(cache, 2, "web01", "load"));
+        assert "web01.load".equals(get(cache, -1, "web01", "load"));
+    }
+
+    @Test
+    public void testKnownNameIsReturnedFromTheCache() {
+        MetricNameCache cache = new MetricNameCache("", 16);
+
+        String name = get(cache, 1, "web01", "load");
+
+        assert get(cache, 1, "web01", "load") == name;
+        assert get(cache, 2, "web01", "load") != name;
+    }
+
+    @Test
+    public void testCollisionsReplaceTheEntry() {
+        // A single slot, every name collides
+        MetricNameCache cache = new MetricNameCache("", 1);
+
+        String first = get(cache, -1, "web01", "load");
+        assert "web02.load".equals(get(cache, -1, "web02", "load"));
+        String again = get(cache, -1, "web01", "load");
+        assert "web01.load".equals(again);
+        assert again != first : "The first name should have been replaced";
+    }
+
+    @Test
+    public void testPartBoundariesAreCompared() {
+        MetricNameCache cache = new MetricNameCache("", 1);
+
+        assert "ab.c".equals(get(cache, -1, "ab", "c"));
+        assert "a.bc".equals(get(cache, -1, "a", "bc"));
+        assert "abc".equals(get(cache, -1, "abc", ""));
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rhq.metrics.clients.ptrans.backend;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.datastax.driver.core.exceptions.InvalidQueryException;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.rhq.metrics.client.common.MetricType;
+import org.rhq.metrics.client.common.SingleMetric;
+import org.rhq.metrics.clients.ptrans.tenant.TenantRouter;
+import org.rhq.metrics.core.MetricsService;
+import org.rhq.metrics.core.NumericMetric;
+import org.rhq.metrics.impl.DelegatingMetricsService;
+
+public class CassandraForwardingHandlerTest {
+
+    private static final long TIMEOUT = 10000;
+
+    private EventLoopGroup group;
+    private StubMetricsService service;
+    private CassandraForwardingHandler handler;
+
+    @Before
+    public void setUp() throws Exception {
+        group = new NioEventLoopGroup(2);
+        service = new StubMetricsService();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (handler != null) {
+            handler.close();
+        }
+        group.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+    }
+
+    /**
+     * Start a handler that writes to the stub service.
+     * @param properties Keys and values that override the defaults of the test
+     */
+    private void start(String... properties) {
+        Properties configuration = new Properties();
+        configuration.setProperty("cassandra.tenant", "default");
+        configuration.setProperty("cassandra.retry-backoff", "10");
+        configuration.setProperty("cassandra.retry-max-backoff", "50");
+        configuration.setProperty("tenant.a.prefixes", "a.");
+        configuration.setProperty("tenant.b.prefixes", "b.");
+        for (int i = 0; i < properties.length; i += 2) {
+            configuration.setProperty(properties[i], properties[i + 1]);
+        }
+        handler = new CassandraForwardingHandler(configuration, new TenantRouter(configuration)) {
+            @Override
+            MetricsService createMetricsService() {
+                return service;
+            }
+        };
+        handler.start(group);
+    }
+
+    private static List<SingleMetric> metrics(String prefix, int count) {
+        List<SingleMetric> metrics = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            metrics.add(new SingleMetric(prefix + i, (long) i, (double) i, MetricType.GAUGE));
+        }
+        return metrics;
+    }
+
+    private Write awaitWrite(int index) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (service.writes.size() <= index) {
+            assert System.currentTimeMillis() < deadline : "Write " + index + " was not started";
+            Thread.sleep(10);
+        }
+        return service.writes.get(index);
+    }
+
+    private void awaitBufferedMetrics(long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (handler.getStats().getBufferedMetrics() != count) {
+            assert System.currentTimeMillis() < deadline : handler.getStats().getBufferedMetrics() + " metrics left";
+            Thread.sleep(10);
+        }
+    }
+
+    private void awaitWrittenMetrics(long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (handler.getWrittenMetrics() != count) {
+            assert System.currentTimeMillis() < deadline : handler.getWrittenMetrics() + " metrics written";
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testMetricsAreGroupedByNameAndTenant() throws Exception {
+        start();
+        List<SingleMetric> metrics = new ArrayList<>();
+        metrics.add(new SingleMetric("a.x", 1L, 1.0, MetricType.GAUGE));
+        metrics.add(new SingleMetric("c.y", 1L, 2.0, MetricType.GAUGE));
+        metrics.add(new SingleMetric("a.x", 2L, 3.0, MetricType.GAUGE));
+        metrics.add(new SingleMetric("a.z", 1L, 4.0, MetricType.GAUGE));
+        handler.offerAll(metrics);
+
+        List<NumericMetric> written = new ArrayList<>();
+        written.addAll(awaitWrite(0).metrics);
+        written.addAll(awaitWrite(1).metrics);
+        assert written.size() == 3 : written;
+        for (NumericMetric metric : written) {
+            String name = metric.getId().getName();
+            String tenant = name.startsWith("a.") ? "a" : "default";
+            assert tenant.equals(metric.getTenantId()) : name + " written for " + metric.getTenantId();
+            assert metric.getData().size() == (name.equals("a.x") ? 2 : 1) : name + " has " + metric.getData();
+        }
+
+        service.writes.get(0).future.set(null);
+        service.writes.get(1).future.set(null);
+        awaitBufferedMetrics(0);
+        assert handler.getWrittenMetrics() == 4;
+    }
+
+    @Test
+    public void testWritesAreLimitedToMaxInFlight() throws Exception {
+        start("cassandra.max-in-flight", "2");
+        handler.offerAll(metrics("a.", 2));
+        handler.offerAll(metrics("b.", 2));
+        handler.offerAll(metrics("c.", 2));
+        awaitWrite(1);
+        Thread.sleep(100);
+        assert service.writes.size() == 2 : service.writes.size() + " writes in flight";
+        assert handler.getPendingMetrics() == 6;
+
+        service.writes.get(0).future.set(null);
+        awaitWrite(2).future.set(null);
+        service.writes.get(1).future.set(null);
+        awaitBufferedMetrics(0);
+        assert service.writes.size() == 3;
+    }
+
+    @Test
+    public void testChunksAreRetiredInOrderOfDraining() throws Exception {
+        start();
+        handler.offerAll(metrics("c.first.", 2));
+        Write first = awaitWrite(0);
+        handler.offerAll(metrics("c.second.", 3));
+        Write second = awaitWrite(1);
+        assert second.metrics.get(0).getId().getName().startsWith("c.second.");
+
+        // The later chunk is written, but is only retired with the one before it
+        second.future.set(null);
+        awaitWrittenMetrics(3);
+        assert handler.getStats().getBufferedMetrics() == 5;
+        first.future.set(null);
+        awaitBufferedMetrics(0);
+    }
+
+    @Test
+    public void testFailedWriteIsRetriedAfterBackoff() throws Exception {
+        start("cassandra.retry-backoff", "200", "cassandra.retry-max-backoff", "200");
+        handler.offerAll(metrics("c.", 3));
+        Write first = awaitWrite(0);
+        long failedAt = System.nanoTime();
+        first.future.setException(new RuntimeException("Timed out"));
+
+        Write second = awaitWrite(1);
+        long delay = TimeUnit.NANOSECONDS.toMillis(second.startedAt - failedAt);
+        assert delay >= 190 : "Written again after " + delay + " ms";
+        assert second.metrics.size() == 3;
+        assert handler.getFailedWrites() == 1;
+        second.future.set(null);
+        awaitBufferedMetrics(0);
+        assert handler.getStats().getRejectedMetrics() == 0;
+    }
+
+    @Test
+    public void testBatchIsDroppedAfterMaxAttempts() throws Exception {
+        start("cassandra.max-attempts", "2");
+        handler.offerAll(metrics("c.", 3));
+        awaitWrite(0).future.setException(new RuntimeException("Timed out"));
+        awaitWrite(1).future.setException(new RuntimeException("Timed out"));
+        awaitBufferedMetrics(0);
+        Thread.sleep(100);
+        assert service.writes.size() == 2 : "Written " + service.writes.size() + " times";
+        assert handler.getStats().getRejectedMetrics() == 3;
+    }
+
+    @Test
+    public void testInvalidBatchIsDroppedAtOnce() throws Exception {
+        start();
+        handler.offerAll(metrics("c.", 3));
+        awaitWrite(0).future.setException(new InvalidQueryException("Invalid"));
+        awaitBufferedMetrics(0);
+        Thread.sleep(100);
+        assert service.writes.size() == 1 : "Written " + service.writes.size() + " times";
+        assert handler.getStats().getRejectedMetrics() == 3;
+    }
+
+    @Test
+    public void testServiceConnectedWhileClosingIsShutDown() throws Exception {
+        final CountDownLatch connecting = new CountDownLatch(1);
+        final CountDownLatch closed = new CountDownLatch(1);
+        handler = new CassandraForwardingHandler(new Properties(), new TenantRouter(new Properties())) {
+            @Override
+            MetricsService createMetricsService() {
+                connecting.countDown();
+                try {
+                    closed.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return service;
+            }
+        };
+        handler.start(group);
+        assert connecting.await(TIMEOUT, TimeUnit.MILLISECONDS);
+        handler.close();
+        closed.countDown();
+
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (service.shutdowns == 0) {
+            assert System.currentTimeMillis() < deadline : "The service was not shut down";
+            Thread.sleep(10);
+        }
+        handler = null;
+    }
+
+    private static class Write {
+        final List<NumericMetric> metrics;
+        final SettableFuture<Void> future = SettableFuture.create();
+        final long startedAt = System.nanoTime();
+
+        Write(List<NumericMetric> metrics) {
+            this.metrics = metrics;
+        }
+    }
+
+    /**
+     * Records the writes, which complete when the test sets their future.
+     */
+    private static class StubMetricsService extends DelegatingMetricsService {
+        final List<Write> writes = Collections.synchronizedList(new ArrayList<Write>());
+        volatile int shutdowns;
+
+        StubMetricsService() {
+            super(null);
+        }
+
+        @Override
+        public ListenableFuture<Void> addNumericData(List<NumericMetric> metrics) {
+            Write write = new Write(new ArrayList<>(metrics));
+            writes.add(write);
+            return write.future;
+        }
+
+        @Override
+        public void shutdown() {
+            shutdowns++;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rhq.metrics.clients.ptrans.backend;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import org.rhq.metrics.client.common.MetricType;
+import org.rhq.metrics.client.common.SingleMetric;
+
+public class DiskMetricSpoolTest {
+
+    private static final int SEGMENT_SIZE = 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static SingleMetric metric(int i) {
+        return new SingleMetric(String.format("m%03d", i), (long) i, (double) i, MetricType.GAUGE);
+    }
+
+    private static void offer(DiskMetricSpool spool, int from, int to) {
+        for (int i = from; i < to; i++) {
+            spool.offer(metric(i));
+        }
+    }
+
+    private static File segmentFile(File directory, long base) {
+        return new File(directory, String.format("%019d.spool", base));
+    }
+
+    @Test
+    public void testRecordsSurviveReopening() throws Exception {
+        File directory = folder.newFolder();
+        DiskMetricSpool spool = new DiskMetricSpool(directory, SEGMENT_SIZE, 16 * SEGMENT_SIZE);
+        spool.offer(new SingleMetric("no value", 1L, null));
+        offer(spool, 1, 3);
+        spool.close();
+
+        spool = new DiskMetricSpool(directory, SEGMENT_SIZE, 16 * SEGMENT_SIZE);
+        List<SingleMetric> out = new ArrayList<>();
+        spool.drainTo(out, 10);
+
+        assert out.size() == 3 : "Expected 3 metrics but got " + out.size();
+        assert out.get(0).getSource().equals("no value");
+        assert out.get(0).getValue() == null;
+        assert out.get(0).getMetricType() == null;
+        assert out.get(2).equals(metric(2)) : "Unexpected metric " + out.get(2);
+        assert out.get(2).getMetricType() == MetricType.GAUGE;
+    }
+
+    @Test
+    public void testRecoveryStopsAtTornRecord() throws Exception {
+        File directory = folder.newFolder();
+        DiskMetricSpool spool = new DiskMetricSpool(directory, SEGMENT_SIZE, 16 * SEGMENT_SIZE);
+        offer(spool, 0, 3);
+        int end = (int) spool.getSpoolBytes();
+        spool.close();
+
+        // A crash while the next record was written left a length that does not fit a record behind the
+        // valid records, followed by a record whose length was never written
+        try (RandomAccessFile raf = new RandomAccessFile(segmentFile(directory, 0), "rw")) {
+            raf.seek(end);
+            raf.writeInt(3);
+            raf.seek(end + 40);
+            raf.writeLong(42L);
+        }
+
+        spool = new DiskMetricSpool(directory, SEGMENT_SIZE, 16 * SEGMENT_SIZE);
+        assert spool.getPendingMetrics() == 3 : "Expected 3 pending metrics but got " + spool.getPendingMetrics();
+
+        // New records replace the torn one
+        offer(spool, 3, 5);
+        spool.close();
+        spool = new DiskMetricSpool(directory, SEGMENT_SIZE, 16 * SEGMENT_SIZE);
+        List<SingleMetric> out = new ArrayList<>();
+        spool.drainTo(out, 10);
+
+        assert out.size() == 5 : "Expected 5 metrics but got " + out.size();
+        for (int i = 0; i < 5; i++) {
+            assert out.get(i).equals(metric(i)) : "Unexpected metric " + out.get(i) + " at " + i;
+        }
+    }
+
+    @Test
+    public void testReplayStartsAtCheckpoint() throws Exception {
+        File directory = folder.newFolder();
+        DiskMetricSpool spool = new DiskMetricSpool(directory, SEGMENT_SIZE, 16 * SEGMENT_SIZE);
+        offer(spool, 0, 5);
+        List<SingleMetric> out = new ArrayList<>();
+        spool.ack(spool.drainTo(out, 2));
+        // Drained, but never acknowledged, so it has to be sent again
+        spool.drainTo(out, 1);
+        spool.close();
+
+        spool = new DiskMetricSpool(directory, SEGMENT_SIZE, 16 * SEGMENT_SIZE);
+        assert spool.getPendingMetrics() == 3 : "Expected 3 pending metrics but got " + spool.getPendingMetrics();
+        out.clear();
+        long end = spool.drainTo(out, 10);
+
+        assert out.size() == 3 : "Expected 3 metrics but got " + out.size();
+        assert out.get(0).equals(metric(2)) : "Replay should start at the checkpoint, but got " + out.get(0);
+        assert out.get(2).equals(metric(4));
+
+        spool.ack(end);
+        spool.close();
+        spool = new DiskMetricSpool(directory, SEGMENT_SIZE, 16 * SEGMENT_SIZE);
+        assert spool.getPendingMetrics() == 0;
+        out.clear();
+        spool.drainTo(out, 10);
+        assert out.isEmpty();
+    }
+
+    @Test
+    public void testAckDeletesCompletedSegments() throws Exception {
+        File directory = folder.newFolder();
+        DiskMetricSpool spool = new DiskMetricSpool(directory, SEGMENT_SIZE, 16 * SEGMENT_SIZE);
+        offer(spool, 0, 100);
+        assert spool.getSegmentCount() > 2 : "Expected several segments but got " + spool.getSegmentCount();
+
+        List<SingleMetric> out = new ArrayList<>();
+        spool.ack(spool.drainTo(out, 100));
+
+        assert out.size() == 100;
+        assert spool.getSegmentCount() == 1 : "Only the segment written to should be left";
+        assert directory.listFiles((dir, name) -> name.endsWith(".spool")).length == 1;
+        assert spool.getAckedMetrics() == 100;
+    }
+
+    @Test
+    public void testFullSpoolEvictsOldestSegment() throws Exception {
+        File directory = folder.newFolder();
+        DiskMetricSpool spool = new DiskMetricSpool(directory, SEGMENT_SIZE, 2 * SEGMENT_SIZE);
+        List<SingleMetric> out = new ArrayList<>();
+        offer(spool, 0, 10);
+        // The batch in flight is part of the evicted segment, its late ack must not move the checkpoint back
+        long inFlight = spool.drainTo(out, 5);
+        offer(spool, 10, 100);
+
+        long dropped = spool.getDroppedMetrics();
+        assert dropped > 0 : "Nothing was dropped";
+        assert spool.getSegmentCount() == 2 : "Expected 2 segments but got " + spool.getSegmentCount();
+        assert directory.listFiles((dir, name) -> name.endsWith(".spool")).length == 2;
+        assert !segmentFile(directory, 0).exists() : "The oldest segment was not deleted";
+        assert dropped + spool.getPendingMetrics() == 100 :
+            "Dropped " + dropped + " and pending " + spool.getPendingMetrics() + " do not add up";
+
+        spool.ack(inFlight);
+        out.clear();
+        spool.drainTo(out, 100);
+        assert out.size() == 100 - dropped : "Expected " + (100 - dropped) + " metrics but got " + out.size();
+        assert out.get(0).equals(metric((int) dropped)) : "Expected the oldest kept metric, got " + out.get(0);
+        assert out.get(out.size() - 1).equals(metric(99));
+
+        // The checkpoint skips the evicted segment
+        spool.close();
+        spool = new DiskMetricSpool(directory, SEGMENT_SIZE, 2 * SEGMENT_SIZE);
+        assert spool.getPendingMetrics() == 100 - dropped :
+            "Expected " + (100 - dropped) + " pending metrics but got " + spool.getPendingMetrics();
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rhq.metrics.clients.ptrans.backend;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class HashRingTest {
+
+    private static final int KEYS = 40000;
+
+    private static List<RestBackend> backends(int count) {
+        List<RestBackend> backends = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            backends.add(new RestBackend("metrics" + i + ".example.com", 8080));
+        }
+        return backends;
+    }
+
+    private static String key(int i) {
+        return "host" + (i % 100) + ".cpu" + (i / 100) + ".load";
+    }
+
+    @Test
+    public void testKeysAreSpreadEvenly() {
+        List<RestBackend> backends = backends(4);
+        HashRing ring = new HashRing(backends);
+        Map<RestBackend, Integer> counts = new HashMap<>();
+        for (int i = 0; i < KEYS; i++) {
+            RestBackend backend = ring.route(key(i));
+            Integer count = counts.get(backend);
+            counts.put(backend, count == null ? 1 : count + 1);
+        }
+        int expected = KEYS / backends.size();
+        for (RestBackend backend : backends) {
+            int count = counts.containsKey(backend) ? counts.get(backend) : 0;
+            assert Math.abs(count - expected) < expected / 4 : backend + " got " + count + " of " + KEYS + " keys";
+        }
+    }
+
+    @Test
+    public void testRemovingABackendOnlyMovesItsKeys() {
+        List<RestBackend> backends = backends(4);
+        HashRing ring = new HashRing(backends);
+        RestBackend removed = backends.get(2);
+        HashRing smaller = new HashRing(Arrays.asList(backends.get(0), backends.get(1), backends.get(3)));
+
+        Set<RestBackend> movedTo = new HashSet<>();
+        for (int i = 0; i < KEYS; i++) {
+            RestBackend before = ring.route(key(i));
+            RestBackend after = smaller.route(key(i));
+            if (before == removed) {
+                movedTo.add(after);
+            } else {
+                assert after == before : key(i) + " moved from " + before + " to " + after;
+            }
+        }
+        assert movedTo.size() == 3 : "The keys of the removed backend went to " + movedTo;
+    }
+
+    @Test
+    public void testUnhealthyBackendIsSkippedLikeARemovedOne() {
+        List<RestBackend> backends = backends(4);
+        HashRing ring = new HashRing(backends);
+        HashRing smaller = new HashRing(Arrays.asList(backends.get(0), backends.get(2), backends.get(3)));
+
+        backends.get(1).setHealthy(false);
+        for (int i = 0; i < KEYS; i++) {
+            assert ring.route(key(i)) == smaller.route(key(i)) : key(i);
+        }
+
+        backends.get(1).setHealthy(true);
+        int owned = 0;
+        for (int i = 0; i < KEYS; i++) {
+            if (ring.route(key(i)) == backends.get(1)) {
+                owned++;
+            }
+        }
+        assert owned > 0 : "The backend got no keys back once healthy again";
+    }
+
+    @Test
+    public void testNoHealthyBackendRoutesToTheOwner() {
+        List<RestBackend> backends = backends(3);
+        HashRing ring = new HashRing(backends);
+        List<RestBackend> owners = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            owners.add(ring.route(key(i)));
+        }
+        for (RestBackend backend : backends) {
+            backend.setHealthy(false);
+        }
+        for (int i = 0; i < 100; i++) {
+            assert ring.route(key(i)) == owners.get(i) : key(i);
+        }
+    }
+
+    @Test
+    public void testRoutingOnlyDependsOnTheAddresses() {
+        HashRing ring = new HashRing(backends(5));
+        HashRing other = new HashRing(backends(5));
+        for (int i = 0; i < KEYS; i++) {
+            assert ring.route(key(i)).getAddress().equals(other.route(key(i)).getAddress()) : key(i);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rhq.metrics.clients.ptrans.backend;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+
+import org.rhq.metrics.client.common.Batcher;
+import org.rhq.metrics.client.common.SingleMetric;
+
+/**
+ * Measures time and heap allocation per metric of building the body of a rest request, once as a string that
+ * is copied into a buffer and once with the {@link JsonPayloadEncoder}, with and without gzip.
+ * It is not run as part of the tests, start it with
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *   -Dexec.mainClass=org.rhq.metrics.clients.ptrans.backend.PayloadBenchmark -Dexec.args="10000 200"
+ * </pre>
+ * where the arguments are the number of metrics per batch and the number of batches per round.
+ */
+public class PayloadBenchmark {
+
+    private interface Encoder {
+        ByteBuf encode(List<SingleMetric> metrics);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int batchSize = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int batches = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+        List<SingleMetric> metrics = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            metrics.add(new SingleMetric("app.server" + (i % 50) + ".requests." + i, 1425000000000L + i,
+                (double) (i % 1000)));
+        }
+
+        final ByteBufAllocator allocator = PooledByteBufAllocator.DEFAULT;
+        final JsonPayloadEncoder plain = new JsonPayloadEncoder(false, Deflater.BEST_SPEED);
+        final JsonPayloadEncoder gzip = new JsonPayloadEncoder(true, Deflater.BEST_SPEED);
+
+        ByteBuf check = plain.encode(allocator, metrics);
+        if (!check.toString(CharsetUtil.UTF_8).equals(Batcher.metricListToJson(metrics))) {
+            throw new IllegalStateException("The encoder output differs from Batcher.metricListToJson");
+        }
+        check.release();
+
+        for (int round = 0; round < 3; round++) {
+            run("string", new Encoder() {
+                @Override
+                public ByteBuf encode(List<SingleMetric> metrics) {
+                    return Unpooled.copiedBuffer(Batcher.metricListToJson(metrics), CharsetUtil.UTF_8);
+                }
+            }, metrics, batches);
+            run("encoder", new Encoder() {
+                @Override
+                public ByteBuf encode(List<SingleMetric> metrics) {
+                    return plain.encode(allocator, metrics);
+                }
+            }, metrics, batches);
+            run("gzip", new Encoder() {
+                @Override
+                public ByteBuf encode(List<SingleMetric> metrics) {
+                    return gzip.encode(allocator, metrics);
+                }
+            }, metrics, batches);
+        }
+        plain.close();
+        gzip.close();
+    }
+
+    private static void run(String name, Encoder encoder, List<SingleMetric> metrics, int batches) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+            .getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+
+        long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+        long begin = System.nanoTime();
+        long payloadBytes = 0;
+        for (int i = 0; i < batches; i++) {
+            ByteBuf payload = encoder.encode(metrics);
+            payloadBytes += payload.readableBytes();
+            payload.release();
+        }
+        long elapsed = System.nanoTime() - begin;
+        long allocated = threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+
+        long count = (long) metrics.size() * batches;
+        System.out.printf("%-8s %6.1f ns/metric, %7.1f bytes/metric allocated, %5.1f payload bytes/metric%n", name,
+            (double) elapsed / count, (double) allocated / count, (double) payloadBytes / count);
+    }
+}
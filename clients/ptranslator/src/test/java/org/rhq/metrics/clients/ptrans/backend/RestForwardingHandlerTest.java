@@ -0,0 +1,253 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rhq.metrics.clients.ptrans.backend;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.rhq.metrics.client.common.MetricType;
+import org.rhq.metrics.client.common.SingleMetric;
+import org.rhq.metrics.clients.ptrans.tenant.TenantRouter;
+
+public class RestForwardingHandlerTest {
+
+    private static final long TIMEOUT = 10000;
+
+    private StubServer first;
+    private StubServer second;
+    private EventLoopGroup group;
+    private RestForwardingHandler handler;
+
+    @Before
+    public void setUp() throws Exception {
+        first = new StubServer();
+        second = new StubServer();
+        group = new NioEventLoopGroup(2);
+    }
+
+    /**
+     * Start a handler for both stub servers.
+     * @param properties Keys and values that override the defaults of the test
+     */
+    private void start(String... properties) {
+        Properties configuration = new Properties();
+        configuration.setProperty("rest.backends", first.address() + "," + second.address());
+        configuration.setProperty("rest.connections", "1");
+        configuration.setProperty("rest.max-in-flight", "1");
+        configuration.setProperty("rest.retry-backoff", "10");
+        configuration.setProperty("rest.retry-max-backoff", "50");
+        configuration.setProperty("rest.unhealthy-after", "2");
+        for (int i = 0; i < properties.length; i += 2) {
+            configuration.setProperty(properties[i], properties[i + 1]);
+        }
+        handler = new RestForwardingHandler(configuration, new TenantRouter(new Properties()));
+        handler.start(group);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        group.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+        first.server.stop(0);
+        second.server.stop(0);
+    }
+
+    private static List<SingleMetric> metrics(String prefix, int count) {
+        List<SingleMetric> metrics = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            metrics.add(new SingleMetric(prefix + i, (long) i, (double) i, MetricType.GAUGE));
+        }
+        return metrics;
+    }
+
+    private void awaitDelivery(List<SingleMetric> metrics) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        for (SingleMetric metric : metrics) {
+            while (!first.received.contains(metric.getSource()) && !second.received.contains(metric.getSource())) {
+                assert System.currentTimeMillis() < deadline : metric.getSource() + " was not delivered";
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    @Test
+    public void testMetricsAreSpreadOverTheBackends() throws Exception {
+        start();
+        List<SingleMetric> metrics = metrics("spread.", 200);
+        handler.offerAll(metrics);
+        awaitDelivery(metrics);
+
+        assert !first.received.isEmpty() && !second.received.isEmpty();
+        for (SingleMetric metric : metrics) {
+            boolean onFirst = first.received.contains(metric.getSource());
+            assert onFirst != second.received.contains(metric.getSource()) : metric.getSource() + " sent twice";
+        }
+        assert handler.backends.get(0).getReroutedMetrics() == 0;
+    }
+
+    @Test
+    public void testFailingBackendIsReroutedAndRecovers() throws Exception {
+        start();
+        RestBackend failing = handler.backends.get(0);
+        first.status = 500;
+        List<SingleMetric> metrics = metrics("failover.", 200);
+        handler.offerAll(metrics);
+
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        for (SingleMetric metric : metrics) {
+            while (!second.received.contains(metric.getSource())) {
+                assert System.currentTimeMillis() < deadline : metric.getSource() + " was not rerouted";
+                Thread.sleep(10);
+            }
+        }
+        assert first.requests > 1 : "The failing backend got " + first.requests + " requests";
+        assert failing.getReroutedMetrics() > 0;
+        assert failing.getSentMetrics() == 0;
+
+        // Once it answers again it is probed, marked healthy and gets its own metrics again
+        first.status = 204;
+        List<SingleMetric> later = metrics("recovered.", 200);
+        handler.offerAll(later);
+        awaitDelivery(later);
+        while (failing.getSentMetrics() == 0 || !failing.isHealthy()) {
+            assert System.currentTimeMillis() < deadline + TIMEOUT : "The backend did not recover";
+            handler.offerAll(metrics("probe.", 10));
+            Thread.sleep(10);
+        }
+        assert !first.received.isEmpty();
+    }
+
+    private void awaitEmptyBuffer() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (handler.getStats().getBufferedMetrics() > 0) {
+            assert System.currentTimeMillis() < deadline : handler.getStats().getBufferedMetrics() + " metrics left";
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testInvalidBatchIsDroppedAndDoesNotHoldBackLaterOnes() throws Exception {
+        start("rest.backends", first.address());
+        first.status = 400;
+        handler.offerAll(metrics("invalid.", 10));
+        awaitEmptyBuffer();
+
+        // Rejected once, not sent again
+        assert first.requests == 1 : "The invalid batch was sent " + first.requests + " times";
+        assert handler.getStats().getRejectedMetrics() == 10;
+        first.status = 204;
+        List<SingleMetric> later = metrics("valid.", 10);
+        handler.offerAll(later);
+        awaitDelivery(later);
+        awaitEmptyBuffer();
+    }
+
+    @Test
+    public void testBatchIsDroppedAfterMaxAttempts() throws Exception {
+        start("rest.backends", first.address(), "rest.max-attempts", "3");
+        first.status = 503;
+        handler.offerAll(metrics("unavailable.", 10));
+        awaitEmptyBuffer();
+
+        assert first.requests == 3 : "The batch was sent " + first.requests + " times";
+        assert handler.getStats().getRejectedMetrics() == 10;
+        assert handler.getStats().getFailedRequests() == 3;
+    }
+
+    @Test
+    public void testTooManyRequestsIsRetried() throws Exception {
+        start("rest.backends", first.address());
+        first.status = 429;
+        List<SingleMetric> metrics = metrics("throttled.", 10);
+        handler.offerAll(metrics);
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (first.requests < 2) {
+            assert System.currentTimeMillis() < deadline : "The batch was not sent again";
+            Thread.sleep(10);
+        }
+        first.status = 204;
+        awaitDelivery(metrics);
+        awaitEmptyBuffer();
+        assert handler.getStats().getRejectedMetrics() == 0;
+    }
+
+    /**
+     * Rest server that records the metric ids it accepted and answers with a configurable status.
+     */
+    private static class StubServer implements HttpHandler {
+
+        final HttpServer server;
+        final Set<String> received = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        volatile int status = 204;
+        volatile int requests;
+
+        StubServer() throws IOException {
+            server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+            server.createContext("/", this);
+            server.start();
+        }
+
+        String address() {
+            return "localhost:" + server.getAddress().getPort();
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            String body = read(exchange.getRequestBody());
+            int answer = status;
+            requests++;
+            if (answer == 204) {
+                for (String part : body.split("\\{\"id\":\"")) {
+                    int end = part.indexOf('"');
+                    if (end > 0) {
+                        received.add(part.substring(0, end));
+                    }
+                }
+            }
+            exchange.sendResponseHeaders(answer, -1);
+            exchange.close();
+        }
+
+        private static String read(InputStream in) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rhq.metrics.clients.ptrans.collectd;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.socket.DatagramPacket;
+
+import org.junit.Test;
+
+import org.rhq.metrics.client.common.SingleMetric;
+import org.rhq.metrics.clients.ptrans.stats.InputStats;
+
+public class CollectdDecoderTest {
+
+    private static final InetSocketAddress RECIPIENT = new InetSocketAddress("localhost", 25826);
+    /** 2015-01-01T00:00:00Z */
+    private static final long TIME = 1420070400000L;
+
+    /**
+     * Host web01, TIME, plugin cpu, plugin instance 0, type cpu, type instance idle with derive 123456,
+     * then type instance user with derive -5.
+     */
+    private static final String CPU = "0000000a 77656230 31000001 000c0000 000054a4 8e000002 00086370 75000003 " +
+        "00063000 00040008 63707500 00050009 69646c65 00000600 0f000102 00000000 0001e240 00050009 75736572 " +
+        "00000600 0f000102 ffffffff fffffffb";
+    /**
+     * Host web01, TIME_HIGH_RES half a second after {@link #TIME}, plugin load, type load, three gauges
+     * 0.5, 1.25 and 2.0.
+     */
+    private static final String LOAD = "0000000a 77656230 31000008 000c1529 23802000 00000002 00096c6f 61640000 " +
+        "0400096c 6f616400 00060021 00030101 01000000 000000e0 3f000000 000000f4 3f000000 00000000 40";
+    /**
+     * Host web01, TIME, plugin interface, plugin instance eth0, type if_octets with the counters 2^64 - 1 and 42,
+     * then type requests, an empty plugin instance and the absolute value 2^63.
+     */
+    private static final String COUNTERS = "0000000a 77656230 31000001 000c0000 000054a4 8e000002 000e696e " +
+        "74657266 61636500 00030009 65746830 00000400 0e69665f 6f637465 74730000 06001800 020000ff ffffffff " +
+        "ffffff00 00000000 00002a00 04000d72 65717565 73747300 00030005 00000600 0f000103 80000000 00000000";
+
+    private static byte[] bytes(String... hex) {
+        String digits = String.join("", Arrays.asList(hex)).replace(" ", "");
+        byte[] bytes = new byte[digits.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(digits.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static List<SingleMetric> decode(EmbeddedChannel channel, byte[] packet) {
+        channel.writeInbound(new DatagramPacket(Unpooled.wrappedBuffer(packet), RECIPIENT));
+        List<SingleMetric> metrics = new ArrayList<>();
+        Object msg;
+        while ((msg = channel.readInbound()) != null) {
+            metrics.add((SingleMetric) msg);
+        }
+        return metrics;
+    }
+
+    private static void assertMetric(SingleMetric metric, String name, long timestamp, double value) {
+        assert metric.getSource().equals(name) : "Expected " + name + " but got " + metric;
+        assert metric.getTimestamp() == timestamp : "Expected " + timestamp + " but got " + metric;
+        assert metric.getValue() == value : "Expected " + value + " but got " + metric;
+    }
+
+    @Test
+    public void testNamesAndDerives() throws Exception {
+        EmbeddedChannel channel = new EmbeddedChannel(new CollectdDecoder(16));
+
+        List<SingleMetric> metrics = decode(channel, bytes(CPU));
+
+        assert metrics.size() == 2 : "Expected 2 metrics but got " + metrics;
+        assertMetric(metrics.get(0), "collectd.web01.cpu.0.cpu.idle", TIME, 123456);
+        // The other parts stay in effect for the following value lists
+        assertMetric(metrics.get(1), "collectd.web01.cpu.0.cpu.user", TIME, -5);
+    }
+
+    @Test
+    public void testHighResolutionTimeAndLittleEndianGauges() throws Exception {
+        EmbeddedChannel channel = new EmbeddedChannel(new CollectdDecoder(16));
+
+        List<SingleMetric> metrics = decode(channel, bytes(LOAD));
+
+        assert metrics.size() == 3 : "Expected 3 metrics but got " + metrics;
+        // Without a plugin instance, and with the index of the value in the list
+        assertMetric(metrics.get(0), "collectd.web01.load.load.0", TIME + 500, 0.5);
+        assertMetric(metrics.get(1), "collectd.web01.load.load.1", TIME + 500, 1.25);
+        assertMetric(metrics.get(2), "collectd.web01.load.load.2", TIME + 500, 2.0);
+    }
+
+    @Test
+    public void testUnsignedCountersAndAbsolutes() throws Exception {
+        EmbeddedChannel channel = new EmbeddedChannel(new CollectdDecoder(16));
+
+        List<SingleMetric> metrics = decode(channel, bytes(COUNTERS));
+
+        assert metrics.size() == 3 : "Expected 3 metrics but got " + metrics;
+        assertMetric(metrics.get(0), "collectd.web01.interface.eth0.if_octets.0", TIME, 18446744073709551615.0);
+        assertMetric(metrics.get(1), "collectd.web01.interface.eth0.if_octets.1", TIME, 42);
+        assertMetric(metrics.get(2), "collectd.web01.interface.requests", TIME, 9223372036854775808.0);
+    }
+
+    @Test
+    public void testTruncatedPartKeepsTheValuesBeforeIt() throws Exception {
+        EmbeddedChannel channel = new EmbeddedChannel(new CollectdDecoder(16));
+        long errors = InputStats.forName("collectd").getParseErrors();
+        byte[] packet = bytes(CPU);
+
+        List<SingleMetric> metrics = decode(channel, Arrays.copyOf(packet, packet.length - 4));
+
+        assert metrics.size() == 1 : "Expected 1 metric but got " + metrics;
+        assertMetric(metrics.get(0), "collectd.web01.cpu.0.cpu.idle", TIME, 123456);
+        assert InputStats.forName("collectd").getParseErrors() == errors + 1;
+    }
+
+    @Test
+    public void testInvalidLengthsAreSkipped() throws Exception {
+        EmbeddedChannel channel = new EmbeddedChannel(new CollectdDecoder(16));
+        long errors = InputStats.forName("collectd").getParseErrors();
+
+        // A part shorter than its header stops the packet
+        assert decode(channel, bytes("00060002", CPU)).isEmpty();
+        // A value list of two values with the bytes of one
+        List<SingleMetric> metrics = decode(channel, bytes("0000000a 77656230 31000002 00086370 75000004 " +
+            "00086370 75000006 000f0002 02000000 00000000 01", "0006000f 00010200 00000000 000007"));
+
+        assert metrics.size() == 1 : "Expected 1 metric but got " + metrics;
+        assertMetric(metrics.get(0), "collectd.web01.cpu.cpu", metrics.get(0).getTimestamp(), 7);
+        assert InputStats.forName("collectd").getParseErrors() == errors + 2;
+        assert channel.isOpen();
+    }
+
+    @Test
+    public void testUnknownPartsAreSkipped() throws Exception {
+        EmbeddedChannel channel = new EmbeddedChannel(new CollectdDecoder(16));
+
+        // An interval part before the packet
+        List<SingleMetric> metrics = decode(channel, bytes("0007000c 00000000 0000000a", CPU));
+
+        assert metrics.size() == 2 : "Expected 2 metrics but got " + metrics;
+        assertMetric(metrics.get(0), "collectd.web01.cpu.0.cpu.idle", TIME, 123456);
+    }
+}
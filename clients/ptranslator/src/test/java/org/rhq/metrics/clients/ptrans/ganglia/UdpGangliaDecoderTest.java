@@ -0,0 +1,134 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rhq.metrics.clients.ptrans.ganglia;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.socket.DatagramPacket;
+
+import org.junit.Test;
+
+import org.rhq.metrics.client.common.SingleMetric;
+import org.rhq.metrics.clients.ptrans.stats.InputStats;
+
+public class UdpGangliaDecoderTest {
+
+    private static final InetSocketAddress RECIPIENT = new InetSocketAddress("localhost", 8649);
+
+    /** gmetric float load_one=0.5 of host web01.example.com, format %.2f */
+    private static final String FLOAT = "00000086 00000011 77656230 312e6578 616d706c 652e636f 6d000000 00000008 " +
+        "6c6f6164 5f6f6e65 00000000 00000004 252e3266 3f000000";
+    /** gmetric double mem_free=1536.25 */
+    private static final String DOUBLE = "00000087 00000005 77656230 31000000 00000008 6d656d5f 66726565 00000000 " +
+        "00000002 25660000 40980100 00000000";
+    /** gmetric uint32 bytes_in=4294967295 */
+    private static final String UINT = "00000084 00000005 77656230 31000000 00000008 62797465 735f696e 00000000 " +
+        "00000002 25750000 ffffffff";
+    /** gmetric int32 temp_delta=-7 */
+    private static final String INT = "00000083 00000005 77656230 31000000 0000000a 74656d70 5f64656c 74610000 " +
+        "00000000 00000002 25640000 fffffff9";
+    /** gmetric string os_load="42.5" */
+    private static final String STRING = "00000085 00000005 77656230 31000000 00000007 6f735f6c 6f616400 00000000 " +
+        "00000002 25730000 00000004 34322e35";
+    /** gmetric float load_one=0.25 without a host */
+    private static final String NO_HOST = "00000086 00000000 00000008 6c6f6164 5f6f6e65 00000000 00000004 " +
+        "252e3266 3e800000";
+    /** Metadata of load_one */
+    private static final String METADATA = "00000080 00000005 77656230 31000000 00000008 6c6f6164 5f6f6e65 00000000";
+
+    private static byte[] bytes(String hex) {
+        String digits = hex.replace(" ", "");
+        byte[] bytes = new byte[digits.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(digits.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static List<SingleMetric> decode(EmbeddedChannel channel, byte[] packet) {
+        channel.writeInbound(new DatagramPacket(Unpooled.wrappedBuffer(packet), RECIPIENT));
+        List<SingleMetric> metrics = new ArrayList<>();
+        Object msg;
+        while ((msg = channel.readInbound()) != null) {
+            metrics.add((SingleMetric) msg);
+        }
+        return metrics;
+    }
+
+    private static void assertMetric(List<SingleMetric> metrics, String name, double value) {
+        assert metrics.size() == 1 : "Expected 1 metric but got " + metrics;
+        assert metrics.get(0).getSource().equals(name) : "Expected " + name + " but got " + metrics.get(0);
+        assert metrics.get(0).getValue() == value : "Expected " + value + " but got " + metrics.get(0);
+    }
+
+    @Test
+    public void testNumericTypes() throws Exception {
+        EmbeddedChannel channel = new EmbeddedChannel(new UdpGangliaDecoder(16));
+        long before = System.currentTimeMillis();
+
+        List<SingleMetric> metrics = decode(channel, bytes(FLOAT));
+        assertMetric(metrics, "web01.example.com.load_one", 0.5);
+        assert metrics.get(0).getTimestamp() >= before;
+        assertMetric(decode(channel, bytes(DOUBLE)), "web01.mem_free", 1536.25);
+        assertMetric(decode(channel, bytes(UINT)), "web01.bytes_in", 4294967295.0);
+        assertMetric(decode(channel, bytes(INT)), "web01.temp_delta", -7);
+        assertMetric(decode(channel, bytes(STRING)), "web01.os_load", 42.5);
+    }
+
+    @Test
+    public void testEmptyHostIsLeftOut() throws Exception {
+        EmbeddedChannel channel = new EmbeddedChannel(new UdpGangliaDecoder(16));
+
+        assertMetric(decode(channel, bytes(NO_HOST)), "load_one", 0.25);
+    }
+
+    @Test
+    public void testMetadataIsSkipped() throws Exception {
+        EmbeddedChannel channel = new EmbeddedChannel(new UdpGangliaDecoder(16));
+        long errors = InputStats.forName("ganglia").getParseErrors();
+
+        assert decode(channel, bytes(METADATA)).isEmpty();
+        assert InputStats.forName("ganglia").getParseErrors() == errors;
+    }
+
+    @Test
+    public void testBrokenPacketsAreSkippedWithoutClosingTheChannel() throws Exception {
+        EmbeddedChannel channel = new EmbeddedChannel(new UdpGangliaDecoder(16));
+        long errors = InputStats.forName("ganglia").getParseErrors();
+        byte[] packet = bytes(FLOAT);
+
+        // Too short for a packet id, cut in the host name, cut in the value
+        assert decode(channel, new byte[] {0, 0}).isEmpty();
+        byte[] cutName = new byte[12];
+        System.arraycopy(packet, 0, cutName, 0, cutName.length);
+        assert decode(channel, cutName).isEmpty();
+        byte[] cutValue = new byte[packet.length - 2];
+        System.arraycopy(packet, 0, cutValue, 0, cutValue.length);
+        assert decode(channel, cutValue).isEmpty();
+        // A host length beyond the packet
+        byte[] badLength = packet.clone();
+        badLength[4] = (byte) 0xff;
+        assert decode(channel, badLength).isEmpty();
+
+        assert InputStats.forName("ganglia").getParseErrors() == errors + 4;
+        assert channel.isOpen();
+        assertMetric(decode(channel, packet), "web01.example.com.load_one", 0.5);
+    }
+}
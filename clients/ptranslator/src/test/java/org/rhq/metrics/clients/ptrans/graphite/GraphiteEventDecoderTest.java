@@ -0,0 +1,87 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rhq.metrics.clients.ptrans.graphite;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.CharsetUtil;
+
+import org.junit.Test;
+
+import org.rhq.metrics.client.common.SingleMetric;
+
+public class GraphiteEventDecoderTest {
+
+    private static List<SingleMetric> decode(String data) {
+        EmbeddedChannel channel = new EmbeddedChannel(new GraphiteEventDecoder());
+        channel.writeInbound(Unpooled.copiedBuffer(data, CharsetUtil.UTF_8));
+        List<SingleMetric> metrics = new ArrayList<>();
+        Object msg;
+        while ((msg = channel.readInbound()) != null) {
+            metrics.add((SingleMetric) msg);
+        }
+        return metrics;
+    }
+
+    @Test
+    public void testLines() throws Exception {
+        List<SingleMetric> metrics = decode("servers.a.load 1.5 1420070400\n" +
+            "servers.b.load -2e2 1420070401\n" +
+            "servers.c.load 123456789012345678901234567890 1420070402");
+
+        assert metrics.size() == 3 : "Expected 3 metrics but got " + metrics;
+        // Same values as the decoder that split the lines as strings
+        assert metrics.get(0).equals(new SingleMetric("servers.a.load", 1420070400000L, Double.parseDouble("1.5")));
+        assert metrics.get(1).equals(new SingleMetric("servers.b.load", 1420070401000L, Double.parseDouble("-2e2")));
+        assert metrics.get(2).equals(new SingleMetric("servers.c.load", 1420070402000L,
+            Double.parseDouble("123456789012345678901234567890")));
+    }
+
+    @Test
+    public void testBlanksAroundFields() throws Exception {
+        List<SingleMetric> metrics = decode("  a.b \t 3   1420070400 \r\n\r\n\t\n");
+
+        assert metrics.size() == 1 : "Expected 1 metric but got " + metrics;
+        assert metrics.get(0).equals(new SingleMetric("a.b", 1420070400000L, 3.0));
+    }
+
+    @Test
+    public void testFractionalTimestamp() throws Exception {
+        List<SingleMetric> metrics = decode("a.b 3 1420070400.25");
+
+        assert metrics.get(0).getTimestamp() == 1420070400250L : "Unexpected timestamp " + metrics.get(0);
+    }
+
+    @Test
+    public void testLinesWithMissingOrExtraFieldsAreSkipped() throws Exception {
+        List<SingleMetric> metrics = decode("first 1 1420070400\n" +
+            "missing.timestamp 1\n" +
+            "missing.value.and.timestamp\n" +
+            "1420070400\n" +
+            "extra.field 1 1420070400 x\n" +
+            "bad.value abc 1420070400\n" +
+            "nan.value NaN 1420070400\n" +
+            "bad.timestamp 1 yesterday\n" +
+            "last 2 1420070401\n");
+
+        assert metrics.size() == 2 : "Expected 2 metrics but got " + metrics;
+        assert metrics.get(0).equals(new SingleMetric("first", 1420070400000L, 1.0));
+        assert metrics.get(1).equals(new SingleMetric("last", 1420070401000L, 2.0));
+    }
+}
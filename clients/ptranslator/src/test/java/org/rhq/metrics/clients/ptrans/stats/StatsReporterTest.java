@@ -0,0 +1,135 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rhq.metrics.clients.ptrans.stats;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import org.rhq.metrics.client.common.MetricBuffer;
+import org.rhq.metrics.client.common.MetricRingBuffer;
+import org.rhq.metrics.client.common.SingleMetric;
+
+public class StatsReporterTest {
+
+    private static final long TIMESTAMP = 1420070400000L;
+
+    /**
+     * @return The reported values by name, after checking the prefix and timestamp of all metrics
+     */
+    private static Map<String, Double> report(StatsReporter reporter) {
+        Map<String, Double> values = new HashMap<>();
+        for (SingleMetric metric : reporter.report(TIMESTAMP)) {
+            assert metric.getSource().startsWith("myhost.ptrans.") : metric.getSource();
+            assert metric.getTimestamp() == TIMESTAMP : metric.getSource() + " at " + metric.getTimestamp();
+            Double previous = values.put(metric.getSource().substring("myhost.ptrans.".length()), metric.getValue());
+            assert previous == null : metric.getSource() + " reported twice";
+        }
+        return values;
+    }
+
+    private static void assertValue(Map<String, Double> values, String name, double expected) {
+        Double value = values.get(name);
+        assert value != null : name + " was not reported, only " + values.keySet();
+        assert Math.abs(value - expected) < 1e-9 : name + " is " + value + " instead of " + expected;
+    }
+
+    @Test
+    public void testReportHasTheCountersAndHistogramsOfAllStatistics() {
+        // The input and batcher statistics are global, so the names are unique to this test
+        InputStats input = InputStats.forName("reporter-test");
+        input.packetReceived();
+        input.packetReceived();
+        input.metricsDecoded(5);
+        input.parseError();
+        BatcherStats batcher = BatcherStats.forName("reporter-test");
+        batcher.batchForwarded(4, TimeUnit.MILLISECONDS.toNanos(2), BatcherStats.Trigger.SIZE);
+        batcher.batchForwarded(6, TimeUnit.MILLISECONDS.toNanos(2), BatcherStats.Trigger.LINGER);
+
+        MetricBuffer buffer = new MetricRingBuffer(4);
+        buffer.offer(new SingleMetric("a", TIMESTAMP, 1.0));
+        buffer.offer(new SingleMetric("b", TIMESTAMP, 2.0));
+        ForwarderStats forwarder = new ForwarderStats(Collections.singletonList(buffer));
+        forwarder.requestSent();
+        forwarder.requestSent();
+        forwarder.requestSent();
+        forwarder.requestAcknowledged(10, TimeUnit.MILLISECONDS.toNanos(3));
+        forwarder.requestFailed();
+        forwarder.batchRejected(7);
+
+        StatsReporter reporter = new StatsReporter("myhost.ptrans", forwarder,
+            Collections.<UdpReceiverStats>emptyList());
+        Map<String, Double> values = report(reporter);
+
+        assertValue(values, "input.reporter-test.packets", 2);
+        assertValue(values, "input.reporter-test.metrics", 5);
+        assertValue(values, "input.reporter-test.parse-errors", 1);
+
+        assertValue(values, "batcher.reporter-test.size-flushes", 1);
+        assertValue(values, "batcher.reporter-test.byte-flushes", 0);
+        assertValue(values, "batcher.reporter-test.linger-flushes", 1);
+        assertValue(values, "batcher.reporter-test.batch-size.count", 2);
+        assertValue(values, "batcher.reporter-test.batch-size.mean", 5);
+        // Upper bound of the bucket 4-7, capped by the maximum
+        assertValue(values, "batcher.reporter-test.batch-size.p99", 6);
+        assertValue(values, "batcher.reporter-test.linger-ms.mean", 2);
+
+        assertValue(values, "forward.buffered-metrics", 2);
+        assertValue(values, "forward.dropped-metrics", 0);
+        assertValue(values, "forward.in-flight-requests", 1);
+        assertValue(values, "forward.requests", 3);
+        assertValue(values, "forward.failed-requests", 1);
+        assertValue(values, "forward.metrics", 10);
+        assertValue(values, "forward.rejected-metrics", 7);
+        assertValue(values, "forward.batch-size.count", 1);
+        assertValue(values, "forward.batch-size.mean", 10);
+        assertValue(values, "forward.batch-size.p99", 10);
+        assertValue(values, "forward.latency-ms.count", 1);
+        assertValue(values, "forward.latency-ms.mean", 3);
+        assertValue(values, "forward.latency-ms.p99", 3);
+    }
+
+    @Test
+    public void testHistogramsOnlyReportTheValuesSinceThePreviousReport() {
+        ForwarderStats forwarder = new ForwarderStats(Collections.<MetricBuffer>emptyList());
+        StatsReporter reporter = new StatsReporter("myhost.ptrans", forwarder,
+            Collections.<UdpReceiverStats>emptyList());
+        forwarder.requestSent();
+        forwarder.requestAcknowledged(10, TimeUnit.MILLISECONDS.toNanos(3));
+        report(reporter);
+
+        forwarder.requestSent();
+        forwarder.requestAcknowledged(20, TimeUnit.MILLISECONDS.toNanos(1));
+        Map<String, Double> values = report(reporter);
+        // Counters keep their total
+        assertValue(values, "forward.requests", 2);
+        assertValue(values, "forward.metrics", 30);
+        assertValue(values, "forward.batch-size.count", 1);
+        assertValue(values, "forward.batch-size.mean", 20);
+        assertValue(values, "forward.batch-size.p99", 20);
+        assertValue(values, "forward.latency-ms.mean", 1);
+        // 1000 microseconds fall into the bucket 512-1023
+        assertValue(values, "forward.latency-ms.p99", 1.023);
+
+        values = report(reporter);
+        assertValue(values, "forward.batch-size.count", 0);
+        assertValue(values, "forward.batch-size.mean", 0);
+        assertValue(values, "forward.latency-ms.p99", 0);
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rhq.metrics.clients.ptrans.stats;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.junit.Test;
+
+public class UdpReceiverStatsTest {
+
+    /** Two sockets on port 8125 (0x1FBD) bound with SO_REUSEPORT and a DNS server on port 53 */
+    private static final String UDP =
+        "   sl  local_address rem_address   st tx_queue rx_queue tr tm->when retr  uid  timeout inode ref "
+        + "pointer drops\n"
+        + "  133: 00000000:1FBD 00000000:0000 07 00000000:00000000 00:00000000 00000000  1000        0 23456 2 "
+        + "ffff88003d3af3c0 12\n"
+        + "  134: 00000000:1FBD 00000000:0000 07 00000000:00000A00 00:00000000 00000000  1000        0 23457 2 "
+        + "ffff88003d3af780 3\n"
+        + "  270: 0100007F:0035 00000000:0000 07 00000000:00000100 00:00000000 00000000     0        0 10234 2 "
+        + "ffff88003d3b0000 0\n";
+
+    private static final String UDP6 =
+        "  sl  local_address                         remote_address                        st tx_queue rx_queue tr "
+        + "tm->when retr  uid  timeout inode ref pointer drops\n"
+        + "  133: 00000000000000000000000000000000:1FBD 00000000000000000000000000000000:0000 07 00000000:00000010 "
+        + "00:00000000 00000000  1000        0 23458 2 ffff88003d3af000 7\n";
+
+    private static long sum(String table, int port, boolean drops) throws IOException {
+        return UdpReceiverStats.sumSocketColumn(new BufferedReader(new StringReader(table)), port, drops);
+    }
+
+    @Test
+    public void testDropsOfAllSocketsOnThePortAreSummedUp() throws IOException {
+        assert sum(UDP, 8125, true) == 15 : sum(UDP, 8125, true);
+        assert sum(UDP, 53, true) == 0 : sum(UDP, 53, true);
+        assert sum(UDP6, 8125, true) == 7 : sum(UDP6, 8125, true);
+    }
+
+    @Test
+    public void testReceiveQueueIsParsedAsHex() throws IOException {
+        assert sum(UDP, 8125, false) == 0xA00 : sum(UDP, 8125, false);
+        assert sum(UDP, 53, false) == 0x100 : sum(UDP, 53, false);
+        assert sum(UDP6, 8125, false) == 0x10 : sum(UDP6, 8125, false);
+    }
+
+    @Test
+    public void testPortWithoutSocketsIsUnknown() throws IOException {
+        assert sum(UDP, 9999, true) == -1;
+        assert sum(UDP.substring(0, UDP.indexOf('\n') + 1), 8125, true) == -1;
+    }
+
+    @Test
+    public void testIncompleteLinesAreSkipped() throws IOException {
+        String table = UDP + "  271: 00000000:1FBD 00000000:0000 07\n";
+        assert sum(table, 8125, true) == 15 : sum(table, 8125, true);
+    }
+}
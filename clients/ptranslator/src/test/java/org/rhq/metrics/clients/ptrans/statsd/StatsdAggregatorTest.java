@@ -0,0 +1,219 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rhq.metrics.clients.ptrans.statsd;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.util.CharsetUtil;
+
+import org.junit.Test;
+
+import org.rhq.metrics.client.common.MetricType;
+import org.rhq.metrics.client.common.SingleMetric;
+
+public class StatsdAggregatorTest {
+
+    private static Map<String, SingleMetric> flush(StatsdAggregator aggregator, long timestamp) {
+        Map<String, SingleMetric> metrics = new HashMap<>();
+        for (SingleMetric metric : aggregator.flush(timestamp)) {
+            assert metric.getTimestamp() == timestamp : "Unexpected timestamp of " + metric;
+            assert metrics.put(metric.getSource(), metric) == null : "Flushed twice: " + metric;
+        }
+        return metrics;
+    }
+
+    private static void assertMetric(Map<String, SingleMetric> metrics, String name, double value, MetricType type) {
+        SingleMetric metric = metrics.get(name);
+        assert metric != null : "Missing " + name + " in " + metrics.values();
+        assert metric.getValue() == value : "Expected " + value + " for " + name + " but got " + metric;
+        assert metric.getMetricType() == type : "Expected " + type + " for " + name + " but got " + metric;
+    }
+
+    @Test
+    public void testNothingRecorded() throws Exception {
+        StatsdAggregator aggregator = new StatsdAggregator(new double[] { 90 });
+
+        assert aggregator.flush(1000).isEmpty();
+    }
+
+    @Test
+    public void testCountersAreSummedPerFlush() throws Exception {
+        StatsdAggregator aggregator = new StatsdAggregator(new double[0]);
+        aggregator.count("requests", 1, 1);
+        aggregator.count("requests", 2, 1);
+        aggregator.count("errors", -1, 1);
+
+        Map<String, SingleMetric> metrics = flush(aggregator, 1000);
+        assert metrics.size() == 2 : "Unexpected metrics " + metrics.values();
+        assertMetric(metrics, "requests", 3, MetricType.COUNTER);
+        assertMetric(metrics, "errors", -1, MetricType.COUNTER);
+
+        // Counters start over in every interval and are not sent when nothing was counted
+        aggregator.count("requests", 5, 1);
+        metrics = flush(aggregator, 2000);
+        assert metrics.size() == 1 : "Unexpected metrics " + metrics.values();
+        assertMetric(metrics, "requests", 5, MetricType.COUNTER);
+    }
+
+    @Test
+    public void testCountersAreScaledBySampleRate() throws Exception {
+        StatsdAggregator aggregator = new StatsdAggregator(new double[0]);
+        // Each sample stands for 1 / rate samples
+        aggregator.count("sampled", 1, 0.1);
+        aggregator.count("sampled", 2, 0.5);
+        aggregator.count("sampled", 3, 1);
+
+        assertMetric(flush(aggregator, 1000), "sampled", 10 + 4 + 3, MetricType.COUNTER);
+    }
+
+    @Test
+    public void testGauges() throws Exception {
+        StatsdAggregator aggregator = new StatsdAggregator(new double[0]);
+        aggregator.gauge("load", 3, false);
+        aggregator.gauge("load", 10, false);
+
+        assertMetric(flush(aggregator, 1000), "load", 10, MetricType.GAUGE);
+
+        // Not updated, not sent
+        assert flush(aggregator, 2000).isEmpty();
+
+        // Signed values change the last value, even one of an earlier interval
+        aggregator.gauge("load", -3, true);
+        aggregator.gauge("load", 0.5, true);
+        assertMetric(flush(aggregator, 3000), "load", 7.5, MetricType.GAUGE);
+
+        aggregator.gauge("load", 2, false);
+        aggregator.gauge("load", 1, true);
+        assertMetric(flush(aggregator, 4000), "load", 3, MetricType.GAUGE);
+
+        // A delta of a gauge that was never set applies to 0
+        aggregator.gauge("new", -2, true);
+        assertMetric(flush(aggregator, 5000), "new", -2, MetricType.GAUGE);
+    }
+
+    @Test
+    public void testTimers() throws Exception {
+        StatsdAggregator aggregator = new StatsdAggregator(new double[] { 50, 90, 99.9 });
+        for (int i = 1; i <= 100; i++) {
+            aggregator.timing("query", i, 1);
+        }
+
+        Map<String, SingleMetric> metrics = flush(aggregator, 1000);
+        assert metrics.size() == 8 : "Unexpected metrics " + metrics.values();
+        assertMetric(metrics, "query.count", 100, MetricType.COUNTER);
+        assertMetric(metrics, "query.sum", 5050, MetricType.GAUGE);
+        assertMetric(metrics, "query.mean", 50.5, MetricType.GAUGE);
+        assertMetric(metrics, "query.lower", 1, MetricType.GAUGE);
+        assertMetric(metrics, "query.upper", 100, MetricType.GAUGE);
+        // Percentiles come from a histogram with buckets 1/32 of their value wide
+        for (double[] expected : new double[][] { { 50, 50 }, { 90, 90 }, { 99.9, 100 } }) {
+            String name = "query.upper_" + (expected[0] == 99.9 ? "99_9" : String.valueOf((int) expected[0]));
+            SingleMetric metric = metrics.get(name);
+            assert metric != null : "Missing " + name + " in " + metrics.values();
+            assert Math.abs(metric.getValue() - expected[1]) <= expected[1] / 32 :
+                "Expected about " + expected[1] + " for " + name + " but got " + metric;
+        }
+
+        // Timers start over in every interval
+        aggregator.timing("query", 7, 1);
+        metrics = flush(aggregator, 2000);
+        assertMetric(metrics, "query.count", 1, MetricType.COUNTER);
+        assertMetric(metrics, "query.lower", 7, MetricType.GAUGE);
+        assertMetric(metrics, "query.upper_90", 7, MetricType.GAUGE);
+    }
+
+    @Test
+    public void testTimerCountIsScaledBySampleRate() throws Exception {
+        StatsdAggregator aggregator = new StatsdAggregator(new double[0]);
+        aggregator.timing("query", 10, 0.1);
+        aggregator.timing("query", 30, 0.5);
+
+        Map<String, SingleMetric> metrics = flush(aggregator, 1000);
+        assertMetric(metrics, "query.count", 10 + 2, MetricType.COUNTER);
+        // The other aggregates are computed from the samples that were received
+        assertMetric(metrics, "query.sum", 40, MetricType.GAUGE);
+        assertMetric(metrics, "query.mean", 20, MetricType.GAUGE);
+    }
+
+    @Test
+    public void testSetsCountDistinctMembers() throws Exception {
+        StatsdAggregator aggregator = new StatsdAggregator(new double[0]);
+        aggregator.set("users", "alice");
+        aggregator.set("users", "bob");
+        aggregator.set("users", "alice");
+
+        assertMetric(flush(aggregator, 1000), "users", 2, MetricType.GAUGE);
+        assert flush(aggregator, 2000).isEmpty();
+    }
+
+    @Test
+    public void testDecoderFeedsTheAggregator() throws Exception {
+        StatsdAggregator aggregator = new StatsdAggregator(new double[] { 90 });
+        EmbeddedChannel channel = new EmbeddedChannel(new StatsdDecoder(aggregator));
+        String packet = "hits:1|c|@0.1\nhits:2|c\nload:5|g\nload:+2|g\nload:-0.5|g\nrt:10|ms|@0.5\nusers:alice|s\n" +
+            "raw:3";
+        channel.writeInbound(new DatagramPacket(Unpooled.copiedBuffer(packet, CharsetUtil.UTF_8),
+            new InetSocketAddress("localhost", 8125), new InetSocketAddress("localhost", 40000)));
+
+        // Only samples of unknown types are passed on right away
+        SingleMetric raw = (SingleMetric) channel.readInbound();
+        assert raw != null && raw.getSource().equals("raw") : "Unexpected metric " + raw;
+        assert channel.readInbound() == null;
+
+        Map<String, SingleMetric> metrics = flush(aggregator, 1000);
+        assertMetric(metrics, "hits", 12, MetricType.COUNTER);
+        assertMetric(metrics, "load", 6.5, MetricType.GAUGE);
+        assertMetric(metrics, "rt.count", 2, MetricType.COUNTER);
+        assertMetric(metrics, "rt.upper_90", 10, MetricType.GAUGE);
+        assertMetric(metrics, "users", 1, MetricType.GAUGE);
+    }
+
+    @Test
+    public void testNoSampleIsLostOrCountedTwiceAcrossFlushes() throws Exception {
+        final StatsdAggregator aggregator = new StatsdAggregator(new double[0]);
+        final int writers = 4;
+        final int perWriter = 100000;
+        List<Thread> threads = new ArrayList<>();
+        for (int w = 0; w < writers; w++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < perWriter; i++) {
+                    aggregator.count("hits", 1, 1);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        double total = 0;
+        for (Thread thread : threads) {
+            while (thread.isAlive()) {
+                SingleMetric hits = flush(aggregator, 1000).get("hits");
+                total += hits == null ? 0 : hits.getValue();
+            }
+        }
+        SingleMetric hits = flush(aggregator, 2000).get("hits");
+        total += hits == null ? 0 : hits.getValue();
+
+        assert total == writers * perWriter : "Expected " + writers * perWriter + " hits but got " + total;
+    }
+}
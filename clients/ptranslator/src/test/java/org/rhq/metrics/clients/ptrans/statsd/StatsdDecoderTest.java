@@ -0,0 +1,113 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rhq.metrics.clients.ptrans.statsd;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.util.CharsetUtil;
+
+import org.junit.Test;
+
+import org.rhq.metrics.client.common.MetricType;
+import org.rhq.metrics.client.common.SingleMetric;
+
+public class StatsdDecoderTest {
+
+    private static final InetSocketAddress RECIPIENT = new InetSocketAddress("localhost", 8125);
+    private static final InetSocketAddress SENDER = new InetSocketAddress("localhost", 40000);
+
+    private static List<SingleMetric> decode(EmbeddedChannel channel, String packet) {
+        channel.writeInbound(new DatagramPacket(Unpooled.copiedBuffer(packet, CharsetUtil.UTF_8), RECIPIENT, SENDER));
+        List<SingleMetric> metrics = new ArrayList<>();
+        Object msg;
+        while ((msg = channel.readInbound()) != null) {
+            metrics.add((SingleMetric) msg);
+        }
+        return metrics;
+    }
+
+    private static void assertMetric(SingleMetric metric, String name, String value, MetricType type) {
+        assert metric.getSource().equals(name) : "Expected " + name + " but got " + metric;
+        // Same value as the decoder that parsed the packet as a string
+        assert metric.getValue().equals(Double.valueOf(value)) : "Expected " + value + " but got " + metric;
+        assert metric.getMetricType() == type : "Expected " + type + " but got " + metric;
+    }
+
+    @Test
+    public void testSingleMetric() throws Exception {
+        EmbeddedChannel channel = new EmbeddedChannel(new StatsdDecoder());
+        long before = System.currentTimeMillis();
+
+        List<SingleMetric> metrics = decode(channel, "api.requests:42|c");
+
+        assert metrics.size() == 1 : "Expected 1 metric but got " + metrics;
+        assertMetric(metrics.get(0), "api.requests", "42", MetricType.COUNTER);
+        assert metrics.get(0).getTimestamp() >= before;
+    }
+
+    @Test
+    public void testTypesAndNumberFormats() throws Exception {
+        EmbeddedChannel channel = new EmbeddedChannel(new StatsdDecoder());
+
+        List<SingleMetric> metrics = decode(channel, "a:-1.5|g\nb:2.5e-3|ms\nc:1E3|c\nd:7\ne:1e400|g\n" +
+            "f:123456789012345678901234567890|c\ng:+3|x");
+
+        assert metrics.size() == 7 : "Expected 7 metrics but got " + metrics;
+        assertMetric(metrics.get(0), "a", "-1.5", MetricType.GAUGE);
+        assertMetric(metrics.get(1), "b", "2.5e-3", MetricType.TIMING);
+        assertMetric(metrics.get(2), "c", "1E3", MetricType.COUNTER);
+        assertMetric(metrics.get(3), "d", "7", MetricType.SIMPLE);
+        assertMetric(metrics.get(4), "e", "1e400", MetricType.GAUGE);
+        assertMetric(metrics.get(5), "f", "123456789012345678901234567890", MetricType.COUNTER);
+        assertMetric(metrics.get(6), "g", "+3", MetricType.SIMPLE);
+    }
+
+    @Test
+    public void testMalformedLinesAreSkipped() throws Exception {
+        EmbeddedChannel channel = new EmbeddedChannel(new StatsdDecoder());
+
+        List<SingleMetric> metrics = decode(channel, "first:1|c\n" +
+            "no colon\n" +
+            ":2|c\n" +
+            "nan:NaN|g\n" +
+            "text:abc|ms\n" +
+            "empty:|c\n" +
+            "rate:3|c|@2\n" +
+            "\n" +
+            "  \r\n" +
+            "  padded:4|g  \r\n" +
+            "sampled:5|c|@0.5\n" +
+            "last:6|ms");
+
+        assert metrics.size() == 4 : "Expected 4 metrics but got " + metrics;
+        assertMetric(metrics.get(0), "first", "1", MetricType.COUNTER);
+        assertMetric(metrics.get(1), "padded", "4", MetricType.GAUGE);
+        // Without an aggregator the sample rate is ignored
+        assertMetric(metrics.get(2), "sampled", "5", MetricType.COUNTER);
+        assertMetric(metrics.get(3), "last", "6", MetricType.TIMING);
+        assert channel.isOpen() : "Bad input must not close the channel";
+
+        metrics = decode(channel, "x");
+        assert metrics.isEmpty();
+        metrics = decode(channel, "after:1|c");
+        assert metrics.size() == 1 : "Expected 1 metric after a bad packet but got " + metrics;
+    }
+}
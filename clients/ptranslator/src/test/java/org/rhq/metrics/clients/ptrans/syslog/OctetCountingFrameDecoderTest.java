@@ -0,0 +1,109 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rhq.metrics.clients.ptrans.syslog;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.CharsetUtil;
+
+import org.junit.Test;
+
+public class OctetCountingFrameDecoderTest {
+
+    private static void write(EmbeddedChannel channel, String data) {
+        channel.writeInbound(Unpooled.copiedBuffer(data, CharsetUtil.UTF_8));
+    }
+
+    private static String readFrame(EmbeddedChannel channel) {
+        ByteBuf frame = (ByteBuf) channel.readInbound();
+        if (frame == null) {
+            return null;
+        }
+        try {
+            return frame.toString(CharsetUtil.UTF_8);
+        } finally {
+            frame.release();
+        }
+    }
+
+    @Test
+    public void testLengthSplitFromPayload() throws Exception {
+        EmbeddedChannel channel = new EmbeddedChannel(new OctetCountingFrameDecoder(64));
+
+        write(channel, "1");
+        assert readFrame(channel) == null;
+        write(channel, "9");
+        assert readFrame(channel) == null;
+        write(channel, " ");
+        assert readFrame(channel) == null;
+        write(channel, "<14>type=metric ");
+        assert readFrame(channel) == null : "A partial frame must not be passed on";
+        write(channel, "a=1\n7 <14>b");
+        assert readFrame(channel).equals("<14>type=metric a=1");
+        assert readFrame(channel) == null;
+        write(channel, "=2");
+        assert readFrame(channel).equals("<14>b=2");
+        assert channel.isOpen();
+    }
+
+    @Test
+    public void testSeveralFramesInOneSegment() throws Exception {
+        EmbeddedChannel channel = new EmbeddedChannel(new OctetCountingFrameDecoder(64));
+
+        write(channel, "4 <1>a\r\n4 <2>b4 <3>c5 <4>");
+        assert readFrame(channel).equals("<1>a");
+        assert readFrame(channel).equals("<2>b");
+        assert readFrame(channel).equals("<3>c");
+        assert readFrame(channel) == null;
+
+        write(channel, "de\n\n");
+        assert readFrame(channel).equals("<4>de");
+    }
+
+    @Test
+    public void testFrameOfMaximumLength() throws Exception {
+        EmbeddedChannel channel = new EmbeddedChannel(new OctetCountingFrameDecoder(8));
+
+        write(channel, "8 <1>abcde");
+        assert readFrame(channel).equals("<1>abcde");
+        assert channel.isOpen();
+    }
+
+    @Test
+    public void testOversizedFrameClosesTheConnection() throws Exception {
+        EmbeddedChannel channel = new EmbeddedChannel(new OctetCountingFrameDecoder(64));
+
+        write(channel, "6");
+        assert channel.isOpen();
+        write(channel, "5 <14>");
+        assert !channel.isOpen() : "A frame longer than the maximum must close the connection";
+        assert readFrame(channel) == null;
+    }
+
+    @Test
+    public void testInvalidLengthClosesTheConnection() throws Exception {
+        EmbeddedChannel channel = new EmbeddedChannel(new OctetCountingFrameDecoder(64));
+
+        write(channel, "1x <14>a");
+        assert !channel.isOpen();
+        assert readFrame(channel) == null;
+
+        channel = new EmbeddedChannel(new OctetCountingFrameDecoder(64));
+        write(channel, " <14>a");
+        assert !channel.isOpen();
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rhq.metrics.clients.ptrans.tenant;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class PrefixTrieTest {
+
+    private static PrefixTrie trie(String... prefixesAndValues) {
+        Map<String, String> prefixes = new HashMap<>();
+        for (int i = 0; i < prefixesAndValues.length; i += 2) {
+            prefixes.put(prefixesAndValues[i], prefixesAndValues[i + 1]);
+        }
+        return new PrefixTrie(prefixes);
+    }
+
+    @Test
+    public void testLongestPrefixWins() {
+        PrefixTrie trie = trie("app.", "a", "app.web.", "b", "app.web.frontend.", "c");
+        assert "a".equals(trie.longestMatch("app.db.queries"));
+        assert "b".equals(trie.longestMatch("app.web.requests"));
+        assert "c".equals(trie.longestMatch("app.web.frontend.errors"));
+        // A partial match of a longer prefix falls back to the shorter one
+        assert "b".equals(trie.longestMatch("app.web.front"));
+    }
+
+    @Test
+    public void testPrefixesThatAreNotWholeSegments() {
+        PrefixTrie trie = trie("a", "short", "ab", "longer", "b", "other");
+        assert "short".equals(trie.longestMatch("a"));
+        assert "short".equals(trie.longestMatch("ac"));
+        assert "longer".equals(trie.longestMatch("ab"));
+        assert "longer".equals(trie.longestMatch("abc"));
+        assert "other".equals(trie.longestMatch("b.c"));
+    }
+
+    @Test
+    public void testNoMatch() {
+        PrefixTrie trie = trie("app.", "a", "db.", "b");
+        assert trie.longestMatch("ap") == null;
+        assert trie.longestMatch("cache.hits") == null;
+        assert trie.longestMatch("") == null;
+        assert !trie.isEmpty();
+    }
+
+    @Test
+    public void testEmptyPrefixMatchesEverything() {
+        PrefixTrie trie = trie("", "all", "app.", "a");
+        assert "all".equals(trie.longestMatch(""));
+        assert "all".equals(trie.longestMatch("cache.hits"));
+        assert "a".equals(trie.longestMatch("app.x"));
+    }
+
+    @Test
+    public void testEmptyTrie() {
+        PrefixTrie trie = new PrefixTrie(Collections.<String, String>emptyMap());
+        assert trie.isEmpty();
+        assert trie.longestMatch("anything") == null;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rhq.metrics.clients.ptrans.tenant;
+
+import java.net.InetAddress;
+import java.util.Properties;
+
+import org.junit.Test;
+
+public class TenantRouterTest {
+
+    private static TenantRouter router(String... keysAndValues) {
+        Properties configuration = new Properties();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            configuration.setProperty(keysAndValues[i], keysAndValues[i + 1]);
+        }
+        return new TenantRouter(configuration);
+    }
+
+    @Test
+    public void testWithoutRules() {
+        TenantRouter router = router();
+        assert !router.isEnabled();
+        assert router.getDefaultTenant() == null;
+        assert router.routeSource("statsd", InetAddress.getLoopbackAddress()) == null;
+        assert router.route("app.requests", null) == null;
+    }
+
+    @Test
+    public void testLongestPrefixAcrossTenants() {
+        TenantRouter router = router(
+            "tenant.ops.prefixes", "app., db.",
+            "tenant.web.prefixes", "app.web.",
+            "tenant.cdn.prefixes", "app.web.static.");
+        assert router.getTenants().size() == 3;
+        assert "ops".equals(router.route("app.jobs", null));
+        assert "ops".equals(router.route("db.queries", null));
+        assert "web".equals(router.route("app.web.requests", null));
+        assert "cdn".equals(router.route("app.web.static.hits", null));
+        assert router.route("cache.hits", null) == null;
+    }
+
+    @Test
+    public void testDefaultTenantForUnmatchedMetrics() {
+        TenantRouter router = router(
+            "tenant.web.prefixes", "app.web.",
+            "tenant.default", "shared");
+        assert "shared".equals(router.getDefaultTenant());
+        assert router.getTenants().contains("shared");
+        String sourceTenant = router.routeSource(null, null);
+        assert "shared".equals(sourceTenant);
+        assert "shared".equals(router.route("app.jobs", sourceTenant));
+        assert "web".equals(router.route("app.web.requests", sourceTenant));
+    }
+
+    @Test
+    public void testPrefixBeatsSourceWhichBeatsInput() throws Exception {
+        TenantRouter router = router(
+            "tenant.web.prefixes", "app.web.",
+            "tenant.lab.sources", "10.1.0.0/16",
+            "tenant.host.sources", "10.1.2.3",
+            "tenant.stats.inputs", "statsd",
+            "tenant.default", "shared");
+        InetAddress network = InetAddress.getByName("10.1.7.7");
+        InetAddress host = InetAddress.getByName("10.1.2.3");
+        InetAddress other = InetAddress.getByName("192.168.0.1");
+
+        assert "lab".equals(router.routeSource("statsd", network));
+        // The longest network wins
+        assert "host".equals(router.routeSource("statsd", host));
+        assert "stats".equals(router.routeSource("statsd", other));
+        assert "shared".equals(router.routeSource("graphite", other));
+        assert "web".equals(router.route("app.web.requests", router.routeSource("statsd", host)));
+        assert "host".equals(router.route("app.jobs", router.routeSource("statsd", host)));
+        assert router.hasSourceRules();
+    }
+
+    @Test
+    public void testNetworkPrefixWithinAByte() throws Exception {
+        TenantRouter router = router("tenant.lab.sources", "10.1.32.0/19");
+        assert "lab".equals(router.routeSource(null, InetAddress.getByName("10.1.63.255")));
+        assert router.routeSource(null, InetAddress.getByName("10.1.64.0")) == null;
+        assert router.routeSource(null, InetAddress.getByName("10.1.31.255")) == null;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidTenantId() {
+        router("tenant.a b.prefixes", "app.");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownRule() {
+        router("tenant.web.names", "app.");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidNetworkPrefix() {
+        router("tenant.lab.sources", "10.1.0.0/33");
+    }
+}
@@ -19,25 +19,47 @@ package org.rhq.metrics;
 import java.util.HashMap;
 import java.util.Map;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import org.rhq.metrics.core.MetricsService;
+import org.rhq.metrics.impl.cache.CachingMetricsService;
+import org.rhq.metrics.impl.cache.QueryCache;
 import org.rhq.metrics.impl.cassandra.MetricsServiceCassandra;
+import org.rhq.metrics.impl.local.LocalMetricsService;
+import org.rhq.metrics.impl.memory.HotTierMetricsService;
 import org.rhq.metrics.impl.memory.MemoryMetricsService;
+import org.rhq.metrics.impl.wal.WriteAheadLogMetricsService;
 
 /**
  * @author John Sanda
  */
 public class RHQMetrics {
 
+    private static final Logger logger = LoggerFactory.getLogger(RHQMetrics.class);
+
     public static class Builder {
 
         private enum DataStoreType {
-            Cassandra, EmbeddedCassandra, InMemory
+            Cassandra, EmbeddedCassandra, InMemory, Local
         };
 
         private DataStoreType dataStoreType = DataStoreType.EmbeddedCassandra;
 
         private final Map<String, String> options;
 
+        private long queryCacheSize;
+
+        private long hotTierWindow;
+
+        private long hotTierSize;
+
+        private String walDirectory;
+
+        private int walConcurrency;
+
+        private long walMaxBytes;
+
         public Builder() {
             String cassandraCqlPortString = System.getenv("CASSANDRA_CQL_PORT");
             if (cassandraCqlPortString == null) {
@@ -70,6 +92,19 @@ public class RHQMetrics {
             return this;
         }
 
+        /**
+         * Stores data in files below the directory, see {@link LocalMetricsService}.
+         *
+         * @param directory The data directory, null for the default
+         */
+        public Builder withLocalDataStore(String directory) {
+            dataStoreType = DataStoreType.Local;
+            if (directory != null) {
+                options.put(LocalMetricsService.DIRECTORY, directory);
+            }
+            return this;
+        }
+
         public Builder withCassandraDataStore() {
             dataStoreType = DataStoreType.Cassandra;
             return this;
@@ -97,6 +132,52 @@ public class RHQMetrics {
             return this;
         }
 
+        /**
+         * @param millis How long to wait at startup for a Cassandra node to accept CQL connections
+         */
+        public Builder withNodeTimeout(long millis) {
+            options.put(MetricsServiceCassandra.NODE_TIMEOUT, Long.toString(millis));
+            return this;
+        }
+
+        /**
+         * Caches closed time segments of raw data queries, see {@link CachingMetricsService}.
+         *
+         * @param maxBytes The approximate heap size the cached data may use, 0 disables the cache
+         */
+        public Builder withQueryCache(long maxBytes) {
+            queryCacheSize = maxBytes;
+            return this;
+        }
+
+        /**
+         * Answers queries for recent raw data from memory, see {@link HotTierMetricsService}. Ignored for the in-memory
+         * data store. Only valid if this is the single node writing to the data store.
+         *
+         * @param window How much recent data is kept in memory, in milliseconds, 0 disables the hot tier
+         * @param maxBytes The approximate heap size the data in memory may use
+         */
+        public Builder withHotTier(long window, long maxBytes) {
+            hotTierWindow = window;
+            hotTierSize = maxBytes;
+            return this;
+        }
+
+        /**
+         * Acknowledges writes once they are durable in a local log and replays them to the backend in the background,
+         * see {@link WriteAheadLogMetricsService}. Ignored for the in-memory data store.
+         *
+         * @param directory The directory of the log, null disables it
+         * @param maxConcurrentReplays How many writes may be replayed to the backend at the same time
+         * @param maxBytes The size of the log at which writes are rejected
+         */
+        public Builder withWriteAheadLog(String directory, int maxConcurrentReplays, long maxBytes) {
+            walDirectory = directory;
+            walConcurrency = maxConcurrentReplays;
+            walMaxBytes = maxBytes;
+            return this;
+        }
+
         public MetricsService build() {
             MetricsService metricsService;
 
@@ -104,12 +185,31 @@ public class RHQMetrics {
                 metricsService = new MetricsServiceCassandra();
             } else if (DataStoreType.InMemory.equals(dataStoreType)) {
                 metricsService = new MemoryMetricsService();
+            } else if (DataStoreType.Local.equals(dataStoreType)) {
+                metricsService = new LocalMetricsService();
             } else if (DataStoreType.EmbeddedCassandra.equals(dataStoreType)) {
                 metricsService = new MetricsServiceCassandra(true);
             } else {
                 metricsService = new MetricsServiceCassandra();
             }
 
+            if (queryCacheSize > 0) {
+                metricsService = new CachingMetricsService(metricsService, new QueryCache(queryCacheSize));
+            }
+
+            if (hotTierWindow > 0 && hotTierSize > 0 && !DataStoreType.InMemory.equals(dataStoreType)) {
+                if (DataStoreType.Cassandra.equals(dataStoreType)) {
+                    logger.warn("The hot tier only sees the writes of this node, recent data written through other "
+                        + "nodes of the Cassandra cluster is missing from the queries it answers");
+                }
+                metricsService = new HotTierMetricsService(metricsService, hotTierWindow, hotTierSize);
+            }
+
+            if (walDirectory != null && !DataStoreType.InMemory.equals(dataStoreType)) {
+                metricsService = new WriteAheadLogMetricsService(metricsService, walDirectory, walConcurrency,
+                    walMaxBytes);
+            }
+
             metricsService.startUp(options);
 
             return metricsService;
@@ -20,13 +20,27 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Row;
 import com.datastax.driver.core.Session;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.io.CharStreams;
 import com.google.common.io.Closeables;
+import com.google.common.util.concurrent.Futures;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -34,6 +48,12 @@ import org.slf4j.LoggerFactory;
 import org.rhq.metrics.util.TokenReplacingReader;
 
 /**
+ * Creates the schema from schema.cql. The keyspace is created first, then the user types and finally the tables. The
+ * existing keyspace, types and tables are looked up concurrently, but the schema changes are executed one at a time,
+ * waiting for all nodes to agree on the schema after each of them, as concurrent schema changes on different
+ * coordinators can conflict. Only the types and tables which do not exist yet are created, so a schema whose creation
+ * was interrupted is completed on the next start.
+ *
  * @author John Sanda
  * @author Heiko W. Rupp
  */
@@ -41,39 +61,169 @@ public class SchemaManager {
 
     private static final Logger logger = LoggerFactory.getLogger(SchemaManager.class);
 
+    private static final Pattern CREATE = Pattern.compile("CREATE\\s+(KEYSPACE|TYPE|TABLE)\\s+(?:\\S+\\.)?(\\w+)",
+        Pattern.CASE_INSENSITIVE);
+
+    private static final long SCHEMA_AGREEMENT_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+
     private Session session;
 
     public SchemaManager(Session session) {
         this.session = session;
     }
 
+    /**
+     * Reads the statements of schema.cql. This does not need a session, so it can be done while the storage nodes are
+     * still starting.
+     */
+    public static List<String> readSchema(String keyspace) throws IOException {
+        ImmutableMap<String, String> schemaVars = ImmutableMap.of("keyspace", keyspace);
+
+        InputStream inputStream = SchemaManager.class.getResourceAsStream("/schema.cql");
+        InputStreamReader reader = new InputStreamReader(inputStream);
+        String content = CharStreams.toString(reader);
+
+        List<String> statements = new ArrayList<>();
+        for (String cql : content.split("(?m)^-- #.*$")) {
+            if (!cql.startsWith("--")) {
+                statements.add(substituteVars(cql.trim(), schemaVars));
+            }
+        }
+        return statements;
+    }
+
     public void createSchema(String keyspace) throws IOException {
+        createSchema(keyspace, readSchema(keyspace));
+    }
+
+    /**
+     * @param statements The statements read by {@link #readSchema(String)}
+     */
+    public void createSchema(String keyspace, List<String> statements) throws IOException {
         logger.info("Creating schema for keyspace " + keyspace);
 
-        ResultSet resultSet = session.execute("SELECT * FROM system.schema_keyspaces WHERE keyspace_name = '" +
-            keyspace + "'");
-        if (!resultSet.isExhausted()) {
+        // The existing keyspace, types and tables are looked up concurrently
+        List<Set<String>> existing = query(
+            "SELECT keyspace_name FROM system.schema_keyspaces WHERE keyspace_name = '" + keyspace + "'",
+            "SELECT type_name FROM system.schema_usertypes WHERE keyspace_name = '" + keyspace + "'",
+            "SELECT columnfamily_name FROM system.schema_columnfamilies WHERE keyspace_name = '" + keyspace + "'");
+        boolean keyspaceExists = !existing.get(0).isEmpty();
+        Set<String> existingTypes = existing.get(1);
+        Set<String> existingTables = existing.get(2);
+        List<String> types = new ArrayList<>();
+        List<String> tables = new ArrayList<>();
+        for (String cql : statements) {
+            Matcher matcher = CREATE.matcher(cql);
+            if (!matcher.find()) {
+                if (!keyspaceExists) {
+                    tables.add(cql);
+                }
+                continue;
+            }
+            switch (matcher.group(1).toUpperCase()) {
+            case "KEYSPACE":
+                if (!keyspaceExists) {
+                    execute(Collections.singletonList(cql));
+                }
+                break;
+            case "TYPE":
+                if (!existingTypes.contains(matcher.group(2))) {
+                    types.add(cql);
+                }
+                break;
+            default:
+                if (!existingTables.contains(matcher.group(2))) {
+                    tables.add(cql);
+                }
+            }
+        }
+
+        if (keyspaceExists && types.isEmpty() && tables.isEmpty()) {
             logger.info("Schema already exist. Skipping schema creation.");
             return;
         }
+        // Tables may use the types, so they are created once all types exist
+        execute(types);
+        execute(tables);
+    }
 
-        ImmutableMap<String, String> schemaVars = ImmutableMap.of("keyspace", keyspace);
+    /**
+     * Executes the statements one after the other, waiting for schema agreement after each of them.
+     */
+    private void execute(List<String> statements) throws IOException {
+        for (String cql : statements) {
+            logger.info("Executing CQL:\n" + cql + "\n");
+            executeAll(Collections.singletonList(cql));
+            awaitSchemaAgreement();
+        }
+    }
 
-        InputStream inputStream = getClass().getResourceAsStream("/schema.cql");
-        InputStreamReader reader = new InputStreamReader(inputStream);
-        String content = CharStreams.toString(reader);
+    /**
+     * Executes the queries concurrently.
+     *
+     * @return The values of the first column of each query
+     */
+    private List<Set<String>> query(String... queries) throws IOException {
+        List<Set<String>> values = new ArrayList<>(queries.length);
+        for (ResultSet resultSet : executeAll(Arrays.asList(queries))) {
+            Set<String> names = new HashSet<>();
+            for (Row row : resultSet) {
+                names.add(row.getString(0));
+            }
+            values.add(names);
+        }
+        return values;
+    }
 
-        for (String cql : content.split("(?m)^-- #.*$")) {
-            if (!cql.startsWith("--")) {
-                TokenReplacingReader tokenReader = new TokenReplacingReader(cql.trim(), schemaVars);
-                String updatedCQL = substituteVars(cql.trim(), schemaVars);
-                logger.info("Executing CQL:\n" + updatedCQL + "\n");
-                session.execute(updatedCQL);
+    private List<ResultSet> executeAll(List<String> statements) throws IOException {
+        List<ResultSetFuture> futures = new ArrayList<>(statements.size());
+        for (String cql : statements) {
+            futures.add(session.executeAsync(cql));
+        }
+        try {
+            return Futures.allAsList(futures).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while updating the schema", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to update the schema", e.getCause());
+        }
+    }
+
+    /**
+     * Waits until all nodes report the same schema version, so that statements prepared afterwards find the new
+     * tables on every node.
+     */
+    private void awaitSchemaAgreement() throws IOException {
+        long deadline = System.currentTimeMillis() + SCHEMA_AGREEMENT_TIMEOUT;
+        while (true) {
+            Set<UUID> versions = new HashSet<>();
+            for (ResultSet resultSet : executeAll(Arrays.asList(
+                "SELECT schema_version FROM system.local WHERE key = 'local'",
+                "SELECT schema_version FROM system.peers"))) {
+                for (Row row : resultSet) {
+                    versions.add(row.getUUID(0));
+                }
+            }
+            versions.remove(null);
+            if (versions.size() <= 1) {
+                return;
+            }
+            if (System.currentTimeMillis() > deadline) {
+                logger.warn("The nodes do not agree on the schema after {} ms: {}", SCHEMA_AGREEMENT_TIMEOUT,
+                    versions);
+                return;
+            }
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for schema agreement", e);
             }
         }
     }
 
-    private String substituteVars(String cql, Map<String, String> vars) {
+    private static String substituteVars(String cql, Map<String, String> vars) {
         TokenReplacingReader reader = new TokenReplacingReader(cql, vars);
         StringWriter writer = new StringWriter();
         try {
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rhq.metrics.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.rhq.metrics.core.Availability;
+import org.rhq.metrics.core.AvailabilityMetric;
+import org.rhq.metrics.core.NumericData;
+import org.rhq.metrics.core.NumericMetric;
+
+/**
+ * Deep copies of query results. Metrics and data points are mutable, so results which are shared between callers,
+ * e.g. because they are cached or coalesced, must be copied before they are handed out.
+ */
+public final class DataCopies {
+
+    private DataCopies() {
+    }
+
+    /**
+     * @return A copy which does not belong to any metric
+     */
+    public static NumericData copy(NumericData d) {
+        return new NumericData(d.getTimeUUID(), d.getValue(), new HashSet<>(d.getTags()), d.getWriteTime());
+    }
+
+    /**
+     * @return A copy which does not belong to any metric
+     */
+    public static Availability copy(Availability a) {
+        return new Availability(a.getTimeUUID(), a.getBytes(), new HashSet<>(a.getTags()), a.getWriteTime());
+    }
+
+    public static List<NumericData> copyData(List<NumericData> data) {
+        List<NumericData> copy = new ArrayList<>(data.size());
+        for (NumericData d : data) {
+            NumericData c = copy(d);
+            c.setMetric(d.getMetric());
+            copy.add(c);
+        }
+        return copy;
+    }
+
+    public static NumericMetric copy(NumericMetric metric) {
+        NumericMetric copy = new NumericMetric(metric.getTenantId(), metric.getId(), copyOf(metric.getMetadata()),
+            metric.getDataRetention());
+        copy.setDpart(metric.getDpart());
+        for (NumericData d : metric.getData()) {
+            copy.addData(copy(d));
+        }
+        return copy;
+    }
+
+    public static AvailabilityMetric copy(AvailabilityMetric metric) {
+        AvailabilityMetric copy = new AvailabilityMetric(metric.getTenantId(), metric.getId(),
+            copyOf(metric.getMetadata()), metric.getDataRetention());
+        copy.setDpart(metric.getDpart());
+        for (Availability a : metric.getData()) {
+            copy.addData(copy(a));
+        }
+        return copy;
+    }
+
+    public static Map<String, String> copyOf(Map<String, String> metadata) {
+        return metadata == null ? null : new HashMap<>(metadata);
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rhq.metrics.impl;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.datastax.driver.core.Session;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import org.rhq.metrics.core.Availability;
+import org.rhq.metrics.core.AvailabilityMetric;
+import org.rhq.metrics.core.Counter;
+import org.rhq.metrics.core.Metric;
+import org.rhq.metrics.core.MetricId;
+import org.rhq.metrics.core.MetricType;
+import org.rhq.metrics.core.MetricsService;
+import org.rhq.metrics.core.NumericData;
+import org.rhq.metrics.core.NumericMetric;
+import org.rhq.metrics.core.Tenant;
+
+/**
+ * A {@link MetricsService} which forwards all calls to another instance. Subclasses override the methods they want
+ * to decorate.
+ */
+public class DelegatingMetricsService implements MetricsService {
+
+    protected final MetricsService delegate;
+
+    public DelegatingMetricsService(MetricsService delegate) {
+        this.delegate = delegate;
+    }
+
+    public MetricsService getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public void startUp(Map<String, String> params) {
+        delegate.startUp(params);
+    }
+
+    @Override
+    public void startUp(Session session) {
+        delegate.startUp(session);
+    }
+
+    @Override
+    public void shutdown() {
+        delegate.shutdown();
+    }
+
+    @Override
+    public ListenableFuture<Void> createTenant(Tenant tenant) {
+        return delegate.createTenant(tenant);
+    }
+
+    @Override
+    public ListenableFuture<List<Tenant>> getTenants() {
+        return delegate.getTenants();
+    }
+
+    @Override
+    public ListenableFuture<Void> createMetric(Metric metric) {
+        return delegate.createMetric(metric);
+    }
+
+    @Override
+    public ListenableFuture<Metric> findMetric(String tenantId, MetricType type, MetricId id) {
+        return delegate.findMetric(tenantId, type, id);
+    }
+
+    @Override
+    public ListenableFuture<List<Metric>> findMetrics(String tenantId, MetricType type) {
+        return delegate.findMetrics(tenantId, type);
+    }
+
+    @Override
+    public ListenableFuture<Void> updateMetadata(Metric metric, Map<String, String> metadata, Set<String> deletions) {
+        return delegate.updateMetadata(metric, metadata, deletions);
+    }
+
+    @Override
+    public ListenableFuture<Void> addNumericData(List<NumericMetric> metrics) {
+        return delegate.addNumericData(metrics);
+    }
+
+    @Override
+    public ListenableFuture<NumericMetric> findNumericData(NumericMetric metric, long start, long end) {
+        return delegate.findNumericData(metric, start, end);
+    }
+
+    @Override
+    public ListenableFuture<List<NumericData>> findData(NumericMetric metric, long start, long end) {
+        return delegate.findData(metric, start, end);
+    }
+
+    @Override
+    public ListenableFuture<Void> addAvailabilityData(List<AvailabilityMetric> metrics) {
+        return delegate.addAvailabilityData(metrics);
+    }
+
+    @Override
+    public ListenableFuture<AvailabilityMetric> findAvailabilityData(AvailabilityMetric metric, long start, long end) {
+        return delegate.findAvailabilityData(metric, start, end);
+    }
+
+    @Override
+    public ListenableFuture<Void> updateCounter(Counter counter) {
+        return delegate.updateCounter(counter);
+    }
+
+    @Override
+    public ListenableFuture<Void> updateCounters(Collection<Counter> counters) {
+        return delegate.updateCounters(counters);
+    }
+
+    @Override
+    public ListenableFuture<List<Counter>> findCounters(String group) {
+        return delegate.findCounters(group);
+    }
+
+    @Override
+    public ListenableFuture<List<Counter>> findCounters(String group, List<String> counterNames) {
+        return delegate.findCounters(group, counterNames);
+    }
+
+    @Override
+    public ListenableFuture<Boolean> idExists(String id) {
+        return delegate.idExists(id);
+    }
+
+    @Override
+    public ListenableFuture<List<NumericData>> tagNumericData(NumericMetric metric, Set<String> tags, long start,
+        long end) {
+        return delegate.tagNumericData(metric, tags, start, end);
+    }
+
+    @Override
+    public ListenableFuture<List<Availability>> tagAvailabilityData(AvailabilityMetric metric, Set<String> tags,
+        long start, long end) {
+        return delegate.tagAvailabilityData(metric, tags, start, end);
+    }
+
+    @Override
+    public ListenableFuture<List<NumericData>> tagNumericData(NumericMetric metric, Set<String> tags,
+        long timestamp) {
+        return delegate.tagNumericData(metric, tags, timestamp);
+    }
+
+    @Override
+    public ListenableFuture<List<Availability>> tagAvailabilityData(AvailabilityMetric metric, Set<String> tags,
+        long timestamp) {
+        return delegate.tagAvailabilityData(metric, tags, timestamp);
+    }
+
+    @Override
+    public ListenableFuture<Map<MetricId, Set<NumericData>>> findNumericDataByTags(String tenantId,
+        Set<String> tags) {
+        return delegate.findNumericDataByTags(tenantId, tags);
+    }
+
+    @Override
+    public ListenableFuture<Map<MetricId, Set<Availability>>> findAvailabilityByTags(String tenantId,
+        Set<String> tags) {
+        return delegate.findAvailabilityByTags(tenantId, tags);
+    }
+}
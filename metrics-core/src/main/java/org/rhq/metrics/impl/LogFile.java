@@ -0,0 +1,176 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rhq.metrics.impl;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only file of checksummed records. Every record is preceded by its length and its CRC32. Replaying the
+ * file stops at the first incomplete or corrupt record, which is where a crash interrupted the last append, and
+ * truncates the file there, so new records follow the intact ones.
+ * <br><br>
+ * Appends are serialized; {@link #force()} and {@link #read(long)} may be called concurrently with appends.
+ */
+public final class LogFile implements Closeable {
+
+    public interface RecordHandler {
+        void handle(ByteBuffer record) throws IOException;
+    }
+
+    /**
+     * The number of bytes preceding each record
+     */
+    public static final int HEADER_BYTES = 8;
+
+    private final Path path;
+
+    private final FileChannel channel;
+
+    private long size;
+
+    public LogFile(Path path) throws IOException {
+        this.path = path;
+        channel = FileChannel.open(path, CREATE, READ, WRITE);
+        size = channel.size();
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * Passes the intact records to the handler, in the order they were appended, and truncates the file after them.
+     *
+     * @return The number of records replayed
+     */
+    public synchronized int replay(RecordHandler handler) throws IOException {
+        long length = channel.size();
+        long position = 0;
+        int count = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        while (position + HEADER_BYTES <= length) {
+            header.clear();
+            read(header, position);
+            int recordLength = header.getInt(0);
+            int checksum = header.getInt(4);
+            if (recordLength < 0 || position + HEADER_BYTES + recordLength > length) {
+                break;
+            }
+            ByteBuffer record = read(position, recordLength, checksum);
+            if (record == null) {
+                break;
+            }
+            handler.handle(record);
+            position += HEADER_BYTES + recordLength;
+            count++;
+        }
+        if (position < length) {
+            channel.truncate(position);
+        }
+        size = position;
+        return count;
+    }
+
+    /**
+     * Reads the record which starts at the position. The position of the next record is the position plus
+     * {@link #HEADER_BYTES} plus the remaining bytes of the result.
+     *
+     * @return The record, or null if there is no intact record at the position
+     */
+    public ByteBuffer read(long position) throws IOException {
+        if (position + HEADER_BYTES > size()) {
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        read(header, position);
+        int recordLength = header.getInt(0);
+        if (recordLength < 0 || position + HEADER_BYTES + recordLength > size()) {
+            return null;
+        }
+        return read(position, recordLength, header.getInt(4));
+    }
+
+    private ByteBuffer read(long position, int recordLength, int checksum) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(recordLength);
+        read(record, position + HEADER_BYTES);
+        if (checksum(record.array()) != checksum) {
+            return null;
+        }
+        record.flip();
+        return record;
+    }
+
+    private void read(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    /**
+     * Appends a record without forcing it to the storage device.
+     */
+    public synchronized void append(byte[] record) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + record.length);
+        buffer.putInt(record.length).putInt(checksum(record)).put(record).flip();
+        while (buffer.hasRemaining()) {
+            size += channel.write(buffer, size);
+        }
+    }
+
+    /**
+     * Forces the records appended so far to the storage device.
+     */
+    public void force() throws IOException {
+        channel.force(false);
+    }
+
+    /**
+     * Removes all records.
+     */
+    public synchronized void clear() throws IOException {
+        channel.truncate(0);
+        channel.force(false);
+        size = 0;
+    }
+
+    public synchronized long size() {
+        return size;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private static int checksum(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return (int) crc.getValue();
+    }
+}
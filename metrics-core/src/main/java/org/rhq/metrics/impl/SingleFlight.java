@@ -0,0 +1,156 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rhq.metrics.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * <p>
+ * Coalesces identical concurrent queries. The first request for a key executes the query; requests for the same key
+ * which arrive while it is in flight wait for that query instead of executing their own. Once the query completes,
+ * the key is released and the next request executes a new query, so results are never older than the request.
+ * </p>
+ * <p>
+ * Results are typically mutable, so every request which joined a query gets its own copy. The request which executed
+ * the query gets the original, which is only handed out after all copies have been made.
+ * </p>
+ *
+ * @param <K> The query key, which must identify everything that affects the result
+ * @param <V> The result type
+ */
+public class SingleFlight<K, V> implements SingleFlightMBean {
+
+    private final ConcurrentMap<K, Flight> flights = new ConcurrentHashMap<>();
+
+    private final UnaryOperator<V> copy;
+
+    private final AtomicLong executed = new AtomicLong();
+
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * @param copy Creates an independent copy of a result; it is never called with null
+     */
+    public SingleFlight(UnaryOperator<V> copy) {
+        this.copy = copy;
+    }
+
+    public ListenableFuture<V> execute(K key, Supplier<ListenableFuture<V>> query) {
+        while (true) {
+            Flight flight = new Flight();
+            Flight inFlight = flights.putIfAbsent(key, flight);
+            if (inFlight == null) {
+                executed.incrementAndGet();
+                start(key, flight, query);
+                return flight.leader;
+            }
+            ListenableFuture<V> joined = inFlight.join();
+            if (joined != null) {
+                coalesced.incrementAndGet();
+                return joined;
+            }
+            // The query completed in the meantime and is no longer registered, try again
+        }
+    }
+
+    private void start(K key, Flight flight, Supplier<ListenableFuture<V>> query) {
+        ListenableFuture<V> future;
+        try {
+            future = query.get();
+        } catch (RuntimeException e) {
+            flights.remove(key, flight);
+            flight.fail(e);
+            return;
+        }
+        Futures.addCallback(future, new FutureCallback<V>() {
+            @Override
+            public void onSuccess(V result) {
+                flights.remove(key, flight);
+                flight.complete(result);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                flights.remove(key, flight);
+                flight.fail(t);
+            }
+        });
+    }
+
+    @Override
+    public long getExecutedCount() {
+        return executed.get();
+    }
+
+    @Override
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    @Override
+    public int getInFlightCount() {
+        return flights.size();
+    }
+
+    private class Flight {
+        final SettableFuture<V> leader = SettableFuture.create();
+        List<SettableFuture<V>> joiners = new ArrayList<>();
+        boolean closed;
+
+        /**
+         * @return The future of the joining request, or null if the flight already completed
+         */
+        synchronized ListenableFuture<V> join() {
+            if (closed) {
+                return null;
+            }
+            SettableFuture<V> future = SettableFuture.create();
+            joiners.add(future);
+            return future;
+        }
+
+        private synchronized List<SettableFuture<V>> close() {
+            closed = true;
+            return joiners;
+        }
+
+        void complete(V result) {
+            for (SettableFuture<V> joiner : close()) {
+                joiner.set(result == null ? null : copy.apply(result));
+            }
+            leader.set(result);
+        }
+
+        void fail(Throwable t) {
+            for (SettableFuture<V> joiner : close()) {
+                joiner.setException(t);
+            }
+            leader.setException(t);
+        }
+    }
+}
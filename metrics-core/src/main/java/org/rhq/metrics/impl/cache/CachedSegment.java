@@ -0,0 +1,67 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rhq.metrics.impl.cache;
+
+import java.util.List;
+
+import org.rhq.metrics.core.Metric;
+import org.rhq.metrics.core.MetricData;
+
+/**
+ * The data of one closed time segment of a metric. Neither the shell metric nor the data points are ever handed out,
+ * readers always get copies.
+ */
+class CachedSegment {
+
+    // Rough per object overheads, only used to weigh segments against each other
+    private static final int SEGMENT_OVERHEAD = 96;
+    private static final int DATA_POINT_SIZE = 128;
+    private static final int TAG_SIZE = 64;
+
+    private final Metric<?> shell;
+
+    private final List<? extends MetricData> data;
+
+    private final int estimatedBytes;
+
+    /**
+     * @param shell A metric without data, holding the properties shared by all data points. Null if the segment is
+     * empty.
+     * @param data The data points in the order the backend returned them
+     */
+    CachedSegment(Metric<?> shell, List<? extends MetricData> data) {
+        this.shell = shell;
+        this.data = data;
+        long bytes = SEGMENT_OVERHEAD;
+        for (MetricData d : data) {
+            bytes += DATA_POINT_SIZE + TAG_SIZE * d.getTags().size();
+        }
+        estimatedBytes = (int) Math.min(Integer.MAX_VALUE, bytes);
+    }
+
+    Metric<?> getShell() {
+        return shell;
+    }
+
+    List<? extends MetricData> getData() {
+        return data;
+    }
+
+    int getEstimatedBytes() {
+        return estimatedBytes;
+    }
+}
@@ -0,0 +1,358 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rhq.metrics.impl.cache;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.UnaryOperator;
+
+import com.datastax.driver.core.Session;
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import org.rhq.metrics.core.Availability;
+import org.rhq.metrics.core.AvailabilityMetric;
+import org.rhq.metrics.core.Metric;
+import org.rhq.metrics.core.MetricData;
+import org.rhq.metrics.core.MetricId;
+import org.rhq.metrics.core.MetricType;
+import org.rhq.metrics.core.MetricsService;
+import org.rhq.metrics.core.NumericData;
+import org.rhq.metrics.core.NumericMetric;
+import org.rhq.metrics.impl.DataCopies;
+import org.rhq.metrics.impl.DelegatingMetricsService;
+
+/**
+ * <p>
+ * Caches the results of raw data queries. Time is divided into aligned segments of a fixed size. A segment is closed
+ * once its end is older than the ingest lag, data in a closed segment is not expected to change anymore. Closed
+ * segments which intersect a query are read from the backend as a whole, stored in a {@link QueryCache} and sliced to
+ * the requested range. Only missing closed segments and the live tail of the range are read from the backend, so
+ * sliding windows such as "the last week" reuse almost all of the previous query.
+ * </p>
+ * <p>
+ * Writes invalidate the segments they fall into, which covers data inserted with old timestamps. Segments read
+ * while a write was in progress are not cached, see {@link QueryCache}. Like the Cassandra backend, results are
+ * ordered newest first.
+ * </p>
+ */
+public class CachingMetricsService extends DelegatingMetricsService {
+
+    public static final long DEFAULT_SEGMENT_SIZE = HOURS.toMillis(1);
+
+    public static final long DEFAULT_INGEST_LAG = MINUTES.toMillis(5);
+
+    /**
+     * Queries spanning more segments bypass the cache rather than filling it with a single result.
+     */
+    static final int MAX_SEGMENTS_PER_QUERY = 4096;
+
+    private interface RangeReader<M> {
+        ListenableFuture<M> read(long start, long end);
+    }
+
+    private static class RangeResult<T extends MetricData> {
+        Metric<?> shell;
+        List<T> data = new ArrayList<>();
+    }
+
+    private static final UnaryOperator<NumericData> NUMERIC_COPY = DataCopies::copy;
+
+    private static final UnaryOperator<Availability> AVAILABILITY_COPY = DataCopies::copy;
+
+    private final QueryCache cache;
+
+    private final long segmentSize;
+
+    private final long ingestLag;
+
+    public CachingMetricsService(MetricsService delegate, QueryCache cache) {
+        this(delegate, cache, DEFAULT_SEGMENT_SIZE, DEFAULT_INGEST_LAG);
+    }
+
+    public CachingMetricsService(MetricsService delegate, QueryCache cache, long segmentSize, long ingestLag) {
+        super(delegate);
+        this.cache = cache;
+        this.segmentSize = segmentSize;
+        this.ingestLag = ingestLag;
+    }
+
+    public QueryCache getCache() {
+        return cache;
+    }
+
+    @Override
+    public void startUp(Map<String, String> params) {
+        super.startUp(params);
+        cache.register();
+    }
+
+    @Override
+    public void startUp(Session session) {
+        super.startUp(session);
+        cache.register();
+    }
+
+    @Override
+    public void shutdown() {
+        cache.unregister();
+        super.shutdown();
+    }
+
+    @Override
+    public ListenableFuture<NumericMetric> findNumericData(NumericMetric metric, long start, long end) {
+        ListenableFuture<RangeResult<NumericData>> resultFuture = find(MetricType.NUMERIC, metric.getTenantId(),
+            metric.getId(), start, end, (s, e) -> delegate.findNumericData(metric, s, e), NUMERIC_COPY);
+        return Futures.transform(resultFuture, (Function<RangeResult<NumericData>, NumericMetric>) result -> {
+            if (result.shell == null) {
+                return null;
+            }
+            NumericMetric output = new NumericMetric(result.shell.getTenantId(), result.shell.getId(),
+                DataCopies.copyOf(result.shell.getMetadata()), result.shell.getDataRetention());
+            output.setDpart(result.shell.getDpart());
+            result.data.forEach(output::addData);
+            return output;
+        });
+    }
+
+    @Override
+    public ListenableFuture<List<NumericData>> findData(NumericMetric metric, long start, long end) {
+        // Same query as findNumericData, the metric properties are simply not returned
+        ListenableFuture<RangeResult<NumericData>> resultFuture = find(MetricType.NUMERIC, metric.getTenantId(),
+            metric.getId(), start, end, (s, e) -> delegate.findNumericData(metric, s, e), NUMERIC_COPY);
+        return Futures.transform(resultFuture, (Function<RangeResult<NumericData>, List<NumericData>>) result -> {
+            result.data.forEach(d -> d.setMetric(null));
+            return result.data;
+        });
+    }
+
+    @Override
+    public ListenableFuture<AvailabilityMetric> findAvailabilityData(AvailabilityMetric metric, long start, long end) {
+        ListenableFuture<RangeResult<Availability>> resultFuture = find(MetricType.AVAILABILITY,
+            metric.getTenantId(), metric.getId(), start, end, (s, e) -> delegate.findAvailabilityData(metric, s, e),
+            AVAILABILITY_COPY);
+        return Futures.transform(resultFuture, (Function<RangeResult<Availability>, AvailabilityMetric>) result -> {
+            if (result.shell == null) {
+                return null;
+            }
+            AvailabilityMetric output = new AvailabilityMetric(result.shell.getTenantId(), result.shell.getId(),
+                DataCopies.copyOf(result.shell.getMetadata()), result.shell.getDataRetention());
+            output.setDpart(result.shell.getDpart());
+            result.data.forEach(output::addData);
+            return output;
+        });
+    }
+
+    @Override
+    public ListenableFuture<Void> addNumericData(List<NumericMetric> metrics) {
+        invalidate(MetricType.NUMERIC, metrics);
+        ListenableFuture<Void> future = delegate.addNumericData(metrics);
+        // Invalidate again once written, a concurrent read may have cached the segment before the write landed
+        future.addListener(() -> invalidate(MetricType.NUMERIC, metrics), MoreExecutors.sameThreadExecutor());
+        return future;
+    }
+
+    @Override
+    public ListenableFuture<Void> addAvailabilityData(List<AvailabilityMetric> metrics) {
+        invalidate(MetricType.AVAILABILITY, metrics);
+        ListenableFuture<Void> future = delegate.addAvailabilityData(metrics);
+        future.addListener(() -> invalidate(MetricType.AVAILABILITY, metrics), MoreExecutors.sameThreadExecutor());
+        return future;
+    }
+
+    @Override
+    public ListenableFuture<Void> updateMetadata(Metric metric, Map<String, String> metadata, Set<String> deletions) {
+        ListenableFuture<Void> future = delegate.updateMetadata(metric, metadata, deletions);
+        future.addListener(() -> {
+            cache.written(metric.getTenantId(), metric.getId());
+            cache.invalidateMetric(metric.getTenantId(), metric.getId());
+        }, MoreExecutors.sameThreadExecutor());
+        return future;
+    }
+
+    @Override
+    public ListenableFuture<List<NumericData>> tagNumericData(NumericMetric metric, Set<String> tags, long start,
+        long end) {
+        ListenableFuture<List<NumericData>> future = delegate.tagNumericData(metric, tags, start, end);
+        future.addListener(() -> invalidate(MetricType.NUMERIC, metric, start, end),
+            MoreExecutors.sameThreadExecutor());
+        return future;
+    }
+
+    @Override
+    public ListenableFuture<List<Availability>> tagAvailabilityData(AvailabilityMetric metric, Set<String> tags,
+        long start, long end) {
+        ListenableFuture<List<Availability>> future = delegate.tagAvailabilityData(metric, tags, start, end);
+        future.addListener(() -> invalidate(MetricType.AVAILABILITY, metric, start, end),
+            MoreExecutors.sameThreadExecutor());
+        return future;
+    }
+
+    @Override
+    public ListenableFuture<List<NumericData>> tagNumericData(NumericMetric metric, Set<String> tags,
+        long timestamp) {
+        ListenableFuture<List<NumericData>> future = delegate.tagNumericData(metric, tags, timestamp);
+        future.addListener(() -> invalidate(MetricType.NUMERIC, metric, timestamp, timestamp + 1),
+            MoreExecutors.sameThreadExecutor());
+        return future;
+    }
+
+    @Override
+    public ListenableFuture<List<Availability>> tagAvailabilityData(AvailabilityMetric metric, Set<String> tags,
+        long timestamp) {
+        ListenableFuture<List<Availability>> future = delegate.tagAvailabilityData(metric, tags, timestamp);
+        future.addListener(() -> invalidate(MetricType.AVAILABILITY, metric, timestamp, timestamp + 1),
+            MoreExecutors.sameThreadExecutor());
+        return future;
+    }
+
+    private long segmentStart(long timestamp) {
+        return Math.floorDiv(timestamp, segmentSize) * segmentSize;
+    }
+
+    private <T extends MetricData, M extends Metric<T>> ListenableFuture<RangeResult<T>> find(MetricType type,
+        String tenantId, MetricId id, long start, long end, RangeReader<M> reader, UnaryOperator<T> copy) {
+
+        long writeStamp = cache.writeStamp(tenantId, id);
+        long closedEnd = segmentStart(System.currentTimeMillis() - ingestLag);
+        long firstSegment = segmentStart(start);
+        // Closed segments which intersect the range; they are cached as a whole even if the range only covers a part
+        long segmentsEnd = Math.min(closedEnd, segmentStart(end - 1) + segmentSize);
+        long segmentCount = start < end && firstSegment < segmentsEnd ? (segmentsEnd - firstSegment) / segmentSize : 0;
+        int count = segmentCount > MAX_SEGMENTS_PER_QUERY ? 0 : (int) segmentCount;
+
+        CachedSegment[] segments = new CachedSegment[count];
+        List<ListenableFuture<?>> reads = new ArrayList<>();
+        for (int i = 0; i < count; ++i) {
+            segments[i] = cache.get(new SegmentKey(type, tenantId, id, firstSegment + i * segmentSize));
+        }
+        // Consecutive missing segments are loaded with a single query
+        for (int i = 0; i < count;) {
+            if (segments[i] != null) {
+                ++i;
+                continue;
+            }
+            int from = i;
+            while (i < count && segments[i] == null) {
+                ++i;
+            }
+            int to = i;
+            long readStart = firstSegment + from * segmentSize;
+            ListenableFuture<M> loaded = reader.read(readStart, firstSegment + to * segmentSize);
+            reads.add(Futures.transform(loaded, (Function<M, Void>) metric -> {
+                store(type, tenantId, id, metric, readStart, segments, from, to, copy, writeStamp);
+                return null;
+            }));
+        }
+        long tailStart = count == 0 ? start : Math.max(start, segmentsEnd);
+        ListenableFuture<M> tail = tailStart < end || count == 0 ? reader.read(tailStart, end) :
+            Futures.<M>immediateFuture(null);
+        reads.add(tail);
+
+        return Futures.transform(Futures.allAsList(reads), (Function<List<Object>, RangeResult<T>>) ignored -> {
+            RangeResult<T> result = new RangeResult<>();
+            M tailMetric = Futures.getUnchecked(tail);
+            if (tailMetric != null && !tailMetric.getData().isEmpty()) {
+                result.shell = tailMetric;
+                result.data.addAll(tailMetric.getData());
+            }
+            for (int i = count - 1; i >= 0; --i) {
+                int size = result.data.size();
+                for (MetricData d : segments[i].getData()) {
+                    if (d.getTimestamp() >= start && d.getTimestamp() < end) {
+                        @SuppressWarnings("unchecked")
+                        T data = copy.apply((T) d);
+                        result.data.add(data);
+                    }
+                }
+                if (result.shell == null && result.data.size() > size) {
+                    result.shell = segments[i].getShell();
+                }
+            }
+            return result;
+        });
+    }
+
+    private <T extends MetricData, M extends Metric<T>> void store(MetricType type, String tenantId, MetricId id,
+        M metric, long readStart, CachedSegment[] segments, int from, int to, UnaryOperator<T> copy,
+        long writeStamp) {
+
+        List<List<T>> parts = new ArrayList<>(to - from);
+        for (int i = from; i < to; ++i) {
+            parts.add(new ArrayList<>());
+        }
+        if (metric != null) {
+            for (T d : metric.getData()) {
+                long index = (d.getTimestamp() - readStart) / segmentSize;
+                if (d.getTimestamp() >= readStart && index < parts.size()) {
+                    parts.get((int) index).add(copy.apply(d));
+                }
+            }
+        }
+        for (int i = from; i < to; ++i) {
+            List<T> data = parts.get(i - from);
+            CachedSegment segment = new CachedSegment(data.isEmpty() ? null : shellOf(metric), data);
+            segments[i] = segment;
+            cache.put(new SegmentKey(type, tenantId, id, readStart + (i - from) * segmentSize), segment, writeStamp);
+        }
+    }
+
+    private Metric<?> shellOf(Metric<?> metric) {
+        Metric<?> shell;
+        if (metric instanceof NumericMetric) {
+            shell = new NumericMetric(metric.getTenantId(), metric.getId(),
+                DataCopies.copyOf(metric.getMetadata()), metric.getDataRetention());
+        } else {
+            shell = new AvailabilityMetric(metric.getTenantId(), metric.getId(),
+                DataCopies.copyOf(metric.getMetadata()), metric.getDataRetention());
+        }
+        shell.setDpart(metric.getDpart());
+        return shell;
+    }
+
+    private void invalidate(MetricType type, List<? extends Metric<?>> metrics) {
+        for (Metric<?> metric : metrics) {
+            cache.written(metric.getTenantId(), metric.getId());
+            Set<Long> invalidated = new HashSet<>();
+            for (MetricData d : metric.getData()) {
+                long segment = segmentStart(d.getTimestamp());
+                if (invalidated.add(segment)) {
+                    cache.invalidate(new SegmentKey(type, metric.getTenantId(), metric.getId(), segment));
+                }
+            }
+        }
+    }
+
+    private void invalidate(MetricType type, Metric<?> metric, long start, long end) {
+        cache.written(metric.getTenantId(), metric.getId());
+        if ((end - start) / segmentSize > MAX_SEGMENTS_PER_QUERY) {
+            cache.invalidateMetric(metric.getTenantId(), metric.getId());
+            return;
+        }
+        for (long segment = segmentStart(start); segment < end; segment += segmentSize) {
+            cache.invalidate(new SegmentKey(type, metric.getTenantId(), metric.getId(), segment));
+        }
+    }
+}
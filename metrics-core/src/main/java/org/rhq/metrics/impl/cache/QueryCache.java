@@ -0,0 +1,172 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rhq.metrics.impl.cache;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.ObjectName;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.Weigher;
+
+import org.rhq.metrics.core.MetricId;
+import org.rhq.metrics.util.JmxSupport;
+
+/**
+ * Bounded store of closed time segments. Segments are weighed by their estimated heap size, and the least recently
+ * used segments are evicted once the size limit is reached. Segments also expire some time after they were loaded, so
+ * that data removed by its TTL does not linger in the cache indefinitely.
+ * <p>
+ * Every write to a metric advances its write stamp. A segment read before a write completed is only stored if the
+ * stamp of its metric did not change since the read started, so a slow read cannot put back a segment which the write
+ * has already invalidated. Metrics share a fixed number of stamps, a write to one metric may thus also keep the
+ * segments of another metric from being cached until they are read again.
+ */
+public class QueryCache implements QueryCacheMBean {
+
+    public static final String OBJECT_NAME = "org.rhq.metrics:type=QueryCache";
+
+    public static final long DEFAULT_EXPIRATION = TimeUnit.HOURS.toMillis(6);
+
+    static final int WRITE_STAMPS = 4096;
+
+    private final long maxBytes;
+
+    private final AtomicLong estimatedBytes = new AtomicLong();
+
+    private final Cache<SegmentKey, CachedSegment> cache;
+
+    private final AtomicLongArray writeStamps = new AtomicLongArray(WRITE_STAMPS);
+
+    private ObjectName objectName;
+
+    public QueryCache(long maxBytes) {
+        this(maxBytes, DEFAULT_EXPIRATION);
+    }
+
+    public QueryCache(long maxBytes, long expirationMillis) {
+        this.maxBytes = maxBytes;
+        cache = CacheBuilder.newBuilder()
+            .maximumWeight(maxBytes)
+            .weigher((Weigher<SegmentKey, CachedSegment>) (key, segment) -> segment.getEstimatedBytes())
+            .removalListener((RemovalListener<SegmentKey, CachedSegment>) notification -> estimatedBytes.addAndGet(
+                -notification.getValue().getEstimatedBytes()))
+            .expireAfterWrite(expirationMillis, TimeUnit.MILLISECONDS)
+            .recordStats()
+            .build();
+    }
+
+    CachedSegment get(SegmentKey key) {
+        return cache.getIfPresent(key);
+    }
+
+    /**
+     * @param writeStamp The result of {@link #writeStamp(String, MetricId)} before the segment was read
+     */
+    void put(SegmentKey key, CachedSegment segment, long writeStamp) {
+        int index = key.getMetricHash() & (WRITE_STAMPS - 1);
+        if (writeStamps.get(index) != writeStamp) {
+            return;
+        }
+        estimatedBytes.addAndGet(segment.getEstimatedBytes());
+        cache.put(key, segment);
+        // A write that completed meanwhile may have invalidated the segment before it was put
+        if (writeStamps.get(index) != writeStamp) {
+            cache.invalidate(key);
+        }
+    }
+
+    /**
+     * @return The write stamp of the metric, to be passed to {@link #put(SegmentKey, CachedSegment, long)}
+     */
+    long writeStamp(String tenantId, MetricId id) {
+        return writeStamps.get(SegmentKey.metricHash(tenantId, id) & (WRITE_STAMPS - 1));
+    }
+
+    /**
+     * Advances the write stamp of the metric, segments read before are not stored anymore.
+     */
+    void written(String tenantId, MetricId id) {
+        writeStamps.incrementAndGet(SegmentKey.metricHash(tenantId, id) & (WRITE_STAMPS - 1));
+    }
+
+    void invalidate(SegmentKey key) {
+        cache.invalidate(key);
+    }
+
+    void invalidateMetric(String tenantId, MetricId id) {
+        cache.asMap().keySet().removeIf(key -> key.isSameMetric(tenantId, id));
+    }
+
+    /**
+     * Registers this cache with the platform MBean server.
+     */
+    public void register() {
+        objectName = JmxSupport.register(this, OBJECT_NAME);
+    }
+
+    public void unregister() {
+        JmxSupport.unregister(objectName);
+        objectName = null;
+    }
+
+    @Override
+    public long getHitCount() {
+        return cache.stats().hitCount();
+    }
+
+    @Override
+    public long getMissCount() {
+        return cache.stats().missCount();
+    }
+
+    @Override
+    public double getHitRatio() {
+        CacheStats stats = cache.stats();
+        return stats.requestCount() == 0 ? 0 : stats.hitRate();
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return cache.stats().evictionCount();
+    }
+
+    @Override
+    public long getSegmentCount() {
+        return cache.size();
+    }
+
+    @Override
+    public long getEstimatedBytes() {
+        return estimatedBytes.get();
+    }
+
+    @Override
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    @Override
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+}
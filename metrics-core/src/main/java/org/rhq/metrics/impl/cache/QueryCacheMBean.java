@@ -0,0 +1,42 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rhq.metrics.impl.cache;
+
+/**
+ * Management interface of the {@link QueryCache}.
+ */
+public interface QueryCacheMBean {
+
+    long getHitCount();
+
+    long getMissCount();
+
+    double getHitRatio();
+
+    long getEvictionCount();
+
+    long getSegmentCount();
+
+    /**
+     * @return The approximate heap size of all cached segments, in bytes
+     */
+    long getEstimatedBytes();
+
+    long getMaxBytes();
+
+    void invalidateAll();
+}
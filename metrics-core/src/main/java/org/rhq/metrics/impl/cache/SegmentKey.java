@@ -0,0 +1,78 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rhq.metrics.impl.cache;
+
+import org.rhq.metrics.core.MetricId;
+import org.rhq.metrics.core.MetricType;
+
+/**
+ * Identifies one time segment of the data of a metric.
+ */
+class SegmentKey {
+
+    private final MetricType type;
+
+    private final String tenantId;
+
+    private final MetricId id;
+
+    private final long start;
+
+    SegmentKey(MetricType type, String tenantId, MetricId id, long start) {
+        this.type = type;
+        this.tenantId = tenantId;
+        this.id = id;
+        this.start = start;
+    }
+
+    /**
+     * @return A hash of tenant and metric id, which is the same for all types and segments of the metric
+     */
+    static int metricHash(String tenantId, MetricId id) {
+        int hash = 31 * tenantId.hashCode() + id.hashCode();
+        return hash ^ (hash >>> 16);
+    }
+
+    int getMetricHash() {
+        return metricHash(tenantId, id);
+    }
+
+    boolean isSameMetric(String tenantId, MetricId id) {
+        return this.tenantId.equals(tenantId) && this.id.equals(id);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        SegmentKey that = (SegmentKey) o;
+        return start == that.start && type == that.type && tenantId.equals(that.tenantId) && id.equals(that.id);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = type.hashCode();
+        result = 31 * result + tenantId.hashCode();
+        result = 31 * result + id.hashCode();
+        result = 31 * result + (int) (start ^ (start >>> 32));
+        return result;
+    }
+}
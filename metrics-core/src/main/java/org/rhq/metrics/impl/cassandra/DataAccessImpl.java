@@ -35,6 +35,9 @@ import com.datastax.driver.core.TupleValue;
 import com.datastax.driver.core.UDTValue;
 import com.datastax.driver.core.UserType;
 import com.datastax.driver.core.utils.UUIDs;
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 
 import org.rhq.metrics.core.AggregationTemplate;
 import org.rhq.metrics.core.Availability;
@@ -60,235 +63,271 @@ public class DataAccessImpl implements DataAccess {
 
     private Session session;
 
-    private PreparedStatement insertTenant;
+    private AsyncPreparedStatement insertTenant;
 
-    private PreparedStatement findAllTenantIds;
+    private AsyncPreparedStatement findAllTenantIds;
 
-    private PreparedStatement findTenant;
+    private AsyncPreparedStatement findTenant;
 
-    private PreparedStatement insertIntoMetricsIndex;
+    private AsyncPreparedStatement insertIntoMetricsIndex;
 
-    private PreparedStatement findMetric;
+    private AsyncPreparedStatement findMetric;
 
-    private PreparedStatement addMetadata;
+    private AsyncPreparedStatement addMetadata;
 
-    private PreparedStatement addMetadataAndDataRetention;
+    private AsyncPreparedStatement addMetadataAndDataRetention;
 
-    private PreparedStatement deleteMetadata;
+    private AsyncPreparedStatement deleteMetadata;
 
-    private PreparedStatement insertNumericData;
+    private AsyncPreparedStatement insertNumericData;
 
-    private PreparedStatement findNumericDataByDateRangeExclusive;
+    private AsyncPreparedStatement findNumericDataByDateRangeExclusive;
 
-    private PreparedStatement findNumericDataWithWriteTimeByDateRangeExclusive;
+    private AsyncPreparedStatement findNumericDataWithWriteTimeByDateRangeExclusive;
 
-    private PreparedStatement findNumericDataByDateRangeInclusive;
+    private AsyncPreparedStatement findNumericDataByDateRangeInclusive;
 
-    private PreparedStatement findNumericDataWithWriteTimeByDateRangeInclusive;
+    private AsyncPreparedStatement findNumericDataWithWriteTimeByDateRangeInclusive;
 
-    private PreparedStatement findAvailabilityByDateRangeInclusive;
+    private AsyncPreparedStatement findAvailabilityByDateRangeInclusive;
 
-    private PreparedStatement deleteNumericMetric;
+    private AsyncPreparedStatement deleteNumericMetric;
 
-    private PreparedStatement findNumericMetrics;
+    private AsyncPreparedStatement findNumericMetrics;
 
-    private PreparedStatement updateCounter;
+    private AsyncPreparedStatement updateCounter;
 
-    private PreparedStatement findCountersByGroup;
+    private AsyncPreparedStatement findCountersByGroup;
 
-    private PreparedStatement findCountersByGroupAndName;
+    private AsyncPreparedStatement findCountersByGroupAndName;
 
-    private PreparedStatement insertNumericTags;
+    private AsyncPreparedStatement insertNumericTags;
 
-    private PreparedStatement insertAvailabilityTags;
+    private AsyncPreparedStatement insertAvailabilityTags;
 
-    private PreparedStatement updateDataWithTags;
+    private AsyncPreparedStatement updateDataWithTags;
 
-    private PreparedStatement findNumericDataByTag;
+    private AsyncPreparedStatement findNumericDataByTag;
 
-    private PreparedStatement findAvailabilityByTag;
+    private AsyncPreparedStatement findAvailabilityByTag;
 
-    private PreparedStatement insertAvailability;
+    private AsyncPreparedStatement insertAvailability;
 
-    private PreparedStatement findAvailabilities;
+    private AsyncPreparedStatement findAvailabilities;
 
-    private PreparedStatement updateMetricsIndex;
+    private AsyncPreparedStatement updateMetricsIndex;
 
-    private PreparedStatement addMetadataToMetricsIndex;
+    private AsyncPreparedStatement addMetadataToMetricsIndex;
 
-    private PreparedStatement deleteMetadataFromMetricsIndex;
+    private AsyncPreparedStatement deleteMetadataFromMetricsIndex;
 
-    private PreparedStatement readMetricsIndex;
+    private AsyncPreparedStatement readMetricsIndex;
 
-    private PreparedStatement findAvailabilitiesWithWriteTime;
+    private AsyncPreparedStatement findAvailabilitiesWithWriteTime;
 
-    private PreparedStatement updateRetentionsIndex;
+    private AsyncPreparedStatement updateRetentionsIndex;
 
-    private PreparedStatement findDataRetentions;
+    private AsyncPreparedStatement findDataRetentions;
+
+    /**
+     * The preparations of the statements, which all run concurrently
+     */
+    private final List<ListenableFuture<PreparedStatement>> preparations = new ArrayList<>();
+
+    /**
+     * A statement which is prepared asynchronously. Binding it waits for its preparation if that is still in
+     * progress.
+     */
+    private class AsyncPreparedStatement {
+
+        private final ListenableFuture<PreparedStatement> prepared;
+
+        AsyncPreparedStatement(ListenableFuture<PreparedStatement> prepared) {
+            this.prepared = prepared;
+        }
+
+        BoundStatement bind(Object... values) {
+            return Futures.getUnchecked(prepared).bind(values);
+        }
+    }
 
     public DataAccessImpl(Session session) {
         this.session = session;
         initPreparedStatements();
     }
 
+    /**
+     * @return A future which completes once all statements have been prepared, or fails if any of them could not be
+     * prepared
+     */
+    public ListenableFuture<Void> prepared() {
+        return Futures.transform(Futures.allAsList(preparations), (Function<List<PreparedStatement>, Void>) s -> null);
+    }
+
+    private AsyncPreparedStatement prepare(String cql) {
+        ListenableFuture<PreparedStatement> preparation = session.prepareAsync(cql);
+        preparations.add(preparation);
+        return new AsyncPreparedStatement(preparation);
+    }
+
     protected void initPreparedStatements() {
-        insertTenant = session.prepare(
+        insertTenant = prepare(
             "INSERT INTO tenants (id, retentions, aggregation_templates) " +
             "VALUES (?, ?, ?) " +
             "IF NOT EXISTS");
 
-        findAllTenantIds = session.prepare("SELECT DISTINCT id FROM tenants");
+        findAllTenantIds = prepare("SELECT DISTINCT id FROM tenants");
 
-        findTenant = session.prepare("SELECT id, retentions, aggregation_templates FROM tenants WHERE id = ?");
+        findTenant = prepare("SELECT id, retentions, aggregation_templates FROM tenants WHERE id = ?");
 
-        findMetric = session.prepare(
+        findMetric = prepare(
             "SELECT tenant_id, type, metric, interval, dpart, meta_data, data_retention " +
             "FROM data " +
             "WHERE tenant_id = ? AND type = ? AND metric = ? AND interval = ? AND dpart = ?");
 
-        addMetadata = session.prepare(
+        addMetadata = prepare(
             "UPDATE data " +
             "SET meta_data = meta_data + ? " +
             "WHERE tenant_id = ? AND type = ? AND metric = ? AND interval = ? AND dpart = ?");
 
-        addMetadataAndDataRetention = session.prepare(
+        addMetadataAndDataRetention = prepare(
             "UPDATE data " +
             "SET meta_data = meta_data + ?, data_retention = ? " +
             "WHERE tenant_id = ? AND type = ? AND metric = ? AND interval = ? AND dpart = ?");
 
-        deleteMetadata = session.prepare(
+        deleteMetadata = prepare(
             "UPDATE data " +
             "SET meta_data = meta_data - ? " +
             "WHERE tenant_id = ? AND type = ? AND metric = ? AND interval = ? AND dpart = ?");
 
-        insertIntoMetricsIndex = session.prepare(
+        insertIntoMetricsIndex = prepare(
             "INSERT INTO metrics_idx (tenant_id, type, interval, metric, data_retention, meta_data) " +
             "VALUES (?, ?, ?, ?, ?, ?) " +
             "IF NOT EXISTS");
 
-        updateMetricsIndex = session.prepare(
+        updateMetricsIndex = prepare(
             "INSERT INTO metrics_idx (tenant_id, type, interval, metric) VALUES (?, ?, ?, ?)");
 
-        addMetadataToMetricsIndex = session.prepare(
+        addMetadataToMetricsIndex = prepare(
             "UPDATE metrics_idx " +
             "SET meta_data = meta_data + ? " +
             "WHERE tenant_id = ? AND type = ? AND interval = ? AND metric = ?");
 
-        deleteMetadataFromMetricsIndex = session.prepare(
+        deleteMetadataFromMetricsIndex = prepare(
             "UPDATE metrics_idx " +
             "SET meta_data = meta_data - ?" +
             "WHERE tenant_id = ? AND type = ? AND interval = ? AND metric = ?");
 
-        readMetricsIndex = session.prepare(
+        readMetricsIndex = prepare(
             "SELECT metric, interval, meta_data, data_retention " +
             "FROM metrics_idx " +
             "WHERE tenant_id = ? AND type = ?");
 
-        insertNumericData = session.prepare(
+        insertNumericData = prepare(
             "UPDATE data " +
             "USING TTL ?" +
             "SET meta_data = meta_data + ?, n_value = ? " +
             "WHERE tenant_id = ? AND type = ? AND metric = ? AND interval = ? AND dpart = ? AND time = ? ");
 
-        findNumericDataByDateRangeExclusive = session.prepare(
+        findNumericDataByDateRangeExclusive = prepare(
             "SELECT tenant_id, metric, interval, dpart, time, meta_data, data_retention, n_value, tags " +
             "FROM data " +
             "WHERE tenant_id = ? AND type = ? AND metric = ? AND interval = ? AND dpart = ? AND time >= ?"
                 + " AND time < ?");
 
-        findNumericDataWithWriteTimeByDateRangeExclusive = session.prepare(
+        findNumericDataWithWriteTimeByDateRangeExclusive = prepare(
             "SELECT tenant_id, metric, interval, dpart, time, meta_data, data_retention, n_value, tags,"
                 + " WRITETIME(n_value) " +
             "FROM data " +
             "WHERE tenant_id = ? AND type = ? AND metric = ? AND interval = ? AND dpart = ? AND time >= ?"
                 + " AND time < ?");
 
-        findNumericDataByDateRangeInclusive = session.prepare(
+        findNumericDataByDateRangeInclusive = prepare(
             "SELECT tenant_id, metric, interval, dpart, time, meta_data, data_retention, n_value, tags " +
             "FROM data " +
             "WHERE tenant_id = ? AND type = ? AND metric = ? AND interval = ? AND dpart = ? AND time >= ?"
                 + " AND time <= ?");
 
-        findNumericDataWithWriteTimeByDateRangeInclusive = session.prepare(
+        findNumericDataWithWriteTimeByDateRangeInclusive = prepare(
             "SELECT tenant_id, metric, interval, dpart, time, meta_data, data_retention, n_value, tags,"
                 + " WRITETIME(n_value) " +
             "FROM data " +
             "WHERE tenant_id = ? AND type = ? AND metric = ? AND interval = ? AND dpart = ? AND time >= ?"
                 + " AND time <= ?");
 
-        findAvailabilityByDateRangeInclusive = session.prepare(
+        findAvailabilityByDateRangeInclusive = prepare(
             "SELECT tenant_id, metric, interval, dpart, time, meta_data, data_retention, availability, tags,"
                 + " WRITETIME(availability) " +
             "FROM data " +
             "WHERE tenant_id = ? AND type = ? AND metric = ? AND interval = ? AND dpart = ? AND time >= ?"
                 + " AND time <= ?");
 
-        deleteNumericMetric = session.prepare(
+        deleteNumericMetric = prepare(
             "DELETE FROM data " +
             "WHERE tenant_id = ? AND type = ? AND metric = ? AND interval = ? AND dpart = ?");
 
-        findNumericMetrics = session.prepare(
+        findNumericMetrics = prepare(
             "SELECT DISTINCT tenant_id, type, metric, interval, dpart FROM data;");
 
-        updateCounter = session.prepare(
+        updateCounter = prepare(
             "UPDATE counters " +
             "SET c_value = c_value + ? " +
             "WHERE tenant_id = ? AND group = ? AND c_name = ?");
 
-        findCountersByGroup = session.prepare(
+        findCountersByGroup = prepare(
             "SELECT tenant_id, group, c_name, c_value FROM counters WHERE tenant_id = ? AND group = ?");
 
-        findCountersByGroupAndName = session.prepare(
+        findCountersByGroupAndName = prepare(
             "SELECT tenant_id, group, c_name, c_value FROM counters WHERE tenant_id = ? AND group = ? AND c_name IN ?");
 
-        insertNumericTags = session.prepare(
+        insertNumericTags = prepare(
             "INSERT INTO tags (tenant_id, tag, type, metric, interval, time, n_value) " +
             "VALUES (?, ?, ?, ?, ?, ?, ?) " +
             "USING TTL ?");
 
-        insertAvailabilityTags = session.prepare(
+        insertAvailabilityTags = prepare(
             "INSERT INTO tags (tenant_id, tag, type, metric, interval, time, availability) " +
             "VALUES (?, ?, ?, ?, ?, ?, ?) " +
             "USING TTL ?");
 
-        updateDataWithTags = session.prepare(
+        updateDataWithTags = prepare(
             "UPDATE data " +
             "SET tags = tags + ? " +
             "WHERE tenant_id = ? AND type = ? AND metric = ? AND interval = ? AND dpart = ? AND time = ?");
 
-        findNumericDataByTag = session.prepare(
+        findNumericDataByTag = prepare(
             "SELECT tenant_id, tag, type, metric, interval, time, n_value " +
             "FROM tags " +
             "WHERE tenant_id = ? AND tag = ? AND type = ?");
 
-        findAvailabilityByTag = session.prepare(
+        findAvailabilityByTag = prepare(
             "SELECT tenant_id, tag, type, metric, interval, time, availability " +
             "FROM tags " +
             "WHERE tenant_id = ? AND tag = ? AND type = ?");
 
-        insertAvailability = session.prepare(
+        insertAvailability = prepare(
             "UPDATE data " +
             "USING TTL ? " +
             "SET meta_data = meta_data + ?, availability = ? " +
             "WHERE tenant_id = ? AND type = ? AND metric = ? AND interval = ? AND dpart = ? AND time = ?");
 
-        findAvailabilities = session.prepare(
+        findAvailabilities = prepare(
             "SELECT tenant_id, metric, interval, dpart, time, meta_data, data_retention, availability, tags " +
             "FROM data " +
             "WHERE tenant_id = ? AND type = ? AND metric = ? AND interval = ? AND dpart = ? AND time >= ?"
                 + " AND time < ?");
 
-        findAvailabilitiesWithWriteTime = session.prepare(
+        findAvailabilitiesWithWriteTime = prepare(
             "SELECT tenant_id, metric, interval, dpart, time, meta_data, data_retention, availability, tags,"
                 + " WRITETIME(availability) " +
             "FROM data " +
             "WHERE tenant_id = ? AND type = ? AND metric = ? AND interval = ? AND dpart = ? AND time >= ?"
                 + " AND time < ?");
 
-        updateRetentionsIndex = session.prepare(
+        updateRetentionsIndex = prepare(
             "INSERT INTO retentions_idx (tenant_id, type, interval, metric, retention) VALUES (?, ?, ?, ?, ?)");
 
-        findDataRetentions = session.prepare(
+        findDataRetentions = prepare(
             "SELECT tenant_id, type, interval, metric, retention " +
             "FROM retentions_idx " +
             "WHERE tenant_id = ? AND type = ?");
@@ -19,27 +19,23 @@ package org.rhq.metrics.impl.cassandra;
 import static org.joda.time.Hours.hours;
 
 import java.io.IOException;
-import java.lang.management.ManagementFactory;
-import java.net.MalformedURLException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
-import javax.management.MBeanServerConnection;
 import javax.management.ObjectName;
-import javax.management.remote.JMXConnector;
-import javax.management.remote.JMXConnectorFactory;
-import javax.management.remote.JMXServiceURL;
 
 import org.joda.time.Duration;
 import org.joda.time.Hours;
@@ -61,6 +57,9 @@ import org.rhq.metrics.core.RetentionSettings;
 import org.rhq.metrics.core.SchemaManager;
 import org.rhq.metrics.core.Tenant;
 import org.rhq.metrics.core.TenantAlreadyExistsException;
+import org.rhq.metrics.impl.DataCopies;
+import org.rhq.metrics.impl.SingleFlight;
+import org.rhq.metrics.util.JmxSupport;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -88,6 +87,13 @@ public class MetricsServiceCassandra implements MetricsService {
 
     public static final String REQUEST_LIMIT = "rhq.metrics.request.limit";
 
+    /**
+     * How long to wait for a storage node to accept CQL connections at startup, in milliseconds
+     */
+    public static final String NODE_TIMEOUT = "nodetimeout";
+
+    public static final long DEFAULT_NODE_TIMEOUT = TimeUnit.SECONDS.toMillis(60);
+
     public static final int DEFAULT_TTL = Duration.standardDays(7).toStandardSeconds().getSeconds();
 
     private static final Function<ResultSet, Void> RESULT_SET_TO_VOID = resultSet -> null;
@@ -139,6 +145,74 @@ public class MetricsServiceCassandra implements MetricsService {
         }
     }
 
+    /**
+     * Identifies a raw data query, see {@link SingleFlight}.
+     */
+    private static class QueryKey {
+        private final String query;
+        private final String tenantId;
+        private final MetricId metricId;
+        private final long dpart;
+        private final long start;
+        private final long end;
+
+        public QueryKey(String query, Metric metric, long start, long end) {
+            this.query = query;
+            this.tenantId = metric.getTenantId();
+            this.metricId = metric.getId();
+            this.dpart = metric.getDpart();
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            QueryKey that = (QueryKey) o;
+
+            return start == that.start && end == that.end && dpart == that.dpart && query.equals(that.query) &&
+                tenantId.equals(that.tenantId) && metricId.equals(that.metricId);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = query.hashCode();
+            result = 31 * result + tenantId.hashCode();
+            result = 31 * result + metricId.hashCode();
+            result = 31 * result + (int) (dpart ^ (dpart >>> 32));
+            result = 31 * result + (int) (start ^ (start >>> 32));
+            result = 31 * result + (int) (end ^ (end >>> 32));
+            return result;
+        }
+    }
+
+    /**
+     * The durations of the startup phases, in the order they ended
+     */
+    private static class StartupTimings {
+
+        private final long start = System.nanoTime();
+
+        private final Map<String, Long> phases = Collections.synchronizedMap(new LinkedHashMap<>());
+
+        void record(String phase, long phaseStart) {
+            phases.put(phase, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - phaseStart));
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder buffer = new StringBuilder();
+            buffer.append(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).append(" ms (");
+            synchronized (phases) {
+                phases.forEach((phase, millis) -> buffer.append(phase).append(": ").append(millis).append(" ms, "));
+            }
+            buffer.setLength(buffer.length() - 2);
+            return buffer.append(")").toString();
+        }
+    }
+
     private final RateLimiter permits = RateLimiter.create(Double.parseDouble(
         System.getProperty(REQUEST_LIMIT, "30000")), 3, TimeUnit.MINUTES);
 
@@ -156,6 +230,17 @@ public class MetricsServiceCassandra implements MetricsService {
 
     private final Boolean embeddedCassandraServer;
 
+    // Dashboards opened at the same time issue the same raw data queries, only one of them is sent to Cassandra
+    private final SingleFlight<QueryKey, NumericMetric> numericDataQueries = new SingleFlight<>(DataCopies::copy);
+
+    private final SingleFlight<QueryKey, List<NumericData>> dataQueries = new SingleFlight<>(
+        DataCopies::copyData);
+
+    private final SingleFlight<QueryKey, AvailabilityMetric> availabilityDataQueries = new SingleFlight<>(
+        DataCopies::copy);
+
+    private final List<ObjectName> mbeanNames = new ArrayList<>();
+
     public MetricsServiceCassandra() {
         this(false);
     }
@@ -168,8 +253,8 @@ public class MetricsServiceCassandra implements MetricsService {
     public void startUp(Session s) {
         // the session is managed externally
         this.session = Optional.absent();
-        this.dataAccess = new DataAccessImpl(s);
-        loadDataRetentions();
+        initDataAccess(s);
+        registerMBeans();
     }
 
     @Override
@@ -190,16 +275,16 @@ public class MetricsServiceCassandra implements MetricsService {
             nodes = new String[] {"127.0.0.1"};
         }
 
-        // TODO: extend this to remote C* by using C* defaults
-        if (embeddedCassandraServer) {
-            verifyNodeIsUp(nodes[0], 9990, 10, 1000);
+        long nodeTimeout = DEFAULT_NODE_TIMEOUT;
+        if (params.containsKey(NODE_TIMEOUT)) {
+            try {
+                nodeTimeout = Long.parseLong(params.get(NODE_TIMEOUT));
+            } catch (NumberFormatException nfe) {
+                logger.warn("Invalid context param '" + NODE_TIMEOUT + "', not a number. Will use a default of " +
+                    DEFAULT_NODE_TIMEOUT);
+            }
         }
 
-        Cluster cluster = new Cluster.Builder()
-            .addContactPoints(nodes)
-            .withPort(port)
-            .build();
-
         String keyspace = params.get("keyspace");
         if (keyspace==null||keyspace.isEmpty()) {
             logger.debug("No keyspace given in params, checking system properties ...");
@@ -213,18 +298,77 @@ public class MetricsServiceCassandra implements MetricsService {
 
         logger.info("Using a key space of '" + keyspace + "'");
 
+        StartupTimings timings = new StartupTimings();
+
+        // Wait for the storage node while the schema is read
+        NativeTransportProbe probe = new NativeTransportProbe(nodes, port, nodeTimeout);
+        ListenableFuture<Boolean> nodeUp = metricsTasks.submit(() -> {
+            long probeStart = System.nanoTime();
+            boolean up = probe.await();
+            timings.record("node", probeStart);
+            return up;
+        });
+        long phaseStart = System.nanoTime();
+        List<String> schema;
+        try {
+            schema = SchemaManager.readSchema(keyspace);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read the schema", e);
+        }
+        timings.record("schema read", phaseStart);
+        try {
+            if (!nodeUp.get()) {
+                logger.warn("The {}storage node did not answer on port {} within {} ms, trying to connect anyway",
+                    embeddedCassandraServer ? "embedded " : "", port, nodeTimeout);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for the storage node", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Failed to wait for the storage node", e.getCause());
+        }
+
+        phaseStart = System.nanoTime();
+        Cluster cluster = new Cluster.Builder()
+            .addContactPoints(nodes)
+            .withPort(port)
+            .build();
         session = Optional.of(cluster.connect("system"));
+        timings.record("connect", phaseStart);
 
+        phaseStart = System.nanoTime();
         if (System.getProperty("cassandra.resetdb")!=null) {
             // We want a fresh DB -- mostly used for tests
             dropKeyspace(keyspace);
         }
         // This creates/updates the keyspace + tables if needed
-        updateSchemaIfNecessary(keyspace);
+        updateSchemaIfNecessary(keyspace, schema);
         session.get().execute("USE " + keyspace);
+        timings.record("schema", phaseStart);
 
-        dataAccess = new DataAccessImpl(session.get());
+        phaseStart = System.nanoTime();
+        initDataAccess(session.get());
+        timings.record("statements and retentions", phaseStart);
+        registerMBeans();
+        logger.info("Started in {}", timings);
+    }
+
+    /**
+     * Prepares the statements and loads the data retentions at the same time. The retentions only wait for the
+     * statements they use.
+     */
+    private void initDataAccess(Session s) {
+        DataAccessImpl dataAccessImpl = new DataAccessImpl(s);
+        dataAccess = dataAccessImpl;
         loadDataRetentions();
+        try {
+            dataAccessImpl.prepared().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while preparing statements", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Failed to prepare statements", e.getCause());
+        }
     }
 
     void loadDataRetentions() {
@@ -253,62 +397,6 @@ public class MetricsServiceCassandra implements MetricsService {
         dataRetentions.clear();
     }
 
-    boolean verifyNodeIsUp(String address, int jmxPort, int retries, long timeout) {
-        Boolean nativeTransportRunning = false;
-        for (int i = 0; i < retries || nativeTransportRunning; ++i) {
-            try {
-                MBeanServerConnection serverConnection = this.getMbeanServerConnection(address, jmxPort);
-                ObjectName storageService = new ObjectName("org.apache.cassandra.db:type=StorageService");
-                nativeTransportRunning = (Boolean) serverConnection.getAttribute(storageService,
-                        "NativeTransportRunning");
-
-                return nativeTransportRunning;
-            } catch (Exception e) {
-                if (i < retries) {
-                    if (logger.isDebugEnabled()) {
-                        logger.debug("The storage node is not up.", e);
-                    } else {
-                        Throwable rootCause = e.getCause();
-                        logger.error("The storage node is not up.", rootCause);
-                    }
-                    logger.error("Checking storage node status again in " + (timeout * (i + 1)) + " ms...");
-                }
-                try {
-                    Thread.sleep(timeout * (i + 1));
-                } catch (InterruptedException e1) {
-                    logger.error("Failed to connect to Cassandra cluster.", e1);
-                }
-            }
-        }
-        return false;
-    }
-
-    private MBeanServerConnection getMbeanServerConnection(String address, int jmxPort) throws IOException {
-        if (embeddedCassandraServer) {
-            return ManagementFactory.getPlatformMBeanServer();
-        }
-
-        String url = "service:jmx:rmi:///jndi/rmi://" + address + ":" + jmxPort + "/jmxrmi";
-        JMXServiceURL serviceURL;
-        try {
-            serviceURL = new JMXServiceURL(url);
-        } catch (MalformedURLException ex) {
-            logger.error("Failed to verify that Cassandra cluster is running", ex);
-            throw ex;
-        }
-
-        // Sleep a few seconds to work around
-        // https://issues.apache.org/jira/browse/CASSANDRA-5467
-        try {
-            Thread.sleep(3000);
-        } catch (InterruptedException ignored) {
-        }
-
-        Map<String, String> env = new HashMap<String, String>();
-        JMXConnector connector = JMXConnectorFactory.connect(serviceURL, env);
-        return connector.getMBeanServerConnection();
-    }
-
     private class DataRetentionsLoadedCallback implements FutureCallback<Set<Retention>> {
 
         private final String tenantId;
@@ -342,6 +430,10 @@ public class MetricsServiceCassandra implements MetricsService {
 
     @Override
     public void shutdown() {
+        for (ObjectName name : mbeanNames) {
+            JmxSupport.unregister(name);
+        }
+        mbeanNames.clear();
         if(session.isPresent()) {
             Session s = session.get();
             s.close();
@@ -349,6 +441,19 @@ public class MetricsServiceCassandra implements MetricsService {
         }
     }
 
+    private void registerMBeans() {
+        registerMBean(numericDataQueries, "findNumericData");
+        registerMBean(dataQueries, "findData");
+        registerMBean(availabilityDataQueries, "findAvailabilityData");
+    }
+
+    private void registerMBean(Object mbean, String query) {
+        ObjectName name = JmxSupport.register(mbean, "org.rhq.metrics:type=SingleFlight,query=" + query);
+        if (name != null) {
+            mbeanNames.add(name);
+        }
+    }
+
     /**
      * This is a test hook.
      */
@@ -554,20 +659,26 @@ public class MetricsServiceCassandra implements MetricsService {
         // the start and end params. And it is possible the the date range spans multiple
         // date partitions.
         metric.setDpart(Metric.DPART);
-        ResultSetFuture queryFuture = dataAccess.findData(metric, start, end);
-        return Futures.transform(queryFuture, new NumericMetricMapper(), metricsTasks);
+        return numericDataQueries.execute(new QueryKey("findNumericData", metric, start, end), () -> {
+            ResultSetFuture queryFuture = dataAccess.findData(metric, start, end);
+            return Futures.transform(queryFuture, new NumericMetricMapper(), metricsTasks);
+        });
     }
 
     @Override
     public ListenableFuture<AvailabilityMetric> findAvailabilityData(AvailabilityMetric metric, long start, long end) {
-        ResultSetFuture queryFuture = dataAccess.findAvailabilityData(metric, start, end);
-        return Futures.transform(queryFuture, new AvailabilityMetricMapper(), metricsTasks);
+        return availabilityDataQueries.execute(new QueryKey("findAvailabilityData", metric, start, end), () -> {
+            ResultSetFuture queryFuture = dataAccess.findAvailabilityData(metric, start, end);
+            return Futures.transform(queryFuture, new AvailabilityMetricMapper(), metricsTasks);
+        });
     }
 
     @Override
     public ListenableFuture<List<NumericData>> findData(NumericMetric metric, long start, long end) {
-        ResultSetFuture future = dataAccess.findData(metric, start, end);
-        return Futures.transform(future, new NumericDataMapper(), metricsTasks);
+        return dataQueries.execute(new QueryKey("findData", metric, start, end), () -> {
+            ResultSetFuture future = dataAccess.findData(metric, start, end);
+            return Futures.transform(future, new NumericDataMapper(), metricsTasks);
+        });
     }
 
     @Override
@@ -787,10 +898,10 @@ public class MetricsServiceCassandra implements MetricsService {
         return ttl;
     }
 
-    private void updateSchemaIfNecessary(String schemaName) {
+    private void updateSchemaIfNecessary(String schemaName, List<String> schema) {
         try {
             SchemaManager schemaManager = new SchemaManager(session.get());
-            schemaManager.createSchema(schemaName);
+            schemaManager.createSchema(schemaName, schema);
         } catch (IOException e) {
             throw new RuntimeException("Schema creation failed", e);
         }
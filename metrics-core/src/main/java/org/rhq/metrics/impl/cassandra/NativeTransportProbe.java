@@ -0,0 +1,108 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rhq.metrics.impl.cassandra;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Waits for the CQL native transport of a storage node to answer. Every attempt sends an OPTIONS request, which needs
+ * neither authentication nor a keyspace, to each node in turn. Attempts are repeated with exponential backoff until a
+ * node answers or the deadline passes.
+ */
+class NativeTransportProbe {
+
+    private static final Logger logger = LoggerFactory.getLogger(NativeTransportProbe.class);
+
+    private static final long MIN_DELAY = 10;
+
+    private static final long MAX_DELAY = TimeUnit.SECONDS.toMillis(1);
+
+    private static final int MAX_ATTEMPT_TIMEOUT = (int) TimeUnit.SECONDS.toMillis(2);
+
+    /**
+     * A version 2 OPTIONS frame: version, flags, stream id, opcode and an empty body. Nodes which do not support this
+     * version of the protocol answer with an error, which is just as good a sign that they are up.
+     */
+    private static final byte[] OPTIONS = {0x02, 0x00, 0x00, 0x05, 0x00, 0x00, 0x00, 0x00};
+
+    private final String[] nodes;
+
+    private final int port;
+
+    private final long timeout;
+
+    /**
+     * @param timeout How long to wait for a node to answer in milliseconds
+     */
+    NativeTransportProbe(String[] nodes, int port, long timeout) {
+        this.nodes = nodes;
+        this.port = port;
+        this.timeout = timeout;
+    }
+
+    /**
+     * @return True if a node answered before the deadline
+     */
+    boolean await() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        long delay = MIN_DELAY;
+        for (int attempt = 1; ; attempt++) {
+            for (String node : nodes) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (probe(node.trim(), (int) Math.max(1, Math.min(MAX_ATTEMPT_TIMEOUT, remaining)))) {
+                    logger.debug("The native transport of {} answered after {} attempts", node, attempt);
+                    return true;
+                }
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            if (attempt == 1) {
+                logger.info("Waiting up to {} ms for the native transport on port {} of {}", remaining, port,
+                    String.join(",", nodes));
+            }
+            Thread.sleep(Math.min(delay, remaining));
+            delay = Math.min(MAX_DELAY, delay * 2);
+        }
+    }
+
+    private boolean probe(String node, int attemptTimeout) {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(node, port), attemptTimeout);
+            socket.setSoTimeout(attemptTimeout);
+            OutputStream out = socket.getOutputStream();
+            out.write(OPTIONS);
+            out.flush();
+            InputStream in = socket.getInputStream();
+            int version = in.read();
+            // The version byte of responses has the direction bit set
+            return version != -1 && (version & 0x80) != 0;
+        } catch (IOException e) {
+            logger.trace("The native transport of {} did not answer", node, e);
+            return false;
+        }
+    }
+}
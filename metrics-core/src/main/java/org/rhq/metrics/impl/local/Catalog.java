@@ -0,0 +1,297 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rhq.metrics.impl.local;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.rhq.metrics.core.AggregationTemplate;
+import org.rhq.metrics.core.Interval;
+import org.rhq.metrics.core.MetricId;
+import org.rhq.metrics.core.MetricType;
+import org.rhq.metrics.core.RetentionSettings;
+import org.rhq.metrics.core.Tenant;
+import org.rhq.metrics.impl.LogFile;
+
+/**
+ * Everything but the data points: tenants, metrics with their metadata, counters and tags, as a {@link LogFile log}
+ * of changes. The log is replayed when the store is opened and then compacted to the current state.
+ */
+final class Catalog implements Closeable {
+
+    interface Visitor {
+        void tenant(Tenant tenant);
+
+        void series(int key, String tenantId, MetricType type, MetricId id, Map<String, String> metadata,
+            Integer dataRetention);
+
+        void metadata(int key, Map<String, String> additions, Set<String> deletions);
+
+        void counter(String group, String name, long value);
+
+        void tags(int key, Set<String> tags, long[] timestamps);
+    }
+
+    interface Writer {
+        void write(Catalog catalog) throws IOException;
+    }
+
+    private interface Encoder {
+        void encode(DataOutput out) throws IOException;
+    }
+
+    private static final byte TENANT = 1;
+
+    private static final byte SERIES = 2;
+
+    private static final byte METADATA = 3;
+
+    private static final byte COUNTER = 4;
+
+    private static final byte TAGS = 5;
+
+    private final Path path;
+
+    private LogFile log;
+
+    Catalog(Path path) throws IOException {
+        this.path = path;
+        log = new LogFile(path);
+    }
+
+    void replay(Visitor visitor) throws IOException {
+        log.replay(record -> {
+            DataInput in = new DataInputStream(new ByteArrayInputStream(record.array(), record.position(),
+                record.remaining()));
+            byte type = in.readByte();
+            switch (type) {
+            case TENANT:
+                visitor.tenant(readTenant(in));
+                break;
+            case SERIES:
+                int key = in.readInt();
+                String tenantId = in.readUTF();
+                MetricType metricType = MetricType.fromCode(in.readInt());
+                MetricId id = new MetricId(in.readUTF(), Interval.parse(in.readUTF()));
+                Map<String, String> metadata = readMap(in);
+                int retention = in.readInt();
+                visitor.series(key, tenantId, metricType, id, metadata, retention < 0 ? null : retention);
+                break;
+            case METADATA:
+                visitor.metadata(in.readInt(), readMap(in), readSet(in));
+                break;
+            case COUNTER:
+                visitor.counter(in.readUTF(), in.readUTF(), in.readLong());
+                break;
+            case TAGS:
+                int series = in.readInt();
+                Set<String> tags = readSet(in);
+                long[] timestamps = new long[in.readInt()];
+                for (int i = 0; i < timestamps.length; i++) {
+                    timestamps[i] = in.readLong();
+                }
+                visitor.tags(series, tags, timestamps);
+                break;
+            default:
+                throw new IOException("Unknown catalog record type " + type);
+            }
+        });
+    }
+
+    void addTenant(Tenant tenant) throws IOException {
+        append(out -> {
+            out.writeByte(TENANT);
+            out.writeUTF(tenant.getId());
+            RetentionSettings retentions = tenant.getRetentionSettings();
+            out.writeInt(retentions.keySet().size());
+            for (RetentionSettings.RetentionKey key : retentions.keySet()) {
+                out.writeInt(key.metricType.getCode());
+                writeInterval(out, key.interval);
+                out.writeInt(retentions.get(key));
+            }
+            out.writeInt(tenant.getAggregationTemplates().size());
+            for (AggregationTemplate template : tenant.getAggregationTemplates()) {
+                out.writeInt(template.getType().getCode());
+                writeInterval(out, template.getInterval());
+                writeSet(out, template.getFunctions() == null ? new HashSet<>() : template.getFunctions());
+            }
+        });
+    }
+
+    private static Tenant readTenant(DataInput in) throws IOException {
+        Tenant tenant = new Tenant().setId(in.readUTF());
+        for (int i = in.readInt(); i > 0; i--) {
+            MetricType type = MetricType.fromCode(in.readInt());
+            Interval interval = readInterval(in);
+            int hours = in.readInt();
+            if (interval == null) {
+                tenant.setRetention(type, hours);
+            } else {
+                tenant.setRetention(type, interval, hours);
+            }
+        }
+        for (int i = in.readInt(); i > 0; i--) {
+            tenant.addAggregationTemplate(new AggregationTemplate().setType(MetricType.fromCode(in.readInt()))
+                .setInterval(readInterval(in)).setFunctions(readSet(in)));
+        }
+        return tenant;
+    }
+
+    void addSeries(LocalSeries series) throws IOException {
+        Map<String, String> metadata = series.getMetadata();
+        Integer retention = series.getDataRetention();
+        append(out -> {
+            out.writeByte(SERIES);
+            out.writeInt(series.key);
+            out.writeUTF(series.tenantId);
+            out.writeInt(series.type.getCode());
+            out.writeUTF(series.id.getName());
+            out.writeUTF(series.id.getInterval().toString());
+            writeMap(out, metadata);
+            out.writeInt(retention == null ? -1 : retention);
+        });
+    }
+
+    void updateMetadata(int key, Map<String, String> additions, Set<String> deletions) throws IOException {
+        append(out -> {
+            out.writeByte(METADATA);
+            out.writeInt(key);
+            writeMap(out, additions);
+            writeSet(out, deletions);
+        });
+    }
+
+    void setCounter(String group, String name, long value) throws IOException {
+        append(out -> {
+            out.writeByte(COUNTER);
+            out.writeUTF(group);
+            out.writeUTF(name);
+            out.writeLong(value);
+        });
+    }
+
+    void addTags(int key, Set<String> tags, long[] timestamps) throws IOException {
+        append(out -> {
+            out.writeByte(TAGS);
+            out.writeInt(key);
+            writeSet(out, tags);
+            out.writeInt(timestamps.length);
+            for (long timestamp : timestamps) {
+                out.writeLong(timestamp);
+            }
+        });
+    }
+
+    private void append(Encoder encoder) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        encoder.encode(out);
+        out.flush();
+        log.append(bytes.toByteArray());
+    }
+
+    /**
+     * Forces the records appended so far to the storage device.
+     */
+    void force() throws IOException {
+        log.force();
+    }
+
+    /**
+     * Replaces the log with the records written by the writer, which should describe the current state.
+     */
+    synchronized void compact(Writer writer) throws IOException {
+        Path compacted = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.deleteIfExists(compacted);
+        try (Catalog catalog = new Catalog(compacted)) {
+            writer.write(catalog);
+            catalog.force();
+        }
+        log.close();
+        Files.move(compacted, path, ATOMIC_MOVE, REPLACE_EXISTING);
+        log = new LogFile(path);
+    }
+
+    long size() {
+        return log.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        log.close();
+    }
+
+    private static void writeInterval(DataOutput out, Interval interval) throws IOException {
+        out.writeBoolean(interval != null);
+        if (interval != null) {
+            out.writeUTF(interval.toString());
+        }
+    }
+
+    private static Interval readInterval(DataInput in) throws IOException {
+        return in.readBoolean() ? Interval.parse(in.readUTF()) : null;
+    }
+
+    private static void writeMap(DataOutput out, Map<String, String> map) throws IOException {
+        out.writeInt(map == null ? 0 : map.size());
+        if (map != null) {
+            for (Map.Entry<String, String> entry : map.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeUTF(entry.getValue());
+            }
+        }
+    }
+
+    private static Map<String, String> readMap(DataInput in) throws IOException {
+        Map<String, String> map = new HashMap<>();
+        for (int i = in.readInt(); i > 0; i--) {
+            map.put(in.readUTF(), in.readUTF());
+        }
+        return map;
+    }
+
+    private static void writeSet(DataOutput out, Collection<String> set) throws IOException {
+        out.writeInt(set.size());
+        for (String s : set) {
+            out.writeUTF(s);
+        }
+    }
+
+    private static Set<String> readSet(DataInput in) throws IOException {
+        Set<String> set = new HashSet<>();
+        for (int i = in.readInt(); i > 0; i--) {
+            set.add(in.readUTF());
+        }
+        return set;
+    }
+}
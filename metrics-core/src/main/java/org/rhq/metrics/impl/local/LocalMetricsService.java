@@ -0,0 +1,1212 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rhq.metrics.impl.local;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongSupplier;
+
+import javax.management.ObjectName;
+
+import com.datastax.driver.core.Session;
+import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.rhq.metrics.core.Availability;
+import org.rhq.metrics.core.AvailabilityMetric;
+import org.rhq.metrics.core.AvailabilityType;
+import org.rhq.metrics.core.Counter;
+import org.rhq.metrics.core.Metric;
+import org.rhq.metrics.core.MetricAlreadyExistsException;
+import org.rhq.metrics.core.MetricData;
+import org.rhq.metrics.core.MetricId;
+import org.rhq.metrics.core.MetricType;
+import org.rhq.metrics.core.MetricsService;
+import org.rhq.metrics.core.NumericData;
+import org.rhq.metrics.core.NumericMetric;
+import org.rhq.metrics.core.RetentionSettings;
+import org.rhq.metrics.core.Tag;
+import org.rhq.metrics.core.Tenant;
+import org.rhq.metrics.core.TenantAlreadyExistsException;
+import org.rhq.metrics.impl.LogFile;
+import org.rhq.metrics.util.JmxSupport;
+
+/**
+ * <p>
+ * A persistent storage backend which runs inside the application, for single node and edge deployments which do not
+ * warrant a Cassandra cluster. It starts in milliseconds and its memory use is limited to a small index.
+ * </p>
+ * <p>
+ * Data points are appended to memory-mapped {@link Segment segment} files, one per tenant and time partition (one
+ * day by default), below the data directory. An in-memory index keeps the record numbers of every metric per
+ * segment, so a range query reads only the records of the metric in the partitions it intersects. Like the Cassandra
+ * backend, queries return data newest first, the end of a range is exclusive, a data point written twice keeps the
+ * latest value, and data expires after the data retention of the metric, of the tenant, or 7 days. A segment is
+ * deleted once all of its data points have expired. Tenants, metrics, metadata, counters and tags are kept in memory
+ * and persisted in the {@link Catalog catalog}.
+ * </p>
+ * <p>
+ * Every write is first appended to a write-ahead log and then to the segments. Unless the {@link #SYNC} startup
+ * parameter is false, the write completes once a single flusher thread forced the log to the storage device; writes
+ * which arrive while it is busy are made durable together by the next force (group commit). A checkpoint every few
+ * seconds forces the segments and empties the log. After a crash, the segment records which were not yet committed by
+ * a checkpoint are discarded and the log is replayed.
+ * </p>
+ * <p>
+ * Statistics are exposed through the org.rhq.metrics:type=LocalMetricsService MBean.
+ * </p>
+ */
+public class LocalMetricsService implements MetricsService, LocalMetricsServiceMBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(LocalMetricsService.class);
+
+    public static final String OBJECT_NAME = "org.rhq.metrics:type=LocalMetricsService";
+
+    /**
+     * Startup parameter for the data directory. It defaults to the rhq-metrics.local-dir system property, or
+     * rhq-metrics in the data directory of the application server or, outside of one, in the temporary directory.
+     */
+    public static final String DIRECTORY = "local-dir";
+
+    /**
+     * Startup parameter; if false, writes complete before the write-ahead log is forced to the storage device, and a
+     * crash of the operating system can lose the writes since the last checkpoint.
+     */
+    public static final String SYNC = "local-sync";
+
+    public static final long DEFAULT_PARTITION_SIZE = TimeUnit.DAYS.toMillis(1);
+
+    public static final int DEFAULT_TTL = (int) TimeUnit.DAYS.toSeconds(7);
+
+    private static final long CHECKPOINT_INTERVAL = TimeUnit.SECONDS.toMillis(10);
+
+    private static final long SWEEP_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+
+    private static final String CATALOG = "catalog.log";
+
+    private static final String WAL = "wal.log";
+
+    private static final String DATA = "data";
+
+    private static final ListenableFuture<Void> VOID_FUTURE = Futures.immediateFuture(null);
+
+    private static final Comparator<Metric> METRICS_INDEX_ORDER = Comparator
+        .comparing((Metric m) -> m.getId().getInterval().toString())
+        .thenComparing(m -> m.getId().getName());
+
+    private static final BaseEncoding DIRECTORY_NAMES = BaseEncoding.base16().lowerCase();
+
+    private static class TenantData {
+        final String id;
+
+        volatile Tenant tenant;
+
+        /**
+         * Tenant level data retentions of raw data in seconds
+         */
+        final Map<MetricType, Integer> retentions = new ConcurrentHashMap<>();
+
+        final ConcurrentMap<MetricId, LocalSeries> numeric = new ConcurrentHashMap<>();
+
+        final ConcurrentMap<MetricId, LocalSeries> availability = new ConcurrentHashMap<>();
+
+        /**
+         * The series which have data points with a tag, per tag
+         */
+        final ConcurrentMap<String, Set<LocalSeries>> numericTags = new ConcurrentHashMap<>();
+
+        final ConcurrentMap<String, Set<LocalSeries>> availabilityTags = new ConcurrentHashMap<>();
+
+        /**
+         * The segments by the start of their partition
+         */
+        final ConcurrentNavigableMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+
+        TenantData(String id) {
+            this.id = id;
+        }
+
+        ConcurrentMap<MetricId, LocalSeries> series(MetricType type) {
+            switch (type) {
+            case NUMERIC: return numeric;
+            case AVAILABILITY: return availability;
+            default: throw new IllegalArgumentException(type + " is not supported");
+            }
+        }
+
+        ConcurrentMap<String, Set<LocalSeries>> tags(MetricType type) {
+            return type == MetricType.NUMERIC ? numericTags : availabilityTags;
+        }
+
+        int ttl(MetricType type) {
+            Integer ttl = retentions.get(type);
+            return ttl == null ? DEFAULT_TTL : ttl;
+        }
+
+        void setTenant(Tenant tenant) {
+            for (RetentionSettings.RetentionKey key : tenant.getRetentionSettings().keySet()) {
+                if (key.interval == null) {
+                    int hours = tenant.getRetentionSettings().get(key);
+                    retentions.put(key.metricType, (int) TimeUnit.HOURS.toSeconds(hours));
+                }
+            }
+            this.tenant = tenant;
+        }
+    }
+
+    /**
+     * A data point read from a segment
+     */
+    private static class Point {
+        final Segment segment;
+        final int record;
+
+        Point(Segment segment, int record) {
+            this.segment = segment;
+            this.record = record;
+        }
+
+        long timestamp() {
+            return segment.timestamp(record);
+        }
+
+        long value() {
+            return segment.value(record);
+        }
+
+        int remainingTTL(long now) {
+            return (int) ((segment.expiresAt(record) - now) / 1000);
+        }
+    }
+
+    private interface PointFactory<T extends MetricData> {
+        T create(LocalSeries series, Point point);
+    }
+
+    private final ConcurrentMap<String, TenantData> tenants = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<Integer, LocalSeries> seriesByKey = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, ConcurrentNavigableMap<String, AtomicLong>> counters =
+        new ConcurrentHashMap<>();
+
+    private final long partitionSize;
+
+    private final LongSupplier clock;
+
+    /**
+     * Writers share it, checkpoints and segment deletions take it exclusively.
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private int nextKey;
+
+    private Path directory;
+
+    private boolean sync = true;
+
+    private Catalog catalog;
+
+    private LogFile wal;
+
+    /**
+     * The writes waiting for the write-ahead log to be forced, by their sequence number. Appends to the log, the
+     * sequence numbers and {@link #flushing} are synchronized on it.
+     */
+    private final TreeMap<Long, SettableFuture<Void>> pending = new TreeMap<>();
+
+    private long nextSequence;
+
+    private boolean flushing;
+
+    private Thread flusher;
+
+    private final AtomicLong flushes = new AtomicLong();
+
+    private final AtomicLong flushedWrites = new AtomicLong();
+
+    private ScheduledExecutorService scheduler;
+
+    private ObjectName objectName;
+
+    private final AtomicLong deletedSegments = new AtomicLong();
+
+    private final AtomicLong checkpoints = new AtomicLong();
+
+    private long recoveredRecords;
+
+    private long startupMillis;
+
+    public LocalMetricsService() {
+        this(DEFAULT_PARTITION_SIZE, System::currentTimeMillis);
+    }
+
+    /**
+     * @param partitionSize The time window of a segment in milliseconds
+     * @param clock The current time in milliseconds
+     */
+    LocalMetricsService(long partitionSize, LongSupplier clock) {
+        this.partitionSize = partitionSize;
+        this.clock = clock;
+    }
+
+    @Override
+    public void startUp(Session session) {
+        throw new IllegalArgumentException("Not supported");
+    }
+
+    @Override
+    public void startUp(Map<String, String> params) {
+        long begin = System.nanoTime();
+        String dir = params.get(DIRECTORY);
+        if (dir == null) {
+            dir = System.getProperty("rhq-metrics.local-dir");
+        }
+        if (dir == null) {
+            dir = System.getProperty("jboss.server.data.dir", System.getProperty("java.io.tmpdir"));
+            directory = Paths.get(dir, "rhq-metrics");
+        } else {
+            directory = Paths.get(dir);
+        }
+        sync = !"false".equals(params.get(SYNC));
+        try {
+            open();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not open the data directory " + directory, e);
+        }
+        startupMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+        logger.info("Opened {} with {} metrics and {} segments in {} ms, {} records recovered", directory,
+            seriesByKey.size(), getSegmentCount(), startupMillis, recoveredRecords);
+
+        if (sync) {
+            flushing = true;
+            flusher = new Thread(this::flush, "LocalMetricsService-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "LocalMetricsService-maintenance");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::checkpointQuietly, CHECKPOINT_INTERVAL, CHECKPOINT_INTERVAL,
+            TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(this::sweepQuietly, SWEEP_INTERVAL, SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+        objectName = JmxSupport.register(this, OBJECT_NAME);
+    }
+
+    /**
+     * Loads the catalog and the segments, and recovers the writes which were not yet checkpointed.
+     */
+    private void open() throws IOException {
+        Files.createDirectories(directory.resolve(DATA));
+        catalog = new Catalog(directory.resolve(CATALOG));
+        catalog.replay(new CatalogLoader());
+        catalog.compact(this::writeCatalog);
+
+        try (DirectoryStream<Path> tenantDirs = Files.newDirectoryStream(directory.resolve(DATA))) {
+            for (Path tenantDir : tenantDirs) {
+                String tenantId = new String(DIRECTORY_NAMES.decode(tenantDir.getFileName().toString()),
+                    StandardCharsets.UTF_8);
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(tenantDir, "*" + Segment.SUFFIX)) {
+                    for (Path file : files) {
+                        loadSegment(tenant(tenantId), Segment.open(file));
+                    }
+                }
+            }
+        }
+
+        wal = new LogFile(directory.resolve(WAL));
+        recoveredRecords = wal.replay(this::apply);
+        checkpoint();
+    }
+
+    private void loadSegment(TenantData tenant, Segment segment) {
+        tenant.segments.put(segment.start, segment);
+        for (int record = 0, size = segment.size(); record < size; record++) {
+            LocalSeries series = seriesByKey.get(segment.series(record));
+            if (series != null) {
+                series.index(segment, record);
+            }
+        }
+    }
+
+    private class CatalogLoader implements Catalog.Visitor {
+        @Override
+        public void tenant(Tenant tenant) {
+            LocalMetricsService.this.tenant(tenant.getId()).setTenant(tenant);
+        }
+
+        @Override
+        public void series(int key, String tenantId, MetricType type, MetricId id, Map<String, String> metadata,
+            Integer dataRetention) {
+            LocalSeries series = new LocalSeries(key, tenantId, type, id);
+            series.define(metadata, dataRetention);
+            register(series);
+            nextKey = Math.max(nextKey, key + 1);
+        }
+
+        @Override
+        public void metadata(int key, Map<String, String> additions, Set<String> deletions) {
+            LocalSeries series = seriesByKey.get(key);
+            if (series != null) {
+                series.updateMetadata(additions, deletions);
+            }
+        }
+
+        @Override
+        public void counter(String group, String name, long value) {
+            LocalMetricsService.this.counter(group, name).set(value);
+        }
+
+        @Override
+        public void tags(int key, Set<String> tags, long[] timestamps) {
+            LocalSeries series = seriesByKey.get(key);
+            if (series != null) {
+                for (long timestamp : timestamps) {
+                    series.tag(timestamp, tags);
+                }
+                indexTags(series, tags);
+            }
+        }
+    }
+
+    /**
+     * Writes the current state, which replaces the history of changes in the catalog.
+     */
+    private void writeCatalog(Catalog target) throws IOException {
+        for (TenantData tenant : tenants.values()) {
+            if (tenant.tenant != null) {
+                target.addTenant(tenant.tenant);
+            }
+        }
+        for (LocalSeries series : new TreeMap<>(seriesByKey).values()) {
+            target.addSeries(series);
+            Map<Set<String>, List<Long>> timestampsByTags = new HashMap<>();
+            series.getTags().forEach((timestamp, tags) -> timestampsByTags.computeIfAbsent(tags,
+                key -> new ArrayList<>()).add(timestamp));
+            for (Map.Entry<Set<String>, List<Long>> entry : timestampsByTags.entrySet()) {
+                target.addTags(series.key, entry.getKey(), entry.getValue().stream().mapToLong(Long::longValue)
+                    .toArray());
+            }
+        }
+        for (Map.Entry<String, ConcurrentNavigableMap<String, AtomicLong>> group : counters.entrySet()) {
+            for (Map.Entry<String, AtomicLong> counter : group.getValue().entrySet()) {
+                target.setCounter(group.getKey(), counter.getKey(), counter.getValue().get());
+            }
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        JmxSupport.unregister(objectName);
+        objectName = null;
+        if (flusher != null) {
+            // The flusher makes the pending writes durable before it ends
+            synchronized (pending) {
+                flushing = false;
+                pending.notifyAll();
+            }
+            try {
+                flusher.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            flusher = null;
+        }
+        if (wal == null) {
+            return;
+        }
+        try {
+            checkpoint();
+            wal.close();
+            catalog.close();
+            for (TenantData tenant : tenants.values()) {
+                for (Segment segment : tenant.segments.values()) {
+                    segment.close();
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Could not close " + directory, e);
+        }
+        wal = null;
+    }
+
+    private TenantData tenant(String tenantId) {
+        TenantData tenant = tenants.get(tenantId);
+        if (tenant == null) {
+            tenant = tenants.computeIfAbsent(tenantId, TenantData::new);
+        }
+        return tenant;
+    }
+
+    private LocalSeries findSeries(String tenantId, MetricType type, MetricId id) {
+        TenantData tenant = tenants.get(tenantId);
+        return tenant == null ? null : tenant.series(type).get(id);
+    }
+
+    private void register(LocalSeries series) {
+        seriesByKey.put(series.key, series);
+        tenant(series.tenantId).series(series.type).put(series.id, series);
+    }
+
+    /**
+     * @return The series of the metric, which is created if necessary
+     */
+    private LocalSeries series(String tenantId, MetricType type, MetricId id) throws IOException {
+        LocalSeries series = findSeries(tenantId, type, id);
+        if (series != null) {
+            return series;
+        }
+        synchronized (this) {
+            series = findSeries(tenantId, type, id);
+            if (series == null) {
+                series = new LocalSeries(nextKey++, tenantId, type, id);
+                catalog.addSeries(series);
+                catalog.force();
+                register(series);
+            }
+            return series;
+        }
+    }
+
+    private AtomicLong counter(String group, String name) {
+        ConcurrentNavigableMap<String, AtomicLong> row = counters.get(group);
+        if (row == null) {
+            row = counters.computeIfAbsent(group, key -> new ConcurrentSkipListMap<>());
+        }
+        AtomicLong value = row.get(name);
+        if (value == null) {
+            value = row.computeIfAbsent(name, key -> new AtomicLong());
+        }
+        return value;
+    }
+
+    private void indexTags(LocalSeries series, Set<String> tags) {
+        for (String tag : tags) {
+            tenant(series.tenantId).tags(series.type).compute(tag, (key, set) -> {
+                Set<LocalSeries> result = set == null ? new HashSet<>() : set;
+                result.add(series);
+                return result;
+            });
+        }
+    }
+
+    @Override
+    public ListenableFuture<Void> createTenant(Tenant tenant) {
+        TenantData data = tenant(tenant.getId());
+        synchronized (data) {
+            if (data.tenant != null) {
+                return Futures.immediateFailedFuture(new TenantAlreadyExistsException(tenant.getId()));
+            }
+            try {
+                catalog.addTenant(tenant);
+                catalog.force();
+            } catch (IOException e) {
+                return Futures.immediateFailedFuture(e);
+            }
+            data.setTenant(tenant);
+        }
+        return VOID_FUTURE;
+    }
+
+    @Override
+    public ListenableFuture<List<Tenant>> getTenants() {
+        List<Tenant> result = new ArrayList<>();
+        for (TenantData tenant : tenants.values()) {
+            if (tenant.tenant != null) {
+                result.add(tenant.tenant);
+            }
+        }
+        return Futures.immediateFuture(result);
+    }
+
+    @Override
+    public ListenableFuture<Void> createMetric(Metric metric) {
+        synchronized (this) {
+            if (findSeries(metric.getTenantId(), metric.getType(), metric.getId()) != null) {
+                return Futures.immediateFailedFuture(new MetricAlreadyExistsException(metric));
+            }
+            LocalSeries series = new LocalSeries(nextKey++, metric.getTenantId(), metric.getType(), metric.getId());
+            series.define(metric.getMetadata(), metric.getDataRetention());
+            try {
+                catalog.addSeries(series);
+                catalog.force();
+            } catch (IOException e) {
+                return Futures.immediateFailedFuture(e);
+            }
+            register(series);
+        }
+        return VOID_FUTURE;
+    }
+
+    @Override
+    public ListenableFuture<Metric> findMetric(String tenantId, MetricType type, MetricId id) {
+        if (type == MetricType.LOG_EVENT) {
+            throw new IllegalArgumentException(MetricType.LOG_EVENT + " is not yet supported");
+        }
+        LocalSeries series = findSeries(tenantId, type, id);
+        return Futures.immediateFuture(series == null ? null : series.toMetric());
+    }
+
+    @Override
+    public ListenableFuture<List<Metric>> findMetrics(String tenantId, MetricType type) {
+        if (type == MetricType.LOG_EVENT) {
+            throw new IllegalArgumentException(type + " is not supported");
+        }
+        List<Metric> metrics = new ArrayList<>();
+        TenantData tenant = tenants.get(tenantId);
+        if (tenant != null) {
+            for (LocalSeries series : tenant.series(type).values()) {
+                metrics.add(series.toMetric());
+            }
+            metrics.sort(METRICS_INDEX_ORDER);
+        }
+        return Futures.immediateFuture(metrics);
+    }
+
+    @Override
+    public ListenableFuture<Void> updateMetadata(Metric metric, Map<String, String> metadata, Set<String> deletions) {
+        try {
+            LocalSeries series = series(metric.getTenantId(), metric.getType(), metric.getId());
+            updateMetadata(series, metadata, deletions);
+            catalog.force();
+        } catch (IOException e) {
+            return Futures.immediateFailedFuture(e);
+        }
+        return VOID_FUTURE;
+    }
+
+    private void updateMetadata(LocalSeries series, Map<String, String> metadata, Set<String> deletions)
+        throws IOException {
+        // Serialized, so the catalog records are in the order the changes are applied
+        synchronized (series) {
+            if (series.updateMetadata(metadata, deletions)) {
+                catalog.updateMetadata(series.key, metadata, deletions);
+            }
+        }
+    }
+
+    @Override
+    public ListenableFuture<Void> addNumericData(List<NumericMetric> metrics) {
+        return write(metrics, d -> Double.doubleToLongBits(d.getValue()));
+    }
+
+    @Override
+    public ListenableFuture<Void> addAvailabilityData(List<AvailabilityMetric> metrics) {
+        return write(metrics, a -> a.getType().getCode());
+    }
+
+    private interface ValueEncoder<T extends MetricData> {
+        long encode(T data);
+    }
+
+    /**
+     * Appends the data points to the write-ahead log as one record and applies it to the segments. The result
+     * completes once the record is durable, if configured.
+     */
+    private <T extends MetricData> ListenableFuture<Void> write(List<? extends Metric<T>> metrics,
+        ValueEncoder<T> encoder) {
+        long now = clock.getAsLong();
+        ListenableFuture<Void> durable;
+        lock.readLock().lock();
+        try {
+            int count = 0;
+            for (Metric<T> metric : metrics) {
+                count += metric.getData().size();
+            }
+            ByteBuffer batch = ByteBuffer.allocate(count * Segment.RECORD_BYTES);
+            boolean metadataChanged = false;
+            for (Metric<T> metric : metrics) {
+                TenantData tenant = tenant(metric.getTenantId());
+                LocalSeries series = series(metric.getTenantId(), metric.getType(), metric.getId());
+                if (metric.getMetadata() != null && !metric.getMetadata().isEmpty()) {
+                    updateMetadata(series, metric.getMetadata(), Collections.emptySet());
+                    metadataChanged = true;
+                }
+                Integer retention = series.getDataRetention();
+                long expiresAt = now + 1000L * (retention == null ? tenant.ttl(series.type) : retention);
+                for (T d : metric.getData()) {
+                    batch.putInt(series.key).putLong(d.getTimestamp()).putLong(encoder.encode(d)).putLong(expiresAt);
+                }
+            }
+            if (metadataChanged) {
+                catalog.force();
+            }
+            if (count == 0) {
+                return VOID_FUTURE;
+            }
+            durable = append(batch.array());
+            batch.flip();
+            apply(batch);
+        } catch (IOException e) {
+            return Futures.immediateFailedFuture(e);
+        } finally {
+            lock.readLock().unlock();
+        }
+        return durable;
+    }
+
+    /**
+     * @return A future which completes once the record is durable, at once if the log is not forced
+     */
+    private ListenableFuture<Void> append(byte[] record) throws IOException {
+        if (!sync) {
+            wal.append(record);
+            return VOID_FUTURE;
+        }
+        SettableFuture<Void> future = SettableFuture.create();
+        synchronized (pending) {
+            wal.append(record);
+            if (!flushing) {
+                // Shutting down, the flusher may be gone already
+                wal.force();
+                return VOID_FUTURE;
+            }
+            pending.put(nextSequence++, future);
+            pending.notifyAll();
+        }
+        return future;
+    }
+
+    /**
+     * The flusher loop. Every force makes all writes appended so far durable. It ends once the store is shut down and
+     * all writes are durable.
+     */
+    private void flush() {
+        while (true) {
+            long sequence;
+            synchronized (pending) {
+                while (pending.isEmpty() && flushing) {
+                    try {
+                        pending.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                if (pending.isEmpty()) {
+                    return;
+                }
+                sequence = nextSequence;
+            }
+            IOException failure = null;
+            try {
+                wal.force();
+            } catch (IOException e) {
+                failure = e;
+            }
+            List<SettableFuture<Void>> done;
+            synchronized (pending) {
+                Map<Long, SettableFuture<Void>> forced = pending.headMap(sequence);
+                done = new ArrayList<>(forced.values());
+                forced.clear();
+            }
+            flushes.incrementAndGet();
+            flushedWrites.addAndGet(done.size());
+            for (SettableFuture<Void> future : done) {
+                if (failure == null) {
+                    future.set(null);
+                } else {
+                    future.setException(failure);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes a batch of records to the segments.
+     */
+    private void apply(ByteBuffer batch) throws IOException {
+        while (batch.remaining() >= Segment.RECORD_BYTES) {
+            LocalSeries series = seriesByKey.get(batch.getInt());
+            long timestamp = batch.getLong();
+            long value = batch.getLong();
+            long expiresAt = batch.getLong();
+            if (series != null) {
+                series.append(segment(series.tenantId, timestamp), timestamp, value, expiresAt);
+            }
+        }
+    }
+
+    /**
+     * @return The segment of the partition the timestamp falls into, which is created if necessary
+     */
+    private Segment segment(String tenantId, long timestamp) throws IOException {
+        TenantData tenant = tenant(tenantId);
+        long start = timestamp - Math.floorMod(timestamp, partitionSize);
+        Segment segment = tenant.segments.get(start);
+        if (segment != null) {
+            return segment;
+        }
+        synchronized (tenant) {
+            segment = tenant.segments.get(start);
+            if (segment == null) {
+                Path dir = directory.resolve(DATA).resolve(DIRECTORY_NAMES.encode(tenantId.getBytes(
+                    StandardCharsets.UTF_8)));
+                Files.createDirectories(dir);
+                segment = Segment.create(dir.resolve(start + Segment.SUFFIX), start);
+                tenant.segments.put(start, segment);
+            }
+            return segment;
+        }
+    }
+
+    /**
+     * @return The live data points of the series in [start, end), newest first
+     */
+    private NavigableMap<Long, Point> read(LocalSeries series, long start, long end, long now) {
+        NavigableMap<Long, Point> points = new TreeMap<>();
+        TenantData tenant = tenants.get(series.tenantId);
+        if (tenant == null || start >= end) {
+            return points;
+        }
+        long from = start - Math.floorMod(start, partitionSize);
+        for (Segment segment : tenant.segments.subMap(from, true, end, false).values()) {
+            int[] records = series.records(segment);
+            if (records == null) {
+                continue;
+            }
+            // Records are in write order, later ones overwrite earlier ones with the same timestamp
+            for (int record : records) {
+                long timestamp = segment.timestamp(record);
+                if (timestamp >= start && timestamp < end) {
+                    points.put(timestamp, new Point(segment, record));
+                }
+            }
+        }
+        points.values().removeIf(point -> point.segment.expiresAt(point.record) <= now);
+        return points.descendingMap();
+    }
+
+    @Override
+    public ListenableFuture<NumericMetric> findNumericData(NumericMetric metric, long start, long end) {
+        LocalSeries series = findSeries(metric.getTenantId(), MetricType.NUMERIC, metric.getId());
+        if (series == null) {
+            return Futures.immediateFuture(null);
+        }
+        NumericMetric result = series.newNumericMetric();
+        for (Point point : read(series, start, end, clock.getAsLong()).values()) {
+            result.addData(numericData(series, point));
+        }
+        return Futures.immediateFuture(result.getData().isEmpty() ? null : result);
+    }
+
+    @Override
+    public ListenableFuture<List<NumericData>> findData(NumericMetric metric, long start, long end) {
+        LocalSeries series = findSeries(metric.getTenantId(), MetricType.NUMERIC, metric.getId());
+        if (series == null) {
+            return Futures.immediateFuture(new ArrayList<>());
+        }
+        NumericMetric result = series.newNumericMetric();
+        for (Point point : read(series, start, end, clock.getAsLong()).values()) {
+            result.addData(numericData(series, point));
+        }
+        return Futures.immediateFuture(result.getData());
+    }
+
+    @Override
+    public ListenableFuture<AvailabilityMetric> findAvailabilityData(AvailabilityMetric metric, long start, long end) {
+        LocalSeries series = findSeries(metric.getTenantId(), MetricType.AVAILABILITY, metric.getId());
+        if (series == null) {
+            return Futures.immediateFuture(null);
+        }
+        AvailabilityMetric result = series.newAvailabilityMetric();
+        for (Point point : read(series, start, end, clock.getAsLong()).values()) {
+            result.addData(availability(series, point));
+        }
+        return Futures.immediateFuture(result.getData().isEmpty() ? null : result);
+    }
+
+    private static NumericData numericData(LocalSeries series, Point point) {
+        NumericData d = new NumericData(point.timestamp(), Double.longBitsToDouble(point.value()));
+        d.setTags(tags(series, point.timestamp()));
+        return d;
+    }
+
+    private static Availability availability(LocalSeries series, Point point) {
+        Availability a = new Availability(point.timestamp(), availabilityType(point.value()));
+        a.setTags(tags(series, point.timestamp()));
+        return a;
+    }
+
+    private static Set<Tag> tags(LocalSeries series, long timestamp) {
+        Set<String> names = series.tags(timestamp);
+        if (names == null) {
+            return Collections.emptySet();
+        }
+        Set<Tag> tags = new HashSet<>();
+        for (String name : names) {
+            tags.add(new Tag(name, ""));
+        }
+        return tags;
+    }
+
+    private static AvailabilityType availabilityType(long code) {
+        return code == AvailabilityType.UP.getCode() ? AvailabilityType.UP : AvailabilityType.DOWN;
+    }
+
+    @Override
+    public ListenableFuture<Void> updateCounter(Counter counter) {
+        return updateCounters(Collections.singletonList(counter));
+    }
+
+    @Override
+    public ListenableFuture<Void> updateCounters(Collection<Counter> counters) {
+        try {
+            // Serialized, so the catalog has the latest value of a counter last
+            synchronized (this.counters) {
+                for (Counter counter : counters) {
+                    long value = counter(counter.getGroup(), counter.getName()).addAndGet(counter.getValue());
+                    catalog.setCounter(counter.getGroup(), counter.getName(), value);
+                }
+            }
+            catalog.force();
+        } catch (IOException e) {
+            return Futures.immediateFailedFuture(e);
+        }
+        return VOID_FUTURE;
+    }
+
+    @Override
+    public ListenableFuture<List<Counter>> findCounters(String group) {
+        Map<String, AtomicLong> row = counters.getOrDefault(group, new ConcurrentSkipListMap<>());
+        List<Counter> counters = new ArrayList<>(row.size());
+        for (Map.Entry<String, AtomicLong> entry : row.entrySet()) {
+            counters.add(new Counter(DEFAULT_TENANT_ID, group, entry.getKey(), entry.getValue().get()));
+        }
+        return Futures.immediateFuture(counters);
+    }
+
+    @Override
+    public ListenableFuture<List<Counter>> findCounters(String group, List<String> counterNames) {
+        Map<String, AtomicLong> row = counters.getOrDefault(group, new ConcurrentSkipListMap<>());
+        List<Counter> counters = new ArrayList<>(counterNames.size());
+        for (String name : counterNames) {
+            AtomicLong value = row.get(name);
+            if (value != null) {
+                counters.add(new Counter(DEFAULT_TENANT_ID, group, name, value.get()));
+            }
+        }
+        return Futures.immediateFuture(counters);
+    }
+
+    @Override
+    public ListenableFuture<Boolean> idExists(String id) {
+        for (TenantData tenant : tenants.values()) {
+            for (LocalSeries series : tenant.numeric.values()) {
+                if (series.id.getName().equals(id)) {
+                    return Futures.immediateFuture(true);
+                }
+            }
+        }
+        return Futures.immediateFuture(false);
+    }
+
+    @Override
+    public ListenableFuture<List<NumericData>> tagNumericData(NumericMetric metric, Set<String> tags, long start,
+        long end) {
+        return tag(metric, tags, start, end, LocalMetricsService::numericData);
+    }
+
+    @Override
+    public ListenableFuture<List<Availability>> tagAvailabilityData(AvailabilityMetric metric, Set<String> tags,
+        long start, long end) {
+        return tag(metric, tags, start, end, LocalMetricsService::availability);
+    }
+
+    @Override
+    public ListenableFuture<List<NumericData>> tagNumericData(NumericMetric metric, Set<String> tags, long timestamp) {
+        return tag(metric, tags, timestamp, timestamp + 1, LocalMetricsService::numericData);
+    }
+
+    @Override
+    public ListenableFuture<List<Availability>> tagAvailabilityData(AvailabilityMetric metric, Set<String> tags,
+        long timestamp) {
+        return tag(metric, tags, timestamp, timestamp + 1, LocalMetricsService::availability);
+    }
+
+    /**
+     * Tags the live data points in [start, end).
+     *
+     * @return The tagged data points newest first with their remaining TTL
+     */
+    private <T extends MetricData> ListenableFuture<List<T>> tag(Metric<T> metric, Set<String> tags, long start,
+        long end, PointFactory<T> factory) {
+        List<T> tagged = new ArrayList<>();
+        LocalSeries series = findSeries(metric.getTenantId(), metric.getType(), metric.getId());
+        if (series == null) {
+            return Futures.immediateFuture(tagged);
+        }
+        long now = clock.getAsLong();
+        NavigableMap<Long, Point> points = read(series, start, end, now);
+        if (points.isEmpty()) {
+            return Futures.immediateFuture(tagged);
+        }
+        try {
+            catalog.addTags(series.key, tags, points.keySet().stream().mapToLong(Long::longValue).toArray());
+            catalog.force();
+        } catch (IOException e) {
+            return Futures.immediateFailedFuture(e);
+        }
+        for (Point point : points.values()) {
+            series.tag(point.timestamp(), tags);
+            T d = factory.create(series, point);
+            d.setTTL(point.remainingTTL(now));
+            tagged.add(d);
+        }
+        indexTags(series, tags);
+        return Futures.immediateFuture(tagged);
+    }
+
+    @Override
+    public ListenableFuture<Map<MetricId, Set<NumericData>>> findNumericDataByTags(String tenantId, Set<String> tags) {
+        return Futures.immediateFuture(findByTags(tenantId, MetricType.NUMERIC, tags, (series, point) ->
+            new NumericData(new NumericMetric(series.tenantId, series.id), point.timestamp(),
+                Double.longBitsToDouble(point.value()))));
+    }
+
+    @Override
+    public ListenableFuture<Map<MetricId, Set<Availability>>> findAvailabilityByTags(String tenantId,
+        Set<String> tags) {
+        return Futures.immediateFuture(findByTags(tenantId, MetricType.AVAILABILITY, tags, (series, point) ->
+            new Availability(new AvailabilityMetric(series.tenantId, series.id), point.timestamp(),
+                availabilityType(point.value()))));
+    }
+
+    /**
+     * Like the Cassandra backend, only metrics which have data with every tag are returned, with the data of all tags.
+     */
+    private <T extends MetricData> Map<MetricId, Set<T>> findByTags(String tenantId, MetricType type,
+        Set<String> tags, PointFactory<T> factory) {
+        TenantData tenant = tenants.get(tenantId);
+        if (tenant == null || tags.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        long now = clock.getAsLong();
+        Map<MetricId, Set<T>> result = null;
+        for (String tag : tags) {
+            Map<MetricId, Set<T>> tagged = new HashMap<>();
+            for (LocalSeries series : snapshot(tenant.tags(type), tag)) {
+                Set<T> data = new LinkedHashSet<>();
+                for (long timestamp : series.tagged(tag)) {
+                    Point point = read(series, timestamp, timestamp + 1, now).get(timestamp);
+                    if (point != null) {
+                        data.add(factory.create(series, point));
+                    }
+                }
+                if (!data.isEmpty()) {
+                    tagged.put(series.id, data);
+                }
+            }
+            if (result == null) {
+                result = tagged;
+            } else {
+                result.keySet().retainAll(tagged.keySet());
+                for (Map.Entry<MetricId, Set<T>> entry : result.entrySet()) {
+                    Set<T> merged = new TreeSet<>(MetricData.TIME_UUID_COMPARATOR);
+                    merged.addAll(entry.getValue());
+                    merged.addAll(tagged.get(entry.getKey()));
+                    entry.setValue(merged);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static List<LocalSeries> snapshot(ConcurrentMap<String, Set<LocalSeries>> tagIndex, String tag) {
+        List<LocalSeries> series = new ArrayList<>();
+        tagIndex.computeIfPresent(tag, (key, set) -> {
+            series.addAll(set);
+            return set;
+        });
+        return series;
+    }
+
+    /**
+     * Forces the segments to the storage device, marks their records as committed and empties the write-ahead log.
+     */
+    void checkpoint() throws IOException {
+        lock.writeLock().lock();
+        try {
+            for (TenantData tenant : tenants.values()) {
+                for (Segment segment : tenant.segments.values()) {
+                    segment.commit();
+                }
+            }
+            wal.clear();
+            checkpoints.incrementAndGet();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void checkpointQuietly() {
+        try {
+            checkpoint();
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Checkpoint of " + directory + " failed", e);
+        }
+    }
+
+    /**
+     * Deletes the segments whose data points have all expired.
+     */
+    void sweep() throws IOException {
+        long now = clock.getAsLong();
+        for (TenantData tenant : tenants.values()) {
+            for (Segment segment : tenant.segments.values()) {
+                if (segment.getExpiresAt() > now) {
+                    continue;
+                }
+                lock.writeLock().lock();
+                try {
+                    if (segment.getExpiresAt() > now || !tenant.segments.remove(segment.start, segment)) {
+                        continue;
+                    }
+                    for (LocalSeries series : tenant.numeric.values()) {
+                        series.drop(segment, segment.start + partitionSize);
+                    }
+                    for (LocalSeries series : tenant.availability.values()) {
+                        series.drop(segment, segment.start + partitionSize);
+                    }
+                    segment.delete();
+                    deletedSegments.incrementAndGet();
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+        }
+    }
+
+    private void sweepQuietly() {
+        try {
+            sweep();
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Deleting expired segments of " + directory + " failed", e);
+        }
+    }
+
+    @Override
+    public String getDirectory() {
+        return String.valueOf(directory);
+    }
+
+    @Override
+    public long getSeriesCount() {
+        return seriesByKey.size();
+    }
+
+    @Override
+    public long getSegmentCount() {
+        long count = 0;
+        for (TenantData tenant : tenants.values()) {
+            count += tenant.segments.size();
+        }
+        return count;
+    }
+
+    @Override
+    public long getSegmentBytes() {
+        long bytes = 0;
+        for (TenantData tenant : tenants.values()) {
+            for (Segment segment : tenant.segments.values()) {
+                bytes += segment.getBytes();
+            }
+        }
+        return bytes;
+    }
+
+    @Override
+    public long getWalBytes() {
+        return wal == null ? 0 : wal.size();
+    }
+
+    @Override
+    public long getCatalogBytes() {
+        return catalog == null ? 0 : catalog.size();
+    }
+
+    @Override
+    public long getDeletedSegments() {
+        return deletedSegments.get();
+    }
+
+    @Override
+    public long getCheckpoints() {
+        return checkpoints.get();
+    }
+
+    @Override
+    public long getFlushes() {
+        return flushes.get();
+    }
+
+    @Override
+    public double getAverageFlushSize() {
+        long count = flushes.get();
+        return count == 0 ? 0 : (double) flushedWrites.get() / count;
+    }
+
+    @Override
+    public long getRecoveredRecords() {
+        return recoveredRecords;
+    }
+
+    @Override
+    public long getStartupMillis() {
+        return startupMillis;
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rhq.metrics.impl.local;
+
+/**
+ * Management interface of the {@link LocalMetricsService}.
+ */
+public interface LocalMetricsServiceMBean {
+
+    String getDirectory();
+
+    long getSeriesCount();
+
+    long getSegmentCount();
+
+    /**
+     * @return The size of all segment files, in bytes
+     */
+    long getSegmentBytes();
+
+    /**
+     * @return The size of the write-ahead log, in bytes
+     */
+    long getWalBytes();
+
+    long getCatalogBytes();
+
+    /**
+     * @return The number of segments deleted because all of their data expired
+     */
+    long getDeletedSegments();
+
+    long getCheckpoints();
+
+    /**
+     * @return The number of times the flusher forced the write-ahead log to the storage device
+     */
+    long getFlushes();
+
+    /**
+     * @return The average number of writes which shared one force of the write-ahead log
+     */
+    double getAverageFlushSize();
+
+    /**
+     * @return The number of write-ahead log records applied when the store was opened
+     */
+    long getRecoveredRecords();
+
+    /**
+     * @return How long opening the store took, in milliseconds
+     */
+    long getStartupMillis();
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rhq.metrics.impl.local;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+import gnu.trove.list.array.TIntArrayList;
+
+import org.rhq.metrics.core.AvailabilityMetric;
+import org.rhq.metrics.core.Metric;
+import org.rhq.metrics.core.MetricId;
+import org.rhq.metrics.core.MetricType;
+import org.rhq.metrics.core.NumericMetric;
+
+/**
+ * The in-memory index of one metric: its properties, the numbers of its records in every segment and the tags of its
+ * data points. The data points themselves stay in the segments. All methods are synchronized.
+ */
+final class LocalSeries {
+
+    /**
+     * Identifies the series in segment records, the write-ahead log and the catalog
+     */
+    final int key;
+
+    final String tenantId;
+
+    final MetricType type;
+
+    final MetricId id;
+
+    private final Map<String, String> metadata = new HashMap<>();
+
+    private Integer dataRetention;
+
+    private final Map<Segment, TIntArrayList> records = new IdentityHashMap<>();
+
+    private final NavigableMap<Long, Set<String>> tags = new TreeMap<>();
+
+    LocalSeries(int key, String tenantId, MetricType type, MetricId id) {
+        this.key = key;
+        this.tenantId = tenantId;
+        this.type = type;
+        this.id = id;
+    }
+
+    synchronized void define(Map<String, String> metadata, Integer dataRetention) {
+        if (metadata != null) {
+            this.metadata.putAll(metadata);
+        }
+        this.dataRetention = dataRetention;
+    }
+
+    synchronized Integer getDataRetention() {
+        return dataRetention;
+    }
+
+    synchronized Map<String, String> getMetadata() {
+        return new HashMap<>(metadata);
+    }
+
+    /**
+     * @return true if the metadata changed
+     */
+    synchronized boolean updateMetadata(Map<String, String> additions, Set<String> deletions) {
+        Map<String, String> before = new HashMap<>(metadata);
+        metadata.putAll(additions);
+        metadata.keySet().removeAll(deletions);
+        return !metadata.equals(before);
+    }
+
+    synchronized Metric<?> toMetric() {
+        return type == MetricType.NUMERIC ? newNumericMetric() : newAvailabilityMetric();
+    }
+
+    synchronized NumericMetric newNumericMetric() {
+        return new NumericMetric(tenantId, id, new HashMap<>(metadata), dataRetention);
+    }
+
+    synchronized AvailabilityMetric newAvailabilityMetric() {
+        return new AvailabilityMetric(tenantId, id, new HashMap<>(metadata), dataRetention);
+    }
+
+    /**
+     * Appends a data point to the segment and indexes it.
+     */
+    synchronized void append(Segment segment, long timestamp, long value, long expiresAt) throws IOException {
+        index(segment, segment.append(key, timestamp, value, expiresAt));
+    }
+
+    synchronized void index(Segment segment, int record) {
+        TIntArrayList list = records.get(segment);
+        if (list == null) {
+            list = new TIntArrayList();
+            records.put(segment, list);
+        }
+        list.add(record);
+    }
+
+    /**
+     * @return The numbers of the records of this series in the segment, in write order
+     */
+    synchronized int[] records(Segment segment) {
+        TIntArrayList list = records.get(segment);
+        return list == null ? null : list.toArray();
+    }
+
+    /**
+     * Forgets the records in a segment which has been deleted, and the tags of the data points it held.
+     */
+    synchronized void drop(Segment segment, long end) {
+        records.remove(segment);
+        tags.subMap(segment.start, end).clear();
+    }
+
+    synchronized int getSegmentCount() {
+        return records.size();
+    }
+
+    synchronized void tag(long timestamp, Set<String> tags) {
+        Set<String> set = this.tags.get(timestamp);
+        if (set == null) {
+            set = new HashSet<>();
+            this.tags.put(timestamp, set);
+        }
+        set.addAll(tags);
+    }
+
+    /**
+     * @return The tags of the data point, or null if it has none
+     */
+    synchronized Set<String> tags(long timestamp) {
+        Set<String> set = tags.get(timestamp);
+        return set == null ? null : new HashSet<>(set);
+    }
+
+    /**
+     * @return The timestamps of the data points which have the tag, oldest first
+     */
+    synchronized long[] tagged(String tag) {
+        return tags.entrySet().stream().filter(entry -> entry.getValue().contains(tag)).mapToLong(Map.Entry::getKey)
+            .toArray();
+    }
+
+    synchronized Map<Long, Set<String>> getTags() {
+        Map<Long, Set<String>> copy = new TreeMap<>();
+        tags.forEach((timestamp, set) -> copy.put(timestamp, new HashSet<>(set)));
+        return copy;
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rhq.metrics.impl.local;
+
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * <p>
+ * An append-only, memory-mapped file with the data points of one tenant whose timestamps fall into one time partition.
+ * Data points of all metrics of the tenant are appended in write order as fixed size records of a series key, the
+ * timestamp, the value and the time at which the data point expires. A later record overwrites an earlier one with the
+ * same series key and timestamp.
+ * </p>
+ * <p>
+ * The header holds the number of committed records and the latest expiration time of all records. Records are only
+ * committed by {@link #commit()}, which forces them to the storage device first. When a segment is opened, records
+ * after the committed ones are ignored; they are recovered from the write-ahead log.
+ * </p>
+ */
+final class Segment implements Closeable {
+
+    static final String SUFFIX = ".seg";
+
+    static final int HEADER_BYTES = 64;
+
+    static final int RECORD_BYTES = 28;
+
+    private static final int MAGIC = 0x52484d53;
+
+    private static final int VERSION = 1;
+
+    private static final int INITIAL_RECORDS = 4096;
+
+    private static final int START_OFFSET = 8;
+
+    private static final int COUNT_OFFSET = 16;
+
+    private static final int EXPIRES_AT_OFFSET = 24;
+
+    /**
+     * The start of the time partition
+     */
+    final long start;
+
+    final Path path;
+
+    private final FileChannel channel;
+
+    /**
+     * Replaced when the file grows. Readers may use the previous mapping for the records it covers.
+     */
+    private volatile MappedByteBuffer buffer;
+
+    private int size;
+
+    private long expiresAt;
+
+    private boolean dirty;
+
+    private Segment(Path path, FileChannel channel, long start) {
+        this.path = path;
+        this.channel = channel;
+        this.start = start;
+    }
+
+    static Segment create(Path path, long start) throws IOException {
+        Segment segment = new Segment(path, FileChannel.open(path, CREATE_NEW, READ, WRITE), start);
+        segment.map(HEADER_BYTES + (long) INITIAL_RECORDS * RECORD_BYTES);
+        segment.buffer.putInt(0, MAGIC);
+        segment.buffer.putInt(4, VERSION);
+        segment.buffer.putLong(START_OFFSET, start);
+        segment.dirty = true;
+        segment.commit();
+        return segment;
+    }
+
+    static Segment open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, READ, WRITE);
+        try {
+            if (channel.size() < HEADER_BYTES) {
+                throw new IOException(path + " is not a segment file");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                throw new IOException(path + " is not a segment file");
+            }
+            Segment segment = new Segment(path, channel, buffer.getLong(START_OFFSET));
+            segment.buffer = buffer;
+            segment.size = buffer.getInt(COUNT_OFFSET);
+            segment.expiresAt = buffer.getLong(EXPIRES_AT_OFFSET);
+            return segment;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void map(long length) throws IOException {
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+    }
+
+    /**
+     * @return The number of the record
+     */
+    synchronized int append(int series, long timestamp, long value, long expiresAt) throws IOException {
+        int offset = HEADER_BYTES + size * RECORD_BYTES;
+        if (offset + RECORD_BYTES > buffer.capacity()) {
+            long length = Math.min(HEADER_BYTES + 2L * Math.max(size, INITIAL_RECORDS) * RECORD_BYTES,
+                Integer.MAX_VALUE);
+            if (offset + RECORD_BYTES > length) {
+                throw new IOException(path + " is full");
+            }
+            map(length);
+        }
+        MappedByteBuffer buffer = this.buffer;
+        buffer.putInt(offset, series);
+        buffer.putLong(offset + 4, timestamp);
+        buffer.putLong(offset + 12, value);
+        buffer.putLong(offset + 20, expiresAt);
+        this.expiresAt = Math.max(this.expiresAt, expiresAt);
+        dirty = true;
+        return size++;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return The latest expiration time of all records
+     */
+    synchronized long getExpiresAt() {
+        return expiresAt;
+    }
+
+    synchronized long getBytes() {
+        return buffer.capacity();
+    }
+
+    /*
+     * Readers must have learned the record number from append or size, which makes the record visible to them.
+     */
+
+    int series(int record) {
+        return buffer.getInt(HEADER_BYTES + record * RECORD_BYTES);
+    }
+
+    long timestamp(int record) {
+        return buffer.getLong(HEADER_BYTES + record * RECORD_BYTES + 4);
+    }
+
+    long value(int record) {
+        return buffer.getLong(HEADER_BYTES + record * RECORD_BYTES + 12);
+    }
+
+    long expiresAt(int record) {
+        return buffer.getLong(HEADER_BYTES + record * RECORD_BYTES + 20);
+    }
+
+    /**
+     * Forces the records to the storage device and then marks them as committed in the header.
+     */
+    synchronized void commit() {
+        if (!dirty) {
+            return;
+        }
+        buffer.force();
+        buffer.putInt(COUNT_OFFSET, size);
+        buffer.putLong(EXPIRES_AT_OFFSET, expiresAt);
+        buffer.force();
+        dirty = false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    void delete() throws IOException {
+        close();
+        Files.deleteIfExists(path);
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rhq.metrics.impl.memory;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The data points of a series within one aligned time window, ordered by timestamp. Timestamps and values are kept in
+ * primitive arrays, so a range is located with two binary searches and read without unboxing. Numeric chunks store
+ * the values, availability chunks the availability codes. Data points usually arrive in order and are appended;
+ * late data points are inserted in place.
+ * <br><br>
+ * Chunks are not thread safe, they are guarded by their {@link Series}.
+ */
+final class Chunk {
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    private static final int OVERHEAD_BYTES = 64;
+
+    private static final int TAG_BYTES = 48;
+
+    final long start;
+
+    long[] timestamps;
+
+    double[] values;
+
+    byte[] codes;
+
+    /**
+     * The tags of each data point, null until a data point of this chunk is tagged.
+     */
+    Set<String>[] tags;
+
+    int size;
+
+    /**
+     * When the most recently written data point expires. Chunks expire as a whole.
+     */
+    long expiresAt;
+
+    private long tagBytes;
+
+    private Chunk(long start, boolean numeric) {
+        this.start = start;
+        timestamps = new long[INITIAL_CAPACITY];
+        if (numeric) {
+            values = new double[INITIAL_CAPACITY];
+        } else {
+            codes = new byte[INITIAL_CAPACITY];
+        }
+    }
+
+    static Chunk numeric(long start) {
+        return new Chunk(start, true);
+    }
+
+    static Chunk availability(long start) {
+        return new Chunk(start, false);
+    }
+
+    /**
+     * @return The index of the first data point at or after the timestamp, {@link #size} if there is none
+     */
+    int lowerBound(long timestamp) {
+        int i = Arrays.binarySearch(timestamps, 0, size, timestamp);
+        return i >= 0 ? i : -i - 1;
+    }
+
+    /**
+     * Stores a numeric value, replacing the value of a data point with the same timestamp.
+     */
+    void put(long timestamp, double value) {
+        int i = Arrays.binarySearch(timestamps, 0, size, timestamp);
+        if (i < 0) {
+            i = insert(-i - 1, timestamp);
+        }
+        values[i] = value;
+    }
+
+    /**
+     * Stores an availability code, replacing the code of a data point with the same timestamp.
+     */
+    void put(long timestamp, byte code) {
+        int i = Arrays.binarySearch(timestamps, 0, size, timestamp);
+        if (i < 0) {
+            i = insert(-i - 1, timestamp);
+        }
+        codes[i] = code;
+    }
+
+    private int insert(int index, long timestamp) {
+        if (size == timestamps.length) {
+            grow();
+        }
+        int moved = size - index;
+        if (moved > 0) {
+            System.arraycopy(timestamps, index, timestamps, index + 1, moved);
+            if (values != null) {
+                System.arraycopy(values, index, values, index + 1, moved);
+            } else {
+                System.arraycopy(codes, index, codes, index + 1, moved);
+            }
+            if (tags != null) {
+                System.arraycopy(tags, index, tags, index + 1, moved);
+                tags[index] = null;
+            }
+        }
+        timestamps[index] = timestamp;
+        size++;
+        return index;
+    }
+
+    private void grow() {
+        int capacity = timestamps.length * 2;
+        timestamps = Arrays.copyOf(timestamps, capacity);
+        if (values != null) {
+            values = Arrays.copyOf(values, capacity);
+        } else {
+            codes = Arrays.copyOf(codes, capacity);
+        }
+        if (tags != null) {
+            tags = Arrays.copyOf(tags, capacity);
+        }
+    }
+
+    /**
+     * Adds tags to the data point at the index.
+     */
+    @SuppressWarnings("unchecked")
+    void tag(int index, Set<String> newTags) {
+        if (tags == null) {
+            tags = new Set[timestamps.length];
+        }
+        if (tags[index] == null) {
+            tags[index] = new HashSet<>();
+        }
+        for (String tag : newTags) {
+            if (tags[index].add(tag)) {
+                tagBytes += TAG_BYTES;
+            }
+        }
+    }
+
+    boolean hasTag(int index, String tag) {
+        return tags != null && tags[index] != null && tags[index].contains(tag);
+    }
+
+    long estimatedBytes() {
+        long bytes = OVERHEAD_BYTES + 8L * timestamps.length + tagBytes;
+        bytes += values != null ? 8L * values.length : codes.length;
+        if (tags != null) {
+            bytes += 4L * tags.length;
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,470 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rhq.metrics.impl.memory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.ObjectName;
+
+import com.datastax.driver.core.Session;
+import com.google.common.base.Function;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import org.rhq.metrics.core.Availability;
+import org.rhq.metrics.core.AvailabilityMetric;
+import org.rhq.metrics.core.Metric;
+import org.rhq.metrics.core.MetricData;
+import org.rhq.metrics.core.MetricId;
+import org.rhq.metrics.core.MetricType;
+import org.rhq.metrics.core.MetricsService;
+import org.rhq.metrics.core.NumericData;
+import org.rhq.metrics.core.NumericMetric;
+import org.rhq.metrics.impl.DataCopies;
+import org.rhq.metrics.impl.DelegatingMetricsService;
+import org.rhq.metrics.util.JmxSupport;
+
+/**
+ * <p>
+ * Keeps the most recent data in memory, in front of a persistent backend. Writes go to the backend first and, once
+ * they succeeded, to a {@link MemoryMetricsService} which holds a sliding window (the last hour by default) of every
+ * series. Raw data queries which fall inside the window are answered from memory alone; queries which start before it
+ * read the older part from the backend and the rest from memory.
+ * </p>
+ * <p>
+ * Memory is only complete for data written through this instance. The window therefore starts no earlier than the
+ * creation of the hot tier, and moves forward if data had to be evicted to stay within the maximum size. The hot tier
+ * is only valid for a single writer node: if other processes, e.g. other REST nodes, write to the same backend, their
+ * recent data is missing from the answers of this instance, which does not fall back to the backend. The metric
+ * properties returned with the data, i.e. metadata and data retention, are read from the backend once per series and
+ * kept until they change.
+ * </p>
+ * <p>
+ * Query counts and the hit ratio are exposed through the org.rhq.metrics:type=HotTier MBean.
+ * </p>
+ */
+public class HotTierMetricsService extends DelegatingMetricsService implements HotTierMetricsServiceMBean {
+
+    public static final String OBJECT_NAME = "org.rhq.metrics:type=HotTier";
+
+    public static final long DEFAULT_WINDOW = TimeUnit.HOURS.toMillis(1);
+
+    /**
+     * A window is kept in this many chunks, so the oldest chunk can be dropped soon after it left the window.
+     */
+    private static final int CHUNKS_PER_WINDOW = 12;
+
+    private static final int MAX_SHELLS = 100_000;
+
+    private interface RangeReader<M> {
+        ListenableFuture<M> read(long start, long end);
+    }
+
+    private interface MetricFactory<M> {
+        M create(Metric<?> properties);
+    }
+
+    private static class ShellKey {
+        private final String tenantId;
+        private final MetricType type;
+        private final MetricId id;
+
+        ShellKey(Metric<?> metric) {
+            tenantId = metric.getTenantId();
+            type = metric.getType();
+            id = metric.getId();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            ShellKey that = (ShellKey) o;
+
+            return tenantId.equals(that.tenantId) && type == that.type && id.equals(that.id);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = tenantId.hashCode();
+            result = 31 * result + type.hashCode();
+            result = 31 * result + id.hashCode();
+            return result;
+        }
+    }
+
+    private final MemoryMetricsService memory;
+
+    private final long window;
+
+    private final long createdAt;
+
+    private final LongSupplier clock;
+
+    /**
+     * The metric properties per series, as stored in the backend
+     */
+    private final Cache<ShellKey, ListenableFuture<Metric>> shells;
+
+    private final LongAdder memoryQueries = new LongAdder();
+
+    private final LongAdder splitQueries = new LongAdder();
+
+    private final LongAdder backendQueries = new LongAdder();
+
+    private ScheduledExecutorService trimmer;
+
+    private ObjectName objectName;
+
+    /**
+     * @param window How much recent data is kept in memory, in milliseconds
+     * @param maxBytes The approximate heap size the data in memory may use
+     */
+    public HotTierMetricsService(MetricsService delegate, long window, long maxBytes) {
+        this(delegate, window, maxBytes, System::currentTimeMillis);
+    }
+
+    HotTierMetricsService(MetricsService delegate, long window, long maxBytes, LongSupplier clock) {
+        super(delegate);
+        this.window = window;
+        this.clock = clock;
+        memory = new MemoryMetricsService(maxBytes, Math.max(1000, window / CHUNKS_PER_WINDOW), clock);
+        createdAt = clock.getAsLong();
+        shells = CacheBuilder.newBuilder()
+            .maximumSize(MAX_SHELLS)
+            .expireAfterAccess(Math.max(window, TimeUnit.MINUTES.toMillis(10)), TimeUnit.MILLISECONDS)
+            .build();
+    }
+
+    @Override
+    public void startUp(Map<String, String> params) {
+        super.startUp(params);
+        start();
+    }
+
+    @Override
+    public void startUp(Session session) {
+        super.startUp(session);
+        start();
+    }
+
+    private void start() {
+        memory.startUp(Collections.emptyMap());
+        trimmer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "HotTierMetricsService-trimmer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = memory.getChunkSize();
+        trimmer.scheduleWithFixedDelay(this::trim, interval, interval, TimeUnit.MILLISECONDS);
+        objectName = JmxSupport.register(this, OBJECT_NAME);
+    }
+
+    @Override
+    public void shutdown() {
+        JmxSupport.unregister(objectName);
+        objectName = null;
+        if (trimmer != null) {
+            trimmer.shutdownNow();
+            trimmer = null;
+        }
+        memory.shutdown();
+        super.shutdown();
+    }
+
+    /**
+     * Drops the chunks which left the window.
+     */
+    void trim() {
+        memory.expire(clock.getAsLong() - window);
+    }
+
+    /**
+     * @return The start of the time range which is completely held in memory
+     */
+    private long coveredFrom(long now) {
+        return Math.max(Math.max(createdAt, now - window), memory.getEvictedBefore());
+    }
+
+    @Override
+    public ListenableFuture<Void> createMetric(Metric metric) {
+        ListenableFuture<Void> future = delegate.createMetric(metric);
+        future.addListener(() -> shells.invalidate(new ShellKey(metric)), MoreExecutors.sameThreadExecutor());
+        return future;
+    }
+
+    @Override
+    public ListenableFuture<Void> updateMetadata(Metric metric, Map<String, String> metadata, Set<String> deletions) {
+        ListenableFuture<Void> future = delegate.updateMetadata(metric, metadata, deletions);
+        future.addListener(() -> shells.invalidate(new ShellKey(metric)), MoreExecutors.sameThreadExecutor());
+        return future;
+    }
+
+    @Override
+    public ListenableFuture<Void> addNumericData(List<NumericMetric> metrics) {
+        ListenableFuture<Void> future = delegate.addNumericData(metrics);
+        return Futures.transform(future, (Function<Void, Void>) ignored -> {
+            long from = clock.getAsLong() - window;
+            List<NumericMetric> recent = new ArrayList<>(metrics.size());
+            for (NumericMetric metric : metrics) {
+                NumericMetric copy = new NumericMetric(metric.getTenantId(), metric.getId());
+                if (addRecent(metric, copy, from)) {
+                    recent.add(copy);
+                }
+            }
+            memory.addNumericData(recent);
+            return null;
+        });
+    }
+
+    @Override
+    public ListenableFuture<Void> addAvailabilityData(List<AvailabilityMetric> metrics) {
+        ListenableFuture<Void> future = delegate.addAvailabilityData(metrics);
+        return Futures.transform(future, (Function<Void, Void>) ignored -> {
+            long from = clock.getAsLong() - window;
+            List<AvailabilityMetric> recent = new ArrayList<>(metrics.size());
+            for (AvailabilityMetric metric : metrics) {
+                AvailabilityMetric copy = new AvailabilityMetric(metric.getTenantId(), metric.getId());
+                if (addRecent(metric, copy, from)) {
+                    recent.add(copy);
+                }
+            }
+            memory.addAvailabilityData(recent);
+            return null;
+        });
+    }
+
+    /**
+     * Copies the data points which fall into the window, without taking them away from the metric they belong to. The
+     * properties of the series are invalidated if the write changes them.
+     *
+     * @return true if the copy got any data
+     */
+    private <T extends MetricData> boolean addRecent(Metric<T> metric, Metric<T> copy, long from) {
+        for (T d : metric.getData()) {
+            if (d.getTimestamp() >= from) {
+                copy.getData().add(d);
+            }
+        }
+        if (metric.getMetadata() != null && !metric.getMetadata().isEmpty()) {
+            shells.invalidate(new ShellKey(metric));
+        }
+        return !copy.getData().isEmpty();
+    }
+
+    @Override
+    public ListenableFuture<NumericMetric> findNumericData(NumericMetric metric, long start, long end) {
+        return find(metric, start, end, (s, e) -> delegate.findNumericData(metric, s, e),
+            (s, e) -> memory.findNumericData(metric, s, e), HotTierMetricsService::numericMetric);
+    }
+
+    @Override
+    public ListenableFuture<List<NumericData>> findData(NumericMetric metric, long start, long end) {
+        if (end <= coveredFrom(clock.getAsLong())) {
+            backendQueries.increment();
+            return delegate.findData(metric, start, end);
+        }
+        ListenableFuture<NumericMetric> future = findNumericData(metric, start, end);
+        return Futures.transform(future, (Function<NumericMetric, List<NumericData>>) result -> result == null ?
+            new ArrayList<>() : result.getData());
+    }
+
+    @Override
+    public ListenableFuture<AvailabilityMetric> findAvailabilityData(AvailabilityMetric metric, long start, long end) {
+        return find(metric, start, end, (s, e) -> delegate.findAvailabilityData(metric, s, e),
+            (s, e) -> memory.findAvailabilityData(metric, s, e), HotTierMetricsService::availabilityMetric);
+    }
+
+    private <T extends MetricData, M extends Metric<T>> ListenableFuture<M> find(Metric<T> metric, long start,
+        long end, RangeReader<M> backend, RangeReader<M> inMemory, MetricFactory<M> newMetric) {
+
+        long from = coveredFrom(clock.getAsLong());
+        if (start >= end || end <= from) {
+            backendQueries.increment();
+            return backend.read(start, end);
+        }
+        M recent = Futures.getUnchecked(inMemory.read(Math.max(start, from), end));
+        if (start >= from) {
+            memoryQueries.increment();
+            if (recent == null) {
+                return Futures.immediateFuture(null);
+            }
+            return Futures.transform(shell(metric), (Function<Metric, M>) shell -> merge(shell == null ? recent :
+                shell, recent, null, newMetric));
+        }
+        splitQueries.increment();
+        return Futures.transform(backend.read(start, from), (AsyncFunction<M, M>) older -> {
+            if (older != null || recent == null) {
+                return Futures.immediateFuture(merge(older, recent, older, newMetric));
+            }
+            return Futures.transform(shell(metric), (Function<Metric, M>) shell -> merge(shell == null ? recent :
+                shell, recent, null, newMetric));
+        });
+    }
+
+    /**
+     * @param properties The metric whose properties the result gets
+     * @return The data of both parts, newest first, or null if there is none
+     */
+    private static <T extends MetricData, M extends Metric<T>> M merge(Metric<?> properties, M recent, M older,
+        MetricFactory<M> newMetric) {
+        if (properties == null) {
+            return null;
+        }
+        M result = newMetric.create(properties);
+        if (recent != null) {
+            recent.getData().forEach(result::addData);
+        }
+        if (older != null) {
+            older.getData().forEach(result::addData);
+        }
+        return result;
+    }
+
+    private static NumericMetric numericMetric(Metric<?> properties) {
+        NumericMetric metric = new NumericMetric(properties.getTenantId(), properties.getId(),
+            DataCopies.copyOf(properties.getMetadata()), properties.getDataRetention());
+        metric.setDpart(properties.getDpart());
+        return metric;
+    }
+
+    private static AvailabilityMetric availabilityMetric(Metric<?> properties) {
+        AvailabilityMetric metric = new AvailabilityMetric(properties.getTenantId(), properties.getId(),
+            DataCopies.copyOf(properties.getMetadata()), properties.getDataRetention());
+        metric.setDpart(properties.getDpart());
+        return metric;
+    }
+
+    /**
+     * @return The properties of the series as stored in the backend, null if the backend does not know it
+     */
+    private ListenableFuture<Metric> shell(Metric<?> metric) {
+        ShellKey key = new ShellKey(metric);
+        try {
+            return shells.get(key, () -> {
+                ListenableFuture<Metric> future = delegate.findMetric(metric.getTenantId(), metric.getType(),
+                    metric.getId());
+                future.addListener(() -> {
+                    try {
+                        future.get();
+                    } catch (Exception e) {
+                        shells.invalidate(key);
+                    }
+                }, MoreExecutors.sameThreadExecutor());
+                return future;
+            });
+        } catch (ExecutionException e) {
+            return Futures.immediateFailedFuture(e.getCause());
+        }
+    }
+
+    @Override
+    public ListenableFuture<List<NumericData>> tagNumericData(NumericMetric metric, Set<String> tags, long start,
+        long end) {
+        ListenableFuture<List<NumericData>> future = delegate.tagNumericData(metric, tags, start, end);
+        future.addListener(() -> memory.tagNumericData(metric, tags, start, end), MoreExecutors.sameThreadExecutor());
+        return future;
+    }
+
+    @Override
+    public ListenableFuture<List<Availability>> tagAvailabilityData(AvailabilityMetric metric, Set<String> tags,
+        long start, long end) {
+        ListenableFuture<List<Availability>> future = delegate.tagAvailabilityData(metric, tags, start, end);
+        future.addListener(() -> memory.tagAvailabilityData(metric, tags, start, end),
+            MoreExecutors.sameThreadExecutor());
+        return future;
+    }
+
+    @Override
+    public ListenableFuture<List<NumericData>> tagNumericData(NumericMetric metric, Set<String> tags,
+        long timestamp) {
+        ListenableFuture<List<NumericData>> future = delegate.tagNumericData(metric, tags, timestamp);
+        future.addListener(() -> memory.tagNumericData(metric, tags, timestamp), MoreExecutors.sameThreadExecutor());
+        return future;
+    }
+
+    @Override
+    public ListenableFuture<List<Availability>> tagAvailabilityData(AvailabilityMetric metric, Set<String> tags,
+        long timestamp) {
+        ListenableFuture<List<Availability>> future = delegate.tagAvailabilityData(metric, tags, timestamp);
+        future.addListener(() -> memory.tagAvailabilityData(metric, tags, timestamp),
+            MoreExecutors.sameThreadExecutor());
+        return future;
+    }
+
+    @Override
+    public long getMemoryQueries() {
+        return memoryQueries.sum();
+    }
+
+    @Override
+    public long getSplitQueries() {
+        return splitQueries.sum();
+    }
+
+    @Override
+    public long getBackendQueries() {
+        return backendQueries.sum();
+    }
+
+    @Override
+    public double getHitRatio() {
+        long memoryCount = memoryQueries.sum();
+        long total = memoryCount + splitQueries.sum() + backendQueries.sum();
+        return total == 0 ? 0 : (double) memoryCount / total;
+    }
+
+    @Override
+    public long getWindowMillis() {
+        return window;
+    }
+
+    @Override
+    public long getCoveredFrom() {
+        return coveredFrom(clock.getAsLong());
+    }
+
+    @Override
+    public long getEstimatedBytes() {
+        return memory.getEstimatedBytes();
+    }
+
+    @Override
+    public long getMaxBytes() {
+        return memory.getMaxBytes();
+    }
+
+    @Override
+    public long getEvictedChunks() {
+        return memory.getEvictedChunks();
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rhq.metrics.impl.memory;
+
+/**
+ * Management interface of the {@link HotTierMetricsService}.
+ */
+public interface HotTierMetricsServiceMBean {
+
+    /**
+     * @return The number of raw data queries answered from memory alone
+     */
+    long getMemoryQueries();
+
+    /**
+     * @return The number of raw data queries answered partly from memory and partly from the backend
+     */
+    long getSplitQueries();
+
+    /**
+     * @return The number of raw data queries answered by the backend alone
+     */
+    long getBackendQueries();
+
+    /**
+     * @return The share of raw data queries answered from memory alone
+     */
+    double getHitRatio();
+
+    long getWindowMillis();
+
+    /**
+     * @return The start of the time range that is currently answered from memory
+     */
+    long getCoveredFrom();
+
+    /**
+     * @return The approximate heap size of the data held in memory, in bytes
+     */
+    long getEstimatedBytes();
+
+    long getMaxBytes();
+
+    /**
+     * @return The number of chunks evicted before they left the window, to stay within the maximum size
+     */
+    long getEvictedChunks();
+}
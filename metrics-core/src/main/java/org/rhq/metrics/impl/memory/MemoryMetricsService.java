@@ -18,54 +18,177 @@ package org.rhq.metrics.impl.memory;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+
+import javax.management.ObjectName;
 
 import com.datastax.driver.core.Session;
-import com.google.common.base.Function;
-import com.google.common.collect.Table;
-import com.google.common.collect.TreeBasedTable;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
-import com.google.common.util.concurrent.ListeningExecutorService;
-import com.google.common.util.concurrent.MoreExecutors;
 
 import org.rhq.metrics.core.Availability;
 import org.rhq.metrics.core.AvailabilityMetric;
 import org.rhq.metrics.core.Counter;
 import org.rhq.metrics.core.Metric;
+import org.rhq.metrics.core.MetricAlreadyExistsException;
+import org.rhq.metrics.core.MetricData;
 import org.rhq.metrics.core.MetricId;
 import org.rhq.metrics.core.MetricType;
 import org.rhq.metrics.core.MetricsService;
-import org.rhq.metrics.core.MetricsThreadFactory;
 import org.rhq.metrics.core.NumericData;
 import org.rhq.metrics.core.NumericMetric;
+import org.rhq.metrics.core.RetentionSettings;
 import org.rhq.metrics.core.Tenant;
-
-import gnu.trove.map.TLongDoubleMap;
-import gnu.trove.map.hash.TLongDoubleHashMap;
+import org.rhq.metrics.core.TenantAlreadyExistsException;
+import org.rhq.metrics.util.JmxSupport;
 
 /**
- * A memory based storage backend for rapid prototyping.
- * <br><br>
- * Note that this implementation currently supports only numeric raw data. There is no multi-tenancy support yet, nor
- * is there any concurrency control yet.
+ * <p>
+ * A memory based storage backend, for load tests, development and as a hot tier in front of a persistent backend.
+ * </p>
+ * <p>
+ * Data is kept per tenant in concurrent maps, writes and queries only contend when they address the same metric. The
+ * data points of a metric are stored in primitive, time ordered {@link Chunk chunks} of aligned time windows (one hour
+ * by default), so a range query binary searches the chunks it intersects. Like the Cassandra backend, queries return
+ * data newest first, the end of a range is exclusive, and data expires after the data retention of the metric, of the
+ * tenant, or 7 days. Expiration works on whole chunks, which are removed once their most recently written data point
+ * has expired.
+ * </p>
+ * <p>
+ * The store is bounded by the estimated heap size of its data. Once the maximum is exceeded, the oldest chunks of all
+ * metrics are evicted until 90% of the maximum is used. The maximum defaults to a quarter of the heap and can be set
+ * with the {@link #MAX_BYTES} startup parameter. Statistics are exposed through the
+ * org.rhq.metrics:type=MemoryMetricsService MBean.
+ * </p>
  *
  * @author Heiko W. Rupp
  */
-public class MemoryMetricsService implements MetricsService {
+public class MemoryMetricsService implements MetricsService, MemoryMetricsServiceMBean {
+
+    public static final String OBJECT_NAME = "org.rhq.metrics:type=MemoryMetricsService";
+
+    /**
+     * Startup parameter for the maximum estimated heap size of the stored data, in bytes.
+     */
+    public static final String MAX_BYTES = "memory-max-bytes";
+
+    public static final long DEFAULT_CHUNK_SIZE = TimeUnit.HOURS.toMillis(1);
+
+    public static final int DEFAULT_TTL = (int) TimeUnit.DAYS.toSeconds(7);
+
+    private static final long SWEEP_INTERVAL = TimeUnit.MINUTES.toMillis(1);
 
     private static final ListenableFuture<Void> VOID_FUTURE = Futures.immediateFuture(null);
 
-    private Map<String,TLongDoubleMap> storage = new HashMap<>();
+    private static final Comparator<Metric> METRICS_INDEX_ORDER = Comparator
+        .comparing((Metric m) -> m.getId().getInterval().toString())
+        .thenComparing(m -> m.getId().getName());
+
+    private static class TenantStore {
+        volatile Tenant tenant;
+
+        /**
+         * Tenant level data retentions in seconds
+         */
+        final Map<MetricType, Integer> retentions = new ConcurrentHashMap<>();
+
+        final ConcurrentMap<MetricId, Series> numeric = new ConcurrentHashMap<>();
+
+        final ConcurrentMap<MetricId, Series> availability = new ConcurrentHashMap<>();
+
+        /**
+         * The series which have data points with a tag, per tag
+         */
+        final ConcurrentMap<String, Set<Series>> numericTags = new ConcurrentHashMap<>();
+
+        final ConcurrentMap<String, Set<Series>> availabilityTags = new ConcurrentHashMap<>();
+
+        ConcurrentMap<MetricId, Series> series(MetricType type) {
+            switch (type) {
+            case NUMERIC: return numeric;
+            case AVAILABILITY: return availability;
+            default: throw new IllegalArgumentException(type + " is not supported");
+            }
+        }
+
+        ConcurrentMap<String, Set<Series>> tags(MetricType type) {
+            return type == MetricType.NUMERIC ? numericTags : availabilityTags;
+        }
+
+        int ttl(MetricType type) {
+            Integer ttl = retentions.get(type);
+            return ttl == null ? DEFAULT_TTL : ttl;
+        }
+    }
 
-    Table<String, String, Long> counters = TreeBasedTable.create();
+    private final ConcurrentMap<String, TenantStore> tenants = new ConcurrentHashMap<>();
 
-    private ListeningExecutorService metricsTasks = MoreExecutors
-        .listeningDecorator(Executors.newFixedThreadPool(4, new MetricsThreadFactory()));
+    private final ConcurrentMap<String, ConcurrentNavigableMap<String, AtomicLong>> counters =
+        new ConcurrentHashMap<>();
+
+    private final long chunkSize;
+
+    private final LongSupplier clock;
+
+    private volatile long maxBytes;
+
+    private final AtomicLong estimatedBytes = new AtomicLong();
+
+    private final AtomicLong expiredChunks = new AtomicLong();
+
+    private final AtomicLong evictedChunks = new AtomicLong();
+
+    /**
+     * Chunks which start before this time may have been evicted.
+     */
+    private final AtomicLong evictedBefore = new AtomicLong(Long.MIN_VALUE);
+
+    private final AtomicBoolean evicting = new AtomicBoolean();
+
+    private ScheduledExecutorService sweeper;
+
+    private ObjectName objectName;
+
+    public MemoryMetricsService() {
+        this(Runtime.getRuntime().maxMemory() / 4);
+    }
+
+    /**
+     * @param maxBytes The approximate heap size the stored data may use
+     */
+    public MemoryMetricsService(long maxBytes) {
+        this(maxBytes, DEFAULT_CHUNK_SIZE, System::currentTimeMillis);
+    }
+
+    /**
+     * @param chunkSize The time window of a chunk in milliseconds
+     * @param clock The current time in milliseconds
+     */
+    MemoryMetricsService(long maxBytes, long chunkSize, LongSupplier clock) {
+        this.maxBytes = maxBytes;
+        this.chunkSize = chunkSize;
+        this.clock = clock;
+    }
 
     @Override
     public void startUp(Session session) {
@@ -74,78 +197,203 @@ public class MemoryMetricsService implements MetricsService {
 
     @Override
     public void startUp(Map<String, String> params) {
-
+        String max = params.get(MAX_BYTES);
+        if (max != null) {
+            maxBytes = Long.parseLong(max);
+        }
+        sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "MemoryMetricsService-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(this::sweep, SWEEP_INTERVAL, SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+        objectName = JmxSupport.register(this, OBJECT_NAME);
     }
 
     @Override
     public void shutdown() {
+        if (sweeper != null) {
+            sweeper.shutdownNow();
+            sweeper = null;
+        }
+        JmxSupport.unregister(objectName);
+        objectName = null;
+    }
+
+    private TenantStore store(String tenantId) {
+        TenantStore store = tenants.get(tenantId);
+        if (store == null) {
+            store = tenants.computeIfAbsent(tenantId, id -> new TenantStore());
+        }
+        return store;
+    }
+
+    private Series series(String tenantId, MetricType type, MetricId id) {
+        TenantStore store = tenants.get(tenantId);
+        return store == null ? null : store.series(type).get(id);
+    }
+
+    /**
+     * Applies a write to the series of a metric, which is created if necessary.
+     *
+     * @param write Returns false if the series has been removed concurrently
+     */
+    private void write(String tenantId, MetricType type, MetricId id, Predicate<Series> write) {
+        ConcurrentMap<MetricId, Series> map = store(tenantId).series(type);
+        while (true) {
+            Series series = map.get(id);
+            if (series == null) {
+                series = map.computeIfAbsent(id, key -> {
+                    estimatedBytes.addAndGet(Series.OVERHEAD_BYTES);
+                    return new Series(tenantId, type, id, chunkSize, estimatedBytes, false);
+                });
+            }
+            if (write.test(series)) {
+                return;
+            }
+            // The sweeper removed the series in the meantime, replace it
+            map.remove(id, series);
+        }
     }
 
     @Override
     public ListenableFuture<Void> createTenant(Tenant tenant) {
-        return null;
+        TenantStore store = store(tenant.getId());
+        synchronized (store) {
+            if (store.tenant != null) {
+                return Futures.immediateFailedFuture(new TenantAlreadyExistsException(tenant.getId()));
+            }
+            for (RetentionSettings.RetentionKey key : tenant.getRetentionSettings().keySet()) {
+                int hours = tenant.getRetentionSettings().get(key);
+                store.retentions.put(key.metricType, (int) TimeUnit.HOURS.toSeconds(hours));
+            }
+            store.tenant = tenant;
+        }
+        return VOID_FUTURE;
     }
 
     @Override
     public ListenableFuture<List<Tenant>> getTenants() {
-        return null;
+        List<Tenant> result = new ArrayList<>();
+        for (TenantStore store : tenants.values()) {
+            if (store.tenant != null) {
+                result.add(store.tenant);
+            }
+        }
+        return Futures.immediateFuture(result);
     }
 
     @Override
     public ListenableFuture<Void> createMetric(Metric metric) {
-        return null;
+        MetricType type = metric.getType();
+        ConcurrentMap<MetricId, Series> map = store(metric.getTenantId()).series(type);
+        Series series = new Series(metric.getTenantId(), type, metric.getId(), chunkSize, estimatedBytes, true);
+        series.define(metric.getMetadata(), metric.getDataRetention());
+        while (true) {
+            Series existing = map.putIfAbsent(metric.getId(), series);
+            if (existing == null) {
+                estimatedBytes.addAndGet(Series.OVERHEAD_BYTES);
+                return VOID_FUTURE;
+            }
+            if (!existing.isRemoved()) {
+                return Futures.immediateFailedFuture(new MetricAlreadyExistsException(metric));
+            }
+            map.remove(metric.getId(), existing);
+        }
     }
 
     @Override
-    public ListenableFuture<List<Metric>> findMetrics(String tenantId, MetricType type) {
-        return null;
+    public ListenableFuture<Metric> findMetric(String tenantId, MetricType type, MetricId id) {
+        if (type == MetricType.LOG_EVENT) {
+            throw new IllegalArgumentException(MetricType.LOG_EVENT + " is not yet supported");
+        }
+        Series series = series(tenantId, type, id);
+        Metric metric = series == null || series.isRemoved() ? null : series.toMetric();
+        return Futures.immediateFuture(metric);
     }
 
     @Override
-    public ListenableFuture<Void> updateMetadata(Metric metric, Map<String, String> metadata, Set<String> deletions) {
-        return null;
+    public ListenableFuture<List<Metric>> findMetrics(String tenantId, MetricType type) {
+        if (type == MetricType.LOG_EVENT) {
+            throw new IllegalArgumentException(type + " is not supported");
+        }
+        List<Metric> metrics = new ArrayList<>();
+        TenantStore store = tenants.get(tenantId);
+        if (store != null) {
+            for (Series series : store.series(type).values()) {
+                if (!series.isRemoved()) {
+                    metrics.add(series.toMetric());
+                }
+            }
+            metrics.sort(METRICS_INDEX_ORDER);
+        }
+        return Futures.immediateFuture(metrics);
     }
 
     @Override
-    public ListenableFuture<Metric> findMetric(String tenantId, MetricType type, MetricId id) {
-        return null;
+    public ListenableFuture<Void> updateMetadata(Metric metric, Map<String, String> metadata, Set<String> deletions) {
+        write(metric.getTenantId(), metric.getType(), metric.getId(),
+            series -> series.updateMetadata(metadata, deletions));
+        return VOID_FUTURE;
     }
 
     @Override
     public ListenableFuture<Void> addNumericData(List<NumericMetric> metrics) {
+        long now = clock.getAsLong();
         for (NumericMetric metric : metrics) {
-            TLongDoubleMap map;
-            if (storage.containsKey(metric.getId().getName())) {
-                map = storage.get(metric.getId().getName());
-            } else {
-                map = new TLongDoubleHashMap();
-            }
-            for (NumericData d : metric.getData()) {
-                map.put(d.getTimestamp(), d.getValue());
-            }
-            storage.put(metric.getId().getName(), map);
+            int ttl = store(metric.getTenantId()).ttl(MetricType.NUMERIC);
+            write(metric.getTenantId(), MetricType.NUMERIC, metric.getId(),
+                series -> series.addNumeric(metric, now, ttl));
         }
-        return Futures.immediateFuture(null);
+        evictIfNecessary();
+        return VOID_FUTURE;
     }
 
     @Override
     public ListenableFuture<Void> addAvailabilityData(List<AvailabilityMetric> metrics) {
-        return null;
+        long now = clock.getAsLong();
+        for (AvailabilityMetric metric : metrics) {
+            int ttl = store(metric.getTenantId()).ttl(MetricType.AVAILABILITY);
+            write(metric.getTenantId(), MetricType.AVAILABILITY, metric.getId(),
+                series -> series.addAvailability(metric, now, ttl));
+        }
+        evictIfNecessary();
+        return VOID_FUTURE;
+    }
+
+    @Override
+    public ListenableFuture<NumericMetric> findNumericData(NumericMetric metric, long start, long end) {
+        Series series = series(metric.getTenantId(), MetricType.NUMERIC, metric.getId());
+        NumericMetric result = series == null ? null : series.findNumeric(start, end, clock.getAsLong());
+        return Futures.immediateFuture(result);
+    }
+
+    @Override
+    public ListenableFuture<List<NumericData>> findData(NumericMetric metric, long start, long end) {
+        Series series = series(metric.getTenantId(), MetricType.NUMERIC, metric.getId());
+        NumericMetric result = series == null ? null : series.findNumeric(start, end, clock.getAsLong());
+        List<NumericData> data = result == null ? new ArrayList<>() : result.getData();
+        return Futures.immediateFuture(data);
     }
 
     @Override
     public ListenableFuture<AvailabilityMetric> findAvailabilityData(AvailabilityMetric metric, long start, long end) {
-        return null;
+        Series series = series(metric.getTenantId(), MetricType.AVAILABILITY, metric.getId());
+        AvailabilityMetric result = series == null ? null : series.findAvailability(start, end, clock.getAsLong());
+        return Futures.immediateFuture(result);
     }
 
     @Override
     public ListenableFuture<Void> updateCounter(Counter counter) {
-        Long value = counters.get(counter.getGroup(), counter.getName());
-        if (value == null)  {
-            counters.put(counter.getGroup(), counter.getName(), counter.getValue());
-        } else {
-            counters.put(counter.getGroup(), counter.getName(), value + counter.getValue());
+        ConcurrentNavigableMap<String, AtomicLong> group = counters.get(counter.getGroup());
+        if (group == null) {
+            group = counters.computeIfAbsent(counter.getGroup(), key -> new ConcurrentSkipListMap<>());
+        }
+        AtomicLong value = group.get(counter.getName());
+        if (value == null) {
+            value = group.computeIfAbsent(counter.getName(), key -> new AtomicLong());
         }
+        value.addAndGet(counter.getValue());
         return VOID_FUTURE;
     }
 
@@ -159,94 +407,270 @@ public class MemoryMetricsService implements MetricsService {
 
     @Override
     public ListenableFuture<List<Counter>> findCounters(String group) {
-        Map<String, Long> row = counters.row(group);
+        Map<String, AtomicLong> row = counters.getOrDefault(group, new ConcurrentSkipListMap<>());
         List<Counter> counters = new ArrayList<>(row.size());
-        for (Map.Entry<String, Long> entry : row.entrySet()) {
-            counters.add(new Counter(DEFAULT_TENANT_ID, group, entry.getKey(), entry.getValue()));
+        for (Map.Entry<String, AtomicLong> entry : row.entrySet()) {
+            counters.add(new Counter(DEFAULT_TENANT_ID, group, entry.getKey(), entry.getValue().get()));
         }
         return Futures.immediateFuture(counters);
     }
 
     @Override
     public ListenableFuture<List<Counter>> findCounters(String group, List<String> counterNames) {
-        Map<String, Long> row = counters.row(group);
+        Map<String, AtomicLong> row = counters.getOrDefault(group, new ConcurrentSkipListMap<>());
         List<Counter> counters = new ArrayList<>(counterNames.size());
         for (String name : counterNames) {
-            Long value = row.get(name);
+            AtomicLong value = row.get(name);
             if (value != null) {
-                counters.add(new Counter(DEFAULT_TENANT_ID, group, name, value));
+                counters.add(new Counter(DEFAULT_TENANT_ID, group, name, value.get()));
             }
         }
-        ListenableFuture<List<Counter>> listListenableFuture = Futures.immediateFuture(counters);
-        return Futures.transform(listListenableFuture,new NoOpMapper<List<Counter>>(),metricsTasks);
+        return Futures.immediateFuture(counters);
     }
 
     @Override
-    public ListenableFuture<List<NumericData>> findData(NumericMetric metric, long start, long end) {
-        List<NumericData> data = new ArrayList<>();
-
-        if (storage.containsKey(metric.getId().getName())) {
-            TLongDoubleMap map = storage.get(metric.getId().getName());
-            for (long ts : map.keys()) {
-                if (ts>=start && ts<=end) {
-                    data.add(new NumericData(metric, ts, map.get(ts)));
+    public ListenableFuture<Boolean> idExists(String id) {
+        for (TenantStore store : tenants.values()) {
+            for (Series series : store.numeric.values()) {
+                if (series.id.getName().equals(id) && !series.isRemoved()) {
+                    return Futures.immediateFuture(true);
                 }
-
             }
         }
-        return Futures.immediateFuture(data);
-    }
-
-    @Override
-    public ListenableFuture<NumericMetric> findNumericData(NumericMetric metric, long start, long end) {
-        return null;
-    }
-
-    @Override
-    public ListenableFuture<Boolean> idExists(String id) {
-        Boolean containsKey = storage.containsKey(id);
-        return Futures.immediateFuture(containsKey);
+        return Futures.immediateFuture(false);
     }
 
     @Override
     public ListenableFuture<List<NumericData>> tagNumericData(NumericMetric metric, Set<String> tags, long start,
         long end) {
-        return null;
+        return Futures.immediateFuture(tag(metric, tags, start, end, Series::tagNumeric));
     }
 
     @Override
     public ListenableFuture<List<Availability>> tagAvailabilityData(AvailabilityMetric metric, Set<String> tags,
         long start, long end) {
-        return null;
+        return Futures.immediateFuture(tag(metric, tags, start, end, Series::tagAvailability));
     }
 
     @Override
     public ListenableFuture<List<NumericData>> tagNumericData(NumericMetric metric, Set<String> tags, long timestamp) {
-        return null;
+        return Futures.immediateFuture(tag(metric, tags, timestamp, timestamp + 1, Series::tagNumeric));
     }
 
     @Override
     public ListenableFuture<List<Availability>> tagAvailabilityData(AvailabilityMetric metric, Set<String> tags,
         long timestamp) {
-        return null;
+        return Futures.immediateFuture(tag(metric, tags, timestamp, timestamp + 1, Series::tagAvailability));
+    }
+
+    private interface TagOperation<T extends MetricData> {
+        List<T> tag(Series series, Set<String> tags, long start, long end, long now);
+    }
+
+    private <T extends MetricData> List<T> tag(Metric<T> metric, Set<String> tags, long start, long end,
+        TagOperation<T> operation) {
+        long now = clock.getAsLong();
+        TenantStore store = tenants.get(metric.getTenantId());
+        while (store != null) {
+            Series series = store.series(metric.getType()).get(metric.getId());
+            if (series == null) {
+                break;
+            }
+            List<T> tagged = operation.tag(series, tags, start, end, now);
+            if (tagged == null) {
+                store.series(metric.getType()).remove(metric.getId(), series);
+                continue;
+            }
+            if (!tagged.isEmpty()) {
+                for (String tag : tags) {
+                    store.tags(metric.getType()).compute(tag, (key, set) -> {
+                        Set<Series> result = set == null ? new HashSet<>() : set;
+                        result.add(series);
+                        return result;
+                    });
+                }
+            }
+            return tagged;
+        }
+        return new ArrayList<>();
     }
 
     @Override
     public ListenableFuture<Map<MetricId, Set<NumericData>>> findNumericDataByTags(String tenantId, Set<String> tags) {
-        return null;
+        return Futures.immediateFuture(findByTags(tenantId, MetricType.NUMERIC, tags, Series::collectNumeric));
     }
 
     @Override
     public ListenableFuture<Map<MetricId, Set<Availability>>> findAvailabilityByTags(String tenantId,
         Set<String> tags) {
-        return null;
+        return Futures.immediateFuture(findByTags(tenantId, MetricType.AVAILABILITY, tags,
+            Series::collectAvailability));
     }
 
-    private static class NoOpMapper<T> implements Function<T,T> {
+    private interface TagCollector<T extends MetricData> {
+        void collect(Series series, String tag, long now, Collection<T> out);
+    }
 
-        public T apply(T input) {
-            return input;
+    /**
+     * Like the Cassandra backend, only metrics which have data with every tag are returned, with the data of all tags.
+     */
+    private <T extends MetricData> Map<MetricId, Set<T>> findByTags(String tenantId, MetricType type,
+        Set<String> tags, TagCollector<T> collector) {
+        TenantStore store = tenants.get(tenantId);
+        if (store == null || tags.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        long now = clock.getAsLong();
+        Map<MetricId, Set<T>> result = null;
+        for (String tag : tags) {
+            Map<MetricId, Set<T>> tagged = new HashMap<>();
+            for (Series series : snapshot(store.tags(type), tag)) {
+                Set<T> data = new LinkedHashSet<>();
+                collector.collect(series, tag, now, data);
+                if (!data.isEmpty()) {
+                    tagged.put(series.id, data);
+                }
+            }
+            if (result == null) {
+                result = tagged;
+            } else {
+                result.keySet().retainAll(tagged.keySet());
+                for (Map.Entry<MetricId, Set<T>> entry : result.entrySet()) {
+                    Set<T> merged = new TreeSet<>(MetricData.TIME_UUID_COMPARATOR);
+                    merged.addAll(entry.getValue());
+                    merged.addAll(tagged.get(entry.getKey()));
+                    entry.setValue(merged);
+                }
+            }
         }
+        return result;
+    }
+
+    private static List<Series> snapshot(ConcurrentMap<String, Set<Series>> tagIndex, String tag) {
+        List<Series> series = new ArrayList<>();
+        tagIndex.computeIfPresent(tag, (key, set) -> {
+            series.addAll(set);
+            return set;
+        });
+        return series;
+    }
 
+    private void forEachSeries(BiConsumer<TenantStore, Series> action) {
+        for (TenantStore store : tenants.values()) {
+            for (Series series : store.numeric.values()) {
+                action.accept(store, series);
+            }
+            for (Series series : store.availability.values()) {
+                action.accept(store, series);
+            }
+        }
+    }
+
+    /**
+     * Removes expired chunks, and series and tag index entries which are no longer used.
+     */
+    void sweep() {
+        long now = clock.getAsLong();
+        forEachSeries((store, series) -> {
+            expiredChunks.addAndGet(series.removeExpired(now));
+            if (series.removeIfUnused()) {
+                store.series(series.type).remove(series.id, series);
+                estimatedBytes.addAndGet(-Series.OVERHEAD_BYTES);
+            }
+        });
+        for (TenantStore store : tenants.values()) {
+            for (MetricType type : new MetricType[] {MetricType.NUMERIC, MetricType.AVAILABILITY}) {
+                ConcurrentMap<String, Set<Series>> tagIndex = store.tags(type);
+                for (String tag : tagIndex.keySet()) {
+                    tagIndex.computeIfPresent(tag, (key, set) -> {
+                        set.removeIf(Series::isRemoved);
+                        return set.isEmpty() ? null : set;
+                    });
+                }
+            }
+        }
+    }
+
+    /**
+     * Evicts the oldest chunks of all metrics while the store is larger than its maximum. Only one writer evicts at a
+     * time, the others continue.
+     */
+    private void evictIfNecessary() {
+        if (estimatedBytes.get() <= maxBytes || !evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            long target = maxBytes - maxBytes / 10;
+            while (estimatedBytes.get() > target) {
+                AtomicLong oldest = new AtomicLong(Long.MAX_VALUE);
+                forEachSeries((store, series) -> oldest.accumulateAndGet(series.oldestChunk(), Math::min));
+                if (oldest.get() == Long.MAX_VALUE) {
+                    break;
+                }
+                long end = oldest.get() + chunkSize;
+                evictedBefore.accumulateAndGet(end, Math::max);
+                forEachSeries((store, series) -> evictedChunks.addAndGet(series.removeChunksBefore(end)));
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    /**
+     * @return The time before which data may be missing because it has been evicted to stay within the maximum size
+     */
+    long getEvictedBefore() {
+        return evictedBefore.get();
+    }
+
+    /**
+     * Removes the chunks which end at or before the time, regardless of their TTL.
+     */
+    void expire(long time) {
+        long before = time - chunkSize + 1;
+        forEachSeries((store, series) -> expiredChunks.addAndGet(series.removeChunksBefore(before)));
+    }
+
+    long getChunkSize() {
+        return chunkSize;
+    }
+
+    @Override
+    public int getTenantCount() {
+        return tenants.size();
+    }
+
+    @Override
+    public long getSeriesCount() {
+        AtomicLong count = new AtomicLong();
+        forEachSeries((store, series) -> count.incrementAndGet());
+        return count.get();
+    }
+
+    @Override
+    public long getChunkCount() {
+        AtomicLong count = new AtomicLong();
+        forEachSeries((store, series) -> count.addAndGet(series.getChunkCount()));
+        return count.get();
+    }
+
+    @Override
+    public long getEstimatedBytes() {
+        return estimatedBytes.get();
+    }
+
+    @Override
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    @Override
+    public long getExpiredChunks() {
+        return expiredChunks.get();
+    }
+
+    @Override
+    public long getEvictedChunks() {
+        return evictedChunks.get();
     }
 }
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rhq.metrics.impl.memory;
+
+/**
+ * Management interface of the {@link MemoryMetricsService}.
+ */
+public interface MemoryMetricsServiceMBean {
+
+    int getTenantCount();
+
+    long getSeriesCount();
+
+    long getChunkCount();
+
+    /**
+     * @return The approximate heap size of all stored data, in bytes
+     */
+    long getEstimatedBytes();
+
+    long getMaxBytes();
+
+    /**
+     * @return The number of chunks removed because their TTL had passed
+     */
+    long getExpiredChunks();
+
+    /**
+     * @return The number of chunks removed before their TTL had passed, to stay within the maximum size
+     */
+    long getEvictedChunks();
+}
@@ -0,0 +1,404 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rhq.metrics.impl.memory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.rhq.metrics.core.Availability;
+import org.rhq.metrics.core.AvailabilityMetric;
+import org.rhq.metrics.core.AvailabilityType;
+import org.rhq.metrics.core.Metric;
+import org.rhq.metrics.core.MetricId;
+import org.rhq.metrics.core.MetricType;
+import org.rhq.metrics.core.NumericData;
+import org.rhq.metrics.core.NumericMetric;
+import org.rhq.metrics.core.Tag;
+
+/**
+ * The data points and metadata of one metric. Data points are kept in {@link Chunk chunks} of aligned time windows,
+ * so a range query only visits the chunks which intersect it. A chunk is removed as a whole once its TTL has passed or
+ * when memory is needed, oldest chunks first.
+ * <br><br>
+ * All methods are synchronized, concurrent writes and queries only contend when they address the same metric. Writes
+ * return false if the series has been removed in the meantime, the caller then writes to a new series.
+ */
+final class Series {
+
+    /**
+     * Rough heap size of a series without any data, including its map entry.
+     */
+    static final int OVERHEAD_BYTES = 256;
+
+    final String tenantId;
+
+    final MetricType type;
+
+    final MetricId id;
+
+    private final long chunkMillis;
+
+    private final AtomicLong estimatedBytes;
+
+    private final boolean created;
+
+    private final NavigableMap<Long, Chunk> chunks = new TreeMap<>();
+
+    private final Map<String, String> metadata = new HashMap<>();
+
+    private Integer dataRetention;
+
+    private boolean removed;
+
+    /**
+     * @param estimatedBytes The size estimate of the store, which is updated as chunks are added or removed
+     * @param created Whether the metric has been created explicitly. Such series are kept when all data is gone.
+     */
+    Series(String tenantId, MetricType type, MetricId id, long chunkMillis, AtomicLong estimatedBytes,
+        boolean created) {
+        this.tenantId = tenantId;
+        this.type = type;
+        this.id = id;
+        this.chunkMillis = chunkMillis;
+        this.estimatedBytes = estimatedBytes;
+        this.created = created;
+    }
+
+    synchronized boolean isRemoved() {
+        return removed;
+    }
+
+    synchronized void define(Map<String, String> metadata, Integer dataRetention) {
+        if (metadata != null) {
+            this.metadata.putAll(metadata);
+        }
+        this.dataRetention = dataRetention;
+    }
+
+    synchronized Integer getDataRetention() {
+        return dataRetention;
+    }
+
+    synchronized boolean updateMetadata(Map<String, String> additions, Set<String> deletions) {
+        if (removed) {
+            return false;
+        }
+        metadata.putAll(additions);
+        metadata.keySet().removeAll(deletions);
+        return true;
+    }
+
+    synchronized Metric<?> toMetric() {
+        return type == MetricType.NUMERIC ? newNumericMetric() : newAvailabilityMetric();
+    }
+
+    private NumericMetric newNumericMetric() {
+        return new NumericMetric(tenantId, id, new HashMap<>(metadata), dataRetention);
+    }
+
+    private AvailabilityMetric newAvailabilityMetric() {
+        return new AvailabilityMetric(tenantId, id, new HashMap<>(metadata), dataRetention);
+    }
+
+    /**
+     * @param ttl The TTL in seconds used if the metric has no data retention of its own
+     */
+    synchronized boolean addNumeric(NumericMetric metric, long now, int ttl) {
+        if (removed) {
+            return false;
+        }
+        addMetadata(metric);
+        long expiresAt = expiresAt(now, ttl);
+        long delta = 0;
+        for (NumericData d : metric.getData()) {
+            long timestamp = d.getTimestamp();
+            Chunk chunk = chunkFor(timestamp, true);
+            long before = chunk.estimatedBytes();
+            chunk.put(timestamp, d.getValue());
+            chunk.expiresAt = Math.max(chunk.expiresAt, expiresAt);
+            delta += chunk.estimatedBytes() - before;
+        }
+        estimatedBytes.addAndGet(delta);
+        return true;
+    }
+
+    /**
+     * @param ttl The TTL in seconds used if the metric has no data retention of its own
+     */
+    synchronized boolean addAvailability(AvailabilityMetric metric, long now, int ttl) {
+        if (removed) {
+            return false;
+        }
+        addMetadata(metric);
+        long expiresAt = expiresAt(now, ttl);
+        long delta = 0;
+        for (Availability a : metric.getData()) {
+            long timestamp = a.getTimestamp();
+            Chunk chunk = chunkFor(timestamp, false);
+            long before = chunk.estimatedBytes();
+            chunk.put(timestamp, a.getType().getCode());
+            chunk.expiresAt = Math.max(chunk.expiresAt, expiresAt);
+            delta += chunk.estimatedBytes() - before;
+        }
+        estimatedBytes.addAndGet(delta);
+        return true;
+    }
+
+    private void addMetadata(Metric<?> metric) {
+        if (metric.getMetadata() != null) {
+            metadata.putAll(metric.getMetadata());
+        }
+    }
+
+    private long expiresAt(long now, int ttl) {
+        return now + 1000L * (dataRetention == null ? ttl : dataRetention);
+    }
+
+    private Chunk chunkFor(long timestamp, boolean numeric) {
+        long start = timestamp - Math.floorMod(timestamp, chunkMillis);
+        Chunk chunk = chunks.get(start);
+        if (chunk == null) {
+            chunk = numeric ? Chunk.numeric(start) : Chunk.availability(start);
+            chunks.put(start, chunk);
+            estimatedBytes.addAndGet(chunk.estimatedBytes());
+        }
+        return chunk;
+    }
+
+    /**
+     * @return The live chunks which may hold data points in [start, end), newest first
+     */
+    private Collection<Chunk> chunks(long start, long end, long now) {
+        if (start >= end) {
+            return Collections.emptyList();
+        }
+        long from = start - Math.floorMod(start, chunkMillis);
+        List<Chunk> live = new ArrayList<>();
+        for (Chunk chunk : chunks.subMap(from, true, end, false).descendingMap().values()) {
+            if (chunk.expiresAt > now) {
+                live.add(chunk);
+            }
+        }
+        return live;
+    }
+
+    /**
+     * @return The data points in [start, end) newest first, or null if there are none
+     */
+    synchronized NumericMetric findNumeric(long start, long end, long now) {
+        NumericMetric result = newNumericMetric();
+        for (Chunk chunk : chunks(start, end, now)) {
+            int from = chunk.lowerBound(start);
+            for (int i = chunk.lowerBound(end) - 1; i >= from; i--) {
+                result.addData(numericData(chunk, i));
+            }
+        }
+        return result.getData().isEmpty() ? null : result;
+    }
+
+    /**
+     * @return The data points in [start, end) newest first, or null if there are none
+     */
+    synchronized AvailabilityMetric findAvailability(long start, long end, long now) {
+        AvailabilityMetric result = newAvailabilityMetric();
+        for (Chunk chunk : chunks(start, end, now)) {
+            int from = chunk.lowerBound(start);
+            for (int i = chunk.lowerBound(end) - 1; i >= from; i--) {
+                result.addData(availability(chunk, i));
+            }
+        }
+        return result.getData().isEmpty() ? null : result;
+    }
+
+    /**
+     * Tags the data points in [start, end).
+     *
+     * @return The tagged data points newest first with their remaining TTL, or null if the series has been removed
+     */
+    synchronized List<NumericData> tagNumeric(Set<String> tags, long start, long end, long now) {
+        if (removed) {
+            return null;
+        }
+        NumericMetric result = new NumericMetric(tenantId, id);
+        for (Chunk chunk : chunks(start, end, now)) {
+            long before = chunk.estimatedBytes();
+            int from = chunk.lowerBound(start);
+            for (int i = chunk.lowerBound(end) - 1; i >= from; i--) {
+                chunk.tag(i, tags);
+                NumericData d = numericData(chunk, i);
+                d.setTTL(remainingTTL(chunk, now));
+                result.addData(d);
+            }
+            estimatedBytes.addAndGet(chunk.estimatedBytes() - before);
+        }
+        return result.getData();
+    }
+
+    /**
+     * Tags the data points in [start, end).
+     *
+     * @return The tagged data points newest first with their remaining TTL, or null if the series has been removed
+     */
+    synchronized List<Availability> tagAvailability(Set<String> tags, long start, long end, long now) {
+        if (removed) {
+            return null;
+        }
+        AvailabilityMetric result = new AvailabilityMetric(tenantId, id);
+        for (Chunk chunk : chunks(start, end, now)) {
+            long before = chunk.estimatedBytes();
+            int from = chunk.lowerBound(start);
+            for (int i = chunk.lowerBound(end) - 1; i >= from; i--) {
+                chunk.tag(i, tags);
+                Availability a = availability(chunk, i);
+                a.setTTL(remainingTTL(chunk, now));
+                result.addData(a);
+            }
+            estimatedBytes.addAndGet(chunk.estimatedBytes() - before);
+        }
+        return result.getData();
+    }
+
+    private static int remainingTTL(Chunk chunk, long now) {
+        return (int) ((chunk.expiresAt - now) / 1000);
+    }
+
+    /**
+     * Adds the live data points which have the tag to the collection, oldest first. The data points belong to a
+     * metric without metadata, like the results of a tag query in Cassandra.
+     */
+    synchronized void collectNumeric(String tag, long now, Collection<NumericData> out) {
+        NumericMetric metric = new NumericMetric(tenantId, id);
+        for (Chunk chunk : chunks.values()) {
+            if (chunk.tags == null || chunk.expiresAt <= now) {
+                continue;
+            }
+            for (int i = 0; i < chunk.size; i++) {
+                if (chunk.hasTag(i, tag)) {
+                    out.add(new NumericData(metric, chunk.timestamps[i], chunk.values[i]));
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the live data points which have the tag to the collection, oldest first. The data points belong to a
+     * metric without metadata, like the results of a tag query in Cassandra.
+     */
+    synchronized void collectAvailability(String tag, long now, Collection<Availability> out) {
+        AvailabilityMetric metric = new AvailabilityMetric(tenantId, id);
+        for (Chunk chunk : chunks.values()) {
+            if (chunk.tags == null || chunk.expiresAt <= now) {
+                continue;
+            }
+            for (int i = 0; i < chunk.size; i++) {
+                if (chunk.hasTag(i, tag)) {
+                    out.add(new Availability(metric, chunk.timestamps[i], availabilityType(chunk.codes[i])));
+                }
+            }
+        }
+    }
+
+    private static NumericData numericData(Chunk chunk, int i) {
+        NumericData d = new NumericData(chunk.timestamps[i], chunk.values[i]);
+        d.setTags(tags(chunk, i));
+        return d;
+    }
+
+    private static Availability availability(Chunk chunk, int i) {
+        Availability a = new Availability(chunk.timestamps[i], availabilityType(chunk.codes[i]));
+        a.setTags(tags(chunk, i));
+        return a;
+    }
+
+    private static Set<Tag> tags(Chunk chunk, int i) {
+        if (chunk.tags == null || chunk.tags[i] == null) {
+            return Collections.emptySet();
+        }
+        Set<Tag> tags = new HashSet<>();
+        for (String tag : chunk.tags[i]) {
+            tags.add(new Tag(tag, ""));
+        }
+        return tags;
+    }
+
+    private static AvailabilityType availabilityType(byte code) {
+        return code == AvailabilityType.UP.getCode() ? AvailabilityType.UP : AvailabilityType.DOWN;
+    }
+
+    /**
+     * @return The number of chunks removed because their TTL has passed
+     */
+    synchronized int removeExpired(long now) {
+        int removedChunks = 0;
+        for (Iterator<Chunk> i = chunks.values().iterator(); i.hasNext();) {
+            Chunk chunk = i.next();
+            if (chunk.expiresAt <= now) {
+                i.remove();
+                estimatedBytes.addAndGet(-chunk.estimatedBytes());
+                removedChunks++;
+            }
+        }
+        return removedChunks;
+    }
+
+    /**
+     * @return The start of the oldest chunk, {@link Long#MAX_VALUE} if there is none
+     */
+    synchronized long oldestChunk() {
+        return chunks.isEmpty() ? Long.MAX_VALUE : chunks.firstKey();
+    }
+
+    /**
+     * @return The number of chunks removed because they start before the time
+     */
+    synchronized int removeChunksBefore(long time) {
+        NavigableMap<Long, Chunk> head = chunks.headMap(time, false);
+        int removedChunks = head.size();
+        for (Chunk chunk : head.values()) {
+            estimatedBytes.addAndGet(-chunk.estimatedBytes());
+        }
+        head.clear();
+        return removedChunks;
+    }
+
+    synchronized int getChunkCount() {
+        return chunks.size();
+    }
+
+    /**
+     * Marks the series as removed if it holds neither data nor metadata and has not been created explicitly.
+     *
+     * @return Whether the series has been removed by this call
+     */
+    synchronized boolean removeIfUnused() {
+        if (removed || !chunks.isEmpty() || !metadata.isEmpty() || created) {
+            return false;
+        }
+        removed = true;
+        return true;
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rhq.metrics.impl.wal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import org.rhq.metrics.core.Availability;
+import org.rhq.metrics.core.AvailabilityMetric;
+import org.rhq.metrics.core.AvailabilityType;
+import org.rhq.metrics.core.Interval;
+import org.rhq.metrics.core.Metric;
+import org.rhq.metrics.core.MetricData;
+import org.rhq.metrics.core.MetricId;
+import org.rhq.metrics.core.MetricsService;
+import org.rhq.metrics.core.NumericData;
+import org.rhq.metrics.core.NumericMetric;
+
+/**
+ * Encodes the metrics of a write as a log record, with everything the backend stores: the metric, its metadata and
+ * data retention, and the time UUID and value of every data point.
+ */
+final class BatchCodec {
+
+    private static final byte NUMERIC = 1;
+
+    private static final byte AVAILABILITY = 2;
+
+    private BatchCodec() {
+    }
+
+    static byte[] encodeNumeric(List<NumericMetric> metrics) {
+        return encode(NUMERIC, metrics, (d, out) -> out.writeDouble(d.getValue()));
+    }
+
+    static byte[] encodeAvailability(List<AvailabilityMetric> metrics) {
+        return encode(AVAILABILITY, metrics, (a, out) -> out.writeByte(a.getType().getCode()));
+    }
+
+    private interface ValueWriter<T> {
+        void write(T data, DataOutput out) throws IOException;
+    }
+
+    private static <T extends MetricData, M extends Metric<T>> byte[] encode(byte type, List<M> metrics,
+        ValueWriter<T> valueWriter) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(type);
+            out.writeInt(metrics.size());
+            for (M metric : metrics) {
+                out.writeUTF(metric.getTenantId());
+                out.writeUTF(metric.getId().getName());
+                out.writeUTF(metric.getId().getInterval().toString());
+                out.writeLong(metric.getDpart());
+                Integer retention = metric.getDataRetention();
+                out.writeInt(retention == null ? -1 : retention);
+                Map<String, String> metadata = metric.getMetadata();
+                out.writeBoolean(metadata != null);
+                if (metadata != null) {
+                    out.writeInt(metadata.size());
+                    for (Map.Entry<String, String> entry : metadata.entrySet()) {
+                        out.writeUTF(entry.getKey());
+                        out.writeUTF(entry.getValue());
+                    }
+                }
+                out.writeInt(metric.getData().size());
+                for (T d : metric.getData()) {
+                    out.writeLong(d.getTimeUUID().getMostSignificantBits());
+                    out.writeLong(d.getTimeUUID().getLeastSignificantBits());
+                    valueWriter.write(d, out);
+                }
+            }
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            // Not thrown by a ByteArrayOutputStream
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Writes the metrics of a record to the backend.
+     */
+    static ListenableFuture<Void> write(ByteBuffer record, MetricsService target) throws IOException {
+        DataInput in = new DataInputStream(new ByteArrayInputStream(record.array(), record.position(),
+            record.remaining()));
+        byte type = in.readByte();
+        int count = in.readInt();
+        if (type == NUMERIC) {
+            List<NumericMetric> metrics = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                NumericMetric metric = readMetric(in, NumericMetric::new);
+                for (int j = in.readInt(); j > 0; j--) {
+                    metric.addData(new NumericData(metric, readUUID(in), in.readDouble()));
+                }
+                metrics.add(metric);
+            }
+            return target.addNumericData(metrics);
+        }
+        if (type == AVAILABILITY) {
+            List<AvailabilityMetric> metrics = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                AvailabilityMetric metric = readMetric(in, AvailabilityMetric::new);
+                for (int j = in.readInt(); j > 0; j--) {
+                    UUID timeUUID = readUUID(in);
+                    AvailabilityType availability = in.readByte() == AvailabilityType.UP.getCode() ?
+                        AvailabilityType.UP : AvailabilityType.DOWN;
+                    metric.addData(new Availability(metric, timeUUID, availability));
+                }
+                metrics.add(metric);
+            }
+            return target.addAvailabilityData(metrics);
+        }
+        throw new IOException("Unknown record type " + type);
+    }
+
+    private interface MetricFactory<M> {
+        M create(String tenantId, MetricId id, Map<String, String> metadata, Integer dataRetention);
+    }
+
+    private static <M extends Metric<?>> M readMetric(DataInput in, MetricFactory<M> factory) throws IOException {
+        String tenantId = in.readUTF();
+        MetricId id = new MetricId(in.readUTF(), Interval.parse(in.readUTF()));
+        long dpart = in.readLong();
+        int retention = in.readInt();
+        Map<String, String> metadata = null;
+        if (in.readBoolean()) {
+            metadata = new HashMap<>();
+            for (int i = in.readInt(); i > 0; i--) {
+                metadata.put(in.readUTF(), in.readUTF());
+            }
+        }
+        M metric = factory.create(tenantId, id, metadata, retention < 0 ? null : retention);
+        metric.setDpart(dpart);
+        return metric;
+    }
+
+    private static UUID readUUID(DataInput in) throws IOException {
+        return new UUID(in.readLong(), in.readLong());
+    }
+}
@@ -0,0 +1,603 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rhq.metrics.impl.wal;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.ObjectName;
+
+import com.datastax.driver.core.Session;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.rhq.metrics.core.AvailabilityMetric;
+import org.rhq.metrics.core.MetricsService;
+import org.rhq.metrics.core.NumericMetric;
+import org.rhq.metrics.impl.DelegatingMetricsService;
+import org.rhq.metrics.impl.LogFile;
+import org.rhq.metrics.util.JmxSupport;
+
+/**
+ * <p>
+ * Decouples the latency of writes from the backend. Numeric and availability writes are appended to a local
+ * write-ahead log and complete as soon as they are durable; a background drainer then replays them to the backend,
+ * in log order, with a bounded number of replays in flight. Failed replays are retried with exponential backoff until
+ * they succeed, so a slow or restarting Cassandra node delays the data instead of failing the clients and triggering
+ * their retries. Everything else, queries included, goes to the backend directly. Writes which are still in the log
+ * are not visible to queries yet.
+ * </p>
+ * <p>
+ * The log is split into files of at most {@link #FILE_SIZE} bytes, which are deleted once all of their writes have
+ * been replayed. A single flusher thread forces the log to the storage device; writes which arrive while it is busy are
+ * made durable together by the next flush. After a restart, the writes of the remaining files are replayed again, so
+ * the backend may receive a write more than once, which is harmless as writes are idempotent. Writes are rejected with
+ * a {@link RejectedExecutionException} while the log is larger than its maximum size.
+ * </p>
+ * <p>
+ * Statistics are exposed through the org.rhq.metrics:type=WriteAheadLog MBean.
+ * </p>
+ */
+public class WriteAheadLogMetricsService extends DelegatingMetricsService
+    implements WriteAheadLogMetricsServiceMBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(WriteAheadLogMetricsService.class);
+
+    public static final String OBJECT_NAME = "org.rhq.metrics:type=WriteAheadLog";
+
+    public static final long FILE_SIZE = 64 * 1024 * 1024;
+
+    private static final String PREFIX = "wal-";
+
+    private static final String SUFFIX = ".log";
+
+    private static final long MIN_RETRY_DELAY = 100;
+
+    private static final long MAX_RETRY_DELAY = TimeUnit.SECONDS.toMillis(30);
+
+    /**
+     * How long the drainer waits for new writes before it looks again
+     */
+    private static final long IDLE_WAIT = 100;
+
+    private final Path directory;
+
+    private final int maxConcurrentReplays;
+
+    private final long maxBytes;
+
+    /**
+     * The size at which the log continues with a new file. Only whole files are deleted, so files are kept small
+     * relative to the maximum size of the log.
+     */
+    private final long fileSize;
+
+    private final LongSupplier clock;
+
+    /**
+     * The log files by the sequence number of their first write
+     */
+    private final ConcurrentNavigableMap<Long, LogFile> files = new ConcurrentSkipListMap<>();
+
+    /**
+     * The file writes are appended to, guarded by this
+     */
+    private LogFile current;
+
+    /**
+     * The sequence number of the next write, guarded by this
+     */
+    private long nextSequence;
+
+    /**
+     * The futures of the writes which are not yet durable, by sequence number, guarded by itself
+     */
+    private final NavigableMap<Long, SettableFuture<Void>> pending = new TreeMap<>();
+
+    /**
+     * The sequence numbers of the writes being replayed, guarded by itself
+     */
+    private final TreeSet<Long> inFlight = new TreeSet<>();
+
+    /**
+     * The sequence number of the next write the drainer reads
+     */
+    private volatile long drainSequence;
+
+    private final Semaphore replays;
+
+    private final Object drainSignal = new Object();
+
+    private volatile boolean running;
+
+    private Thread flusher;
+
+    private Thread drainer;
+
+    private ScheduledExecutorService retries;
+
+    private ObjectName objectName;
+
+    private final LongAdder appendedWrites = new LongAdder();
+
+    private final LongAdder rejectedWrites = new LongAdder();
+
+    private final AtomicLong flushes = new AtomicLong();
+
+    private final AtomicLong flushedWrites = new AtomicLong();
+
+    private final LongAdder replayedWrites = new LongAdder();
+
+    private final LongAdder failedReplays = new LongAdder();
+
+    private final LongAdder replayDelay = new LongAdder();
+
+    private long recoveredWrites;
+
+    /**
+     * @param directory The directory of the log files
+     * @param maxConcurrentReplays How many writes may be replayed to the backend at the same time
+     * @param maxBytes The size of the log at which writes are rejected
+     */
+    public WriteAheadLogMetricsService(MetricsService delegate, String directory, int maxConcurrentReplays,
+        long maxBytes) {
+        this(delegate, directory, maxConcurrentReplays, maxBytes, System::currentTimeMillis);
+    }
+
+    WriteAheadLogMetricsService(MetricsService delegate, String directory, int maxConcurrentReplays, long maxBytes,
+        LongSupplier clock) {
+        super(delegate);
+        this.directory = Paths.get(directory);
+        this.maxConcurrentReplays = maxConcurrentReplays;
+        this.maxBytes = maxBytes;
+        this.fileSize = Math.max(1024, Math.min(FILE_SIZE, maxBytes / 16));
+        this.clock = clock;
+        replays = new Semaphore(maxConcurrentReplays);
+    }
+
+    @Override
+    public void startUp(Map<String, String> params) {
+        super.startUp(params);
+        start();
+    }
+
+    @Override
+    public void startUp(Session session) {
+        super.startUp(session);
+        start();
+    }
+
+    private void start() {
+        try {
+            open();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not open the write-ahead log in " + directory, e);
+        }
+        if (recoveredWrites > 0) {
+            logger.info("Replaying {} writes from the write-ahead log in {}", recoveredWrites, directory);
+        }
+        running = true;
+        retries = Executors.newSingleThreadScheduledExecutor(r -> newThread(r, "WriteAheadLog-retries"));
+        flusher = newThread(this::flush, "WriteAheadLog-flusher");
+        flusher.start();
+        drainer = newThread(this::drain, "WriteAheadLog-drainer");
+        drainer.start();
+        objectName = JmxSupport.register(this, OBJECT_NAME);
+    }
+
+    private static Thread newThread(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /**
+     * Opens the existing log files, truncating a write which a crash interrupted, and starts a new file for the
+     * writes to come.
+     */
+    private void open() throws IOException {
+        Files.createDirectories(directory);
+        List<Long> sequences = new ArrayList<>();
+        try (DirectoryStream<Path> paths = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path path : paths) {
+                String name = path.getFileName().toString();
+                sequences.add(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+            }
+        }
+        sequences.sort(null);
+        long sequence = 0;
+        for (long first : sequences) {
+            LogFile file = new LogFile(path(first));
+            int count = file.replay(record -> { });
+            if (count == 0) {
+                file.close();
+                Files.delete(file.getPath());
+                continue;
+            }
+            files.put(first, file);
+            recoveredWrites += count;
+            sequence = first + count;
+        }
+        synchronized (this) {
+            nextSequence = sequence;
+            current = new LogFile(path(sequence));
+            files.put(sequence, current);
+        }
+        drainSequence = files.firstKey();
+    }
+
+    private Path path(long sequence) {
+        return directory.resolve(PREFIX + sequence + SUFFIX);
+    }
+
+    @Override
+    public void shutdown() {
+        JmxSupport.unregister(objectName);
+        objectName = null;
+        if (drainer != null) {
+            // Threads doing file IO must not be interrupted, that would close the files
+            synchronized (this) {
+                running = false;
+            }
+            synchronized (pending) {
+                pending.notifyAll();
+            }
+            synchronized (drainSignal) {
+                drainSignal.notifyAll();
+            }
+            try {
+                drainer.join(TimeUnit.SECONDS.toMillis(5));
+                flusher.join(TimeUnit.SECONDS.toMillis(5));
+                // Give up on the replays waiting for a retry and let the others complete, the writes they did not
+                // replay are replayed again after the next start
+                replays.release(retries.shutdownNow().size());
+                if (replays.tryAcquire(maxConcurrentReplays, 5, TimeUnit.SECONDS)) {
+                    replays.release(maxConcurrentReplays);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            drainer = null;
+        }
+        super.shutdown();
+        for (LogFile file : files.values()) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                logger.warn("Could not close " + file.getPath(), e);
+            }
+        }
+    }
+
+    @Override
+    public ListenableFuture<Void> addNumericData(List<NumericMetric> metrics) {
+        return append(BatchCodec.encodeNumeric(metrics));
+    }
+
+    @Override
+    public ListenableFuture<Void> addAvailabilityData(List<AvailabilityMetric> metrics) {
+        return append(BatchCodec.encodeAvailability(metrics));
+    }
+
+    /**
+     * @return A future which completes once the write is durable
+     */
+    private ListenableFuture<Void> append(byte[] write) {
+        if (getBacklogBytes() >= maxBytes) {
+            rejectedWrites.increment();
+            return Futures.immediateFailedFuture(new RejectedExecutionException("The write-ahead log in " +
+                directory + " is full"));
+        }
+        // The write is prefixed with the time it was appended
+        byte[] record = ByteBuffer.allocate(8 + write.length).putLong(clock.getAsLong()).put(write).array();
+        SettableFuture<Void> future = SettableFuture.create();
+        try {
+            synchronized (this) {
+                if (!running) {
+                    return Futures.immediateFailedFuture(new RejectedExecutionException("The write-ahead log in " +
+                        directory + " is closed"));
+                }
+                if (current.size() >= fileSize) {
+                    roll();
+                }
+                current.append(record);
+                synchronized (pending) {
+                    pending.put(nextSequence++, future);
+                    pending.notifyAll();
+                }
+            }
+        } catch (IOException e) {
+            return Futures.immediateFailedFuture(e);
+        }
+        appendedWrites.increment();
+        synchronized (drainSignal) {
+            drainSignal.notifyAll();
+        }
+        return future;
+    }
+
+    /**
+     * Forces the current file and continues with a new one.
+     */
+    private void roll() throws IOException {
+        current.force();
+        current = new LogFile(path(nextSequence));
+        files.put(nextSequence, current);
+    }
+
+    /**
+     * The flusher loop. Every flush makes all writes appended so far durable. It ends once the log has been closed
+     * and all writes are durable.
+     */
+    private void flush() {
+        while (true) {
+            synchronized (pending) {
+                while (pending.isEmpty() && running) {
+                    try {
+                        pending.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                if (pending.isEmpty()) {
+                    return;
+                }
+            }
+            long sequence;
+            LogFile file;
+            synchronized (this) {
+                sequence = nextSequence;
+                file = current;
+            }
+            IOException failure = null;
+            try {
+                // Files rolled before have been forced when they were rolled
+                file.force();
+            } catch (IOException e) {
+                failure = e;
+            }
+            List<SettableFuture<Void>> done;
+            synchronized (pending) {
+                Map<Long, SettableFuture<Void>> flushed = pending.headMap(sequence);
+                done = new ArrayList<>(flushed.values());
+                flushed.clear();
+            }
+            flushes.incrementAndGet();
+            flushedWrites.addAndGet(done.size());
+            for (SettableFuture<Void> future : done) {
+                if (failure == null) {
+                    future.set(null);
+                } else {
+                    future.setException(failure);
+                }
+            }
+        }
+    }
+
+    /**
+     * The drainer loop. Reads the writes in log order and replays them, at most {@link #maxConcurrentReplays} at a
+     * time.
+     */
+    private void drain() {
+        Map.Entry<Long, LogFile> file = files.firstEntry();
+        long position = 0;
+        try {
+            while (running) {
+                if (!replays.tryAcquire(IDLE_WAIT, TimeUnit.MILLISECONDS)) {
+                    continue;
+                }
+                ByteBuffer record = file.getValue().read(position);
+                if (record != null) {
+                    position += LogFile.HEADER_BYTES + record.remaining();
+                    long sequence = drainSequence;
+                    synchronized (inFlight) {
+                        inFlight.add(sequence);
+                    }
+                    drainSequence = sequence + 1;
+                    replay(sequence, record, 0);
+                    continue;
+                }
+                replays.release();
+                Map.Entry<Long, LogFile> next = files.higherEntry(file.getKey());
+                if (next != null && drainSequence == next.getKey()) {
+                    file = next;
+                    position = 0;
+                    deleteReplayedFiles(file.getValue());
+                    continue;
+                }
+                deleteReplayedFiles(file.getValue());
+                synchronized (drainSignal) {
+                    drainSignal.wait(IDLE_WAIT);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException | RuntimeException e) {
+            logger.error("The write-ahead log in " + directory + " can no longer be replayed", e);
+        }
+    }
+
+    private void replay(long sequence, ByteBuffer record, int attempt) {
+        ListenableFuture<Void> future;
+        try {
+            ByteBuffer write = record.duplicate();
+            write.getLong();
+            future = BatchCodec.write(write, delegate);
+        } catch (IOException | RuntimeException e) {
+            future = Futures.immediateFailedFuture(e);
+        }
+        Futures.addCallback(future, new FutureCallback<Void>() {
+            @Override
+            public void onSuccess(Void result) {
+                replayedWrites.increment();
+                replayDelay.add(clock.getAsLong() - record.getLong(record.position()));
+                synchronized (inFlight) {
+                    inFlight.remove(sequence);
+                }
+                replays.release();
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                failedReplays.increment();
+                long delay = Math.min(MAX_RETRY_DELAY, MIN_RETRY_DELAY << Math.min(attempt, 20));
+                if (attempt == 0) {
+                    logger.debug("Replaying write {} failed, retrying in {} ms", sequence, delay, t);
+                }
+                try {
+                    retries.schedule(() -> replay(sequence, record, attempt + 1), delay, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    // shutting down, the write is replayed after the next start
+                    replays.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * @return The sequence number before which all writes have been replayed
+     */
+    private long replayedBefore() {
+        synchronized (inFlight) {
+            return inFlight.isEmpty() ? drainSequence : inFlight.first();
+        }
+    }
+
+    /**
+     * Deletes the files before the one the drainer reads whose writes have all been replayed.
+     */
+    private void deleteReplayedFiles(LogFile reading) throws IOException {
+        long replayedBefore = replayedBefore();
+        while (true) {
+            Map.Entry<Long, LogFile> first = files.firstEntry();
+            Long next = files.higherKey(first.getKey());
+            if (first.getValue() == reading || next == null || next > replayedBefore) {
+                return;
+            }
+            files.remove(first.getKey());
+            first.getValue().close();
+            Files.delete(first.getValue().getPath());
+        }
+    }
+
+    @Override
+    public String getDirectory() {
+        return directory.toString();
+    }
+
+    @Override
+    public long getAppendedWrites() {
+        return appendedWrites.sum();
+    }
+
+    @Override
+    public long getRejectedWrites() {
+        return rejectedWrites.sum();
+    }
+
+    @Override
+    public long getFlushes() {
+        return flushes.get();
+    }
+
+    @Override
+    public double getAverageFlushSize() {
+        long count = flushes.get();
+        return count == 0 ? 0 : (double) flushedWrites.get() / count;
+    }
+
+    @Override
+    public long getRecoveredWrites() {
+        return recoveredWrites;
+    }
+
+    @Override
+    public long getReplayedWrites() {
+        return replayedWrites.sum();
+    }
+
+    @Override
+    public long getFailedReplays() {
+        return failedReplays.sum();
+    }
+
+    @Override
+    public double getAverageReplayDelay() {
+        long count = replayedWrites.sum();
+        return count == 0 ? 0 : (double) replayDelay.sum() / count;
+    }
+
+    @Override
+    public long getBacklog() {
+        long appended;
+        synchronized (this) {
+            appended = nextSequence;
+        }
+        return appended - replayedBefore();
+    }
+
+    @Override
+    public long getBacklogBytes() {
+        long bytes = 0;
+        for (LogFile file : files.values()) {
+            bytes += file.size();
+        }
+        return bytes;
+    }
+
+    @Override
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    @Override
+    public int getReplaysInFlight() {
+        return maxConcurrentReplays - replays.availablePermits();
+    }
+
+    @Override
+    public int getMaxConcurrentReplays() {
+        return maxConcurrentReplays;
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rhq.metrics.impl.wal;
+
+/**
+ * Management interface of the {@link WriteAheadLogMetricsService}.
+ */
+public interface WriteAheadLogMetricsServiceMBean {
+
+    String getDirectory();
+
+    /**
+     * @return The number of writes appended to the log since startup
+     */
+    long getAppendedWrites();
+
+    /**
+     * @return The number of writes rejected because the log was full
+     */
+    long getRejectedWrites();
+
+    /**
+     * @return The number of times the log was forced to the storage device
+     */
+    long getFlushes();
+
+    /**
+     * @return The average number of writes made durable by one flush
+     */
+    double getAverageFlushSize();
+
+    /**
+     * @return The number of writes found in the log at startup
+     */
+    long getRecoveredWrites();
+
+    /**
+     * @return The number of writes replayed to the backend since startup
+     */
+    long getReplayedWrites();
+
+    /**
+     * @return The number of replays which failed and were retried
+     */
+    long getFailedReplays();
+
+    /**
+     * @return The average time from appending a write to the end of its successful replay, in milliseconds
+     */
+    double getAverageReplayDelay();
+
+    /**
+     * @return The number of writes in the log which have not yet been replayed to the backend
+     */
+    long getBacklog();
+
+    /**
+     * @return The size of the log files, in bytes
+     */
+    long getBacklogBytes();
+
+    long getMaxBytes();
+
+    /**
+     * @return The number of writes being replayed right now
+     */
+    int getReplaysInFlight();
+
+    int getMaxConcurrentReplays();
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rhq.metrics.util;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registers the MBeans which expose the statistics of metrics-core components. Failures are only logged, a component
+ * works the same whether or not its statistics are exposed.
+ */
+public final class JmxSupport {
+
+    private static final Logger logger = LoggerFactory.getLogger(JmxSupport.class);
+
+    private JmxSupport() {
+    }
+
+    /**
+     * @return The name the MBean was registered with, or null if it could not be registered. An MBean registered
+     * earlier with the same name is kept.
+     */
+    public static ObjectName register(Object mbean, String name) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(name);
+            if (server.isRegistered(objectName)) {
+                logger.warn("{} is already registered, statistics of this instance are not exposed", name);
+                return null;
+            }
+            server.registerMBean(mbean, objectName);
+            return objectName;
+        } catch (JMException e) {
+            logger.warn("Could not register MBean " + name, e);
+            return null;
+        }
+    }
+
+    public static void unregister(ObjectName name) {
+        if (name == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException e) {
+            logger.warn("Could not unregister MBean " + name, e);
+        }
+    }
+}
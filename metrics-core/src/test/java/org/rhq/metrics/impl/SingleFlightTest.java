@@ -0,0 +1,116 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rhq.metrics.impl;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class SingleFlightTest {
+
+    private List<SettableFuture<List<String>>> queries;
+
+    @BeforeMethod
+    public void resetQueries() {
+        queries = new ArrayList<>();
+    }
+
+    private SettableFuture<List<String>> query() {
+        SettableFuture<List<String>> query = SettableFuture.create();
+        queries.add(query);
+        return query;
+    }
+
+    @Test
+    public void concurrentRequestsShareOneQuery() throws Exception {
+        SingleFlight<String, List<String>> singleFlight = new SingleFlight<>(ArrayList::new);
+
+        ListenableFuture<List<String>> first = singleFlight.execute("k1", this::query);
+        ListenableFuture<List<String>> second = singleFlight.execute("k1", this::query);
+        ListenableFuture<List<String>> other = singleFlight.execute("k2", this::query);
+
+        assertEquals(queries.size(), 2);
+        assertEquals(singleFlight.getInFlightCount(), 2);
+        List<String> result = new ArrayList<>();
+        result.add("a");
+        queries.get(0).set(result);
+
+        assertSame(first.get(), result);
+        assertEquals(second.get(), result);
+        assertNotSame(second.get(), result, "Joined requests must get their own copy");
+        assertTrue(!other.isDone());
+        assertEquals(singleFlight.getExecutedCount(), 2);
+        assertEquals(singleFlight.getCoalescedCount(), 1);
+    }
+
+    @Test
+    public void completedQueryIsNotReused() throws Exception {
+        SingleFlight<String, List<String>> singleFlight = new SingleFlight<>(ArrayList::new);
+
+        singleFlight.execute("k1", this::query);
+        queries.get(0).set(new ArrayList<>());
+        singleFlight.execute("k1", this::query);
+
+        assertEquals(queries.size(), 2);
+        assertEquals(singleFlight.getCoalescedCount(), 0);
+        assertEquals(singleFlight.getInFlightCount(), 1);
+    }
+
+    @Test
+    public void failureIsPropagatedToAllRequests() throws Exception {
+        SingleFlight<String, List<String>> singleFlight = new SingleFlight<>(ArrayList::new);
+
+        ListenableFuture<List<String>> first = singleFlight.execute("k1", this::query);
+        ListenableFuture<List<String>> second = singleFlight.execute("k1", this::query);
+        queries.get(0).setException(new RuntimeException("query failed"));
+
+        for (ListenableFuture<List<String>> future : new ListenableFuture[] {first, second}) {
+            try {
+                future.get();
+                fail("Expected the query to fail");
+            } catch (ExecutionException e) {
+                assertEquals(e.getCause().getMessage(), "query failed");
+            }
+        }
+        assertEquals(singleFlight.getInFlightCount(), 0);
+    }
+
+    @Test
+    public void nullResultIsNotCopied() throws Exception {
+        SingleFlight<String, List<String>> singleFlight = new SingleFlight<>(list -> {
+            throw new AssertionError("null must not be copied");
+        });
+
+        singleFlight.execute("k1", this::query);
+        ListenableFuture<List<String>> second = singleFlight.execute("k1", this::query);
+        queries.get(0).set(null);
+
+        assertEquals(second.get(), null);
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rhq.metrics.impl.cache;
+
+import static java.util.Arrays.asList;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.rhq.metrics.core.MetricId;
+import org.rhq.metrics.core.NumericData;
+import org.rhq.metrics.core.NumericMetric;
+import org.rhq.metrics.core.Tag;
+import org.rhq.metrics.impl.DelegatingMetricsService;
+
+public class CachingMetricsServiceTest {
+
+    private static final long SEGMENT_SIZE = 1000;
+
+    private static final String TENANT = "t1";
+
+    /**
+     * Serves the data of a single metric newest first, like the Cassandra backend, and records all reads.
+     */
+    private static class FakeMetricsService extends DelegatingMetricsService {
+
+        NavigableMap<Long, Double> data = new TreeMap<>();
+
+        List<long[]> reads = new ArrayList<>();
+
+        /** If set, reads see the data of their start but only complete once released */
+        List<Runnable> delayedReads;
+
+        FakeMetricsService() {
+            super(null);
+        }
+
+        @Override
+        public ListenableFuture<NumericMetric> findNumericData(NumericMetric metric, long start, long end) {
+            reads.add(new long[] {start, end});
+            NavigableMap<Long, Double> range = data.subMap(start, true, end, false).descendingMap();
+            NumericMetric result = null;
+            if (!range.isEmpty()) {
+                result = new NumericMetric(metric.getTenantId(), metric.getId());
+                for (Map.Entry<Long, Double> entry : range.entrySet()) {
+                    result.addData(entry.getKey(), entry.getValue());
+                }
+            }
+            if (delayedReads == null) {
+                return Futures.immediateFuture(result);
+            }
+            SettableFuture<NumericMetric> future = SettableFuture.create();
+            NumericMetric delayed = result;
+            delayedReads.add(() -> future.set(delayed));
+            return future;
+        }
+
+        @Override
+        public ListenableFuture<Void> addNumericData(List<NumericMetric> metrics) {
+            for (NumericMetric metric : metrics) {
+                for (NumericData d : metric.getData()) {
+                    data.put(d.getTimestamp(), d.getValue());
+                }
+            }
+            return Futures.immediateFuture(null);
+        }
+    }
+
+    private FakeMetricsService backend;
+
+    private QueryCache cache;
+
+    private CachingMetricsService service;
+
+    private long start;
+
+    @BeforeMethod
+    public void initService() {
+        backend = new FakeMetricsService();
+        cache = new QueryCache(1024 * 1024);
+        service = new CachingMetricsService(backend, cache, SEGMENT_SIZE, 0);
+        // Ten closed segments worth of data, ending well before now
+        start = (System.currentTimeMillis() / SEGMENT_SIZE - 20) * SEGMENT_SIZE;
+        for (long t = start; t < start + 10 * SEGMENT_SIZE; t += 100) {
+            backend.data.put(t, (double) t);
+        }
+    }
+
+    private NumericMetric metric() {
+        return new NumericMetric(TENANT, new MetricId("m1"));
+    }
+
+    private List<Long> timestamps(NumericMetric metric) {
+        List<Long> timestamps = new ArrayList<>();
+        for (NumericData d : metric.getData()) {
+            timestamps.add(d.getTimestamp());
+        }
+        return timestamps;
+    }
+
+    @Test
+    public void returnsSameDataAsBackend() throws Exception {
+        long from = start + 250;
+        long to = System.currentTimeMillis();
+
+        NumericMetric expected = backend.findNumericData(metric(), from, to).get();
+        NumericMetric actual = service.findNumericData(metric(), from, to).get();
+
+        assertEquals(timestamps(actual), timestamps(expected));
+        assertEquals(actual.getData().get(0).getMetric(), actual);
+    }
+
+    @Test
+    public void readsOnlyMissingSegmentsAndTail() throws Exception {
+        long end = start + 5 * SEGMENT_SIZE;
+        service.findNumericData(metric(), start, end).get();
+        assertEquals(backend.reads.size(), 1);
+
+        backend.reads.clear();
+        NumericMetric result = service.findNumericData(metric(), start + 150, System.currentTimeMillis()).get();
+
+        assertEquals(result.getData().size(), 100 - 2);
+        // The first five segments come from the cache; the rest are loaded with one query plus the live tail
+        assertEquals(backend.reads.size(), 2);
+        assertEquals(backend.reads.get(0)[0], end);
+        assertEquals(cache.getHitCount(), 5);
+    }
+
+    @Test
+    public void writeIntoClosedSegmentInvalidatesIt() throws Exception {
+        long end = start + 5 * SEGMENT_SIZE;
+        service.findNumericData(metric(), start, end).get();
+
+        NumericMetric update = metric();
+        update.addData(start + 1050, 42.0);
+        service.addNumericData(asList(update)).get();
+
+        List<NumericData> data = service.findData(metric(), start, end).get();
+        assertEquals(data.size(), 51);
+        assertTrue(data.stream().anyMatch(d -> d.getValue() == 42.0));
+    }
+
+    @Test
+    public void readStartedBeforeWriteDoesNotCacheOldData() throws Exception {
+        long end = start + 5 * SEGMENT_SIZE;
+        backend.delayedReads = new ArrayList<>();
+        ListenableFuture<NumericMetric> slowRead = service.findNumericData(metric(), start, end);
+
+        NumericMetric update = metric();
+        update.addData(start + 1050, 42.0);
+        service.addNumericData(asList(update)).get();
+        // The read completes after the write was acknowledged, with the data from before the write
+        backend.delayedReads.forEach(Runnable::run);
+        backend.delayedReads = null;
+        assertEquals(slowRead.get().getData().size(), 50);
+
+        List<NumericData> data = service.findData(metric(), start, end).get();
+        assertEquals(data.size(), 51);
+        assertTrue(data.stream().anyMatch(d -> d.getValue() == 42.0));
+        assertEquals(cache.getSegmentCount(), 5);
+    }
+
+    @Test
+    public void cachedDataIsNotShared() throws Exception {
+        long end = start + 5 * SEGMENT_SIZE;
+        NumericMetric first = service.findNumericData(metric(), start, end).get();
+        first.getData().get(0).getTags().add(new Tag("modified"));
+
+        NumericMetric second = service.findNumericData(metric(), start, end).get();
+
+        assertTrue(second.getData().get(0).getTags().isEmpty());
+    }
+
+    @Test
+    public void emptyRangeReturnsNull() throws Exception {
+        assertNull(service.findNumericData(metric(), start - 5 * SEGMENT_SIZE, start).get());
+        assertNull(service.findNumericData(metric(), start - 5 * SEGMENT_SIZE, start).get());
+        assertEquals(cache.getHitCount(), 5);
+    }
+
+    @Test
+    public void cacheSizeIsBounded() throws Exception {
+        cache = new QueryCache(4000);
+        service = new CachingMetricsService(backend, cache, SEGMENT_SIZE, 0);
+
+        service.findNumericData(metric(), start, start + 10 * SEGMENT_SIZE).get();
+
+        assertTrue(cache.getEstimatedBytes() <= 4000, "Cache uses " + cache.getEstimatedBytes() + " bytes");
+        assertTrue(cache.getEvictionCount() > 0);
+    }
+}
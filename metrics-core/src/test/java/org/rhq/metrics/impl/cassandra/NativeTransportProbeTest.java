@@ -0,0 +1,100 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rhq.metrics.impl.cassandra;
+
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class NativeTransportProbeTest {
+
+    private int port;
+
+    private Thread node;
+
+    @BeforeMethod
+    public void findFreePort() throws Exception {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+    }
+
+    @AfterMethod
+    public void stopNode() throws Exception {
+        if (node != null) {
+            node.join(5000);
+            node = null;
+        }
+    }
+
+    /**
+     * Starts listening after the delay and answers the first request with a SUPPORTED frame, or closes the connection
+     * without an answer.
+     */
+    private void startNode(long delay, boolean answer) {
+        node = new Thread(() -> {
+            try {
+                Thread.sleep(delay);
+                try (ServerSocket server = new ServerSocket(port); Socket socket = server.accept()) {
+                    byte[] request = new byte[8];
+                    new DataInputStream(socket.getInputStream()).readFully(request);
+                    if (answer) {
+                        socket.getOutputStream().write(new byte[] {(byte) 0x82, 0x00, 0x00, 0x06, 0x00, 0x00, 0x00,
+                            0x02, 0x00, 0x00});
+                    }
+                }
+            } catch (InterruptedException | IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        node.start();
+    }
+
+    @Test
+    public void waitUntilTheNodeAnswers() throws Exception {
+        startNode(300, true);
+        long start = System.currentTimeMillis();
+
+        assertTrue(new NativeTransportProbe(new String[] {"127.0.0.1"}, port, 10_000).await());
+        assertTrue(System.currentTimeMillis() - start >= 300);
+    }
+
+    @Test
+    public void giveUpAtTheDeadline() throws Exception {
+        long start = System.currentTimeMillis();
+
+        assertFalse(new NativeTransportProbe(new String[] {"127.0.0.1"}, port, 300).await());
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue(elapsed >= 300 && elapsed < 3000, "Gave up after " + elapsed + " ms");
+    }
+
+    @Test
+    public void requireAnAnswer() throws Exception {
+        startNode(0, false);
+
+        assertFalse(new NativeTransportProbe(new String[] {"127.0.0.1"}, port, 500).await(),
+            "A node which accepts connections but does not answer is not up");
+    }
+}
@@ -0,0 +1,344 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rhq.metrics.impl.local;
+
+import static java.util.Arrays.asList;
+import static org.rhq.metrics.core.AvailabilityType.DOWN;
+import static org.rhq.metrics.core.AvailabilityType.UP;
+import static org.rhq.metrics.core.MetricType.AVAILABILITY;
+import static org.rhq.metrics.core.MetricType.NUMERIC;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.rhq.metrics.core.Availability;
+import org.rhq.metrics.core.AvailabilityMetric;
+import org.rhq.metrics.core.Counter;
+import org.rhq.metrics.core.Metric;
+import org.rhq.metrics.core.MetricAlreadyExistsException;
+import org.rhq.metrics.core.MetricId;
+import org.rhq.metrics.core.NumericData;
+import org.rhq.metrics.core.NumericMetric;
+import org.rhq.metrics.core.Tag;
+import org.rhq.metrics.core.Tenant;
+import org.rhq.metrics.core.TenantAlreadyExistsException;
+
+public class LocalMetricsServiceTest {
+
+    private static final long PARTITION_SIZE = TimeUnit.HOURS.toMillis(1);
+
+    private static final long MINUTE = 60_000;
+
+    private Path directory;
+
+    private AtomicLong clock;
+
+    private List<LocalMetricsService> services;
+
+    private LocalMetricsService metricsService;
+
+    private long start;
+
+    @BeforeMethod
+    public void initService() throws Exception {
+        directory = Files.createTempDirectory("local-metrics");
+        clock = new AtomicLong(System.currentTimeMillis());
+        services = new ArrayList<>();
+        metricsService = open();
+        start = clock.get() - 30 * MINUTE;
+    }
+
+    @AfterMethod
+    public void deleteDirectory() throws Exception {
+        services.forEach(LocalMetricsService::shutdown);
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private LocalMetricsService open() {
+        LocalMetricsService service = new LocalMetricsService(PARTITION_SIZE, clock::get);
+        service.startUp(ImmutableMap.of(LocalMetricsService.DIRECTORY, directory.toString()));
+        services.add(service);
+        return service;
+    }
+
+    /**
+     * Closes the store cleanly and opens it again.
+     */
+    private LocalMetricsService reopen() {
+        metricsService.shutdown();
+        services.remove(metricsService);
+        return open();
+    }
+
+    private static <T> T get(ListenableFuture<T> future) throws Exception {
+        return future.get();
+    }
+
+    private static Throwable failure(ListenableFuture<?> future) {
+        try {
+            future.get();
+            return null;
+        } catch (Exception e) {
+            return e.getCause();
+        }
+    }
+
+    @Test
+    public void createTenantsAndMetrics() throws Exception {
+        Tenant t1 = new Tenant().setId("t1").setRetention(NUMERIC, 24);
+        get(metricsService.createTenant(t1));
+        assertTrue(failure(metricsService.createTenant(new Tenant().setId("t1")))
+            instanceof TenantAlreadyExistsException, "Expected a duplicate tenant to be rejected");
+
+        NumericMetric m1 = new NumericMetric("t1", new MetricId("m1"), ImmutableMap.of("a1", "1", "a2", "2"), 24);
+        AvailabilityMetric m2 = new AvailabilityMetric("t1", new MetricId("m2"), ImmutableMap.of("a3", "3"));
+        get(metricsService.createMetric(m1));
+        get(metricsService.createMetric(m2));
+        assertTrue(failure(metricsService.createMetric(m1)) instanceof MetricAlreadyExistsException,
+            "Expected a duplicate metric to be rejected");
+        get(metricsService.updateMetadata(m1, ImmutableMap.of("a2", "two", "a3", "3"), ImmutableSet.of("a1")));
+
+        metricsService = reopen();
+
+        assertEquals(get(metricsService.getTenants()), asList(t1));
+        Metric found = get(metricsService.findMetric("t1", NUMERIC, m1.getId()));
+        assertEquals(found.getMetadata(), ImmutableMap.of("a2", "two", "a3", "3"));
+        assertEquals(found.getDataRetention(), Integer.valueOf(24));
+        assertEquals(get(metricsService.findMetric("t1", AVAILABILITY, m2.getId())), m2);
+        assertNull(get(metricsService.findMetric("t2", NUMERIC, m1.getId())));
+        assertEquals(get(metricsService.findMetrics("t1", NUMERIC)).size(), 1);
+        assertTrue(get(metricsService.idExists("m1")));
+        assertFalse(get(metricsService.idExists("m2")));
+    }
+
+    @Test
+    public void addAndFetchNumericData() throws Exception {
+        NumericMetric m1 = new NumericMetric("t1", new MetricId("m1"));
+        m1.addData(start + 4 * MINUTE, 3.3);
+        m1.addData(start, 1.1);
+        m1.addData(start + 40 * MINUTE, 4.4);
+        m1.addData(start + 2 * MINUTE, 2.2);
+        m1.addData(start - 2 * PARTITION_SIZE, 0.1);
+        get(metricsService.addNumericData(asList(m1)));
+
+        NumericMetric update = new NumericMetric("t1", new MetricId("m1"));
+        update.addData(start + 2 * MINUTE, 2.0);
+        get(metricsService.addNumericData(asList(update)));
+
+        List<NumericData> expected = asList(
+            new NumericData(m1, start + 4 * MINUTE, 3.3),
+            new NumericData(m1, start + 2 * MINUTE, 2.0),
+            new NumericData(m1, start, 1.1),
+            new NumericData(m1, start - 2 * PARTITION_SIZE, 0.1)
+        );
+        assertEquals(get(metricsService.findData(m1, start - 3 * PARTITION_SIZE, start + 40 * MINUTE)), expected);
+        assertNull(get(metricsService.findNumericData(m1, start + 5 * MINUTE, start + 10 * MINUTE)));
+
+        metricsService = reopen();
+
+        assertEquals(get(metricsService.findData(m1, start - 3 * PARTITION_SIZE, start + 40 * MINUTE)), expected,
+            "The data should survive a restart");
+        assertEquals(get(metricsService.findNumericData(m1, start, start + 41 * MINUTE)).getData().size(), 4);
+    }
+
+    @Test
+    public void addAndFetchAvailabilityData() throws Exception {
+        AvailabilityMetric m1 = new AvailabilityMetric("t1", new MetricId("m1"));
+        m1.addAvailability(start, UP);
+        m1.addAvailability(start + 2 * MINUTE, DOWN);
+        m1.addAvailability(start + 4 * MINUTE, UP);
+        get(metricsService.addAvailabilityData(asList(m1)));
+
+        AvailabilityMetric found = get(metricsService.findAvailabilityData(m1, start, start + 4 * MINUTE));
+        assertEquals(found.getData(), asList(new Availability(m1, start + 2 * MINUTE, DOWN),
+            new Availability(m1, start, UP)));
+    }
+
+    @Test
+    public void recoverWritesFromTheWriteAheadLog() throws Exception {
+        NumericMetric m1 = new NumericMetric("t1", new MetricId("m1"));
+        m1.addData(start, 1.1);
+        m1.addData(start + MINUTE, 1.2);
+        get(metricsService.addNumericData(asList(m1)));
+        metricsService.checkpoint();
+
+        NumericMetric m2 = new NumericMetric("t1", new MetricId("m1"));
+        m2.addData(start + 2 * MINUTE, 1.3);
+        get(metricsService.addNumericData(asList(m2)));
+
+        // A crash while appending another write leaves an incomplete record behind
+        Files.write(directory.resolve("wal.log"), new byte[] {0, 0, 0, 28, 1, 2}, StandardOpenOption.APPEND);
+
+        // Open the store again without closing it, like after a crash
+        LocalMetricsService recovered = open();
+
+        assertEquals(recovered.getRecoveredRecords(), 1);
+        assertEquals(get(recovered.findData(m1, start, start + 3 * MINUTE)), asList(
+            new NumericData(m1, start + 2 * MINUTE, 1.3),
+            new NumericData(m1, start + MINUTE, 1.2),
+            new NumericData(m1, start, 1.1)));
+        assertEquals(recovered.getWalBytes(), 0, "The recovered writes should have been checkpointed");
+    }
+
+    @Test
+    public void concurrentWritesShareForcesOfTheWriteAheadLog() throws Exception {
+        int writers = 8;
+        int writes = 100;
+        ExecutorService executor = Executors.newFixedThreadPool(writers);
+        try {
+            List<Future<?>> done = new ArrayList<>();
+            for (int w = 0; w < writers; w++) {
+                MetricId id = new MetricId("m" + w);
+                done.add(executor.submit(() -> {
+                    for (int i = 0; i < writes; i++) {
+                        NumericMetric metric = new NumericMetric("t1", id);
+                        metric.addData(start + i * 1000L, i);
+                        get(metricsService.addNumericData(asList(metric)));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : done) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        long flushes = metricsService.getFlushes();
+        assertTrue(flushes > 0 && flushes < writers * writes, "Expected writes to share forces, but " + writes *
+            writers + " writes took " + flushes + " forces");
+        assertTrue(metricsService.getAverageFlushSize() > 1);
+
+        // Open the store again without closing it, the acknowledged writes must have been durable
+        LocalMetricsService recovered = open();
+        for (int w = 0; w < writers; w++) {
+            NumericMetric metric = new NumericMetric("t1", new MetricId("m" + w));
+            assertEquals(get(recovered.findData(metric, start, start + writes * 1000L)).size(), writes);
+        }
+    }
+
+    @Test
+    public void deleteExpiredSegments() throws Exception {
+        get(metricsService.createMetric(new NumericMetric("t1", new MetricId("short"), null, 3600)));
+        NumericMetric shortLived = new NumericMetric("t1", new MetricId("short"));
+        shortLived.addData(start - 2 * PARTITION_SIZE, 1.0);
+        shortLived.addData(start, 2.0);
+        get(metricsService.addNumericData(asList(shortLived)));
+
+        NumericMetric longLived = new NumericMetric("t1", new MetricId("long"));
+        longLived.addData(start, 3.0);
+        get(metricsService.addNumericData(asList(longLived)));
+
+        assertEquals(metricsService.getSegmentCount(), 2);
+        clock.addAndGet(TimeUnit.HOURS.toMillis(2));
+        metricsService.sweep();
+
+        assertEquals(metricsService.getSegmentCount(), 1, "The segment with only expired data should be deleted");
+        assertEquals(metricsService.getDeletedSegments(), 1);
+        assertNull(get(metricsService.findNumericData(shortLived, start - 3 * PARTITION_SIZE, clock.get())));
+        assertEquals(get(metricsService.findData(longLived, start, clock.get())),
+            asList(new NumericData(longLived, start, 3.0)));
+
+        metricsService = reopen();
+        assertEquals(metricsService.getSegmentCount(), 1);
+    }
+
+    @Test
+    public void tagDataAndQueryByTags() throws Exception {
+        NumericMetric m1 = new NumericMetric("t1", new MetricId("m1"));
+        m1.addData(start, 1.1);
+        m1.addData(start + MINUTE, 1.2);
+        m1.addData(start + 2 * MINUTE, 1.3);
+        NumericMetric m2 = new NumericMetric("t1", new MetricId("m2"));
+        m2.addData(start + MINUTE, 2.1);
+        get(metricsService.addNumericData(asList(m1, m2)));
+
+        List<NumericData> tagged = get(metricsService.tagNumericData(m1, ImmutableSet.of("t1", "t2"), start,
+            start + 2 * MINUTE));
+        assertEquals(tagged, asList(new NumericData(m1, start + MINUTE, 1.2), new NumericData(m1, start, 1.1)));
+        assertEquals(tagged.get(0).getTags(), ImmutableSet.of(new Tag("t1", ""), new Tag("t2", "")));
+        assertTrue(tagged.get(0).getTTL() > 0);
+        get(metricsService.tagNumericData(m2, ImmutableSet.of("t2"), start + MINUTE));
+
+        metricsService = reopen();
+
+        Map<MetricId, Set<NumericData>> byT2 = get(metricsService.findNumericDataByTags("t1", ImmutableSet.of("t2")));
+        assertEquals(byT2.keySet(), ImmutableSet.of(m1.getId(), m2.getId()));
+        assertEquals(new ArrayList<>(byT2.get(m1.getId())), asList(new NumericData(m1, start, 1.1),
+            new NumericData(m1, start + MINUTE, 1.2)));
+
+        Map<MetricId, Set<NumericData>> byBoth = get(metricsService.findNumericDataByTags("t1",
+            ImmutableSet.of("t1", "t2")));
+        assertEquals(byBoth.keySet(), ImmutableSet.of(m1.getId()));
+        assertEquals(get(metricsService.findData(m1, start, start + MINUTE)).get(0).getTags(),
+            ImmutableSet.of(new Tag("t1", ""), new Tag("t2", "")));
+    }
+
+    @Test
+    public void persistCounters() throws Exception {
+        get(metricsService.updateCounters(asList(new Counter("t1", "g1", "c1", 1), new Counter("t1", "g1", "c2", 2))));
+        get(metricsService.updateCounter(new Counter("t1", "g1", "c1", 5)));
+
+        metricsService = reopen();
+
+        assertEquals(get(metricsService.findCounters("g1")), asList(new Counter(LocalMetricsService.DEFAULT_TENANT_ID,
+            "g1", "c1", 6), new Counter(LocalMetricsService.DEFAULT_TENANT_ID, "g1", "c2", 2)));
+    }
+
+    @Test
+    public void compactTheCatalog() throws Exception {
+        NumericMetric m1 = new NumericMetric("t1", new MetricId("m1"), ImmutableMap.of("a", "0"), null);
+        get(metricsService.createMetric(m1));
+        for (int i = 0; i < 100; i++) {
+            get(metricsService.updateMetadata(m1, ImmutableMap.of("a", Integer.toString(i)), ImmutableSet.of()));
+        }
+        long size = metricsService.getCatalogBytes();
+
+        metricsService = reopen();
+
+        assertTrue(metricsService.getCatalogBytes() < size / 10, "The catalog should only hold the current state");
+        assertEquals(get(metricsService.findMetric("t1", NUMERIC, m1.getId())).getMetadata(),
+            ImmutableMap.of("a", "99"));
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rhq.metrics.impl.memory;
+
+import static java.util.Arrays.asList;
+import static org.rhq.metrics.core.AvailabilityType.DOWN;
+import static org.rhq.metrics.core.AvailabilityType.UP;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.rhq.metrics.core.Availability;
+import org.rhq.metrics.core.AvailabilityMetric;
+import org.rhq.metrics.core.MetricId;
+import org.rhq.metrics.core.MetricsService;
+import org.rhq.metrics.core.NumericData;
+import org.rhq.metrics.core.NumericMetric;
+import org.rhq.metrics.impl.DelegatingMetricsService;
+
+public class HotTierMetricsServiceTest {
+
+    private static final long MINUTE = 60_000;
+
+    private static final long WINDOW = 60 * MINUTE;
+
+    /**
+     * Records the time ranges of the raw data queries which reach the backend.
+     */
+    private static class RecordingMetricsService extends DelegatingMetricsService {
+
+        final List<List<Long>> ranges = new ArrayList<>();
+
+        RecordingMetricsService(MetricsService delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public ListenableFuture<NumericMetric> findNumericData(NumericMetric metric, long start, long end) {
+            ranges.add(asList(start, end));
+            return super.findNumericData(metric, start, end);
+        }
+
+        @Override
+        public ListenableFuture<List<NumericData>> findData(NumericMetric metric, long start, long end) {
+            ranges.add(asList(start, end));
+            return super.findData(metric, start, end);
+        }
+
+        @Override
+        public ListenableFuture<AvailabilityMetric> findAvailabilityData(AvailabilityMetric metric, long start,
+            long end) {
+            ranges.add(asList(start, end));
+            return super.findAvailabilityData(metric, start, end);
+        }
+    }
+
+    private AtomicLong clock;
+
+    private RecordingMetricsService backend;
+
+    private HotTierMetricsService metricsService;
+
+    private long createdAt;
+
+    @BeforeMethod
+    public void initService() {
+        clock = new AtomicLong(System.currentTimeMillis());
+        backend = new RecordingMetricsService(new MemoryMetricsService(64 * 1024 * 1024, MINUTE, clock::get));
+        createdAt = clock.get();
+        metricsService = new HotTierMetricsService(backend, WINDOW, 64 * 1024 * 1024, clock::get);
+    }
+
+    private static <T> T get(ListenableFuture<T> future) throws Exception {
+        return future.get();
+    }
+
+    /**
+     * Writes one point per timestamp, whose value is its distance from the creation of the hot tier in minutes.
+     */
+    private void addNumericData(MetricsService target, String id, long... timestamps) throws Exception {
+        NumericMetric metric = new NumericMetric("t1", new MetricId(id));
+        for (long timestamp : timestamps) {
+            metric.addData(timestamp, value(timestamp));
+        }
+        get(target.addNumericData(asList(metric)));
+    }
+
+    private double value(long timestamp) {
+        return (timestamp - createdAt) / (double) MINUTE;
+    }
+
+    private List<NumericData> data(NumericMetric metric, long... timestamps) {
+        List<NumericData> data = new ArrayList<>();
+        for (long timestamp : timestamps) {
+            data.add(new NumericData(metric, timestamp, value(timestamp)));
+        }
+        return data;
+    }
+
+    @Test
+    public void answerRecentQueriesFromMemory() throws Exception {
+        NumericMetric m1 = new NumericMetric("t1", new MetricId("m1"), ImmutableMap.of("a1", "1"), 24);
+        get(metricsService.createMetric(m1));
+        clock.addAndGet(20 * MINUTE);
+        addNumericData(metricsService, "m1", createdAt + MINUTE, createdAt + 5 * MINUTE, createdAt + 10 * MINUTE);
+
+        NumericMetric found = get(metricsService.findNumericData(m1, createdAt, clock.get()));
+        assertEquals(found.getData(), data(m1, createdAt + 10 * MINUTE, createdAt + 5 * MINUTE, createdAt + MINUTE));
+        assertEquals(found.getMetadata(), ImmutableMap.of("a1", "1"), "The metadata should come from the backend");
+        assertEquals(found.getDataRetention(), Integer.valueOf(24));
+        assertEquals(get(metricsService.findData(m1, createdAt + 2 * MINUTE, clock.get())),
+            data(m1, createdAt + 10 * MINUTE, createdAt + 5 * MINUTE));
+        assertNull(get(metricsService.findNumericData(m1, createdAt + 11 * MINUTE, clock.get())));
+
+        assertTrue(backend.ranges.isEmpty(), "No raw data query should have reached the backend");
+        assertEquals(get(backend.findData(m1, createdAt, clock.get())).size(), 3, "The data should be written through");
+        assertEquals(metricsService.getMemoryQueries(), 3);
+        assertEquals(metricsService.getHitRatio(), 1.0);
+    }
+
+    @Test
+    public void splitQueriesWhichStartBeforeTheWindow() throws Exception {
+        NumericMetric m1 = new NumericMetric("t1", new MetricId("m1"), ImmutableMap.of("a1", "1"));
+        get(metricsService.createMetric(m1));
+        addNumericData(backend, "m1", createdAt - 10 * MINUTE, createdAt - MINUTE);
+        clock.addAndGet(10 * MINUTE);
+        addNumericData(metricsService, "m1", createdAt + 2 * MINUTE, createdAt + 8 * MINUTE);
+
+        NumericMetric found = get(metricsService.findNumericData(m1, createdAt - 30 * MINUTE, clock.get()));
+        assertEquals(found.getData(), data(m1, createdAt + 8 * MINUTE, createdAt + 2 * MINUTE, createdAt - MINUTE,
+            createdAt - 10 * MINUTE));
+        assertEquals(found.getMetadata(), ImmutableMap.of("a1", "1"));
+        assertEquals(backend.ranges, asList(asList(createdAt - 30 * MINUTE, createdAt)),
+            "Only the part before the window should be read from the backend");
+
+        assertEquals(get(metricsService.findData(m1, createdAt - 30 * MINUTE, createdAt - 5 * MINUTE)),
+            data(m1, createdAt - 10 * MINUTE));
+        assertEquals(metricsService.getSplitQueries(), 1);
+        assertEquals(metricsService.getBackendQueries(), 1);
+    }
+
+    @Test
+    public void moveTheWindowWithTheClock() throws Exception {
+        NumericMetric m1 = new NumericMetric("t1", new MetricId("m1"));
+        clock.addAndGet(10 * MINUTE);
+        addNumericData(metricsService, "m1", createdAt + 5 * MINUTE);
+        clock.addAndGet(WINDOW);
+        addNumericData(metricsService, "m1", clock.get() - MINUTE);
+        metricsService.trim();
+
+        assertEquals(metricsService.getCoveredFrom(), clock.get() - WINDOW);
+        assertEquals(get(metricsService.findData(m1, createdAt, clock.get())),
+            data(m1, clock.get() - MINUTE, createdAt + 5 * MINUTE));
+        assertEquals(backend.ranges, asList(asList(createdAt, clock.get() - WINDOW)));
+        assertEquals(metricsService.getSplitQueries(), 1);
+    }
+
+    @Test
+    public void fallBackToTheBackendAfterEviction() throws Exception {
+        metricsService = new HotTierMetricsService(backend, WINDOW, 16 * 1024, clock::get);
+        NumericMetric m1 = new NumericMetric("t1", new MetricId("m1"));
+        clock.addAndGet(WINDOW);
+        for (long t = createdAt; t < clock.get(); t += MINUTE) {
+            long[] timestamps = new long[20];
+            for (int i = 0; i < timestamps.length; i++) {
+                timestamps[i] = t + i * 1000;
+            }
+            addNumericData(metricsService, "m1", timestamps);
+        }
+
+        assertTrue(metricsService.getEvictedChunks() > 0);
+        assertTrue(metricsService.getCoveredFrom() > createdAt);
+        assertEquals(get(metricsService.findData(m1, createdAt, clock.get())).size(), 60 * 20,
+            "Evicted data should be read from the backend");
+        assertEquals(backend.ranges, asList(asList(createdAt, metricsService.getCoveredFrom())));
+    }
+
+    @Test
+    public void answerRecentAvailabilityQueriesFromMemory() throws Exception {
+        AvailabilityMetric m1 = new AvailabilityMetric("t1", new MetricId("m1"));
+        m1.addAvailability(createdAt + MINUTE, UP);
+        m1.addAvailability(createdAt + 2 * MINUTE, DOWN);
+        clock.addAndGet(5 * MINUTE);
+        get(metricsService.addAvailabilityData(asList(m1)));
+
+        AvailabilityMetric found = get(metricsService.findAvailabilityData(m1, createdAt, clock.get()));
+        assertEquals(found.getData(), asList(new Availability(m1, createdAt + 2 * MINUTE, DOWN),
+            new Availability(m1, createdAt + MINUTE, UP)));
+        assertTrue(backend.ranges.isEmpty());
+    }
+
+    @Test
+    public void exposeTheStatistics() throws Exception {
+        metricsService.startUp(ImmutableMap.of());
+        try {
+            NumericMetric m1 = new NumericMetric("t1", new MetricId("m1"));
+            clock.addAndGet(10 * MINUTE);
+            addNumericData(metricsService, "m1", createdAt + 5 * MINUTE);
+            get(metricsService.findData(m1, createdAt, clock.get()));
+
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(HotTierMetricsService.OBJECT_NAME);
+            assertTrue(server.isRegistered(name));
+            assertEquals(server.getAttribute(name, "MemoryQueries"), 1L);
+            assertEquals(server.getAttribute(name, "HitRatio"), 1.0);
+        } finally {
+            metricsService.shutdown();
+        }
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(
+            new ObjectName(HotTierMetricsService.OBJECT_NAME)));
+    }
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rhq.metrics.impl.memory;
+
+import static java.util.Arrays.asList;
+import static org.rhq.metrics.core.AvailabilityType.DOWN;
+import static org.rhq.metrics.core.AvailabilityType.UP;
+import static org.rhq.metrics.core.MetricType.AVAILABILITY;
+import static org.rhq.metrics.core.MetricType.NUMERIC;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.rhq.metrics.core.Availability;
+import org.rhq.metrics.core.AvailabilityMetric;
+import org.rhq.metrics.core.Metric;
+import org.rhq.metrics.core.MetricAlreadyExistsException;
+import org.rhq.metrics.core.MetricId;
+import org.rhq.metrics.core.NumericData;
+import org.rhq.metrics.core.NumericMetric;
+import org.rhq.metrics.core.Tag;
+import org.rhq.metrics.core.Tenant;
+import org.rhq.metrics.core.TenantAlreadyExistsException;
+
+public class MemoryMetricsServiceTest {
+
+    private static final long CHUNK_SIZE = 60_000;
+
+    private static final long MINUTE = 60_000;
+
+    private AtomicLong clock;
+
+    private MemoryMetricsService metricsService;
+
+    private long start;
+
+    @BeforeMethod
+    public void initService() {
+        clock = new AtomicLong(System.currentTimeMillis());
+        metricsService = new MemoryMetricsService(64 * 1024 * 1024, CHUNK_SIZE, clock::get);
+        start = clock.get() - 30 * MINUTE;
+    }
+
+    private static <T> T get(ListenableFuture<T> future) throws Exception {
+        return future.get();
+    }
+
+    private static Throwable failure(ListenableFuture<?> future) {
+        try {
+            future.get();
+            return null;
+        } catch (Exception e) {
+            return e.getCause();
+        }
+    }
+
+    @Test
+    public void createTenants() throws Exception {
+        Tenant t1 = new Tenant().setId("t1").setRetention(NUMERIC, 24);
+        Tenant t2 = new Tenant().setId("t2");
+
+        get(metricsService.createTenant(t1));
+        get(metricsService.createTenant(t2));
+
+        assertEquals(ImmutableSet.copyOf(get(metricsService.getTenants())), ImmutableSet.of(t1, t2));
+        assertTrue(failure(metricsService.createTenant(new Tenant().setId("t1")))
+            instanceof TenantAlreadyExistsException, "Expected a duplicate tenant to be rejected");
+    }
+
+    @Test
+    public void createAndFindMetrics() throws Exception {
+        NumericMetric m1 = new NumericMetric("t1", new MetricId("m1"), ImmutableMap.of("a1", "1", "a2", "2"), 24);
+        AvailabilityMetric m2 = new AvailabilityMetric("t1", new MetricId("m2"), ImmutableMap.of("a3", "3"));
+        NumericMetric m0 = new NumericMetric("t1", new MetricId("m0"));
+        get(metricsService.createMetric(m1));
+        get(metricsService.createMetric(m2));
+        get(metricsService.createMetric(m0));
+
+        assertEquals(get(metricsService.findMetric("t1", NUMERIC, m1.getId())), m1);
+        assertEquals(get(metricsService.findMetric("t1", AVAILABILITY, m2.getId())), m2);
+        assertNull(get(metricsService.findMetric("t2", NUMERIC, m1.getId())));
+        assertEquals(get(metricsService.findMetrics("t1", NUMERIC)), asList(m0, m1));
+
+        assertTrue(failure(metricsService.createMetric(m1)) instanceof MetricAlreadyExistsException,
+            "Expected a duplicate metric to be rejected");
+
+        get(metricsService.updateMetadata(m1, ImmutableMap.of("a2", "two", "a3", "3"), ImmutableSet.of("a1")));
+        Metric updated = get(metricsService.findMetric("t1", NUMERIC, m1.getId()));
+        assertEquals(updated.getMetadata(), ImmutableMap.of("a2", "two", "a3", "3"));
+    }
+
+    @Test
+    public void addAndFetchNumericData() throws Exception {
+        NumericMetric m1 = new NumericMetric("t1", new MetricId("m1"));
+        m1.addData(start + 4 * MINUTE, 3.3);
+        m1.addData(start, 1.1);
+        m1.addData(start + 20 * MINUTE, 4.4);
+        m1.addData(start + 2 * MINUTE, 2.2);
+        m1.addData(start + 2 * MINUTE + 1, 2.3);
+        get(metricsService.addNumericData(asList(m1)));
+
+        List<NumericData> actual = get(metricsService.findData(m1, start, start + 20 * MINUTE));
+        List<NumericData> expected = asList(
+            new NumericData(m1, start + 4 * MINUTE, 3.3),
+            new NumericData(m1, start + 2 * MINUTE + 1, 2.3),
+            new NumericData(m1, start + 2 * MINUTE, 2.2),
+            new NumericData(m1, start, 1.1)
+        );
+        assertEquals(actual, expected, "The data does not match the expected values");
+
+        NumericMetric update = new NumericMetric("t1", new MetricId("m1"));
+        update.addData(start + 2 * MINUTE, 2.0);
+        get(metricsService.addNumericData(asList(update)));
+
+        NumericMetric found = get(metricsService.findNumericData(m1, start + MINUTE, start + 3 * MINUTE));
+        assertEquals(found.getData(), asList(new NumericData(m1, start + 2 * MINUTE + 1, 2.3),
+            new NumericData(m1, start + 2 * MINUTE, 2.0)));
+        assertEquals(found.getId(), m1.getId());
+
+        assertNull(get(metricsService.findNumericData(m1, start + 5 * MINUTE, start + 10 * MINUTE)));
+        assertEquals(get(metricsService.findMetrics("t1", NUMERIC)).size(), 1);
+        assertTrue(get(metricsService.idExists("m1")));
+        assertFalse(get(metricsService.idExists("m2")));
+    }
+
+    @Test
+    public void addAndFetchAvailabilityData() throws Exception {
+        AvailabilityMetric m1 = new AvailabilityMetric("t1", new MetricId("m1"));
+        m1.addAvailability(start, UP);
+        m1.addAvailability(start + 2 * MINUTE, DOWN);
+        m1.addAvailability(start + 4 * MINUTE, UP);
+        get(metricsService.addAvailabilityData(asList(m1)));
+
+        AvailabilityMetric found = get(metricsService.findAvailabilityData(m1, start, start + 4 * MINUTE));
+        assertEquals(found.getData(), asList(new Availability(m1, start + 2 * MINUTE, DOWN),
+            new Availability(m1, start, UP)));
+    }
+
+    @Test
+    public void tagNumericDataByDateRangeAndQueryByMultipleTags() throws Exception {
+        String tenant = "tag-test";
+        NumericData d1 = new NumericData(start, 101.1);
+        NumericData d2 = new NumericData(start + 2 * MINUTE, 101.2);
+        NumericData d3 = new NumericData(start + 6 * MINUTE, 102.2);
+        NumericData d4 = new NumericData(start + 8 * MINUTE, 102.3);
+        NumericData d5 = new NumericData(start + 4 * MINUTE, 102.1);
+        NumericData d6 = new NumericData(start + 4 * MINUTE, 101.4);
+        NumericData d7 = new NumericData(start + 10 * MINUTE, 102.4);
+        NumericData d8 = new NumericData(start + 6 * MINUTE, 103.1);
+        NumericData d9 = new NumericData(start + 7 * MINUTE, 103.1);
+
+        NumericMetric m1 = new NumericMetric(tenant, new MetricId("m1"));
+        m1.addData(d1);
+        m1.addData(d2);
+        m1.addData(d6);
+
+        NumericMetric m2 = new NumericMetric(tenant, new MetricId("m2"));
+        m2.addData(d3);
+        m2.addData(d4);
+        m2.addData(d5);
+        m2.addData(d7);
+
+        NumericMetric m3 = new NumericMetric(tenant, new MetricId("m3"));
+        m3.addData(d8);
+        m3.addData(d9);
+
+        get(metricsService.addNumericData(asList(m1, m2, m3)));
+
+        get(metricsService.tagNumericData(m1, ImmutableSet.of("t1"), start, start + 6 * MINUTE));
+        get(metricsService.tagNumericData(m2, ImmutableSet.of("t1"), start, start + 6 * MINUTE));
+        get(metricsService.tagNumericData(m1, ImmutableSet.of("t2"), start + 4 * MINUTE, start + 8 * MINUTE));
+        get(metricsService.tagNumericData(m2, ImmutableSet.of("t2"), start + 4 * MINUTE, start + 8 * MINUTE));
+        get(metricsService.tagNumericData(m3, ImmutableSet.of("t2"), start + 4 * MINUTE, start + 8 * MINUTE));
+
+        Map<MetricId, Set<NumericData>> actual = get(metricsService.findNumericDataByTags(tenant,
+            ImmutableSet.of("t1", "t2")));
+        Map<MetricId, Set<NumericData>> expected = ImmutableMap.of(
+            new MetricId("m1"), ImmutableSet.of(d1, d2, d6),
+            new MetricId("m2"), ImmutableSet.of(d5, d3)
+        );
+        assertEquals(actual, expected, "The tagged data does not match");
+
+        List<NumericData> data = get(metricsService.findData(m1, start, start + MINUTE));
+        assertEquals(data.get(0).getTags(), ImmutableSet.of(new Tag("t1")));
+    }
+
+    @Test
+    public void tagIndividualAvailabilityDataPoints() throws Exception {
+        AvailabilityMetric m1 = new AvailabilityMetric("t1", new MetricId("m1"));
+        Availability a1 = new Availability(m1, start, UP);
+        Availability a2 = new Availability(m1, start + 2 * MINUTE, DOWN);
+        m1.addData(a1);
+        m1.addData(a2);
+        get(metricsService.addAvailabilityData(asList(m1)));
+
+        assertEquals(get(metricsService.tagAvailabilityData(m1, ImmutableSet.of("t1"), a2.getTimestamp())),
+            asList(a2));
+        assertEquals(get(metricsService.tagAvailabilityData(m1, ImmutableSet.of("t1"), start + MINUTE)),
+            Collections.emptyList());
+
+        Map<MetricId, Set<Availability>> actual = get(metricsService.findAvailabilityByTags("t1",
+            ImmutableSet.of("t1")));
+        assertEquals(actual, ImmutableMap.of(m1.getId(), ImmutableSet.of(a2)));
+        assertTrue(get(metricsService.findAvailabilityByTags("t1", ImmutableSet.of("t2"))).isEmpty());
+    }
+
+    @Test
+    public void expireDataAfterRetention() throws Exception {
+        get(metricsService.createTenant(new Tenant().setId("t1").setRetention(NUMERIC, 1)));
+        NumericMetric kept = new NumericMetric("t1", new MetricId("kept"));
+        kept.setDataRetention((int) TimeUnit.HOURS.toSeconds(3));
+        get(metricsService.createMetric(kept));
+
+        NumericMetric m1 = new NumericMetric("t1", new MetricId("m1"));
+        m1.addData(start, 1.1);
+        NumericMetric m2 = new NumericMetric("t1", new MetricId("kept"));
+        m2.addData(start, 2.2);
+        get(metricsService.addNumericData(asList(m1, m2)));
+
+        clock.addAndGet(TimeUnit.HOURS.toMillis(2));
+        assertNull(get(metricsService.findNumericData(m1, start, start + MINUTE)), "The data should have expired");
+        assertNotNull(get(metricsService.findNumericData(m2, start, start + MINUTE)),
+            "The metric has a longer data retention");
+
+        metricsService.sweep();
+        assertEquals(metricsService.getExpiredChunks(), 1);
+        assertEquals(metricsService.getSeriesCount(), 1, "The metric without data should have been removed");
+
+        clock.addAndGet(TimeUnit.HOURS.toMillis(2));
+        metricsService.sweep();
+        assertEquals(metricsService.getChunkCount(), 0);
+        assertEquals(get(metricsService.findMetrics("t1", NUMERIC)), asList(kept),
+            "A created metric should be kept");
+        assertEquals(metricsService.getEstimatedBytes(), Series.OVERHEAD_BYTES);
+    }
+
+    @Test
+    public void evictOldestChunksWhenFull() throws Exception {
+        metricsService = new MemoryMetricsService(64 * 1024, CHUNK_SIZE, clock::get);
+        long from = clock.get() - 1000 * MINUTE;
+        for (long t = from; t < clock.get(); t += MINUTE) {
+            NumericMetric metric = new NumericMetric("t1", new MetricId("m1"));
+            for (int i = 0; i < 10; i++) {
+                metric.addData(t + i * 1000, i);
+            }
+            get(metricsService.addNumericData(asList(metric)));
+            assertTrue(metricsService.getEstimatedBytes() <= 64 * 1024, "The store exceeds its maximum size");
+        }
+
+        NumericMetric metric = new NumericMetric("t1", new MetricId("m1"));
+        assertTrue(metricsService.getEvictedChunks() > 0);
+        assertNull(get(metricsService.findNumericData(metric, from, from + MINUTE)),
+            "The oldest data should have been evicted");
+        assertEquals(get(metricsService.findData(metric, clock.get() - MINUTE, clock.get())).size(), 10);
+    }
+
+    @Test
+    public void concurrentWritesAndQueries() throws Exception {
+        int threads = 4;
+        int points = 5000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int n = 0; n < threads; n++) {
+                int offset = n;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < points; i++) {
+                        NumericMetric shared = new NumericMetric("t1", new MetricId("shared"));
+                        shared.addData(start + i * threads + offset, i);
+                        NumericMetric own = new NumericMetric("t" + offset, new MetricId("own"));
+                        own.addData(start + i, i);
+                        metricsService.addNumericData(asList(shared, own));
+                        metricsService.findData(shared, start, start + i * threads);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        NumericMetric shared = new NumericMetric("t1", new MetricId("shared"));
+        List<NumericData> data = get(metricsService.findData(shared, start, start + threads * points));
+        assertEquals(data.size(), threads * points);
+        for (int i = 1; i < data.size(); i++) {
+            assertTrue(data.get(i - 1).getTimestamp() > data.get(i).getTimestamp(), "Expected newest first");
+        }
+        for (int n = 0; n < threads; n++) {
+            NumericMetric own = new NumericMetric("t" + n, new MetricId("own"));
+            assertEquals(get(metricsService.findData(own, start, start + points)).size(), points);
+        }
+    }
+}
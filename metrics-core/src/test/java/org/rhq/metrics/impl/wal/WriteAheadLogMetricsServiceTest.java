@@ -0,0 +1,294 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rhq.metrics.impl.wal;
+
+import static java.util.Arrays.asList;
+import static org.rhq.metrics.core.AvailabilityType.DOWN;
+import static org.rhq.metrics.core.AvailabilityType.UP;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.rhq.metrics.core.Availability;
+import org.rhq.metrics.core.AvailabilityMetric;
+import org.rhq.metrics.core.MetricId;
+import org.rhq.metrics.core.NumericData;
+import org.rhq.metrics.core.NumericMetric;
+import org.rhq.metrics.impl.DelegatingMetricsService;
+import org.rhq.metrics.impl.memory.MemoryMetricsService;
+
+public class WriteAheadLogMetricsServiceTest {
+
+    private static final long MAX_BYTES = 64 * 1024 * 1024;
+
+    /**
+     * An in-memory backend whose numeric writes can be made to fail or to wait until they are released.
+     */
+    private static class Backend extends DelegatingMetricsService {
+
+        final AtomicInteger failures = new AtomicInteger();
+
+        volatile boolean down;
+
+        volatile boolean holding;
+
+        final List<SettableFuture<Void>> held = Collections.synchronizedList(new ArrayList<>());
+
+        Backend() {
+            super(new MemoryMetricsService());
+            startUp(ImmutableMap.of());
+        }
+
+        @Override
+        public ListenableFuture<Void> addNumericData(List<NumericMetric> metrics) {
+            if (down || failures.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+                return Futures.immediateFailedFuture(new RuntimeException("The backend is unavailable"));
+            }
+            if (holding) {
+                SettableFuture<Void> gate = SettableFuture.create();
+                held.add(gate);
+                return Futures.transform(gate, (AsyncFunction<Void, Void>) ignored -> delegate.addNumericData(
+                    metrics));
+            }
+            return delegate.addNumericData(metrics);
+        }
+
+        void release() {
+            List<SettableFuture<Void>> gates;
+            synchronized (held) {
+                gates = new ArrayList<>(held);
+                held.clear();
+            }
+            gates.forEach(gate -> gate.set(null));
+        }
+    }
+
+    private Path directory;
+
+    private List<WriteAheadLogMetricsService> services;
+
+    private Backend backend;
+
+    private long start;
+
+    @BeforeMethod
+    public void initService() throws Exception {
+        directory = Files.createTempDirectory("write-ahead-log");
+        services = new ArrayList<>();
+        backend = new Backend();
+        start = System.currentTimeMillis() - 60_000;
+    }
+
+    @AfterMethod
+    public void deleteDirectory() throws Exception {
+        backend.holding = false;
+        backend.release();
+        services.forEach(WriteAheadLogMetricsService::shutdown);
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private WriteAheadLogMetricsService open(Backend backend, int maxConcurrentReplays, long maxBytes) {
+        WriteAheadLogMetricsService service = new WriteAheadLogMetricsService(backend, directory.toString(),
+            maxConcurrentReplays, maxBytes);
+        service.startUp(ImmutableMap.of());
+        services.add(service);
+        return service;
+    }
+
+    private static <T> T get(ListenableFuture<T> future) throws Exception {
+        return future.get();
+    }
+
+    private static void await(BooleanSupplier condition, String message) throws Exception {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail(message);
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private static void awaitReplayed(WriteAheadLogMetricsService service, long writes) throws Exception {
+        await(() -> service.getReplayedWrites() >= writes, "Expected " + writes + " replayed writes but got " +
+            service.getReplayedWrites());
+    }
+
+    private ListenableFuture<Void> addNumericData(WriteAheadLogMetricsService service, String id, double value) {
+        NumericMetric metric = new NumericMetric("t1", new MetricId(id));
+        metric.addData(start, value);
+        return service.addNumericData(asList(metric));
+    }
+
+    private List<NumericData> findData(String id) throws Exception {
+        return get(backend.findData(new NumericMetric("t1", new MetricId(id)), start, start + 1));
+    }
+
+    @Test
+    public void exposeTheStatistics() throws Exception {
+        WriteAheadLogMetricsService service = open(backend, 4, MAX_BYTES);
+        get(addNumericData(service, "m1", 1.0));
+        awaitReplayed(service, 1);
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(WriteAheadLogMetricsService.OBJECT_NAME);
+        assertTrue(server.isRegistered(name));
+        assertEquals(server.getAttribute(name, "AppendedWrites"), 1L);
+        assertEquals(server.getAttribute(name, "ReplayedWrites"), 1L);
+
+        service.shutdown();
+        services.remove(service);
+        assertFalse(server.isRegistered(name));
+    }
+
+    @Test
+    public void replayAcknowledgedWrites() throws Exception {
+        WriteAheadLogMetricsService service = open(backend, 4, MAX_BYTES);
+        NumericMetric m1 = new NumericMetric("t1", new MetricId("m1"), ImmutableMap.of("a1", "1"), 24);
+        m1.addData(start, 1.5);
+        m1.addData(start + 1000, 2.5);
+        AvailabilityMetric a1 = new AvailabilityMetric("t1", new MetricId("a1"));
+        a1.addAvailability(start, UP);
+        a1.addAvailability(start + 1000, DOWN);
+
+        get(service.addNumericData(asList(m1)));
+        get(service.addAvailabilityData(asList(a1)));
+        awaitReplayed(service, 2);
+
+        assertEquals(get(backend.findData(m1, start, start + 2000)), asList(new NumericData(m1, start + 1000, 2.5),
+            new NumericData(m1, start, 1.5)));
+        assertEquals(get(backend.findAvailabilityData(a1, start, start + 2000)).getData(), asList(
+            new Availability(a1, start + 1000, DOWN), new Availability(a1, start, UP)));
+        assertEquals(service.getAppendedWrites(), 2);
+        assertTrue(service.getFlushes() >= 1);
+        await(() -> service.getBacklog() == 0, "The backlog should be empty");
+    }
+
+    @Test
+    public void retryFailedReplays() throws Exception {
+        WriteAheadLogMetricsService service = open(backend, 4, MAX_BYTES);
+        backend.failures.set(3);
+
+        get(addNumericData(service, "m1", 1.0));
+        awaitReplayed(service, 1);
+
+        assertEquals(service.getFailedReplays(), 3);
+        assertEquals(findData("m1").size(), 1);
+    }
+
+    @Test
+    public void replayTheLogAfterARestart() throws Exception {
+        WriteAheadLogMetricsService service = open(backend, 4, MAX_BYTES);
+        backend.down = true;
+        for (int i = 0; i < 5; i++) {
+            get(addNumericData(service, "m" + i, i));
+        }
+        service.shutdown();
+        services.remove(service);
+        assertEquals(service.getReplayedWrites(), 0);
+
+        backend = new Backend();
+        service = open(backend, 4, MAX_BYTES);
+        assertEquals(service.getRecoveredWrites(), 5);
+        awaitReplayed(service, 5);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(findData("m" + i), asList(new NumericData(new NumericMetric("t1", new MetricId("m" + i)),
+                start, i)));
+        }
+
+        // The replayed files are deleted, a restart does not replay them again
+        WriteAheadLogMetricsService replayed = service;
+        await(() -> replayed.getBacklog() == 0, "The backlog should be empty");
+        service.shutdown();
+        services.remove(service);
+        assertEquals(open(backend, 4, MAX_BYTES).getRecoveredWrites(), 0);
+    }
+
+    @Test
+    public void rejectWritesWhileTheLogIsFull() throws Exception {
+        WriteAheadLogMetricsService service = open(backend, 1, 4096);
+        backend.down = true;
+        int accepted = 0;
+        try {
+            while (true) {
+                get(addNumericData(service, "m" + accepted, accepted));
+                accepted++;
+            }
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException, "Unexpected failure " + e.getCause());
+        }
+        assertTrue(accepted > 10, "Only " + accepted + " writes have been accepted");
+        assertEquals(service.getRejectedWrites(), 1);
+
+        backend.down = false;
+        awaitReplayed(service, accepted);
+        await(() -> service.getBacklogBytes() < service.getMaxBytes(), "The replayed files should be deleted");
+        get(addNumericData(service, "m" + accepted, accepted));
+    }
+
+    @Test
+    public void boundTheReplaysInFlight() throws Exception {
+        WriteAheadLogMetricsService service = open(backend, 2, MAX_BYTES);
+        backend.holding = true;
+        for (int i = 0; i < 10; i++) {
+            get(addNumericData(service, "m" + i, i));
+        }
+
+        while (service.getReplayedWrites() < 10) {
+            await(() -> backend.held.size() == 2 || service.getReplayedWrites() + backend.held.size() == 10,
+                "The replays should wait for the backend");
+            Thread.sleep(50);
+            assertTrue(backend.held.size() <= 2, backend.held.size() + " replays are in flight");
+            assertEquals(service.getReplaysInFlight(), backend.held.size());
+            backend.release();
+            long released = 10 - service.getBacklog();
+            await(() -> service.getReplayedWrites() >= released, "The released replays should complete");
+        }
+        for (int i = 0; i < 10; i++) {
+            assertEquals(findData("m" + i).size(), 1);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2014 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rhq.metrics.restServlet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Applies an asynchronous function to a list of inputs while keeping at most <code>maxConcurrent</code> of the
+ * returned futures pending at any time. A new input is only started when a previous one completes, so a large
+ * multi-series query cannot flood the backend with reads.
+ *
+ * Inputs are started in a loop by whichever thread holds the drain, so futures that are already complete when
+ * they are returned do not recurse into starting the next input.
+ *
+ * @param <T> The input type
+ * @param <R> The result type
+ */
+class BoundedFanOut<T, R> {
+
+    private final List<T> inputs;
+
+    private final AsyncFunction<T, R> function;
+
+    /** Index of the next input to start, only touched by the thread that holds the drain */
+    private int next;
+
+    /** Number of inputs that may still be started before one completes */
+    private final AtomicInteger permits;
+
+    /** Requests to drain, the thread that raises it from zero drains until it drops back to zero */
+    private final AtomicInteger drainRequests = new AtomicInteger();
+
+    private final AtomicInteger remaining;
+
+    private final AtomicReferenceArray<R> results;
+
+    private final SettableFuture<List<R>> future = SettableFuture.create();
+
+    private BoundedFanOut(List<T> inputs, int maxConcurrent, AsyncFunction<T, R> function) {
+        this.inputs = inputs;
+        this.function = function;
+        permits = new AtomicInteger(maxConcurrent);
+        remaining = new AtomicInteger(inputs.size());
+        results = new AtomicReferenceArray<>(inputs.size());
+    }
+
+    /**
+     * @return A future of the results, in the order of the inputs. It fails as soon as any input fails.
+     */
+    public static <T, R> ListenableFuture<List<R>> transform(List<T> inputs, int maxConcurrent,
+        AsyncFunction<T, R> function) {
+        if (maxConcurrent < 1) {
+            throw new IllegalArgumentException("maxConcurrent must be at least 1, but was " + maxConcurrent);
+        }
+        BoundedFanOut<T, R> fanOut = new BoundedFanOut<>(inputs, maxConcurrent, function);
+        if (inputs.isEmpty()) {
+            fanOut.future.set(new ArrayList<R>());
+        }
+        fanOut.drain();
+        return fanOut.future;
+    }
+
+    /**
+     * Start inputs while permits are left. A call while another thread drains, or from a callback that runs
+     * inside {@link #start(int)}, only makes the draining thread loop once more.
+     */
+    private void drain() {
+        if (drainRequests.getAndIncrement() != 0) {
+            return;
+        }
+        do {
+            while (next < inputs.size() && !future.isDone() && permits.get() > 0) {
+                permits.decrementAndGet();
+                start(next++);
+            }
+        } while (drainRequests.decrementAndGet() != 0);
+    }
+
+    private void start(final int index) {
+        ListenableFuture<R> resultFuture;
+        try {
+            resultFuture = function.apply(inputs.get(index));
+        } catch (Exception e) {
+            future.setException(e);
+            return;
+        }
+        Futures.addCallback(resultFuture, new FutureCallback<R>() {
+            @Override
+            public void onSuccess(R result) {
+                results.set(index, result);
+                if (remaining.decrementAndGet() == 0) {
+                    List<R> list = new ArrayList<>(results.length());
+                    for (int i = 0; i < results.length(); ++i) {
+                        list.add(results.get(i));
+                    }
+                    future.set(list);
+                } else {
+                    permits.incrementAndGet();
+                    drain();
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                future.setException(t);
+            }
+        });
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2014 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rhq.metrics.restServlet;
+
+import static org.rhq.metrics.restServlet.config.ConfigurationKey.BUCKET_CACHE_SIZE;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import org.rhq.metrics.core.NumericData;
+import org.rhq.metrics.core.NumericMetric;
+import org.rhq.metrics.restServlet.config.Configurable;
+import org.rhq.metrics.restServlet.config.ConfigurationProperty;
+
+/**
+ * Keeps buckets which are closed, so that dashboards polling the same window with a cursor only have to read and
+ * aggregate the buckets which are new or still open. A bucket is closed once its end is older than the
+ * {@link #INGEST_LAG}, data arriving later than that is not expected. Writes which still change closed buckets, e.g.
+ * backfills, invalidate the cached buckets from the earliest written timestamp on. Buckets are cached per metric,
+ * bucket width and alignment of the bucket grid, so requests with different grids never see each other's buckets.
+ * The number of cached series is bounded; the least recently used series are evicted first.
+ */
+@ApplicationScoped
+public class BucketCache {
+
+    /**
+     * Upper bound of the buckets kept for a single series, the oldest buckets are dropped first.
+     */
+    static final int MAX_BUCKETS_PER_SERIES = 1440;
+
+    /**
+     * How late data may arrive, buckets which end within this time span before now are still open.
+     */
+    static final long INGEST_LAG = TimeUnit.MINUTES.toMillis(5);
+
+    @Inject
+    @Configurable
+    @ConfigurationProperty(BUCKET_CACHE_SIZE)
+    private String maxSeries;
+
+    private Cache<SeriesKey, Series> cache;
+
+    public BucketCache() {
+    }
+
+    BucketCache(int maxSeries) {
+        this.maxSeries = Integer.toString(maxSeries);
+        init();
+    }
+
+    @PostConstruct
+    void init() {
+        cache = CacheBuilder.newBuilder().maximumSize(Long.parseLong(maxSeries)).build();
+    }
+
+    /**
+     * @return True if the bucket starting at <code>timestamp</code> can no longer change at time <code>now</code>
+     */
+    public static boolean isClosed(long timestamp, long bucketSize, long now) {
+        return timestamp + bucketSize <= now - INGEST_LAG;
+    }
+
+    /**
+     * @return The consecutive cached buckets starting at <code>origin</code>, at most <code>count</code> of them
+     */
+    public List<BucketDataPoint> getClosedBuckets(String tenantId, String id, long bucketSize, long origin,
+        int count) {
+        List<BucketDataPoint> buckets = new ArrayList<>();
+        // The series is created here, so that writes arriving while the caller reads the missing buckets can mark it
+        ConcurrentNavigableMap<Long, BucketDataPoint> grid = getSeries(tenantId, id).grids.get(new Grid(bucketSize,
+            origin));
+        if (grid == null) {
+            return buckets;
+        }
+        for (int i = 0; i < count; ++i) {
+            BucketDataPoint bucket = grid.get(origin + i * bucketSize);
+            if (bucket == null) {
+                break;
+            }
+            buckets.add(bucket);
+        }
+        return buckets;
+    }
+
+    /**
+     * Stores buckets of a series. The caller must only pass buckets which are closed. The buckets are not stored if
+     * data of the series has been written since <code>readAt</code>, the time the caller started reading the data
+     * the buckets were computed from.
+     */
+    public void putClosedBuckets(String tenantId, String id, long bucketSize, List<BucketDataPoint> buckets,
+        long readAt) {
+        if (buckets.isEmpty()) {
+            return;
+        }
+        Series series = getSeries(tenantId, id);
+        ConcurrentNavigableMap<Long, BucketDataPoint> grid = series.grids.computeIfAbsent(new Grid(bucketSize,
+            buckets.get(0).getTimestamp()), key -> new ConcurrentSkipListMap<>());
+        synchronized (series) {
+            if (series.lastWrite >= readAt) {
+                return;
+            }
+            for (BucketDataPoint bucket : buckets) {
+                grid.put(bucket.getTimestamp(), bucket);
+            }
+        }
+        while (grid.size() > MAX_BUCKETS_PER_SERIES) {
+            grid.pollFirstEntry();
+        }
+    }
+
+    /**
+     * Drops the cached buckets the data of the metrics falls into, and the buckets after them. Called once the data
+     * has been written.
+     */
+    public void invalidate(List<NumericMetric> metrics) {
+        long now = System.currentTimeMillis();
+        for (NumericMetric metric : metrics) {
+            Series series = cache.getIfPresent(new SeriesKey(metric.getTenantId(), metric.getId().getName()));
+            if (series == null || metric.getData().isEmpty()) {
+                continue;
+            }
+            long earliest = Long.MAX_VALUE;
+            for (NumericData d : metric.getData()) {
+                earliest = Math.min(earliest, d.getTimestamp());
+            }
+            synchronized (series) {
+                series.lastWrite = now;
+                for (Map.Entry<Grid, ConcurrentNavigableMap<Long, BucketDataPoint>> grid : series.grids.entrySet()) {
+                    grid.getValue().tailMap(earliest - grid.getKey().bucketSize, false).clear();
+                }
+            }
+        }
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    private Series getSeries(String tenantId, String id) {
+        try {
+            return cache.get(new SeriesKey(tenantId, id), Series::new);
+        } catch (ExecutionException e) {
+            // Cannot happen, creating an empty series does not throw
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static class Series {
+        final Map<Grid, ConcurrentNavigableMap<Long, BucketDataPoint>> grids = new ConcurrentHashMap<>();
+
+        /**
+         * The time data of the series was last written, guarded by this
+         */
+        long lastWrite = Long.MIN_VALUE;
+    }
+
+    private static class SeriesKey {
+        private final String tenantId;
+        private final String id;
+
+        SeriesKey(String tenantId, String id) {
+            this.tenantId = tenantId;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            SeriesKey key = (SeriesKey) o;
+            return tenantId.equals(key.tenantId) && id.equals(key.id);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(tenantId, id);
+        }
+    }
+
+    private static class Grid {
+        private final long bucketSize;
+        private final long alignment;
+
+        Grid(long bucketSize, long origin) {
+            this.bucketSize = bucketSize;
+            this.alignment = Math.floorMod(origin, bucketSize);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Grid grid = (Grid) o;
+            return bucketSize == grid.bucketSize && alignment == grid.alignment;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(bucketSize, alignment);
+        }
+    }
+}
@@ -39,6 +39,9 @@ public class BucketedOutput {
     @JsonInclude(Include.NON_EMPTY)
     private List<BucketDataPoint> data = new ArrayList<>();
 
+    @JsonInclude(Include.NON_NULL)
+    private Long cursor;
+
     public BucketedOutput() {
     }
 
@@ -80,6 +83,18 @@ public class BucketedOutput {
         this.data = data;
     }
 
+    /**
+     * @return The end of the last closed bucket. Passing it back as <code>cursor</code> request parameter returns only
+     * the buckets from there on.
+     */
+    public Long getCursor() {
+        return cursor;
+    }
+
+    public void setCursor(Long cursor) {
+        this.cursor = cursor;
+    }
+
     public void add(BucketDataPoint d) {
         data.add(d);
     }
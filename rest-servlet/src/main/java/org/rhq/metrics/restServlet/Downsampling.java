@@ -0,0 +1,196 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rhq.metrics.restServlet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+import org.rhq.metrics.core.NumericData;
+
+/**
+ * Shape preserving downsampling of raw numeric data for charting. Unlike bucketing, the downsampled series only
+ * consists of real data points, so spikes survive the reduction.
+ *
+ * <ul>
+ *   <li><em>lttb</em>: Largest-Triangle-Three-Buckets, picks the visually most significant point of each bucket</li>
+ *   <li><em>minmax</em>: keeps the lowest and the highest point of each time slice</li>
+ * </ul>
+ *
+ * Both strategies make a single pass over the data and do not copy the input.
+ */
+public enum Downsampling {
+
+    LTTB("lttb", 3) {
+        @Override
+        List<NumericData> doDownsample(List<NumericData> data, int points) {
+            int size = data.size();
+            List<NumericData> sampled = new ArrayList<>(points);
+            // The first and the last point are always kept, the remaining points are divided into
+            // points - 2 buckets of (almost) equal size.
+            double bucketSize = (double) (size - 2) / (points - 2);
+
+            int selected = 0;
+            sampled.add(data.get(selected));
+
+            for (int i = 0; i < points - 2; ++i) {
+                // Average of the next bucket, which serves as the third vertex of the triangle
+                int nextStart = (int) Math.floor((i + 1) * bucketSize) + 1;
+                int nextEnd = Math.min((int) Math.floor((i + 2) * bucketSize) + 1, size);
+                double avgX = 0;
+                double avgY = 0;
+                for (int j = nextStart; j < nextEnd; ++j) {
+                    avgX += data.get(j).getTimestamp();
+                    avgY += data.get(j).getValue();
+                }
+                int nextLength = nextEnd - nextStart;
+                avgX /= nextLength;
+                avgY /= nextLength;
+
+                int start = (int) Math.floor(i * bucketSize) + 1;
+                int end = (int) Math.floor((i + 1) * bucketSize) + 1;
+
+                NumericData a = data.get(selected);
+                double ax = a.getTimestamp();
+                double ay = a.getValue();
+                double maxArea = -1;
+                int maxIndex = start;
+                for (int j = start; j < end; ++j) {
+                    NumericData d = data.get(j);
+                    // Twice the area of the triangle; the factor does not matter for the comparison
+                    double area = Math.abs((ax - avgX) * (d.getValue() - ay) - (ax - d.getTimestamp()) * (avgY - ay));
+                    if (area > maxArea) {
+                        maxArea = area;
+                        maxIndex = j;
+                    }
+                }
+                sampled.add(data.get(maxIndex));
+                selected = maxIndex;
+            }
+
+            sampled.add(data.get(size - 1));
+            return sampled;
+        }
+    },
+
+    MINMAX("minmax", 2) {
+        @Override
+        List<NumericData> doDownsample(List<NumericData> data, int points) {
+            int buckets = points / 2;
+            long first = data.get(0).getTimestamp();
+            long last = data.get(data.size() - 1).getTimestamp();
+            // Bucket width is rounded up so that the last point still falls into the last bucket
+            long width = Math.max(1, (last - first + buckets) / buckets);
+
+            List<NumericData> sampled = new ArrayList<>(points);
+            long currentBucket = -1;
+            NumericData min = null;
+            NumericData max = null;
+            for (NumericData d : data) {
+                long bucket = (d.getTimestamp() - first) / width;
+                if (bucket != currentBucket) {
+                    addMinMax(sampled, min, max);
+                    currentBucket = bucket;
+                    min = d;
+                    max = d;
+                } else if (d.getValue() < min.getValue()) {
+                    min = d;
+                } else if (d.getValue() > max.getValue()) {
+                    max = d;
+                }
+            }
+            addMinMax(sampled, min, max);
+            return sampled;
+        }
+
+        private void addMinMax(List<NumericData> sampled, NumericData min, NumericData max) {
+            if (min == null) {
+                return;
+            }
+            if (min == max) {
+                sampled.add(min);
+            } else if (min.getTimestamp() <= max.getTimestamp()) {
+                sampled.add(min);
+                sampled.add(max);
+            } else {
+                sampled.add(max);
+                sampled.add(min);
+            }
+        }
+    };
+
+    private final String text;
+
+    private final int minimumPoints;
+
+    private Downsampling(String text, int minimumPoints) {
+        this.text = text;
+        this.minimumPoints = minimumPoints;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * @return The smallest number of points this strategy can reduce a series to
+     */
+    public int getMinimumPoints() {
+        return minimumPoints;
+    }
+
+    /**
+     * Reduces the data to at most <code>points</code> data points. The data may be sorted in either ascending or
+     * descending time order; the result is always in ascending time order.
+     *
+     * @param data The raw data points
+     * @param points The maximum number of data points to return
+     * @return A subset of the raw data points
+     * @throws IllegalArgumentException if <code>points</code> is lower than {@link #getMinimumPoints()}
+     */
+    public List<NumericData> downsample(List<NumericData> data, int points) {
+        if (points < minimumPoints) {
+            throw new IllegalArgumentException(text + " downsampling requires at least " + minimumPoints +
+                " points, but " + points + " were requested");
+        }
+        List<NumericData> ascending = data;
+        if (data.size() > 1 && data.get(0).getTimestamp() > data.get(data.size() - 1).getTimestamp()) {
+            // Cassandra returns the newest data first. A reversed view avoids copying the list.
+            ascending = Lists.reverse(data);
+        }
+        if (ascending.size() <= points) {
+            return ascending;
+        }
+        return doDownsample(ascending, points);
+    }
+
+    abstract List<NumericData> doDownsample(List<NumericData> data, int points);
+
+    @Override
+    public String toString() {
+        return text;
+    }
+
+    public static Downsampling fromText(String text) {
+        switch (text) {
+        case "lttb": return LTTB;
+        case "minmax": return MINMAX;
+        default: throw new IllegalArgumentException(text + " is not a recognized downsampling mode");
+        }
+    }
+}
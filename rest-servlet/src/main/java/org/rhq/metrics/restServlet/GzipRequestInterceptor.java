@@ -0,0 +1,123 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rhq.metrics.restServlet;
+
+import static javax.ws.rs.core.Response.Status.BAD_REQUEST;
+import static javax.ws.rs.core.Response.Status.REQUEST_ENTITY_TOO_LARGE;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipException;
+
+import javax.annotation.Priority;
+import javax.ws.rs.Priorities;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.ext.Provider;
+import javax.ws.rs.ext.ReaderInterceptor;
+import javax.ws.rs.ext.ReaderInterceptorContext;
+
+/**
+ * Inflates request bodies sent with <code>Content-Encoding: gzip</code>, so that clients posting large batches of
+ * data points, like ptrans, can compress them. The inflated size of a body is limited to
+ * {@link #MAX_INFLATED_SIZE} bytes, larger bodies are rejected with status 413.
+ *
+ * The interceptor runs before the one of RESTEasy and removes the header, so a body is never inflated twice.
+ */
+@Provider
+@Priority(Priorities.ENTITY_CODER - 100)
+public class GzipRequestInterceptor implements ReaderInterceptor {
+
+    static final long MAX_INFLATED_SIZE = 64 * 1024 * 1024;
+
+    private final long maxInflatedSize;
+
+    public GzipRequestInterceptor() {
+        this(MAX_INFLATED_SIZE);
+    }
+
+    GzipRequestInterceptor(long maxInflatedSize) {
+        this.maxInflatedSize = maxInflatedSize;
+    }
+
+    @Override
+    public Object aroundReadFrom(ReaderInterceptorContext context) throws IOException, WebApplicationException {
+        String encoding = context.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING);
+        if (encoding == null || !"gzip".equalsIgnoreCase(encoding.trim())) {
+            return context.proceed();
+        }
+        context.getHeaders().remove(HttpHeaders.CONTENT_ENCODING);
+        InputStream compressed = context.getInputStream();
+        GZIPInputStream inflated;
+        try {
+            inflated = new GZIPInputStream(compressed);
+        } catch (ZipException e) {
+            throw new WebApplicationException(e, BAD_REQUEST);
+        }
+        context.setInputStream(new BoundedInputStream(inflated, maxInflatedSize));
+        try {
+            return context.proceed();
+        } finally {
+            context.setInputStream(compressed);
+        }
+    }
+
+    /**
+     * Fails the request once more than the allowed number of bytes was read.
+     */
+    private static class BoundedInputStream extends FilterInputStream {
+        private long remaining;
+
+        BoundedInputStream(InputStream in, long limit) {
+            super(in);
+            remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                consumed(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                consumed(n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            consumed(skipped);
+            return skipped;
+        }
+
+        private void consumed(long n) {
+            remaining -= n;
+            if (remaining < 0) {
+                throw new WebApplicationException(REQUEST_ENTITY_TOO_LARGE);
+            }
+        }
+    }
+}
@@ -18,28 +18,25 @@ package org.rhq.metrics.restServlet;
 
 import static java.lang.Double.NaN;
 import static java.util.Arrays.asList;
-import static java.util.Arrays.stream;
 import static java.util.concurrent.TimeUnit.HOURS;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
-import static java.util.stream.Collectors.groupingBy;
-import static java.util.stream.Collectors.summarizingDouble;
 import static java.util.stream.Collectors.toList;
-import static java.util.stream.Collectors.toMap;
 import static javax.ws.rs.core.MediaType.APPLICATION_JSON;
 import static javax.ws.rs.core.MediaType.APPLICATION_JSON_TYPE;
 import static javax.ws.rs.core.Response.Status;
 import static org.rhq.metrics.core.MetricsService.DEFAULT_TENANT_ID;
 import static org.rhq.metrics.restServlet.CustomMediaTypes.APPLICATION_VND_RHQ_WRAPPED_JSON;
+import static org.rhq.metrics.restServlet.config.ConfigurationKey.QUERY_CONCURRENCY;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.DoubleSummaryStatistics;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.stream.LongStream;
 
 import javax.inject.Inject;
 import javax.ws.rs.Consumes;
@@ -59,9 +56,11 @@ import com.google.common.base.Function;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.AsyncFunction;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.wordnik.swagger.annotations.Api;
 
 import org.rhq.metrics.core.Availability;
@@ -76,6 +75,8 @@ import org.rhq.metrics.core.MetricsService;
 import org.rhq.metrics.core.NumericData;
 import org.rhq.metrics.core.NumericMetric;
 import org.rhq.metrics.core.Tag;
+import org.rhq.metrics.restServlet.config.Configurable;
+import org.rhq.metrics.restServlet.config.ConfigurationProperty;
 
 import gnu.trove.map.TLongObjectMap;
 import gnu.trove.map.hash.TLongObjectHashMap;
@@ -92,6 +93,14 @@ public class MetricHandler {
     @Inject
     private MetricsService metricsService;
 
+    @Inject
+    @Configurable
+    @ConfigurationProperty(QUERY_CONCURRENCY)
+    private String queryConcurrency;
+
+    @Inject
+    private BucketCache bucketCache;
+
     @POST
     @Path("/{tenantId}/metrics/numeric")
     @Consumes(APPLICATION_JSON)
@@ -238,6 +247,7 @@ public class MetricHandler {
             metric.addData(p.getTimestamp(), p.getValue());
         }
         ListenableFuture<Void> future = metricsService.addNumericData(asList(metric));
+        future.addListener(() -> bucketCache.invalidate(asList(metric)), MoreExecutors.sameThreadExecutor());
         Futures.addCallback(future, new DataInsertedCallback(asyncResponse, "Failed to insert data"));
     }
 
@@ -276,6 +286,7 @@ public class MetricHandler {
             metrics.add(metric);
         }
         ListenableFuture<Void> future = metricsService.addNumericData(metrics);
+        future.addListener(() -> bucketCache.invalidate(metrics), MoreExecutors.sameThreadExecutor());
         Futures.addCallback(future, new DataInsertedCallback(asyncResponse, "Failed to insert data"));
     }
 
@@ -397,7 +408,17 @@ public class MetricHandler {
         @QueryParam("buckets") final int numberOfBuckets,
         @QueryParam("bucketWidthSeconds") final int bucketWidthSeconds,
         @QueryParam("skipEmpty") @DefaultValue("false") final boolean skipEmpty,
-        @QueryParam("bucketCluster") @DefaultValue("true") final boolean bucketCluster) {
+        @QueryParam("bucketCluster") @DefaultValue("true") final boolean bucketCluster,
+        @QueryParam("downsample") String downsample,
+        @QueryParam("points") @DefaultValue("0") int points,
+        @QueryParam("cursor") Long cursor) {
+
+        String error = validateNumericQuery(numberOfBuckets, bucketWidthSeconds, downsample, points, cursor);
+        if (error != null) {
+            Map<String, String> errors = ImmutableMap.of("errorMsg", error);
+            response.resume(Response.status(Status.BAD_REQUEST).entity(errors).type(APPLICATION_JSON_TYPE).build());
+            return;
+        }
 
         long now = System.currentTimeMillis();
         if (start == null) {
@@ -407,27 +428,8 @@ public class MetricHandler {
             end = now;
         }
 
-        NumericMetric metric = new NumericMetric(tenantId, new MetricId(id));
-        ListenableFuture<NumericMetric> dataFuture = metricsService.findNumericData(metric, start, end);
-        ListenableFuture<? extends Object> outputFuture = null;
-        if (numberOfBuckets == 0) {
-            outputFuture = Futures.transform(dataFuture, new MetricOutMapper());
-        } else {
-            if (bucketWidthSeconds == 0) {
-                outputFuture = Futures.transform(dataFuture, new CreateSimpleBuckets(start, end, numberOfBuckets,
-                    skipEmpty));
-            } else {
-                ListenableFuture<List<? extends Object>> bucketsFuture = Futures.transform(dataFuture,
-                    new CreateFixedNumberOfBuckets(numberOfBuckets, bucketWidthSeconds));
-                if (bucketCluster) {
-                    outputFuture = Futures.transform(bucketsFuture, new FlattenBuckets(numberOfBuckets,
-                        bucketWidthSeconds, skipEmpty));
-                } else {
-                    outputFuture = Futures.transform(bucketsFuture, new ClusterBucketData(numberOfBuckets,
-                        bucketWidthSeconds));
-                }
-            }
-        }
+        ListenableFuture<? extends Object> outputFuture = findNumericData(tenantId, id, start, end, numberOfBuckets,
+            bucketWidthSeconds, skipEmpty, bucketCluster, downsample, points, cursor);
         Futures.addCallback(outputFuture, new FutureCallback<Object>() {
             @Override
             public void onSuccess(Object output) {
@@ -448,6 +450,129 @@ public class MetricHandler {
         });
     }
 
+    @POST
+    @Path("/{tenantId}/metrics/numeric/query")
+    @Consumes(APPLICATION_JSON)
+    public void queryNumericData(@Suspended final AsyncResponse response, @PathParam("tenantId") final String tenantId,
+        final NumericQueryParams params) {
+
+        List<NumericSeriesParams> series = new ArrayList<>(params.getSeries());
+        for (String id : params.getIds()) {
+            series.add(new NumericSeriesParams(id));
+        }
+        String error = series.isEmpty() ? "At least one metric id is required" : validateNumericQuery(
+            params.getBuckets(), params.getBucketWidthSeconds(), params.getDownsample(), params.getPoints(),
+            params.getCursor());
+        if (error != null) {
+            Map<String, String> errors = ImmutableMap.of("errorMsg", error);
+            response.resume(Response.status(Status.BAD_REQUEST).entity(errors).type(APPLICATION_JSON_TYPE).build());
+            return;
+        }
+
+        final long now = System.currentTimeMillis();
+        AsyncFunction<NumericSeriesParams, SeriesOut> querySeries = s -> {
+            final String id = s.getId();
+            if (id == null) {
+                return Futures.immediateFuture(new SeriesOut(null, null, "Metric id is required"));
+            }
+            int numberOfBuckets = s.getBuckets() == null ? params.getBuckets() : s.getBuckets();
+            int bucketWidthSeconds = s.getBucketWidthSeconds() == null ? params.getBucketWidthSeconds() :
+                s.getBucketWidthSeconds();
+            Long cursor = s.getCursor() == null ? params.getCursor() : s.getCursor();
+            String seriesError = validateNumericQuery(numberOfBuckets, bucketWidthSeconds, params.getDownsample(),
+                params.getPoints(), cursor);
+            if (seriesError != null) {
+                return Futures.immediateFuture(new SeriesOut(id, null, seriesError));
+            }
+            long start = s.getStart() != null ? s.getStart() : params.getStart() != null ? params.getStart() :
+                now - EIGHT_HOURS;
+            long end = s.getEnd() != null ? s.getEnd() : params.getEnd() != null ? params.getEnd() : now;
+
+            ListenableFuture<? extends Object> outputFuture = findNumericData(tenantId, id, start, end,
+                numberOfBuckets, bucketWidthSeconds, params.isSkipEmpty(), params.isBucketCluster(),
+                params.getDownsample(), params.getPoints(), cursor);
+            ListenableFuture<SeriesOut> seriesFuture = Futures.transform(outputFuture,
+                (Function<Object, SeriesOut>) output -> new SeriesOut(id, output, null));
+            // Failures are reported inline so that one bad series does not fail the whole query
+            return Futures.withFallback(seriesFuture, t -> {
+                if (t instanceof NoResultsException) {
+                    return Futures.immediateFuture(new SeriesOut(id, null, null));
+                }
+                return Futures.immediateFuture(new SeriesOut(id, null, "Failed to retrieve data due to an " +
+                    "unexpected error: " + Throwables.getRootCause(t).getMessage()));
+            });
+        };
+
+        ListenableFuture<List<SeriesOut>> future = BoundedFanOut.transform(series,
+            Integer.parseInt(queryConcurrency), querySeries);
+        Futures.addCallback(future, new FutureCallback<List<SeriesOut>>() {
+            @Override
+            public void onSuccess(List<SeriesOut> output) {
+                response.resume(Response.ok(output).type(APPLICATION_JSON_TYPE).build());
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                Map<String, String> errors = ImmutableMap.of("errorMsg", "Failed to retrieve data due to " +
+                    "an unexpected error: " + Throwables.getRootCause(t).getMessage());
+                response.resume(Response.status(Status.INTERNAL_SERVER_ERROR).entity(errors)
+                    .type(APPLICATION_JSON_TYPE).build());
+            }
+        });
+    }
+
+    /**
+     * @return A description of the problem, or null if the parameters are valid
+     */
+    private String validateNumericQuery(int numberOfBuckets, int bucketWidthSeconds, String downsample, int points,
+        Long cursor) {
+        if (cursor != null && (numberOfBuckets == 0 || bucketWidthSeconds > 0)) {
+            return "The cursor parameter requires the buckets parameter and cannot be used with bucketWidthSeconds";
+        }
+        if (downsample == null) {
+            return null;
+        }
+        Downsampling downsampling;
+        try {
+            downsampling = Downsampling.fromText(downsample);
+        } catch (IllegalArgumentException e) {
+            return "[" + downsample + "] is not a valid downsampling mode. Accepted values are lttb|minmax";
+        }
+        if (numberOfBuckets > 0) {
+            return "The downsample and buckets parameters cannot be used together";
+        }
+        if (points < downsampling.getMinimumPoints()) {
+            return "The points parameter must be at least " + downsampling.getMinimumPoints() + " for " +
+                downsampling + " downsampling";
+        }
+        return null;
+    }
+
+    private ListenableFuture<? extends Object> findNumericData(String tenantId, String id, long start, long end,
+        int numberOfBuckets, int bucketWidthSeconds, boolean skipEmpty, boolean bucketCluster, String downsample,
+        int points, Long cursor) {
+
+        if (numberOfBuckets > 0 && bucketWidthSeconds == 0) {
+            return findSimpleBuckets(tenantId, id, start, end, numberOfBuckets, skipEmpty, cursor);
+        }
+        NumericMetric metric = new NumericMetric(tenantId, new MetricId(id));
+        ListenableFuture<NumericMetric> dataFuture = metricsService.findNumericData(metric, start, end);
+        if (downsample != null) {
+            return Futures.transform(dataFuture, new DownsampledMetricOutMapper(Downsampling.fromText(downsample),
+                points));
+        }
+        if (numberOfBuckets == 0) {
+            return Futures.transform(dataFuture, new MetricOutMapper());
+        }
+        ListenableFuture<List<? extends Object>> bucketsFuture = Futures.transform(dataFuture,
+            new CreateFixedNumberOfBuckets(numberOfBuckets, bucketWidthSeconds));
+        if (bucketCluster) {
+            return Futures.transform(bucketsFuture, new FlattenBuckets(numberOfBuckets, bucketWidthSeconds,
+                skipEmpty));
+        }
+        return Futures.transform(bucketsFuture, new ClusterBucketData(numberOfBuckets, bucketWidthSeconds));
+    }
+
     private class MetricOutMapper extends MetricMapper<MetricOut> {
         @Override
         public MetricOut doApply(NumericMetric metric) {
@@ -463,49 +588,112 @@ public class MetricHandler {
         }
     }
 
-    private class CreateSimpleBuckets extends MetricMapper<BucketedOutput> {
+    private class DownsampledMetricOutMapper extends MetricMapper<MetricOut> {
 
-        private long startTime;
-        private long endTime;
-        private int numberOfBuckets;
-        private boolean skipEmpty;
+        private Downsampling downsampling;
+        private int points;
 
-        public CreateSimpleBuckets(long startTime, long endTime, int numberOfBuckets, boolean skipEmpty) {
-            this.startTime = startTime;
-            this.endTime = endTime;
-            this.numberOfBuckets = numberOfBuckets;
-            this.skipEmpty = skipEmpty;
+        public DownsampledMetricOutMapper(Downsampling downsampling, int points) {
+            this.downsampling = downsampling;
+            this.points = points;
         }
 
         @Override
-        public BucketedOutput doApply(NumericMetric metric) {
-            // we will have numberOfBuckets buckets over the whole time span
-            BucketedOutput output = new BucketedOutput(metric.getTenantId(), metric.getId().getName(),
-                metric.getMetadata());
-            long bucketSize = (endTime - startTime) / numberOfBuckets;
+        public MetricOut doApply(NumericMetric metric) {
+            MetricOut output = new MetricOut(metric.getTenantId(), metric.getId().getName(),
+                metric.getMetadata(), metric.getDataRetention());
+            List<DataPointOut> dataPoints = new ArrayList<>(points);
+            for (NumericData d : downsampling.downsample(metric.getData(), points)) {
+                dataPoints.add(new DataPointOut(d.getTimestamp(), d.getValue(), getTagNames(d)));
+            }
+            output.setData(dataPoints);
 
-            long[] buckets = LongStream.iterate(0, i -> i + 1).limit(numberOfBuckets)
-                .map(i -> startTime + (i * bucketSize)).toArray();
+            return output;
+        }
+    }
 
-            Map<Long, List<NumericData>> map = metric.getData().stream().collect(
-                groupingBy(dataPoint -> findBucket(buckets, bucketSize, dataPoint.getTimestamp())));
+    /**
+     * Divides the time span into <code>numberOfBuckets</code> buckets of equal size, rounded up so that they cover all
+     * of it; the last bucket may extend past <code>end</code>. Buckets are laid out on a grid starting at
+     * <code>start</code>. A cursor is a boundary on that grid, so a follow-up request with the same window
+     * length keeps the grid and only computes the buckets from the cursor on. For requests with a cursor, closed
+     * buckets are taken from the {@link BucketCache} and only the remaining time span is read from the backend. The
+     * returned cursor is the first bucket which is not closed yet, as late data may still change it.
+     */
+    ListenableFuture<BucketedOutput> findSimpleBuckets(String tenantId, String id, long start, long end,
+        int numberOfBuckets, boolean skipEmpty, Long cursor) {
+
+        long bucketSize = Math.max(1, (end - start + numberOfBuckets - 1) / numberOfBuckets);
+        long origin = start;
+        int bucketCount = numberOfBuckets;
+        if (cursor != null) {
+            long remaining = Math.max(0, (end - cursor + bucketSize - 1) / bucketSize);
+            // Never return more buckets than a full request would
+            bucketCount = (int) Math.min(remaining, numberOfBuckets);
+            origin = cursor + (remaining - bucketCount) * bucketSize;
+        }
+        int count = bucketCount;
 
-            Map<Long, DoubleSummaryStatistics> statsMap = map.entrySet().stream()
-                .collect(toMap(Map.Entry::getKey, entry -> entry.getValue().stream().collect(summarizingDouble(
-                    NumericData::getValue))));
+        long now = System.currentTimeMillis();
+        // Only dashboards polling with a cursor repeat the same buckets, one-off queries would just fill the cache
+        List<BucketDataPoint> cached = cursor == null ? Collections.emptyList() : bucketCache.getClosedBuckets(
+            tenantId, id, bucketSize, origin, count);
+        long readStart = origin + cached.size() * bucketSize;
+        // The next bucket boundary at or after end, so that the last bucket is complete
+        long readEnd = origin + count * bucketSize;
+        ListenableFuture<NumericMetric> dataFuture;
+        if (readStart < readEnd) {
+            dataFuture = metricsService.findNumericData(new NumericMetric(tenantId, new MetricId(id)), readStart,
+                readEnd);
+        } else {
+            dataFuture = Futures.immediateFuture(null);
+        }
 
-            for (Long bucket : buckets) {
-                statsMap.computeIfAbsent(bucket, key -> new DoubleSummaryStatistics());
+        return Futures.transform(dataFuture, (Function<NumericMetric, BucketedOutput>) metric -> {
+            if (metric == null && cached.isEmpty() && cursor == null) {
+                throw new NoResultsException();
             }
+            MetricId metricId = new MetricId(id);
+            BucketedOutput output = new BucketedOutput(tenantId, id, metric == null ? null : metric.getMetadata());
 
-            output.setData(statsMap.entrySet().stream()
-                .sorted((left, right) -> left.getKey().compareTo(right.getKey()))
-                .filter(e -> !skipEmpty || e.getValue().getCount() > 0)
-                .map(e -> getBucketedDataPoint(metric.getId(), e.getKey(), e.getValue()))
-                .collect(toList()));
+            int computedCount = count - cached.size();
+            DoubleSummaryStatistics[] stats = new DoubleSummaryStatistics[computedCount];
+            for (int i = 0; i < computedCount; ++i) {
+                stats[i] = new DoubleSummaryStatistics();
+            }
+            if (metric != null) {
+                for (NumericData d : metric.getData()) {
+                    if (d.getTimestamp() >= readStart && d.getTimestamp() < readEnd) {
+                        stats[(int) ((d.getTimestamp() - readStart) / bucketSize)].accept(d.getValue());
+                    }
+                }
+            }
+
+            List<BucketDataPoint> buckets = new ArrayList<>(cached);
+            List<BucketDataPoint> closed = new ArrayList<>(computedCount);
+            for (int i = 0; i < computedCount; ++i) {
+                long timestamp = readStart + i * bucketSize;
+                BucketDataPoint bucket = getBucketedDataPoint(metricId, timestamp, stats[i]);
+                buckets.add(bucket);
+                if (BucketCache.isClosed(timestamp, bucketSize, now)) {
+                    closed.add(bucket);
+                }
+            }
+            if (cursor != null) {
+                bucketCache.putClosedBuckets(tenantId, id, bucketSize, closed, now);
+            }
 
+            long nextCursor = readEnd;
+            for (BucketDataPoint bucket : buckets) {
+                if (!BucketCache.isClosed(bucket.getTimestamp(), bucketSize, now)) {
+                    nextCursor = bucket.getTimestamp();
+                    break;
+                }
+            }
+            output.setCursor(nextCursor);
+            output.setData(buckets.stream().filter(bucket -> !skipEmpty || !bucket.isEmpty()).collect(toList()));
             return output;
-        }
+        });
     }
 
     private BucketDataPoint getBucketedDataPoint(MetricId id, long timestamp, DoubleSummaryStatistics stats) {
@@ -954,11 +1142,6 @@ public class MetricHandler {
 //        return getBucketDataPoint(id, startTime, bucketMetrics);
 //    }
 
-    static long findBucket(long[] buckets, long bucketSize, long timestamp) {
-        return stream(buckets).filter(bucket -> timestamp >= bucket && timestamp < bucket + bucketSize)
-            .findFirst().getAsLong();
-    }
-
     static BucketDataPoint getBucketDataPoint(String id, long startTime, List<NumericData> bucketMetrics) {
 
         Double min = null;
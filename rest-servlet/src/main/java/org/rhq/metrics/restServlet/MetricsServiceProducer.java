@@ -18,15 +18,29 @@ package org.rhq.metrics.restServlet;
 import static org.rhq.metrics.restServlet.config.ConfigurationKey.BACKEND;
 import static org.rhq.metrics.restServlet.config.ConfigurationKey.CASSANDRA_CQL_PORT;
 import static org.rhq.metrics.restServlet.config.ConfigurationKey.CASSANDRA_KEYSPACE;
+import static org.rhq.metrics.restServlet.config.ConfigurationKey.CASSANDRA_NODE_TIMEOUT;
 import static org.rhq.metrics.restServlet.config.ConfigurationKey.CASSANDRA_NODES;
+import static org.rhq.metrics.restServlet.config.ConfigurationKey.HOT_TIER_SIZE;
+import static org.rhq.metrics.restServlet.config.ConfigurationKey.HOT_TIER_WINDOW;
+import static org.rhq.metrics.restServlet.config.ConfigurationKey.LOCAL_DIR;
+import static org.rhq.metrics.restServlet.config.ConfigurationKey.QUERY_CACHE_SIZE;
+import static org.rhq.metrics.restServlet.config.ConfigurationKey.WAL_CONCURRENCY;
+import static org.rhq.metrics.restServlet.config.ConfigurationKey.WAL_DIR;
+import static org.rhq.metrics.restServlet.config.ConfigurationKey.WAL_MAX_SIZE;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
 
 import javax.enterprise.context.ApplicationScoped;
 import javax.enterprise.inject.Produces;
 import javax.inject.Inject;
 
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -62,40 +76,143 @@ public class MetricsServiceProducer {
     @ConfigurationProperty(CASSANDRA_KEYSPACE)
     private String keyspace;
 
-    private MetricsService metricsService;
+    @Inject
+    @Configurable
+    @ConfigurationProperty(CASSANDRA_NODE_TIMEOUT)
+    private String nodeTimeout;
+
+    @Inject
+    @Configurable
+    @ConfigurationProperty(QUERY_CACHE_SIZE)
+    private String queryCacheSize;
+
+    @Inject
+    @Configurable
+    @ConfigurationProperty(HOT_TIER_WINDOW)
+    private String hotTierWindow;
+
+    @Inject
+    @Configurable
+    @ConfigurationProperty(HOT_TIER_SIZE)
+    private String hotTierSize;
+
+    @Inject
+    @Configurable
+    @ConfigurationProperty(LOCAL_DIR)
+    private String localDir;
+
+    @Inject
+    @Configurable
+    @ConfigurationProperty(WAL_DIR)
+    private String walDir;
+
+    @Inject
+    @Configurable
+    @ConfigurationProperty(WAL_CONCURRENCY)
+    private String walConcurrency;
+
+    @Inject
+    @Configurable
+    @ConfigurationProperty(WAL_MAX_SIZE)
+    private String walMaxSize;
+
+    private volatile MetricsService metricsService;
+
+    /**
+     * The start of the metrics service in progress, guarded by this
+     */
+    private ListenableFuture<MetricsService> startup;
 
     @Produces
     public MetricsService getMetricsService() {
-        if (metricsService == null) {
-            RHQMetrics.Builder metricsServiceBuilder = new RHQMetrics.Builder();
-
-            if (backend != null) {
-                switch (backend) {
-                case "cass":
-                    LOG.info("Using Cassandra backend implementation");
-                    Map<String, String> options = new HashMap<>();
-                    options.put("cqlport", cqlPort);
-                    options.put("nodes", nodes);
-                    options.put("keyspace", keyspace);
-                    metricsServiceBuilder.withOptions(options).withCassandraDataStore();
-                    break;
-                case "mem":
-                    LOG.info("Using memory backend implementation");
-                    metricsServiceBuilder.withInMemoryDataStore();
-                    break;
-                case "embedded_cass":
-                default:
-                    LOG.info("Using Cassandra backend implementation with an embedded Server");
-                    metricsServiceBuilder.withCassandraDataStore();
+        try {
+            return Uninterruptibles.getUninterruptibly(start());
+        } catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    /**
+     * Starts the metrics service in the background, unless it is started or starting already.
+     *
+     * @return A future which completes once the service has started
+     */
+    public synchronized ListenableFuture<MetricsService> start() {
+        if (startup == null) {
+            SettableFuture<MetricsService> future = SettableFuture.create();
+            startup = future;
+            Thread thread = new Thread(() -> {
+                try {
+                    future.set(createMetricsService());
+                } catch (RuntimeException e) {
+                    LOG.error("Failed to start the metrics service", e);
+                    synchronized (this) {
+                        // The next request tries again
+                        startup = null;
+                    }
+                    future.setException(e);
                 }
-            } else {
+            }, "metrics-service-startup");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return startup;
+    }
+
+    /**
+     * @return True once the metrics service has started and requests are served without delay
+     */
+    public boolean isReady() {
+        return metricsService != null;
+    }
+
+    private MetricsService createMetricsService() {
+        RHQMetrics.Builder metricsServiceBuilder = new RHQMetrics.Builder();
+
+        if (backend != null) {
+            switch (backend) {
+            case "cass":
+                LOG.info("Using Cassandra backend implementation");
+                Map<String, String> options = new HashMap<>();
+                options.put("cqlport", cqlPort);
+                options.put("nodes", nodes);
+                options.put("keyspace", keyspace);
+                metricsServiceBuilder.withOptions(options).withCassandraDataStore();
+                configureCassandra(metricsServiceBuilder);
+                break;
+            case "mem":
+                LOG.info("Using memory backend implementation");
+                metricsServiceBuilder.withInMemoryDataStore();
+                break;
+            case "local":
+                LOG.info("Using local file backend implementation");
+                metricsServiceBuilder.withLocalDataStore(localDir);
+                break;
+            case "embedded_cass":
+            default:
+                LOG.info("Using Cassandra backend implementation with an embedded Server");
                 metricsServiceBuilder.withCassandraDataStore();
+                configureCassandra(metricsServiceBuilder);
             }
-
-            metricsService = metricsServiceBuilder.build();
-            ServiceKeeper.getInstance().service = metricsService;
+        } else {
+            metricsServiceBuilder.withCassandraDataStore();
+            configureCassandra(metricsServiceBuilder);
         }
 
+        metricsService = metricsServiceBuilder.build();
+        ServiceKeeper.getInstance().service = metricsService;
+
         return metricsService;
     }
+
+    private void configureCassandra(RHQMetrics.Builder metricsServiceBuilder) {
+        metricsServiceBuilder.withNodeTimeout(Long.parseLong(nodeTimeout))
+            .withQueryCache(Long.parseLong(queryCacheSize))
+            .withHotTier(Long.parseLong(hotTierWindow), Long.parseLong(hotTierSize));
+        if (walDir != null && !walDir.trim().isEmpty()) {
+            LOG.info("Logging writes ahead to {}", walDir);
+            metricsServiceBuilder.withWriteAheadLog(walDir.trim(), Integer.parseInt(walConcurrency),
+                Long.parseLong(walMaxSize));
+        }
+    }
 }
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2014 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rhq.metrics.restServlet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Request body of a multi-series numeric query. Metrics can be listed by id in <code>ids</code>, or in
+ * <code>series</code> when a series needs its own time range or bucket parameters. All other properties are shared
+ * and have the same meaning as the query parameters of a single series request.
+ */
+public class NumericQueryParams {
+
+    private List<String> ids = new ArrayList<>();
+
+    private List<NumericSeriesParams> series = new ArrayList<>();
+
+    private Long start;
+
+    private Long end;
+
+    private int buckets;
+
+    private int bucketWidthSeconds;
+
+    private boolean skipEmpty;
+
+    private boolean bucketCluster = true;
+
+    private String downsample;
+
+    private int points;
+
+    private Long cursor;
+
+    public List<String> getIds() {
+        return ids;
+    }
+
+    public void setIds(List<String> ids) {
+        this.ids = ids;
+    }
+
+    public List<NumericSeriesParams> getSeries() {
+        return series;
+    }
+
+    public void setSeries(List<NumericSeriesParams> series) {
+        this.series = series;
+    }
+
+    public Long getStart() {
+        return start;
+    }
+
+    public void setStart(Long start) {
+        this.start = start;
+    }
+
+    public Long getEnd() {
+        return end;
+    }
+
+    public void setEnd(Long end) {
+        this.end = end;
+    }
+
+    public int getBuckets() {
+        return buckets;
+    }
+
+    public void setBuckets(int buckets) {
+        this.buckets = buckets;
+    }
+
+    public int getBucketWidthSeconds() {
+        return bucketWidthSeconds;
+    }
+
+    public void setBucketWidthSeconds(int bucketWidthSeconds) {
+        this.bucketWidthSeconds = bucketWidthSeconds;
+    }
+
+    public boolean isSkipEmpty() {
+        return skipEmpty;
+    }
+
+    public void setSkipEmpty(boolean skipEmpty) {
+        this.skipEmpty = skipEmpty;
+    }
+
+    public boolean isBucketCluster() {
+        return bucketCluster;
+    }
+
+    public void setBucketCluster(boolean bucketCluster) {
+        this.bucketCluster = bucketCluster;
+    }
+
+    public String getDownsample() {
+        return downsample;
+    }
+
+    public void setDownsample(String downsample) {
+        this.downsample = downsample;
+    }
+
+    public int getPoints() {
+        return points;
+    }
+
+    public void setPoints(int points) {
+        this.points = points;
+    }
+
+    public Long getCursor() {
+        return cursor;
+    }
+
+    public void setCursor(Long cursor) {
+        this.cursor = cursor;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2014 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rhq.metrics.restServlet;
+
+/**
+ * One series of a multi-series numeric query. Range and bucket properties that are not set are taken from the
+ * enclosing {@link NumericQueryParams}.
+ */
+public class NumericSeriesParams {
+
+    private String id;
+
+    private Long start;
+
+    private Long end;
+
+    private Integer buckets;
+
+    private Integer bucketWidthSeconds;
+
+    private Long cursor;
+
+    public NumericSeriesParams() {
+    }
+
+    public NumericSeriesParams(String id) {
+        this.id = id;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public Long getStart() {
+        return start;
+    }
+
+    public void setStart(Long start) {
+        this.start = start;
+    }
+
+    public Long getEnd() {
+        return end;
+    }
+
+    public void setEnd(Long end) {
+        this.end = end;
+    }
+
+    public Integer getBuckets() {
+        return buckets;
+    }
+
+    public void setBuckets(Integer buckets) {
+        this.buckets = buckets;
+    }
+
+    public Integer getBucketWidthSeconds() {
+        return bucketWidthSeconds;
+    }
+
+    public void setBucketWidthSeconds(Integer bucketWidthSeconds) {
+        this.bucketWidthSeconds = bucketWidthSeconds;
+    }
+
+    public Long getCursor() {
+        return cursor;
+    }
+
+    public void setCursor(Long cursor) {
+        this.cursor = cursor;
+    }
+}
@@ -30,11 +30,10 @@ import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
 
 import com.wordnik.swagger.annotations.ApiOperation;
 
-import org.rhq.metrics.core.MetricsService;
-
 /**
  * @author Thomas Segismont
  */
@@ -42,7 +41,7 @@ import org.rhq.metrics.core.MetricsService;
 public class PingHandler {
 
     @Inject
-    private MetricsService metricsService;
+    private MetricsServiceProducer metricsServiceProducer;
 
     @GET
     @POST
@@ -53,4 +52,18 @@ public class PingHandler {
     public Response ping() {
         return Response.ok(new StringValue(new Date().toString())).build();
     }
+
+    @GET
+    @Path("/ready")
+    @Consumes({ APPLICATION_JSON, APPLICATION_XML })
+    @Produces({ APPLICATION_JSON, APPLICATION_XML, APPLICATION_VND_RHQ_WRAPPED_JSON, APPLICATION_JAVASCRIPT })
+    @ApiOperation(value = "Returns 200 once the metrics service has started and 503 while it is still starting, so "
+            + "that load balancers only route requests to warm nodes.", responseClass = "Map<String,String>")
+    public Response ready() {
+        if (metricsServiceProducer.isReady()) {
+            return Response.ok(new StringValue("ready")).build();
+        }
+        metricsServiceProducer.start();
+        return Response.status(Status.SERVICE_UNAVAILABLE).entity(new StringValue("starting")).build();
+    }
 }
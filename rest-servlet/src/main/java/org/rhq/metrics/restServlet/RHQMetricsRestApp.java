@@ -16,11 +16,11 @@
 
 package org.rhq.metrics.restServlet;
 
+import javax.annotation.PostConstruct;
 import javax.inject.Inject;
 import javax.ws.rs.ApplicationPath;
 import javax.ws.rs.core.Application;
 
-import org.rhq.metrics.core.MetricsService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -34,7 +34,7 @@ public class RHQMetricsRestApp extends Application {
     private static final Logger logger = LoggerFactory.getLogger(RHQMetricsRestApp.class);
 
     @Inject
-    private MetricsService metricsService;
+    private MetricsServiceProducer metricsServiceProducer;
 
     public RHQMetricsRestApp() {
 
@@ -42,4 +42,13 @@ public class RHQMetricsRestApp extends Application {
 
     }
 
+    /**
+     * Starts the metrics service in the background, the api is served meanwhile and /ping/ready tells when it is
+     * ready.
+     */
+    @PostConstruct
+    void startMetricsService() {
+        metricsServiceProducer.start();
+    }
+
 }
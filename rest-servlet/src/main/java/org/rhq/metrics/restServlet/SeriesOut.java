@@ -0,0 +1,66 @@
+/*
+ * Copyright 2014 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rhq.metrics.restServlet;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+
+/**
+ * The result for one series of a multi-series query. Exactly one of <code>result</code> and <code>errorMsg</code> is
+ * set, unless the series has no data in the requested range, in which case both are omitted.
+ */
+@JsonInclude(Include.NON_NULL)
+public class SeriesOut {
+
+    private String id;
+
+    private Object result;
+
+    private String errorMsg;
+
+    public SeriesOut() {
+    }
+
+    public SeriesOut(String id, Object result, String errorMsg) {
+        this.id = id;
+        this.result = result;
+        this.errorMsg = errorMsg;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public Object getResult() {
+        return result;
+    }
+
+    public void setResult(Object result) {
+        this.result = result;
+    }
+
+    public String getErrorMsg() {
+        return errorMsg;
+    }
+
+    public void setErrorMsg(String errorMsg) {
+        this.errorMsg = errorMsg;
+    }
+}
@@ -28,13 +28,56 @@ public enum ConfigurationKey {
      * <ul>
      *     <li><em>mem</em> for memory</li>
      *     <li><em>cass</em> for Cassandra</li>
+     *     <li><em>embedded_cass</em> for an embedded Cassandra server</li>
+     *     <li><em>local</em> for files in a local directory</li>
      * </ul>
-     * Memory backend will be used whenever the value is not <em>cass</em>.
+     * Embedded Cassandra will be used for any other value.
      */
     BACKEND("rhq-metrics.backend"),
     CASSANDRA_CQL_PORT("rhq-metrics.cassandra-cql-port"),
     CASSANDRA_NODES("rhq-metrics.cassandra-nodes"),
-    CASSANDRA_KEYSPACE("cassandra.keyspace");
+    CASSANDRA_KEYSPACE("cassandra.keyspace"),
+    /**
+     * How long to wait at startup for a Cassandra node to accept CQL connections, in milliseconds.
+     */
+    CASSANDRA_NODE_TIMEOUT("rhq-metrics.cassandra-node-timeout"),
+    /**
+     * Maximum number of series of a multi-series query which are read from the backend at the same time.
+     */
+    QUERY_CONCURRENCY("rhq-metrics.query-concurrency"),
+    /**
+     * Maximum number of series whose closed buckets are cached for incremental refreshes.
+     */
+    BUCKET_CACHE_SIZE("rhq-metrics.bucket-cache-size"),
+    /**
+     * Approximate heap size in bytes of the raw data query cache of the Cassandra backends, 0 disables it.
+     */
+    QUERY_CACHE_SIZE("rhq-metrics.query-cache-size"),
+    /**
+     * Milliseconds of recent raw data the Cassandra backends answer from memory, 0 disables the hot tier. Only enable
+     * it on a single REST node writing to the cluster, it does not see the writes of other nodes.
+     */
+    HOT_TIER_WINDOW("rhq-metrics.hot-tier-window"),
+    /**
+     * Approximate heap size in bytes of the data held by the hot tier.
+     */
+    HOT_TIER_SIZE("rhq-metrics.hot-tier-size"),
+    /**
+     * Data directory of the <em>local</em> backend.
+     */
+    LOCAL_DIR("rhq-metrics.local-dir"),
+    /**
+     * Directory of the write-ahead log of the Cassandra backends. Writes are only logged if it is set.
+     */
+    WAL_DIR("rhq-metrics.wal-dir"),
+    /**
+     * Maximum number of logged writes which are replayed to Cassandra at the same time.
+     */
+    WAL_CONCURRENCY("rhq-metrics.wal-concurrency"),
+    /**
+     * Size in bytes of the write-ahead log at which writes are rejected.
+     */
+    WAL_MAX_SIZE("rhq-metrics.wal-max-size");
 
     private String externalForm;
 
@@ -51,6 +51,7 @@ import com.google.common.util.concurrent.AsyncFunction;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 
 import org.antlr.v4.runtime.tree.ParseTreeWalker;
 import org.joda.time.Instant;
@@ -64,6 +65,7 @@ import org.rhq.metrics.core.MetricType;
 import org.rhq.metrics.core.MetricsService;
 import org.rhq.metrics.core.NumericData;
 import org.rhq.metrics.core.NumericMetric;
+import org.rhq.metrics.restServlet.BucketCache;
 import org.rhq.metrics.restServlet.DataInsertedCallback;
 import org.rhq.metrics.restServlet.StringValue;
 import org.rhq.metrics.restServlet.influx.query.InfluxQueryParseTreeWalker;
@@ -111,6 +113,8 @@ public class InfluxSeriesHandler {
     QueryValidator queryValidator;
     @Inject
     ToIntervalTranslator toIntervalTranslator;
+    @Inject
+    BucketCache bucketCache;
 
     @POST
     @Consumes(APPLICATION_JSON)
@@ -147,6 +151,7 @@ public class InfluxSeriesHandler {
                 return numericMetric;
             }).toList();
         ListenableFuture<Void> future = metricsService.addNumericData(numericMetrics);
+        future.addListener(() -> bucketCache.invalidate(numericMetrics), MoreExecutors.sameThreadExecutor());
         Futures.addCallback(future, new DataInsertedCallback(asyncResponse, "Failed to insert data"));
     }
 
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rhq.metrics.restServlet;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import org.junit.Test;
+
+public class BoundedFanOutTest {
+
+    @Test
+    public void limitsPendingFuturesAndKeepsInputOrder() throws Exception {
+        List<SettableFuture<String>> pending = new ArrayList<>();
+        List<Integer> inputs = Arrays.asList(0, 1, 2, 3, 4, 5, 6);
+
+        ListenableFuture<List<String>> future = BoundedFanOut.transform(inputs, 3, i -> {
+            SettableFuture<String> f = SettableFuture.create();
+            pending.add(f);
+            return f;
+        });
+
+        assertThat(pending).hasSize(3);
+        // Complete out of order, every completion starts exactly one more input
+        pending.get(2).set("2");
+        assertThat(pending).hasSize(4);
+        pending.get(0).set("0");
+        pending.get(1).set("1");
+        pending.get(3).set("3");
+        assertThat(pending).hasSize(7);
+        assertThat(future.isDone()).isFalse();
+        for (int i = 4; i < 7; ++i) {
+            pending.get(i).set(Integer.toString(i));
+        }
+
+        assertThat(future.get()).containsExactly("0", "1", "2", "3", "4", "5", "6");
+    }
+
+    @Test
+    public void emptyInput() throws Exception {
+        ListenableFuture<List<String>> future = BoundedFanOut.transform(Collections.<Integer>emptyList(), 2,
+            i -> SettableFuture.<String>create());
+
+        assertThat(future.get()).isEmpty();
+    }
+
+    @Test
+    public void failureStopsFanOut() throws Exception {
+        List<SettableFuture<String>> pending = new ArrayList<>();
+
+        ListenableFuture<List<String>> future = BoundedFanOut.transform(Arrays.asList(0, 1, 2, 3), 1, i -> {
+            SettableFuture<String> f = SettableFuture.create();
+            pending.add(f);
+            return f;
+        });
+        pending.get(0).setException(new RuntimeException("boom"));
+
+        assertThat(pending).hasSize(1);
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            assertThat(e.getCause()).hasMessage("boom");
+            return;
+        }
+        throw new AssertionError("Expected the fan out to fail");
+    }
+
+    @Test
+    public void completedFuturesDoNotRecurse() throws Exception {
+        int count = 100000;
+        List<Integer> inputs = new ArrayList<>();
+        for (int i = 0; i < count; ++i) {
+            inputs.add(i);
+        }
+        int depth = new Throwable().getStackTrace().length;
+        AtomicInteger maxDepth = new AtomicInteger();
+
+        ListenableFuture<List<Integer>> future = BoundedFanOut.transform(inputs, 2, i -> {
+            maxDepth.set(Math.max(maxDepth.get(), new Throwable().getStackTrace().length));
+            return Futures.immediateFuture(i);
+        });
+
+        assertThat(future.get()).hasSize(count).isEqualTo(inputs);
+        // Starting the next input from the callback of a completed one must not grow the stack
+        assertThat(maxDepth.get() - depth).isLessThan(50);
+    }
+
+    @Test
+    public void concurrentCompletionsStartEveryInputOnce() throws Exception {
+        int count = 10000;
+        List<Integer> inputs = new ArrayList<>();
+        for (int i = 0; i < count; ++i) {
+            inputs.add(i);
+        }
+        AtomicInteger started = new AtomicInteger();
+        AtomicInteger pending = new AtomicInteger();
+        AtomicInteger maxPending = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            ListenableFuture<List<Integer>> future = BoundedFanOut.transform(inputs, 8, i -> {
+                started.incrementAndGet();
+                int now = pending.incrementAndGet();
+                maxPending.set(Math.max(maxPending.get(), now));
+                SettableFuture<Integer> f = SettableFuture.create();
+                executor.execute(() -> {
+                    pending.decrementAndGet();
+                    f.set(i);
+                });
+                return f;
+            });
+
+            assertThat(future.get(30, TimeUnit.SECONDS)).isEqualTo(inputs);
+            assertThat(started.get()).isEqualTo(count);
+            assertThat(maxPending.get()).isLessThanOrEqualTo(8);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
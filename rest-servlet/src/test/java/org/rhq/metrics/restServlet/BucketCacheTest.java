@@ -0,0 +1,132 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rhq.metrics.restServlet;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import org.rhq.metrics.core.MetricId;
+import org.rhq.metrics.core.NumericMetric;
+
+public class BucketCacheTest {
+
+    private static List<BucketDataPoint> buckets(long origin, long bucketSize, int count) {
+        List<BucketDataPoint> buckets = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            buckets.add(new BucketDataPoint("m1", origin + i * bucketSize, i, i, i));
+        }
+        return buckets;
+    }
+
+    private static long now() {
+        return System.currentTimeMillis();
+    }
+
+    private static NumericMetric write(String tenantId, String id, long timestamp, double value) {
+        NumericMetric metric = new NumericMetric(tenantId, new MetricId(id));
+        metric.addData(timestamp, value);
+        return metric;
+    }
+
+    @Test
+    public void returnsConsecutiveBucketsFromOrigin() {
+        BucketCache cache = new BucketCache(10);
+        cache.putClosedBuckets("t1", "m1", 100, buckets(1000, 100, 5), now());
+
+        assertThat(cache.getClosedBuckets("t1", "m1", 100, 1200, 10)).extracting("timestamp")
+            .containsExactly(1200L, 1300L, 1400L);
+        assertThat(cache.getClosedBuckets("t1", "m1", 100, 1000, 2)).hasSize(2);
+        assertThat(cache.getClosedBuckets("t1", "m1", 100, 900, 10)).isEmpty();
+    }
+
+    @Test
+    public void separatesGridsAndSeries() {
+        BucketCache cache = new BucketCache(10);
+        cache.putClosedBuckets("t1", "m1", 100, buckets(1000, 100, 5), now());
+
+        // Same width, but the grid is shifted
+        assertThat(cache.getClosedBuckets("t1", "m1", 100, 1050, 3)).isEmpty();
+        assertThat(cache.getClosedBuckets("t1", "m1", 50, 1000, 3)).isEmpty();
+        assertThat(cache.getClosedBuckets("t1", "m2", 100, 1000, 3)).isEmpty();
+        assertThat(cache.getClosedBuckets("t2", "m1", 100, 1000, 3)).isEmpty();
+    }
+
+    @Test
+    public void dropsOldestBucketsOfLongSeries() {
+        BucketCache cache = new BucketCache(10);
+        cache.putClosedBuckets("t1", "m1", 1, buckets(0, 1, BucketCache.MAX_BUCKETS_PER_SERIES + 10), now());
+
+        assertThat(cache.getClosedBuckets("t1", "m1", 1, 0, 1)).isEmpty();
+        assertThat(cache.getClosedBuckets("t1", "m1", 1, 10, BucketCache.MAX_BUCKETS_PER_SERIES + 10))
+            .hasSize(BucketCache.MAX_BUCKETS_PER_SERIES);
+    }
+
+    @Test
+    public void boundsNumberOfSeries() {
+        BucketCache cache = new BucketCache(2);
+        for (int i = 0; i < 5; ++i) {
+            cache.putClosedBuckets("t1", "m" + i, 100, buckets(1000, 100, 1), now());
+        }
+
+        assertThat(cache.size()).isLessThanOrEqualTo(2);
+    }
+
+    @Test
+    public void keepsRecentBucketsOpenForLateData() {
+        long now = now();
+
+        assertThat(BucketCache.isClosed(now - BucketCache.INGEST_LAG - 100, 100, now)).isTrue();
+        assertThat(BucketCache.isClosed(now - BucketCache.INGEST_LAG - 99, 100, now)).isFalse();
+        assertThat(BucketCache.isClosed(now - 200, 100, now)).isFalse();
+    }
+
+    @Test
+    public void lateWriteInvalidatesTheBucketsItChanges() {
+        BucketCache cache = new BucketCache(10);
+        cache.putClosedBuckets("t1", "m1", 100, buckets(1000, 100, 5), now());
+        cache.putClosedBuckets("t1", "m1", 50, buckets(1000, 50, 10), now());
+
+        cache.invalidate(asList(write("t1", "m1", 1250, 42.0)));
+
+        assertThat(cache.getClosedBuckets("t1", "m1", 100, 1000, 5)).extracting("timestamp")
+            .containsExactly(1000L, 1100L);
+        assertThat(cache.getClosedBuckets("t1", "m1", 50, 1000, 10)).extracting("timestamp")
+            .containsExactly(1000L, 1050L, 1100L, 1150L, 1200L);
+        assertThat(cache.getClosedBuckets("t1", "m2", 100, 1000, 5)).isEmpty();
+    }
+
+    @Test
+    public void doesNotStoreBucketsReadBeforeAWrite() {
+        BucketCache cache = new BucketCache(10);
+        long readAt = now();
+        assertThat(cache.getClosedBuckets("t1", "m1", 100, 1000, 5)).isEmpty();
+
+        // The write lands while the buckets are being computed from data read before it
+        cache.invalidate(asList(write("t1", "m1", 1250, 42.0)));
+        cache.putClosedBuckets("t1", "m1", 100, buckets(1000, 100, 5), readAt - 1);
+
+        assertThat(cache.getClosedBuckets("t1", "m1", 100, 1000, 5)).isEmpty();
+
+        cache.putClosedBuckets("t1", "m1", 100, buckets(1000, 100, 5), now() + 1);
+
+        assertThat(cache.getClosedBuckets("t1", "m1", 100, 1000, 5)).hasSize(5);
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rhq.metrics.restServlet;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+import org.junit.Test;
+
+import org.rhq.metrics.core.NumericData;
+
+public class DownsamplingTest {
+
+    private static List<NumericData> flatSeriesWithSpike(int size, int spikeIndex) {
+        List<NumericData> data = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            data.add(new NumericData(1000L * i, i == spikeIndex ? 100.0 : 1.0));
+        }
+        return data;
+    }
+
+    private static List<Long> timestamps(List<NumericData> data) {
+        List<Long> timestamps = new ArrayList<>(data.size());
+        for (NumericData d : data) {
+            timestamps.add(d.getTimestamp());
+        }
+        return timestamps;
+    }
+
+    @Test
+    public void lttbKeepsFirstAndLastPoints() {
+        List<NumericData> data = flatSeriesWithSpike(1000, 500);
+
+        List<NumericData> sampled = Downsampling.LTTB.downsample(data, 10);
+
+        assertThat(sampled).hasSize(10);
+        assertThat(sampled.get(0)).isSameAs(data.get(0));
+        assertThat(sampled.get(9)).isSameAs(data.get(999));
+    }
+
+    @Test
+    public void lttbPreservesSpike() {
+        List<NumericData> data = flatSeriesWithSpike(1000, 437);
+
+        List<NumericData> sampled = Downsampling.LTTB.downsample(data, 10);
+
+        assertThat(sampled).contains(data.get(437));
+        assertThat(timestamps(sampled)).isSorted();
+    }
+
+    @Test
+    public void descendingInputIsReturnedInAscendingOrder() {
+        List<NumericData> data = flatSeriesWithSpike(1000, 437);
+
+        List<NumericData> sampled = Downsampling.LTTB.downsample(Lists.reverse(data), 10);
+
+        assertThat(sampled).hasSize(10).contains(data.get(437));
+        assertThat(sampled.get(0)).isSameAs(data.get(0));
+        assertThat(timestamps(sampled)).isSorted();
+    }
+
+    @Test
+    public void smallSeriesIsNotReduced() {
+        List<NumericData> data = flatSeriesWithSpike(5, 2);
+
+        assertThat(Downsampling.LTTB.downsample(data, 10)).containsExactlyElementsOf(data);
+        assertThat(Downsampling.MINMAX.downsample(Lists.reverse(data), 10)).containsExactlyElementsOf(data);
+    }
+
+    @Test
+    public void minMaxKeepsExtremesOfEachSlice() {
+        List<NumericData> data = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            data.add(new NumericData(1000L * i, i % 10));
+        }
+        data.set(42, new NumericData(42000L, -5.0));
+
+        List<NumericData> sampled = Downsampling.MINMAX.downsample(data, 20);
+
+        assertThat(sampled).hasSize(20).contains(data.get(42));
+        assertThat(timestamps(sampled)).isSorted();
+        for (NumericData d : sampled) {
+            assertThat(d.getValue()).isIn(0.0, 9.0, -5.0);
+        }
+    }
+
+    @Test
+    public void minMaxNeverExceedsRequestedPoints() {
+        List<NumericData> data = flatSeriesWithSpike(997, 3);
+
+        assertThat(Downsampling.MINMAX.downsample(data, 7).size()).isLessThanOrEqualTo(7);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tooFewPointsIsRejected() {
+        Downsampling.LTTB.downsample(flatSeriesWithSpike(10, 1), 2);
+    }
+
+    @Test
+    public void parsesText() {
+        assertThat(Downsampling.fromText("lttb")).isEqualTo(Downsampling.LTTB);
+        assertThat(Downsampling.fromText("minmax")).isEqualTo(Downsampling.MINMAX);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownTextIsRejected() {
+        Downsampling.fromText("average");
+    }
+}
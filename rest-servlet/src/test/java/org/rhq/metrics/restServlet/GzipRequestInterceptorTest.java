@@ -0,0 +1,119 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rhq.metrics.restServlet;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.ext.ReaderInterceptorContext;
+
+import com.google.common.io.ByteStreams;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class GzipRequestInterceptorTest {
+
+    private static final String BODY = "[{\"id\":\"foo\",\"timestamp\":1,\"value\":1.0}]";
+
+    private MultivaluedMap<String, String> headers;
+    private InputStream[] entity;
+    private ReaderInterceptorContext context;
+
+    @Before
+    public void setUp() throws Exception {
+        headers = new MultivaluedHashMap<>();
+        entity = new InputStream[1];
+        context = mock(ReaderInterceptorContext.class);
+        when(context.getHeaders()).thenReturn(headers);
+        when(context.getInputStream()).thenAnswer(invocation -> entity[0]);
+        doAnswer(invocation -> entity[0] = (InputStream) invocation.getArguments()[0]).when(context)
+            .setInputStream(any(InputStream.class));
+        // Stands in for the message body reader
+        when(context.proceed()).thenAnswer(invocation -> new String(ByteStreams.toByteArray(entity[0]), UTF_8));
+    }
+
+    @Test
+    public void inflatesGzippedBody() throws Exception {
+        headers.putSingle(HttpHeaders.CONTENT_ENCODING, "gzip");
+        entity[0] = new ByteArrayInputStream(gzip(BODY));
+
+        Object result = new GzipRequestInterceptor().aroundReadFrom(context);
+
+        assertThat(result).isEqualTo(BODY);
+        assertThat(headers).doesNotContainKey(HttpHeaders.CONTENT_ENCODING);
+    }
+
+    @Test
+    public void passesUncompressedBodyThrough() throws Exception {
+        entity[0] = new ByteArrayInputStream(BODY.getBytes(UTF_8));
+
+        Object result = new GzipRequestInterceptor().aroundReadFrom(context);
+
+        assertThat(result).isEqualTo(BODY);
+    }
+
+    @Test
+    public void rejectsCorruptBody() throws Exception {
+        headers.putSingle(HttpHeaders.CONTENT_ENCODING, "gzip");
+        entity[0] = new ByteArrayInputStream(BODY.getBytes(UTF_8));
+
+        try {
+            new GzipRequestInterceptor().aroundReadFrom(context);
+            fail("Expected a WebApplicationException");
+        } catch (WebApplicationException e) {
+            assertThat(e.getResponse().getStatus()).isEqualTo(Status.BAD_REQUEST.getStatusCode());
+        }
+    }
+
+    @Test
+    public void rejectsBodyInflatingBeyondLimit() throws Exception {
+        headers.putSingle(HttpHeaders.CONTENT_ENCODING, "GZIP");
+        entity[0] = new ByteArrayInputStream(gzip(BODY));
+
+        try {
+            new GzipRequestInterceptor(BODY.length() - 1).aroundReadFrom(context);
+            fail("Expected a WebApplicationException");
+        } catch (WebApplicationException e) {
+            assertThat(e.getResponse().getStatus()).isEqualTo(Status.REQUEST_ENTITY_TOO_LARGE.getStatusCode());
+        }
+    }
+
+    private static byte[] gzip(String s) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(s.getBytes(UTF_8));
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2015 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.rhq.metrics.restServlet;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.util.concurrent.Futures;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Spy;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import org.rhq.metrics.core.MetricsService;
+import org.rhq.metrics.core.NumericMetric;
+
+@RunWith(MockitoJUnitRunner.class)
+public class MetricHandlerTest {
+
+    private static final long[] TIMESTAMPS = {1000, 1500, 2002};
+
+    @Mock
+    private MetricsService metricsService;
+
+    @Spy
+    private BucketCache bucketCache = new BucketCache(10);
+
+    @InjectMocks
+    private MetricHandler handler;
+
+    @Before
+    public void before() {
+        // The points at 1000, 1500 and 2002 with the values 1, 2 and 3, as far as they fall into the read range
+        when(metricsService.findNumericData(any(NumericMetric.class), anyLong(), anyLong())).thenAnswer(
+            invocation -> {
+                NumericMetric metric = (NumericMetric) invocation.getArguments()[0];
+                long start = (Long) invocation.getArguments()[1];
+                long end = (Long) invocation.getArguments()[2];
+                for (int i = 0; i < TIMESTAMPS.length; ++i) {
+                    if (TIMESTAMPS[i] >= start && TIMESTAMPS[i] < end) {
+                        metric.addData(TIMESTAMPS[i], i + 1);
+                    }
+                }
+                return Futures.immediateFuture(metric);
+            });
+    }
+
+    @Test
+    public void lastBucketCoversAnEndOffTheGrid() throws Exception {
+        BucketedOutput output = handler.findSimpleBuckets("t1", "m1", 1000, 2005, 10, false, null).get();
+
+        // 1005 ms in 10 buckets are buckets of 101 ms, the last one reaching past the end
+        verify(metricsService).findNumericData(any(NumericMetric.class), eq(1000L), eq(2010L));
+        assertThat(output.getData()).hasSize(10);
+        assertThat(output.getData().get(0).getTimestamp()).isEqualTo(1000L);
+        assertThat(output.getData().get(0).getAvg()).isEqualTo(1.0);
+        assertThat(output.getData().get(4).getTimestamp()).isEqualTo(1404L);
+        assertThat(output.getData().get(4).getAvg()).isEqualTo(2.0);
+        assertThat(output.getData().get(9).getTimestamp()).isEqualTo(1909L);
+        assertThat(output.getData().get(9).getAvg()).isEqualTo(3.0);
+        assertThat(output.getCursor()).isEqualTo(2010L);
+    }
+
+    @Test
+    public void cursorKeepsTheGridOfAnEndOffTheGrid() throws Exception {
+        BucketedOutput output = handler.findSimpleBuckets("t1", "m1", 1000, 2005, 10, true, 1909L).get();
+
+        verify(metricsService).findNumericData(any(NumericMetric.class), eq(1909L), eq(2010L));
+        assertThat(output.getData()).extracting("timestamp").containsExactly(1909L);
+        assertThat(output.getData().get(0).getMax()).isEqualTo(3.0);
+    }
+}